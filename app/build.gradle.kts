@@ -90,6 +90,10 @@ android {
         compose = true
         buildConfig = true
     }
+    testOptions {
+        // the command builders under test log through android.util.Log
+        unitTests.isReturnDefaultValues = true
+    }
     packaging {
         resources {
             excludes += "/META-INF/{AL2.0,LGPL2.1}"
@@ -78,9 +78,6 @@ import kotlinx.coroutines.flow.combine
 import kotlinx.coroutines.flow.first
 import kotlinx.coroutines.launch
 import org.json.JSONObject
-import java.text.SimpleDateFormat
-import java.util.Locale
-import java.util.TimeZone
 
 
 @AndroidEntryPoint
@@ -440,17 +437,12 @@ class MainActivity : ComponentActivity(), UsbEventReceiver, WifiStateChangeListe
         }
     }
 
-    private fun setDeviceTime(mcuTimeStr: String) {
+    private fun setDeviceTime(mcuEpochSeconds: Long) {
         try {
-            val formatter = SimpleDateFormat("yyyyMMddHHmm", Locale.ENGLISH)
-            // set time zone to hong kong time
-            formatter.timeZone = TimeZone.getTimeZone("Asia/Hong_Kong")
-
-            val newTimeMillis = formatter.parse(mcuTimeStr)?.time
+            // the MCU time was decoded as hong kong time
+            if (mcuEpochSeconds < 0) return
             val alarmManager = getSystemService(ALARM_SERVICE) as AlarmManager
-            if (newTimeMillis != null) {
-                alarmManager.setTime(newTimeMillis)
-            }
+            alarmManager.setTime(mcuEpochSeconds * 1000)
         } catch (e: Exception) {
             Log.e(TAG,"Error setting device time: $e")
         }
@@ -2,12 +2,15 @@ package com.vismo.nextgenmeter
 
 import android.app.Application
 import androidx.lifecycle.ProcessLifecycleOwner
+import com.serial.opt.MeterLog
 import dagger.hilt.android.HiltAndroidApp
 
 @HiltAndroidApp
 class MainApplication : Application() {
     override fun onCreate() {
         super.onCreate()
+        // release builds keep debug logs in the in-memory ring only, they are shipped with the log upload
+        MeterLog.setLogcatLevel(if (BuildConfig.DEBUG) MeterLog.DEBUG else MeterLog.INFO)
         val lifecycleObserver = AppLifecycleObserver(this)
         ProcessLifecycleOwner.get().lifecycle.addObserver(lifecycleObserver)
     }
@@ -82,7 +82,9 @@ import kotlinx.coroutines.withContext
 import java.io.File
 import java.io.IOException
 import java.text.SimpleDateFormat
+import java.util.Date
 import java.util.Locale
+import java.util.TimeZone
 import javax.inject.Inject
 import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.ensureActive
@@ -118,7 +120,10 @@ class MainViewModel @Inject constructor(
     private val _showConnectionIconsToggle = MutableStateFlow<Boolean?>(null)
     val showConnectionIconsToggle: StateFlow<Boolean?> = _showConnectionIconsToggle
 
-    private val dateFormat = SimpleDateFormat(TOOLBAR_UI_DATE_FORMAT, Locale.TRADITIONAL_CHINESE)
+    // shows the MCU wall clock, which is hong kong time
+    private val dateFormat = SimpleDateFormat(TOOLBAR_UI_DATE_FORMAT, Locale.TRADITIONAL_CHINESE).apply {
+        timeZone = TimeZone.getTimeZone("Asia/Hong_Kong")
+    }
 
     private val toolbarUiDataUpdateMutex = Mutex()
 
@@ -606,20 +611,16 @@ class MainViewModel @Inject constructor(
 
     private suspend fun observeMCUTIme() {
         DeviceDataStore.mcuTime.collectLatest {
-            it?.let { dateTime ->
+            it?.takeIf { time -> time >= 0 }?.let { epochSeconds ->
                 try {
-                    val formatter = SimpleDateFormat(MCU_DATE_FORMAT, Locale.ENGLISH)
-                    val date = formatter.parse(dateTime)
-                    date?.let {
-                        val formattedDate = dateFormat.format(date)
-                        toolbarUiDataUpdateMutex.withLock {
-                            _topAppBarUiState.value = _topAppBarUiState.value.copy(
-                                dateTime = formattedDate
-                            )
-                        }
+                    val formattedDate = dateFormat.format(Date(epochSeconds * 1000))
+                    toolbarUiDataUpdateMutex.withLock {
+                        _topAppBarUiState.value = _topAppBarUiState.value.copy(
+                            dateTime = formattedDate
+                        )
                     }
                 } catch (e: Exception) {
-                    Log.d(TAG, "Error parsing date: $dateTime")
+                    Log.d(TAG, "Error formatting date: $epochSeconds")
                 }
             }
         }
@@ -995,7 +996,6 @@ class MainViewModel @Inject constructor(
         private const val TURN_OFF_DEVICE_AFTER_BACKLIGHT_OFF_DELAY = 60 // 1 minute - standby mode
         private const val SHUTDOWN_DELAY_MINS_AFTER_LOW_POWER_MODE = 15L // 15 minutes
         private const val TOOLBAR_UI_DATE_FORMAT = "M月d日 HH:mm"
-        private const val MCU_DATE_FORMAT = "yyyyMMddHHmm"
         const val TAG_RESTARTING_MCU_COMMUNICATION = "Restarting MCU communication"
         private const val MEMORY_CHECK_INTERVAL = 5000L // 5 seconds
     }
@@ -22,8 +22,9 @@ object DeviceDataStore {
     private val _deviceIdData = MutableStateFlow<DeviceIdData?>(null)
     val deviceIdData = _deviceIdData
 
-    private val _mcuTime = MutableStateFlow<String?>(null)
-    val mcuTime: StateFlow<String?> = _mcuTime
+    /** Time of the last MCU heartbeat in epoch seconds, decoded from the frame by BcdTimeCodec */
+    private val _mcuTime = MutableStateFlow<Long?>(null)
+    val mcuTime: StateFlow<Long?> = _mcuTime
 
     private val _meteringBoardInfo = MutableStateFlow<MeteringBoardInfo?>(null)
     val meteringBoardInfo: StateFlow<MeteringBoardInfo?> = _meteringBoardInfo
@@ -73,7 +74,7 @@ object DeviceDataStore {
         }
     }
 
-    suspend fun setMCUTime(mcuTime: String) {
+    suspend fun setMCUTime(mcuTime: Long) {
         mutex.withLock {
             this._mcuTime.value = mcuTime
         }
@@ -5,14 +5,16 @@ import android.util.Log
 import androidx.room.Database
 import androidx.room.Room
 import androidx.room.RoomDatabase
+import androidx.room.migration.Migration
 import androidx.sqlite.db.SupportSQLiteDatabase
 import com.vismo.nextgenmeter.BuildConfig
 import com.vismo.nextgenmeter.dao.TripsDao
 import com.vismo.nextgenmeter.model.TripData
+import com.vismo.nextgenmeter.util.logV
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.asExecutor
 
-@Database(entities = [TripData::class], version = 6, exportSchema = false)
+@Database(entities = [TripData::class], version = 7, exportSchema = false)
 abstract class LocalTripsRoomDatabase: RoomDatabase() {
     abstract fun tripsDao(): TripsDao
 
@@ -23,6 +25,13 @@ abstract class LocalTripsRoomDatabase: RoomDatabase() {
         @Volatile
         private var INSTANCE: LocalTripsRoomDatabase? = null
 
+        // keeps the stored trips instead of the destructive fallback
+        private val MIGRATION_6_7 = object : Migration(6, 7) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("ALTER TABLE trips ADD COLUMN mcu_time INTEGER")
+            }
+        }
+
         fun getInstance(context: Context): LocalTripsRoomDatabase {
             return INSTANCE ?: synchronized(this) {
                 val instance = Room.databaseBuilder(
@@ -33,13 +42,17 @@ abstract class LocalTripsRoomDatabase: RoomDatabase() {
                     .addCallback(object : RoomDatabase.Callback() {
                         override fun onOpen(db: SupportSQLiteDatabase) {
                             super.onOpen(db)
-                            db.execSQL("PRAGMA synchronous=EXTRA;")
-                            db.query("PRAGMA wal_checkpoint(FULL);")
+                            // FULL syncs the rollback journal and the database on every commit, EXTRA only adds
+                            // a directory sync after deleting the journal, which the TRUNCATE mode never does
+                            db.execSQL("PRAGMA synchronous=FULL;")
                         }
                     })
+                    .addMigrations(MIGRATION_6_7)
                     .fallbackToDestructiveMigration()
+                    // the log level can change while the database is open, so logV checks
+                    // MeterLog.isLoggable for each query and only then formats the message
                     .setQueryCallback({ sqlQuery, bindArgs ->
-                        Log.d("LocalTripsRoomDatabase", "Query: $sqlQuery - Args: $bindArgs")
+                        logV(TAG) { "Query: $sqlQuery - Args: $bindArgs" }
                     }, Dispatchers.IO.asExecutor())
                     .build()
                 INSTANCE = instance
@@ -0,0 +1,351 @@
+package com.vismo.nextgenmeter.model
+
+import com.vismo.nextgenmeter.util.BcdTimeCodec
+import com.vismo.nextgenmeter.util.GlobalUtils.isStopped
+
+/**
+ * Flyweight view over a raw 55AA frame received from the measure board.
+ *
+ * A view holds no decoded state: [wrap] points it at a frame and every field is decoded from the bytes
+ * when it is read, so one instance can be reused for every frame of its type. Money, distance and
+ * duration fields are packed BCD, counters are binary. Call [isValid] after [wrap] before reading
+ * fields; reading past the wrapped length throws [IndexOutOfBoundsException].
+ *
+ * Byte offsets are from the start of the frame (the first 0x55), i.e. half of the hex string offsets
+ * used by the String parsers.
+ */
+abstract class McuFrameView protected constructor(private val minLength: Int) {
+
+    private var frame: ByteArray = EMPTY
+    var length: Int = 0
+        private set
+
+    /**
+     * @return false if the frame is too short for this view
+     */
+    fun wrap(frame: ByteArray, length: Int = frame.size): Boolean {
+        require(length in 0..frame.size) { "length $length out of range for frame of ${frame.size} bytes" }
+        this.frame = frame
+        this.length = length
+        return length >= minLength
+    }
+
+    val command: Int
+        get() = u8(INDEX_COMMAND)
+
+    /** Checks the length, the 55AA markers and the field ranges of the wrapped frame. */
+    open fun isValid(): Boolean = length >= minLength && isFramed(frame, length)
+
+    protected fun u8(offset: Int): Int {
+        checkRange(offset, 1)
+        return frame[offset].toInt() and 0xFF
+    }
+
+    protected fun u16(offset: Int): Int {
+        checkRange(offset, 2)
+        return ((frame[offset].toInt() and 0xFF) shl 8) or (frame[offset + 1].toInt() and 0xFF)
+    }
+
+    protected fun isBcd(offset: Int, bytes: Int): Boolean {
+        checkRange(offset, bytes)
+        for (i in offset until offset + bytes) {
+            val v = frame[i].toInt() and 0xFF
+            if ((v shr 4) > 9 || (v and 0x0F) > 9) return false
+        }
+        return true
+    }
+
+    /**
+     * @return the packed BCD value of [bytes] bytes (at most 4), or -1 if a nibble is not a decimal digit
+     */
+    protected fun bcd(offset: Int, bytes: Int): Int {
+        checkRange(offset, bytes)
+        var value = 0
+        for (i in offset until offset + bytes) {
+            val v = frame[i].toInt() and 0xFF
+            val hi = v shr 4
+            val lo = v and 0x0F
+            if (hi > 9 || lo > 9) return -1
+            value = value * 100 + hi * 10 + lo
+        }
+        return value
+    }
+
+    /** HHMMSS packed BCD in seconds, -1 if not BCD. */
+    protected fun bcdDurationSeconds(offset: Int): Long {
+        checkRange(offset, BcdTimeCodec.DURATION_BYTES)
+        return BcdTimeCodec.durationSeconds(frame, offset)
+    }
+
+    /** yyyyMMddHHmm[ss] packed BCD that is a real calendar date. */
+    protected fun isValidBcdDateTime(offset: Int, withSeconds: Boolean): Boolean =
+        bcdEpochSeconds(offset, withSeconds) != BcdTimeCodec.INVALID
+
+    /** yyyyMMddHHmm[ss] packed BCD in Hong Kong time as epoch seconds, -1 if not a real calendar date. */
+    protected fun bcdEpochSeconds(offset: Int, withSeconds: Boolean): Long {
+        checkRange(offset, if (withSeconds) BcdTimeCodec.DATE_TIME_WITH_SECONDS_BYTES else BcdTimeCodec.DATE_TIME_BYTES)
+        return BcdTimeCodec.epochSeconds(frame, offset, withSeconds)
+    }
+
+    /** Upper case hex of [bytes] bytes, for fields that are kept as hex strings. */
+    protected fun hex(offset: Int, bytes: Int): String {
+        checkRange(offset, bytes)
+        val out = CharArray(bytes * 2)
+        for (i in 0 until bytes) {
+            val v = frame[offset + i].toInt() and 0xFF
+            out[i * 2] = HEX[v shr 4]
+            out[i * 2 + 1] = HEX[v and 0x0F]
+        }
+        return String(out)
+    }
+
+    /** ISO-8859-1 text with 0xFF padding bytes removed. */
+    protected fun text(offset: Int, bytes: Int): String {
+        checkRange(offset, bytes)
+        val sb = StringBuilder(bytes)
+        for (i in offset until offset + bytes) {
+            val v = frame[i].toInt() and 0xFF
+            if (v != 0xFF) sb.append(v.toChar())
+        }
+        return sb.toString()
+    }
+
+    private fun checkRange(offset: Int, bytes: Int) {
+        if (offset < 0 || offset + bytes > length) {
+            throw IndexOutOfBoundsException("field [$offset, ${offset + bytes}) outside frame of $length bytes")
+        }
+    }
+
+    companion object {
+        const val INDEX_COMMAND = 7
+        /** checksum + 55AA after the last field */
+        const val TRAILER_LENGTH = 3
+
+        private val EMPTY = ByteArray(0)
+        private val HEX = "0123456789ABCDEF".toCharArray()
+
+        fun isFramed(frame: ByteArray, length: Int = frame.size): Boolean =
+            length >= INDEX_COMMAND + 1 + TRAILER_LENGTH &&
+                frame[0] == 0x55.toByte() && frame[1] == 0xAA.toByte() &&
+                frame[length - 2] == 0x55.toByte() && frame[length - 1] == 0xAA.toByte()
+
+        /** XOR of the length field through the last payload byte must equal the checksum byte. */
+        fun hasValidChecksum(frame: ByteArray, length: Int = frame.size): Boolean {
+            if (!isFramed(frame, length)) return false
+            var checksum = 0
+            for (i in 2 until length - TRAILER_LENGTH) {
+                checksum = checksum xor frame[i].toInt()
+            }
+            return (checksum and 0xFF) == (frame[length - TRAILER_LENGTH].toInt() and 0xFF)
+        }
+
+        /** @return the response code such as 0xE3, or -1 if the frame is too short */
+        fun commandOf(frame: ByteArray, length: Int = frame.size): Int =
+            if (length > INDEX_COMMAND) frame[INDEX_COMMAND].toInt() and 0xFF else -1
+    }
+}
+
+/**
+ * 0xE2 idle heartbeat.
+ */
+class IdleHeartbeatView : McuFrameView(LICENSE_PLATE + 8 + McuFrameView.TRAILER_LENGTH) {
+    /** yyyyMMddHHmm */
+    fun currentTime(): String = hex(TIME, 6)
+
+    /** [currentTime] as epoch seconds, -1 if invalid */
+    fun currentTimeEpochSeconds(): Long = bcdEpochSeconds(TIME, withSeconds = false)
+
+    fun measureBoardDeviceId(): String = hex(DEVICE_ID, 5)
+
+    fun licensePlate(): String = text(LICENSE_PLATE, 8)
+
+    override fun isValid(): Boolean = super.isValid() && isValidBcdDateTime(TIME, withSeconds = false)
+
+    private companion object {
+        const val TIME = 20
+        const val DEVICE_ID = 26
+        const val LICENSE_PLATE = 55
+    }
+}
+
+/**
+ * 0xE3 ongoing heartbeat, sent about once a second during a trip.
+ */
+class OngoingHeartbeatView : McuFrameView(UNPAID_DISTANCE + 3 + McuFrameView.TRAILER_LENGTH) {
+    /** 0-7, see [isStopped] */
+    val measureBoardStatus: Int
+        get() = u8(STATUS) and 0x0F
+
+    val tripStatus: TripStatus
+        get() = if (measureBoardStatus.isStopped()) TripStatus.STOP else TripStatus.HIRED
+
+    /** binary */
+    val lockedDuration: Int
+        get() = u16(LOCKED_DURATION)
+
+    val paidDistance: Double
+        get() = bcd(PAID_DISTANCE, 3) * 10.0
+
+    val waitDurationInSeconds: Long
+        get() = bcdDurationSeconds(DURATION)
+
+    val extras: Double
+        get() = bcd(EXTRAS, 3) / 100.0
+
+    val fare: Double
+        get() = bcd(FARE, 3) / 100.0
+
+    val totalFare: Double
+        get() = bcd(TOTAL_FARE, 3) / 100.0
+
+    val abnormalPulseCounter: Int
+        get() = u8(ABNORMAL_PULSE_COUNTER)
+
+    val overspeedCounter: Int
+        get() = u8(OVERSPEED_COUNTER)
+
+    val unpaidDistance: Double
+        get() = bcd(UNPAID_DISTANCE, 3) * 10.0
+
+    /** yyyyMMddHHmm */
+    fun currentTime(): String = hex(TIME, 6)
+
+    /** [currentTime] as epoch seconds, -1 if invalid */
+    fun currentTimeEpochSeconds(): Long = bcdEpochSeconds(TIME, withSeconds = false)
+
+    override fun isValid(): Boolean =
+        super.isValid() &&
+            measureBoardStatus in 0..7 &&
+            isBcd(PAID_DISTANCE, 3) &&
+            isBcd(DURATION, 3) &&
+            isBcd(EXTRAS, 9) &&
+            isValidBcdDateTime(TIME, withSeconds = false) &&
+            isBcd(UNPAID_DISTANCE, 3)
+
+    private companion object {
+        const val STATUS = 8
+        const val LOCKED_DURATION = 9
+        const val PAID_DISTANCE = 11
+        const val DURATION = 14
+        const val EXTRAS = 19
+        const val FARE = 22
+        const val TOTAL_FARE = 25
+        const val TIME = 28
+        const val ABNORMAL_PULSE_COUNTER = 34
+        const val OVERSPEED_COUNTER = 35
+        const val UNPAID_DISTANCE = 36
+    }
+}
+
+/**
+ * 0xE4 trip end summary.
+ */
+class TripEndSummaryView : McuFrameView(TOTAL_FARE + 3 + McuFrameView.TRAILER_LENGTH) {
+    val paidDistance: Double
+        get() = bcd(DISTANCE, 3) * 10.0
+
+    val waitDurationInSeconds: Long
+        get() = bcdDurationSeconds(DURATION)
+
+    val fare: Double
+        get() = bcd(FARE, 3) / 100.0
+
+    val extras: Double
+        get() = bcd(EXTRAS, 3) / 100.0
+
+    val totalFare: Double
+        get() = bcd(TOTAL_FARE, 3) / 100.0
+
+    override fun isValid(): Boolean = super.isValid() && isBcd(DISTANCE, 3 * 5)
+
+    private companion object {
+        const val DISTANCE = 59
+        const val DURATION = 62
+        const val FARE = 65
+        const val EXTRAS = 68
+        const val TOTAL_FARE = 71
+    }
+}
+
+/**
+ * 0xA4 parameters enquiry response.
+ */
+class ParametersView : McuFrameView(OVER_SPEED + 2 + McuFrameView.TRAILER_LENGTH) {
+    val kValue: Int
+        get() = bcd(K_VALUE, 2)
+
+    val startingDistance: Int
+        get() = bcd(START_DISTANCE, 2)
+
+    val startingPrice: Int
+        get() = bcd(START_PRICE, 2)
+
+    val stepPrice: Int
+        get() = bcd(STEP_PRICE, 2)
+
+    val changedPriceAt: Int
+        get() = bcd(STEP_PRICE_CHANGED_AT, 2)
+
+    val changedStepPrice: Int
+        get() = bcd(CHANGED_STEP_PRICE, 2)
+
+    fun firmwareVersion(): String = hex(FIRMWARE_VERSION, 4)
+
+    fun parametersVersion(): String = hex(PARAMETERS_VERSION, 4)
+
+    override fun isValid(): Boolean =
+        super.isValid() && isBcd(K_VALUE, 4) && isBcd(START_PRICE, 2) && isBcd(STEP_PRICE, 2) &&
+            isBcd(STEP_PRICE_CHANGED_AT, 4)
+
+    /** Same strings as the hex parser produced, [MCUFareParams.format] reads them as decimals. */
+    fun toMCUFareParams(): MCUFareParams = MCUFareParams(
+        parametersVersion = parametersVersion(),
+        firmwareVersion = firmwareVersion(),
+        kValue = hex(K_VALUE, 2),
+        startingDistance = hex(START_DISTANCE, 2),
+        startingPrice = hex(START_PRICE, 2),
+        stepPrice = hex(STEP_PRICE, 2),
+        changedPriceAt = hex(STEP_PRICE_CHANGED_AT, 2),
+        changedStepPrice = hex(CHANGED_STEP_PRICE, 2),
+    )
+
+    private companion object {
+        const val FIRMWARE_VERSION = 9
+        const val PARAMETERS_VERSION = 13
+        const val K_VALUE = 17
+        const val START_DISTANCE = 19
+        const val START_PRICE = 21
+        const val STEP_PRICE = 25
+        const val STEP_PRICE_CHANGED_AT = 37
+        const val CHANGED_STEP_PRICE = 39
+        const val OVER_SPEED = 47
+    }
+}
+
+/**
+ * 0xB0 metering board information response.
+ */
+class BoardInfoView : McuFrameView(POWER_OFF_TIME + 2 + McuFrameView.TRAILER_LENGTH) {
+    val meteringPlateStatus: Int
+        get() = u8(STATUS)
+
+    fun toMeteringBoardInfo(): MeteringBoardInfo = MeteringBoardInfo(
+        meteringPlateStatus = meteringPlateStatus,
+        mcuTime = hex(MCU_TIME, 7),
+        kValue = hex(K_VALUE, 2),
+        meteringPlateId = hex(PLATE_ID, 5),
+        memoryData = hex(MEMORY_DATA, 32),
+        tripId = text(TRIP_ID, 32),
+        androidBoardPowerOffTime = hex(POWER_OFF_TIME, 2),
+    )
+
+    private companion object {
+        const val STATUS = 8
+        const val MCU_TIME = 9
+        const val K_VALUE = 16
+        const val PLATE_ID = 18
+        const val MEMORY_DATA = 23
+        const val TRIP_ID = 55
+        const val POWER_OFF_TIME = 87
+    }
+}
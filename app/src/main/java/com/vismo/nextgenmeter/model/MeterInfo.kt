@@ -35,6 +35,8 @@ data class Settings(
     @SerializedName("trigger_log_upload") val triggerLogUpload: Boolean = false,
     @SerializedName("acc_off_turn_off_backlight_delay_seconds") val accOffTurnOffBacklightDelaySeconds: Long?,
     @SerializedName("acc_off_switch_to_low_power_mode_delay_seconds") val accOffSwitchToLowPowerModeDelaySeconds: Long?,
+    /** Log level per tag, e.g. {"MeasureBoardRepositoryImpl": "VERBOSE"}, "*" sets the default level */
+    @SerializedName("log_levels") val logLevels: Map<String, String>? = null,
 )
 
 data class McuInfo(
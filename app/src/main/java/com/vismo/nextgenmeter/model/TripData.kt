@@ -79,6 +79,11 @@ data class TripData (
     val overSpeedCounter: Int? = null,
     val mcuStatus: Int? = null,
     val isNewTrip: Boolean = false,
+
+    /** MCU time of the last heartbeat in epoch seconds, see BcdTimeCodec */
+    @ColumnInfo(name = "mcu_time")
+    @SerializedName("mcu_time")
+    val mcuTime: Long? = null,
 )
 
 enum class TripStatus {
@@ -13,6 +13,7 @@ import com.google.firebase.storage.FirebaseStorage
 import com.google.gson.Gson
 import com.vismo.nextgenmeter.dao.TripsDao
 import com.vismo.nextgenmeter.repository.DriverPreferenceRepository
+import com.vismo.nextgenmeter.repository.DurabilityService
 import com.vismo.nextgenmeter.repository.FirebaseAuthRepository
 import com.vismo.nextgenmeter.repository.InternetConnectivityObserver
 import com.vismo.nextgenmeter.repository.LocalTripsRepository
@@ -56,12 +57,22 @@ object AppModule {
     @Provides
     fun providesMeterPreferenceRepository(
         @ApplicationContext context: Context,
+        durabilityService: DurabilityService,
     ): MeterPreferenceRepository {
         return MeterPreferenceRepository(
             context = context,
+            durability = durabilityService,
         )
     }
 
+    @Singleton
+    @Provides
+    fun providesDurabilityService(
+        @IoDispatcher ioDispatcher: CoroutineDispatcher,
+    ): DurabilityService {
+        return DurabilityService(ioDispatcher = ioDispatcher)
+    }
+
     @Singleton
     @Provides
     fun providesInternetConnectivityObserver(
@@ -175,12 +186,14 @@ object AppModule {
     fun providesTripFileManager(
         @ApplicationContext context: Context,
         gson: Gson,
-        @IoDispatcher ioDispatcher: CoroutineDispatcher
+        @IoDispatcher ioDispatcher: CoroutineDispatcher,
+        durabilityService: DurabilityService
     ): TripFileManager {
         return TripFileManager(
             context = context,
             gson = gson,
-            ioDispatcher = ioDispatcher
+            ioDispatcher = ioDispatcher,
+            durability = durabilityService
         )
     }
 
@@ -204,13 +217,15 @@ object AppModule {
         @ApplicationContext context: Context,
         @IoDispatcher ioDispatcher: CoroutineDispatcher,
         dashManagerConfig: DashManagerConfig,
-        meterPreferenceRepository: MeterPreferenceRepository
+        meterPreferenceRepository: MeterPreferenceRepository,
+        durabilityService: DurabilityService
     ): MeasureBoardRepository {
         return MeasureBoardRepositoryImpl(
             context = context,
             ioDispatcher = ioDispatcher,
             dashManagerConfig = dashManagerConfig,
-            meterPreferenceRepository = meterPreferenceRepository
+            meterPreferenceRepository = meterPreferenceRepository,
+            durability = durabilityService
         )
     }
 
@@ -276,11 +291,13 @@ object AppModule {
     @Provides
     fun providesDriverPreferenceRepository(
         @ApplicationContext context: Context,
-        gson: Gson
+        gson: Gson,
+        durabilityService: DurabilityService
     ): DriverPreferenceRepository {
         return DriverPreferenceRepository(
             context = context,
-            gson = gson
+            gson = gson,
+            durability = durabilityService
         )
     }
 
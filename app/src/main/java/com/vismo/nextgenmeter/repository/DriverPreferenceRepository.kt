@@ -5,9 +5,9 @@ import androidx.datastore.core.DataStore
 import androidx.datastore.core.IOException
 import androidx.datastore.core.Serializer
 import androidx.datastore.dataStore
+import androidx.datastore.dataStoreFile
 import com.google.gson.Gson
 import com.vismo.nextgenmeter.model.Driver
-import com.vismo.nextgenmeter.util.GlobalUtils.withTransactionSync
 import dagger.hilt.android.qualifiers.ApplicationContext
 import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.flow.first
@@ -18,8 +18,10 @@ import javax.inject.Inject
 
 class DriverPreferenceRepository @Inject constructor(
     @ApplicationContext private val context: Context,
-    private val gson: Gson
+    private val gson: Gson,
+    private val durability: DurabilityService
 ) {
+    private val dataStoreSync by lazy { SyncTarget.directory(context.dataStoreFile(DRIVER_PREFS_NAME).parentFile!!) }
 
     fun getDriver(): Flow<Driver> {
         return context.driverDataStore.data.map { it }
@@ -36,7 +38,7 @@ class DriverPreferenceRepository @Inject constructor(
 
     suspend fun saveDriver(driver: Driver) {
         try {
-            withTransactionSync {
+            durability.withDurable(dataStoreSync) {
                 context.driverDataStore.updateData { driver }
             }
         } catch (e: IOException) {
@@ -46,7 +48,7 @@ class DriverPreferenceRepository @Inject constructor(
 
     suspend fun resetDriver() {
         try {
-            withTransactionSync {
+            durability.withDurable(dataStoreSync) {
                 context.driverDataStore.updateData { defaultDriver }
             }
         } catch (e: IOException) {
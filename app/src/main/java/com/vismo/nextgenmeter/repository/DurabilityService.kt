@@ -0,0 +1,195 @@
+package com.vismo.nextgenmeter.repository
+
+import android.system.ErrnoException
+import android.system.Os
+import android.system.OsConstants
+import android.util.Log
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import java.io.File
+import java.io.IOException
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * A file, mapping or directory the [DurabilityService] can flush to storage, e.g. `channel.force(false)`.
+ *
+ * @property key targets with the same key are synced once per commit however many writes requested it
+ */
+class SyncTarget(
+    val key: String,
+    private val sync: () -> Unit,
+) {
+    @Throws(IOException::class)
+    internal fun sync() = sync.invoke()
+
+    override fun toString(): String = key
+
+    companion object {
+        /**
+         * `fsync` of a directory, makes the files created or renamed in it durable.
+         * DataStore syncs its temporary file before renaming it, so this is all its writes still need.
+         */
+        fun directory(dir: File): SyncTarget = SyncTarget(dir.path) {
+            try {
+                val fd = Os.open(dir.path, OsConstants.O_RDONLY, 0)
+                try {
+                    Os.fsync(fd)
+                } finally {
+                    Os.close(fd)
+                }
+            } catch (e: ErrnoException) {
+                throw IOException("fsync of ${dir.path} failed", e)
+            }
+        }
+    }
+}
+
+/**
+ * Group commit of the writes of trip storage, preferences and the ongoing trip checkpoint.
+ *
+ * Writers put their data in the page cache and call [requestSync] or [awaitDurable] for the file they wrote.
+ * The first request opens a commit window of [commitWindowMs], then every target requested in the window is
+ * flushed once with its own targeted sync, an `fdatasync` of that file rather than a device-wide `sync`, and
+ * the callers waiting on it are completed. A request that arrives while a commit is running waits for the
+ * next one, so a completion always means the data written before the request is on storage.
+ */
+class DurabilityService(
+    ioDispatcher: CoroutineDispatcher,
+    private val commitWindowMs: Long = DEFAULT_COMMIT_WINDOW_MS,
+) {
+    private val scope = CoroutineScope(SupervisorJob() + ioDispatcher)
+    private val lock = Any()
+    private var pending = LinkedHashMap<String, PendingSync>()
+    private val signal = Channel<Unit>(Channel.CONFLATED)
+
+    private val startedAt = System.nanoTime()
+    private val commits = AtomicLong()
+    private val requests = AtomicLong()
+    private val syncs = AtomicLong()
+    private val failures = AtomicLong()
+    private val totalSyncNanos = AtomicLong()
+    private val maxSyncNanos = AtomicLong()
+    @Volatile private var lastSyncNanos = 0L
+
+    init {
+        scope.launch {
+            for (ignored in signal) {
+                delay(commitWindowMs)
+                commit()
+            }
+        }
+    }
+
+    /**
+     * Queues [target] for the next group commit without waiting.
+     *
+     * @return completed once the target is synced, or exceptionally with the [IOException] of its sync
+     */
+    fun requestSync(target: SyncTarget): Deferred<Unit> {
+        val completion = CompletableDeferred<Unit>()
+        requests.incrementAndGet()
+        synchronized(lock) {
+            pending.getOrPut(target.key) { PendingSync(target) }.waiters.add(completion)
+        }
+        signal.trySend(Unit)
+        return completion
+    }
+
+    /**
+     * Suspends until [target] has been synced by a group commit.
+     *
+     * @throws IOException if the sync failed
+     */
+    suspend fun awaitDurable(target: SyncTarget) {
+        requestSync(target).await()
+    }
+
+    /**
+     * Runs [block], which writes to [target], and returns once the write is durable.
+     */
+    suspend fun <T> withDurable(target: SyncTarget, block: suspend () -> T): T {
+        val result = block()
+        try {
+            awaitDurable(target)
+        } catch (e: IOException) {
+            // the data was written, only its durability is uncertain
+            Log.e(TAG, "Sync of $target failed", e)
+        }
+        return result
+    }
+
+    fun stats(): DurabilityStats {
+        val commitCount = commits.get()
+        val syncCount = syncs.get()
+        val elapsedSeconds = (System.nanoTime() - startedAt) / 1e9
+        return DurabilityStats(
+            commits = commitCount,
+            requests = requests.get(),
+            syncs = syncCount,
+            failures = failures.get(),
+            commitsPerSecond = if (elapsedSeconds > 0) commitCount / elapsedSeconds else 0.0,
+            averageSyncMicros = if (syncCount > 0) totalSyncNanos.get() / syncCount / 1_000 else 0,
+            maxSyncMicros = maxSyncNanos.get() / 1_000,
+            lastSyncMicros = lastSyncNanos / 1_000,
+        )
+    }
+
+    private fun commit() {
+        val batch = synchronized(lock) {
+            pending.also { pending = LinkedHashMap() }
+        }
+        if (batch.isEmpty()) return
+        commits.incrementAndGet()
+        for (item in batch.values) {
+            val start = System.nanoTime()
+            val error = try {
+                item.target.sync()
+                null
+            } catch (e: Exception) {
+                e as? IOException ?: IOException(e)
+            }
+            val elapsed = System.nanoTime() - start
+            syncs.incrementAndGet()
+            totalSyncNanos.addAndGet(elapsed)
+            maxSyncNanos.accumulateAndGet(elapsed, ::maxOf)
+            lastSyncNanos = elapsed
+            if (error == null) {
+                item.waiters.forEach { it.complete(Unit) }
+            } else {
+                failures.incrementAndGet()
+                Log.e(TAG, "Sync of ${item.target} failed: ${error.message}")
+                item.waiters.forEach { it.completeExceptionally(error) }
+            }
+        }
+    }
+
+    private class PendingSync(val target: SyncTarget) {
+        val waiters = ArrayList<CompletableDeferred<Unit>>(2)
+    }
+
+    companion object {
+        private const val TAG = "DurabilityService"
+        const val DEFAULT_COMMIT_WINDOW_MS = 5L
+    }
+}
+
+/**
+ * @property requests sync requests, more than [syncs] when requests for the same target were grouped
+ * @property syncs targeted syncs run, one per target per commit
+ */
+data class DurabilityStats(
+    val commits: Long,
+    val requests: Long,
+    val syncs: Long,
+    val failures: Long,
+    val commitsPerSecond: Double,
+    val averageSyncMicros: Long,
+    val maxSyncMicros: Long,
+    val lastSyncMicros: Long,
+)
@@ -5,7 +5,6 @@ import com.vismo.nextgenmeter.model.TripData
 import com.vismo.nextgenmeter.module.DefaultDispatcher
 import com.vismo.nextgenmeter.module.IoDispatcher
 import kotlinx.coroutines.CoroutineDispatcher
-import kotlinx.coroutines.delay
 import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.sync.Mutex
 import kotlinx.coroutines.sync.withLock
@@ -23,9 +22,8 @@ class LocalTripsRepositoryImpl @Inject constructor(
     override suspend fun upsertTrip(tripData: TripData) {
         withContext(ioDispatcher) {
             dbMutex.withLock {
+                // SQLite syncs the rollback journal and the database file when the transaction commits
                 tripsDao.upsertTrip(tripData)
-                checkpointDatabase()
-                delay(500) // Wait for checkpoint to complete
             }
         }
     }
@@ -51,17 +49,7 @@ class LocalTripsRepositoryImpl @Inject constructor(
             dbMutex.withLock {
                 tripsDao.clearAllTrips()
                 tripsDao.deletePrimaryKeyIndex()
-                checkpointDatabase()
-                delay(500) // Wait for checkpoint to complete
              }
         }
     }
-    private suspend fun checkpointDatabase() {
-        withContext(defaultDispatcher) {
-            tripsDao.checkpoint()
-            delay(500)
-            tripsDao.deleteWAL()
-        }
-    }
-
 }
\ No newline at end of file
@@ -4,6 +4,7 @@ import android.content.Context
 import android.util.Log
 import java.io.File
 import com.google.firebase.storage.StorageReference
+import com.serial.opt.MeterLog
 import com.vismo.nextgenmeter.module.IoDispatcher
 import dagger.hilt.android.qualifiers.ApplicationContext
 import kotlinx.coroutines.CoroutineDispatcher
@@ -29,7 +30,9 @@ class LogShippingRepository @Inject constructor(
     /**
      * Attempts to:
      * 1. Create a new log file from logcat (if fails, we still proceed with upload attempts).
-     * 2. Upload all files in the "logcat" directory.
+     * 2. Dump the recent entries of the in-memory [MeterLog] ring, which holds the debug logs release builds keep
+     *    out of logcat.
+     * 3. Upload all files in the "logcat" directory.
      *
      * Success is defined as having at least one file successfully uploaded.
      * Returns Result<Int> representing the number of files successfully uploaded.
@@ -42,6 +45,7 @@ class LogShippingRepository @Inject constructor(
             if (!logcatExecutedSuccessfully) {
                 Log.e(TAG, "Failed to create new log file from logcat, proceeding with any existing files.")
             }
+            createLogFileFromRing()
 
             // Upload all files in the directory
             val logcatDir = File(context.filesDir, "logcat")
@@ -106,6 +110,23 @@ class LogShippingRepository @Inject constructor(
         }
     }
 
+    private suspend fun createLogFileFromRing(): Boolean = withContext(ioDispatcher) {
+        val timeStamp = java.text.SimpleDateFormat("yyyyMMdd_HHmmss", java.util.Locale.US).format(java.util.Date())
+        val logDir = File(context.filesDir, "logcat")
+        val logFile = File(logDir, "meterlog_$timeStamp.txt.gz")
+        return@withContext try {
+            logDir.mkdirs()
+            val count = GZIPOutputStream(FileOutputStream(logFile)).bufferedWriter().use { writer ->
+                MeterLog.dump(writer)
+            }
+            if (count == 0) logFile.delete()
+            count > 0
+        } catch (e: IOException) {
+            Log.e(TAG, "Error creating log file from the log ring", e)
+            false
+        }
+    }
+
     private suspend fun compressFileToGzip(inputFile: File): File = withContext(ioDispatcher) {
         val gzFile = File(inputFile.parent, inputFile.name + ".gz") // e.g. logcat_20210101_120000.txt.gz
         FileInputStream(inputFile).use { fis ->
@@ -0,0 +1,230 @@
+package com.vismo.nextgenmeter.repository
+
+import kotlinx.coroutines.channels.Channel
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Criticality classes of the commands [MeasureBoardRepositoryImpl] sends to the MCU.
+ */
+enum class McuCommandClass {
+    /** Trip lifecycle, unlock and shutdown commands, never dropped */
+    CRITICAL,
+    /** Requests, responses and everything else, the oldest is dropped when too many are queued */
+    NORMAL,
+    /** Commands that set a value on the board, a newer command with the same key replaces the queued one */
+    STATE,
+    /** Beeps, rate limited and dropped when the board is busy */
+    COSMETIC,
+}
+
+/**
+ * Queue of the commands waiting for the task processor.
+ *
+ * Commands are sent in the order they were queued whatever their class, so an extras update still reaches the
+ * board before the end trip command that follows it. The classes only decide what happens under load: critical
+ * commands are always kept, normal commands are bounded, a [McuCommandClass.STATE] command replaces the queued
+ * command with the same key unless a critical command was queued after it, and cosmetic commands are
+ * rate limited to one per [COSMETIC_INTERVAL_MS].
+ */
+class McuCommandScheduler {
+
+    private val stats = McuCommandClass.values().associateWith { ClassCounters() }
+
+    private val lock = Any()
+    private val queue = ArrayDeque<Slot>()
+    private val stateSlots = HashMap<String, Slot>()
+    private var normalCount = 0
+    private var cosmeticCount = 0
+    private var nextSeq = 0L
+    private var lastCriticalSeq = -1L
+    private var lastCosmeticAt = Long.MIN_VALUE
+    private var closed = false
+
+    /** Wakes [take] when a command is queued, closed with the scheduler */
+    private val signal = Channel<Unit>(Channel.CONFLATED)
+
+    val isClosed: Boolean
+        get() = synchronized(lock) { closed }
+
+    /**
+     * Queues a command. Can be called from any thread and never suspends.
+     *
+     * @param key identifies the value a [McuCommandClass.STATE] command sets, ignored for the other classes
+     * @return false if the command was dropped or rate limited, or the scheduler is closed
+     */
+    fun offer(commandClass: McuCommandClass, key: String? = null, task: suspend () -> Unit): Boolean {
+        val counters = counters(commandClass)
+        val now = System.nanoTime()
+        counters.queued.incrementAndGet()
+        synchronized(lock) {
+            if (closed) {
+                counters.dropped.incrementAndGet()
+                return false
+            }
+            when (commandClass) {
+                McuCommandClass.STATE -> {
+                    val stateKey = key ?: commandClass.name
+                    val queued = stateSlots[stateKey]
+                    if (queued != null && queued.seq > lastCriticalSeq) {
+                        // keeps its place in the queue and its wait time, only the value is replaced
+                        queued.task = task
+                        counters.coalesced.incrementAndGet()
+                        return true
+                    }
+                    stateSlots[stateKey] = enqueue(commandClass, stateKey, task, now)
+                }
+                McuCommandClass.COSMETIC -> {
+                    if (cosmeticCount >= COSMETIC_CAPACITY ||
+                        (lastCosmeticAt != Long.MIN_VALUE && now - lastCosmeticAt < COSMETIC_INTERVAL_NANOS)
+                    ) {
+                        counters.rateLimited.incrementAndGet()
+                        return false
+                    }
+                    lastCosmeticAt = now
+                    cosmeticCount++
+                    enqueue(commandClass, null, task, now)
+                }
+                McuCommandClass.NORMAL -> {
+                    if (normalCount >= NORMAL_CAPACITY) dropOldestNormal()
+                    normalCount++
+                    enqueue(commandClass, null, task, now)
+                }
+                McuCommandClass.CRITICAL -> {
+                    lastCriticalSeq = enqueue(commandClass, null, task, now).seq
+                }
+            }
+        }
+        signal.trySend(Unit)
+        return true
+    }
+
+    /**
+     * Suspends until a command is queued and returns the oldest one.
+     *
+     * @throws kotlinx.coroutines.channels.ClosedReceiveChannelException after [close]
+     */
+    suspend fun take(): suspend () -> Unit {
+        while (true) {
+            val slot = synchronized(lock) {
+                queue.removeFirstOrNull()?.also { slot ->
+                    when (slot.commandClass) {
+                        McuCommandClass.STATE -> slot.key?.let { stateSlots.remove(it, slot) }
+                        McuCommandClass.NORMAL -> normalCount--
+                        McuCommandClass.COSMETIC -> cosmeticCount--
+                        McuCommandClass.CRITICAL -> Unit
+                    }
+                }
+            }
+            if (slot != null) {
+                counters(slot.commandClass).onTaken(System.nanoTime() - slot.enqueuedNanos)
+                return slot.task
+            }
+            signal.receive()
+        }
+    }
+
+    /**
+     * Drops the queued commands and wakes [take] with [kotlinx.coroutines.channels.ClosedReceiveChannelException].
+     */
+    fun close() {
+        synchronized(lock) {
+            closed = true
+            queue.forEach { counters(it.commandClass).dropped.incrementAndGet() }
+            queue.clear()
+            stateSlots.clear()
+            normalCount = 0
+            cosmeticCount = 0
+        }
+        signal.close()
+    }
+
+    fun stats(): McuCommandStats = McuCommandStats(
+        classes = stats.mapValues { (_, counters) -> counters.snapshot() },
+    )
+
+    private fun counters(commandClass: McuCommandClass): ClassCounters = stats.getValue(commandClass)
+
+    private fun enqueue(commandClass: McuCommandClass, key: String?, task: suspend () -> Unit, now: Long): Slot =
+        Slot(nextSeq++, commandClass, key, task, now).also { queue.addLast(it) }
+
+    private fun dropOldestNormal() {
+        val iterator = queue.iterator()
+        while (iterator.hasNext()) {
+            if (iterator.next().commandClass == McuCommandClass.NORMAL) {
+                iterator.remove()
+                normalCount--
+                counters(McuCommandClass.NORMAL).dropped.incrementAndGet()
+                return
+            }
+        }
+    }
+
+    private class Slot(
+        val seq: Long,
+        val commandClass: McuCommandClass,
+        val key: String?,
+        @Volatile var task: suspend () -> Unit,
+        val enqueuedNanos: Long,
+    )
+
+    private class ClassCounters {
+        val queued = AtomicLong()
+        val sent = AtomicLong()
+        val dropped = AtomicLong()
+        val coalesced = AtomicLong()
+        val rateLimited = AtomicLong()
+        private val totalWaitNanos = AtomicLong()
+        private val maxWaitNanos = AtomicLong()
+
+        fun onTaken(waitNanos: Long) {
+            sent.incrementAndGet()
+            totalWaitNanos.addAndGet(waitNanos)
+            maxWaitNanos.accumulateAndGet(waitNanos, ::maxOf)
+        }
+
+        fun snapshot(): McuCommandClassStats {
+            val count = sent.get()
+            return McuCommandClassStats(
+                queued = queued.get(),
+                sent = count,
+                dropped = dropped.get(),
+                coalesced = coalesced.get(),
+                rateLimited = rateLimited.get(),
+                averageWaitMillis = if (count > 0) totalWaitNanos.get() / count / 1_000_000 else 0,
+                maxWaitMillis = maxWaitNanos.get() / 1_000_000,
+            )
+        }
+    }
+
+    companion object {
+        const val NORMAL_CAPACITY = 50
+        const val COSMETIC_CAPACITY = 2
+        const val COSMETIC_INTERVAL_MS = 300L
+        private const val COSMETIC_INTERVAL_NANOS = COSMETIC_INTERVAL_MS * 1_000_000
+    }
+}
+
+/**
+ * Counters of one [McuCommandClass], wait times are from [McuCommandScheduler.offer] until the task processor
+ * takes the command.
+ *
+ * @property dropped commands evicted from a full queue or dropped on close
+ * @property coalesced state commands that replaced a queued command with the same key
+ * @property rateLimited cosmetic commands rejected because another one was sent too recently
+ */
+data class McuCommandClassStats(
+    val queued: Long,
+    val sent: Long,
+    val dropped: Long,
+    val coalesced: Long,
+    val rateLimited: Long,
+    val averageWaitMillis: Long,
+    val maxWaitMillis: Long,
+)
+
+data class McuCommandStats(
+    val classes: Map<McuCommandClass, McuCommandClassStats>,
+) {
+    val dropped: Long
+        get() = classes.values.sumOf { it.dropped }
+}
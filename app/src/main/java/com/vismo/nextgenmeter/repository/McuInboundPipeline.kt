@@ -0,0 +1,193 @@
+package com.vismo.nextgenmeter.repository
+
+import com.vismo.nextgenmeter.model.MCUMessage
+import com.vismo.nextgenmeter.model.McuFrameView
+import com.vismo.nextgenmeter.util.MeasureBoardUtils.ABNORMAL_PULSE
+import com.vismo.nextgenmeter.util.MeasureBoardUtils.ABNORMAL_PULSE_CODE
+import com.vismo.nextgenmeter.util.MeasureBoardUtils.IDLE_HEARTBEAT
+import com.vismo.nextgenmeter.util.MeasureBoardUtils.IDLE_HEARTBEAT_CODE
+import com.vismo.nextgenmeter.util.MeasureBoardUtils.ONGOING_HEARTBEAT
+import com.vismo.nextgenmeter.util.MeasureBoardUtils.ONGOING_HEARTBEAT_CODE
+import com.vismo.nextgenmeter.util.MeasureBoardUtils.REQUEST_UPGRADE_FIRMWARE
+import com.vismo.nextgenmeter.util.MeasureBoardUtils.REQUEST_UPGRADE_FIRMWARE_CODE
+import com.vismo.nextgenmeter.util.MeasureBoardUtils.TRIP_END_SUMMARY
+import com.vismo.nextgenmeter.util.MeasureBoardUtils.TRIP_END_SUMMARY_CODE
+import com.vismo.nextgenmeter.util.MeasureBoardUtils.UPGRADING_FIRMWARE
+import com.vismo.nextgenmeter.util.MeasureBoardUtils.UPGRADING_FIRMWARE_CODE
+import com.vismo.nextgenmeter.util.MeasureBoardUtils.getResultType
+import kotlinx.coroutines.channels.BufferOverflow
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.selects.select
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Lanes of the inbound MCU pipeline, in the order they are served.
+ */
+enum class McuLane {
+    /** Trip end summaries, abnormal pulse and firmware upgrade frames, never dropped */
+    CRITICAL,
+    /** Request responses and everything else, the oldest is dropped when the lane is full */
+    NORMAL,
+    /** Idle and ongoing heartbeats, only the newest is kept */
+    HEARTBEAT,
+}
+
+/**
+ * Classifies frames from the MCU into [McuLane]s so a burst of heartbeats cannot push a trip end summary
+ * or a firmware upgrade frame out of the queue.
+ *
+ * Heartbeats are conflated, each one describes the whole meter state so only the newest matters. The
+ * critical lane is lossless and unbounded, so [offer] never blocks the serial dispatch thread. Its frames are
+ * rare, a few per trip, so even a stalled consumer only lets it grow slowly. [receive] always serves the
+ * critical lane first, then normal, then heartbeats.
+ *
+ * Serving the critical lane first reorders frames, so every entry is stamped with its arrival sequence and a
+ * heartbeat that arrived before the last critical frame served is dropped. Otherwise the last E3 of a trip,
+ * still waiting in its lane, would be handled after the E4 summary and bring the ended trip back.
+ */
+class McuInboundPipeline {
+
+    private val stats = McuLane.values().associateWith { LaneCounters() }
+
+    private val critical = Channel<Entry>(Channel.UNLIMITED)
+    private val normal = Channel<Entry>(NORMAL_CAPACITY, BufferOverflow.DROP_OLDEST) {
+        counters(McuLane.NORMAL).dropped.incrementAndGet()
+    }
+    private val heartbeat = Channel<Entry>(Channel.CONFLATED) {
+        counters(McuLane.HEARTBEAT).conflated.incrementAndGet()
+    }
+
+    private val sequence = AtomicLong()
+    /** Arrival sequence of the last critical entry [receive] returned, only used by the consumer */
+    @Volatile
+    private var lastCriticalSequence = -1L
+
+    val isClosed: Boolean
+        get() = critical.isClosedForSend
+
+    /**
+     * Queues a message in its lane. Can be called from any thread and never blocks.
+     *
+     * @return false if the pipeline is closed, a full normal lane drops its oldest message instead
+     */
+    fun offer(msg: MCUMessage): Boolean {
+        val lane = classify(msg)
+        val counters = counters(lane)
+        val entry = Entry(msg, lane, sequence.getAndIncrement(), System.nanoTime())
+        counters.received.incrementAndGet()
+        val queued = when (lane) {
+            McuLane.CRITICAL -> critical.trySend(entry).isSuccess
+            McuLane.NORMAL -> normal.trySend(entry).isSuccess
+            McuLane.HEARTBEAT -> heartbeat.trySend(entry).isSuccess
+        }
+        if (!queued) counters.dropped.incrementAndGet()
+        return queued
+    }
+
+    /**
+     * Suspends until a message is available, preferring the critical lane, then normal, then heartbeats.
+     * Heartbeats older than the last critical frame returned are skipped. Must be called from one coroutine.
+     */
+    suspend fun receive(): MCUMessage {
+        while (true) {
+            // select is biased towards the first clause that is ready
+            val entry = select<Entry> {
+                critical.onReceive { it }
+                normal.onReceive { it }
+                heartbeat.onReceive { it }
+            }
+            when {
+                entry.lane == McuLane.CRITICAL -> lastCriticalSequence = entry.sequence
+                entry.lane == McuLane.HEARTBEAT && entry.sequence < lastCriticalSequence -> {
+                    counters(entry.lane).dropped.incrementAndGet()
+                    continue
+                }
+            }
+            counters(entry.lane).onProcessed(System.nanoTime() - entry.enqueuedNanos)
+            return entry.msg
+        }
+    }
+
+    fun close() {
+        critical.close()
+        normal.close()
+        heartbeat.close()
+    }
+
+    fun stats(): McuInboundStats = McuInboundStats(
+        lanes = stats.mapValues { (_, counters) -> counters.snapshot() },
+    )
+
+    private fun counters(lane: McuLane): LaneCounters = stats.getValue(lane)
+
+    private class Entry(val msg: MCUMessage, val lane: McuLane, val sequence: Long, val enqueuedNanos: Long)
+
+    private class LaneCounters {
+        val received = AtomicLong()
+        val processed = AtomicLong()
+        val dropped = AtomicLong()
+        val conflated = AtomicLong()
+        private val totalLatencyNanos = AtomicLong()
+        private val maxLatencyNanos = AtomicLong()
+
+        fun onProcessed(latencyNanos: Long) {
+            processed.incrementAndGet()
+            totalLatencyNanos.addAndGet(latencyNanos)
+            maxLatencyNanos.accumulateAndGet(latencyNanos, ::maxOf)
+        }
+
+        fun snapshot(): McuLaneStats {
+            val count = processed.get()
+            return McuLaneStats(
+                received = received.get(),
+                processed = count,
+                dropped = dropped.get(),
+                conflated = conflated.get(),
+                averageLatencyMicros = if (count > 0) totalLatencyNanos.get() / count / 1000 else 0,
+                maxLatencyMicros = maxLatencyNanos.get() / 1000,
+            )
+        }
+    }
+
+    companion object {
+        const val NORMAL_CAPACITY = 50
+
+        fun classify(msg: MCUMessage): McuLane = when (val obj = msg.obj) {
+            is ByteArray -> when (McuFrameView.commandOf(obj)) {
+                IDLE_HEARTBEAT_CODE, ONGOING_HEARTBEAT_CODE -> McuLane.HEARTBEAT
+                TRIP_END_SUMMARY_CODE, ABNORMAL_PULSE_CODE, REQUEST_UPGRADE_FIRMWARE_CODE, UPGRADING_FIRMWARE_CODE -> McuLane.CRITICAL
+                else -> McuLane.NORMAL
+            }
+            is String -> when (getResultType(obj)) {
+                IDLE_HEARTBEAT, ONGOING_HEARTBEAT -> McuLane.HEARTBEAT
+                TRIP_END_SUMMARY, ABNORMAL_PULSE, REQUEST_UPGRADE_FIRMWARE, UPGRADING_FIRMWARE -> McuLane.CRITICAL
+                else -> McuLane.NORMAL
+            }
+            else -> McuLane.NORMAL
+        }
+    }
+}
+
+/**
+ * Counters of one [McuLane], latencies are from [McuInboundPipeline.offer] to [McuInboundPipeline.receive].
+ *
+ * @property dropped frames evicted from a full lane or not queued at all, and heartbeats that arrived before a
+ * critical frame served ahead of them
+ * @property conflated heartbeats replaced by a newer one before they were processed
+ */
+data class McuLaneStats(
+    val received: Long,
+    val processed: Long,
+    val dropped: Long,
+    val conflated: Long,
+    val averageLatencyMicros: Long,
+    val maxLatencyMicros: Long,
+)
+
+/**
+ * @property droppedTasks commands evicted from the repository's outgoing task queue
+ */
+data class McuInboundStats(
+    val lanes: Map<McuLane, McuLaneStats>,
+    val droppedTasks: Long = 0,
+)
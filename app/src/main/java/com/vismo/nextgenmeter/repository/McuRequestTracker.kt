@@ -0,0 +1,95 @@
+package com.vismo.nextgenmeter.repository
+
+import com.vismo.nextgenmeter.model.McuFrameView
+import com.vismo.nextgenmeter.util.MeasureBoardUtils.ANDROID_FIRMWARE_VERSION_RESPONSE_CODE
+import com.vismo.nextgenmeter.util.MeasureBoardUtils.METERING_BOARD_INFO_RESPONSE_CODE
+import com.vismo.nextgenmeter.util.MeasureBoardUtils.PARAMETERS_ENQUIRY_CODE
+import com.vismo.nextgenmeter.util.MeasureBoardUtils.REQUEST_UPGRADE_FIRMWARE_CODE
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.withTimeoutOrNull
+
+/**
+ * MCU commands that are answered with a frame of their own, with the response code to wait for and how
+ * long to wait before sending the command again.
+ */
+enum class McuRequest(val responseCode: Int, val timeoutMillis: Long, val retries: Int) {
+    PARAMETERS_ENQUIRY(PARAMETERS_ENQUIRY_CODE, 500L, 2),
+    METERING_BOARD_INFO(METERING_BOARD_INFO_RESPONSE_CODE, 500L, 2),
+    ANDROID_FIRMWARE_VERSION(ANDROID_FIRMWARE_VERSION_RESPONSE_CODE, 500L, 2),
+    REQUEST_UPGRADE_FIRMWARE(REQUEST_UPGRADE_FIRMWARE_CODE, 1000L, 0), // not repeated, a second request could restart the upgrade
+}
+
+/**
+ * Matches MCU response frames to the commands waiting for them.
+ *
+ * A waiter is registered before its command is sent so a fast response cannot be missed. A frame
+ * completes every waiter for its command code, so concurrent requests of the same kind share one
+ * response, while requests for different codes can be in flight at the same time.
+ *
+ * @param writeTimeoutMillis how long a command may wait to be written before the request gives up
+ */
+class McuRequestTracker(private val writeTimeoutMillis: Long = WRITE_TIMEOUT_MILLIS) {
+
+    private val pending = HashMap<Int, MutableList<CompletableDeferred<ByteArray>>>()
+
+    /**
+     * Sends a command and suspends until its response arrives, sending it again after each timeout.
+     *
+     * The response timeout starts when the command has been written, not when it was queued, so the time
+     * spent behind other commands is not counted against it.
+     *
+     * @param send queues the command, returns false if it could not be queued. Once the command bytes have
+     * been written, the queued task completes the deferred with the result of the write
+     * @return the response frame, or null if no response arrived after all retries
+     */
+    suspend fun request(request: McuRequest, send: (written: CompletableDeferred<Boolean>) -> Boolean): ByteArray? {
+        repeat(request.retries + 1) {
+            val waiter = expect(request.responseCode)
+            try {
+                val written = CompletableDeferred<Boolean>()
+                if (!send(written)) return null
+                // a task that is dropped from the queue never completes written
+                if (withTimeoutOrNull(writeTimeoutMillis) { written.await() } != true) return null
+                val response = withTimeoutOrNull(request.timeoutMillis) { waiter.await() }
+                if (response != null) return response
+            } finally {
+                remove(request.responseCode, waiter)
+            }
+        }
+        return null
+    }
+
+    /**
+     * Completes the waiters for the command code of [frame].
+     *
+     * @return true if at least one request was waiting for the frame
+     */
+    fun complete(frame: ByteArray): Boolean {
+        val waiters = synchronized(pending) {
+            pending.remove(McuFrameView.commandOf(frame))
+        } ?: return false
+        waiters.forEach { it.complete(frame) }
+        return waiters.isNotEmpty()
+    }
+
+    private fun expect(responseCode: Int): CompletableDeferred<ByteArray> {
+        val waiter = CompletableDeferred<ByteArray>()
+        synchronized(pending) {
+            pending.getOrPut(responseCode) { ArrayList(2) }.add(waiter)
+        }
+        return waiter
+    }
+
+    private fun remove(responseCode: Int, waiter: CompletableDeferred<ByteArray>) {
+        synchronized(pending) {
+            val waiters = pending[responseCode] ?: return
+            waiters.remove(waiter)
+            if (waiters.isEmpty()) pending.remove(responseCode)
+        }
+    }
+
+    companion object {
+        /** How long a command may wait in the task queue before the request gives up */
+        const val WRITE_TIMEOUT_MILLIS = 10_000L
+    }
+}
@@ -1,6 +1,9 @@
 package com.vismo.nextgenmeter.repository
 
+import com.serial.opt.SerialSession
+import com.vismo.nextgenmeter.util.FirmwareStreamStats
 import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Deferred
 import kotlinx.coroutines.flow.StateFlow
 
 
@@ -39,23 +42,51 @@ interface MeasureBoardRepository {
 
     fun stopCommunication()
 
-    fun enquireParameters()
+    /**
+     * Sends the 0x10A4 parameters enquiry, the parsed parameters are published to DeviceDataStore
+     * @return completes with true once the metering board has answered, false if it did not answer in time
+     */
+    fun enquireParameters(): Deferred<Boolean>
 
     /**
      * Sends the 0x10B0 command to get metering board information
      * This should be called after app startup to obtain key information from the metering board
+     * @return completes with true once the metering board has answered, false if it did not answer in time
      */
-    fun getMeteringBoardInfo()
+    fun getMeteringBoardInfo(): Deferred<Boolean>
 
     fun unlockMeter()
 
     fun updateMeasureBoardTime(formattedDateStr: String)
 
-    suspend fun requestPatchFirmware(fileName: String)
+    /**
+     * @return true if the metering board accepted the firmware upgrade request
+     */
+    suspend fun requestPatchFirmware(fileName: String): Boolean
+
+    /**
+     * Chunks per second and total flash time of the current or last firmware upgrade, null if none was started
+     */
+    fun firmwareStreamStats(): FirmwareStreamStats?
+
+    /**
+     * State, reconnect count and time to first frame of the serial session, null before it is opened
+     */
+    fun serialSessionStats(): SerialSession.Stats?
+
+    /**
+     * Received, dropped and conflated counts and queueing latency of each lane of MCU messages
+     */
+    fun inboundStats(): McuInboundStats
+
+    /**
+     * Queued, sent, dropped and coalesced counts and queue wait time of each class of commands to the MCU
+     */
+    fun commandStats(): McuCommandStats
 
     fun close()
 
     fun notifyShutdown()
 
-    fun notifyAndroidFirmwareVersion(androidFirmwareVersion: String)
+    fun notifyAndroidFirmwareVersion(androidFirmwareVersion: String): Deferred<Boolean>
 }
\ No newline at end of file
@@ -2,37 +2,42 @@ package com.vismo.nextgenmeter.repository
 
 import android.content.Context
 import android.util.Log
-import android_serialport_api.Command
 import com.google.firebase.Timestamp
 import com.ilin.atelec.BusModel
 import com.ilin.atelec.IAtCmd
 import com.ilin.util.Config
 import com.ilin.util.ShellUtils
+import com.serial.opt.FrameDecoder
+import com.serial.opt.SerialSession
+import com.serial.opt.UartWorker
+import com.serial.port.ByteUtils
 import com.vismo.nextgenmeter.datastore.DeviceDataStore
 import com.vismo.nextgenmeter.datastore.TripDataStore
+import com.vismo.nextgenmeter.model.BoardInfoView
 import com.vismo.nextgenmeter.model.DeviceIdData
-import com.vismo.nextgenmeter.model.MCUFareParams
+import com.vismo.nextgenmeter.model.IdleHeartbeatView
 import com.vismo.nextgenmeter.model.MCUMessage
-import com.vismo.nextgenmeter.model.OngoingMCUHeartbeatData
+import com.vismo.nextgenmeter.model.McuFrameView
+import com.vismo.nextgenmeter.model.OngoingHeartbeatView
+import com.vismo.nextgenmeter.model.ParametersView
 import com.vismo.nextgenmeter.model.TripData
+import com.vismo.nextgenmeter.model.TripEndSummaryView
 import com.vismo.nextgenmeter.model.TripStatus
 import com.vismo.nextgenmeter.module.IoDispatcher
-import com.vismo.nextgenmeter.util.GlobalUtils.divideBy100AndConvertToDouble
-import com.vismo.nextgenmeter.util.GlobalUtils.extractSubstring
-import com.vismo.nextgenmeter.util.GlobalUtils.multiplyBy10AndConvertToDouble
+import com.vismo.nextgenmeter.util.CommandEncoder
+import com.vismo.nextgenmeter.util.FirmwareStreamStats
+import com.vismo.nextgenmeter.util.FirmwareStreamer
 import com.vismo.nextgenmeter.util.MeasureBoardUtils
 import com.vismo.nextgenmeter.util.MeasureBoardUtils.ABNORMAL_PULSE
-import com.vismo.nextgenmeter.util.MeasureBoardUtils.IDLE_HEARTBEAT
-import com.vismo.nextgenmeter.util.MeasureBoardUtils.METERING_BOARD_INFO_RESPONSE
-import com.vismo.nextgenmeter.util.MeasureBoardUtils.ONGOING_HEARTBEAT
-import com.vismo.nextgenmeter.util.MeasureBoardUtils.PARAMETERS_ENQUIRY
+import com.vismo.nextgenmeter.util.MeasureBoardUtils.IDLE_HEARTBEAT_CODE
+import com.vismo.nextgenmeter.util.MeasureBoardUtils.METERING_BOARD_INFO_RESPONSE_CODE
+import com.vismo.nextgenmeter.util.MeasureBoardUtils.ONGOING_HEARTBEAT_CODE
+import com.vismo.nextgenmeter.util.MeasureBoardUtils.PARAMETERS_ENQUIRY_CODE
+import com.vismo.nextgenmeter.util.MeasureBoardUtils.TRIP_END_SUMMARY_CODE
 import com.vismo.nextgenmeter.util.MeasureBoardUtils.REQUEST_UPGRADE_FIRMWARE
-import com.vismo.nextgenmeter.util.MeasureBoardUtils.TRIP_END_SUMMARY
 import com.vismo.nextgenmeter.util.MeasureBoardUtils.UPGRADING_FIRMWARE
 import com.vismo.nextgenmeter.util.MeasureBoardUtils.ANDROID_FIRMWARE_VERSION_RESPONSE
 import com.vismo.nextgenmeter.util.MeasureBoardUtils.getResultType
-import com.vismo.nextgenmeter.util.MeasureBoardUtils.getTimeInSeconds
-import com.vismo.nextgenmeter.util.MeasureBoardUtils.toHexString
 import com.vismo.nxgnfirebasemodule.DashManagerConfig
 import dagger.hilt.android.qualifiers.ApplicationContext
 import io.sentry.IScope
@@ -40,9 +45,11 @@ import io.sentry.Sentry
 import io.sentry.SentryLevel
 import kotlinx.coroutines.CoroutineDispatcher
 import kotlinx.coroutines.CoroutineExceptionHandler
+import kotlinx.coroutines.CompletableDeferred
 import kotlinx.coroutines.CoroutineScope
-import kotlinx.coroutines.channels.BufferOverflow
-import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.async
+import kotlinx.coroutines.channels.ClosedReceiveChannelException
 import kotlinx.coroutines.delay
 import kotlinx.coroutines.flow.StateFlow
 import kotlinx.coroutines.flow.firstOrNull
@@ -51,10 +58,13 @@ import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.ensureActive
 import kotlinx.coroutines.cancel
 import kotlinx.coroutines.currentCoroutineContext
+import java.io.File
+import java.nio.ByteBuffer
 import java.util.logging.Logger
 import javax.inject.Inject
-import com.vismo.nextgenmeter.model.MeteringBoardInfo
 import com.vismo.nextgenmeter.util.ShellStateUtil
+import com.vismo.nextgenmeter.util.logD
+import com.vismo.nextgenmeter.util.logV
 import java.util.Calendar
 
 @Suppress("detekt.TooManyFunctions")
@@ -63,10 +73,24 @@ class MeasureBoardRepositoryImpl @Inject constructor(
     @IoDispatcher private val ioDispatcher: CoroutineDispatcher,
     private val dashManagerConfig: DashManagerConfig,
     private val meterPreferenceRepository: MeterPreferenceRepository,
+    private val durability: DurabilityService,
 ) : MeasureBoardRepository {
     private var mBusModel: BusModel? = null
-    private var taskChannel = Channel<suspend () -> Unit>(capacity = 50, onBufferOverflow = BufferOverflow.DROP_OLDEST)
-    private var messageChannel = Channel<MCUMessage>(capacity = 50, onBufferOverflow = BufferOverflow.DROP_OLDEST)
+    private val commandEncoder = CommandEncoder()
+    private val idleHeartbeatView = IdleHeartbeatView()
+    private val ongoingHeartbeatView = OngoingHeartbeatView()
+    private val tripEndSummaryView = TripEndSummaryView()
+    private val parametersView = ParametersView()
+    private val boardInfoView = BoardInfoView()
+    private val requestTracker = McuRequestTracker()
+    @Volatile private var firmwareStreamer: FirmwareStreamer? = null
+    @Volatile private var scheduler = McuCommandScheduler()
+    @Volatile private var inbound = McuInboundPipeline()
+    private val ongoingTripCheckpoint by lazy {
+        OngoingTripCheckpoint(File(context.filesDir, CHECKPOINT_FILE_NAME), syncOnWrite = false)
+    }
+    // the heartbeat does not wait for the flush, the mapping already survives an app crash
+    private val checkpointSync = SyncTarget(CHECKPOINT_FILE_NAME) { ongoingTripCheckpoint.sync() }
 
     private val exceptionHandler = CoroutineExceptionHandler { _, throwable ->
         Log.e(TAG, "Scope exception", throwable)
@@ -80,28 +104,39 @@ class MeasureBoardRepositoryImpl @Inject constructor(
     override val meterIdentifierInRemote: StateFlow<String> = dashManagerConfig.meterIdentifier
 
     private fun startMessageProcessor() {
+        val pipeline = inbound
         externalScope?.launch(ioDispatcher + exceptionHandler) {
+            // before the first heartbeat is handled, so it updates the restored trip
+            restoreOngoingTrip()
             while (true) {
                 try {
                     currentCoroutineContext().ensureActive() // Check for cancellation
-                    for (msg in messageChannel) {
+                    while (true) {
+                        val msg = pipeline.receive()
                         currentCoroutineContext().ensureActive() // Check for cancellation in the loop
-                        
+
                         when (msg.what) {
                             IAtCmd.W_MSG_DISPLAY -> {
-                                Log.d(TAG, "startMessageProcessor: ${msg.obj}")
-                                val receiveData = msg.obj?.toString() ?: continue
-                                // Check checksum and see if the message is valid
-                                if(!validateChecksum(receiveData)){
-                                    Log.d(TAG, TAG_CHECKSUM_VALIDATION_FAILED)
-                                    Sentry.captureMessage(TAG_CHECKSUM_VALIDATION_FAILED)
-                                    continue
+                                val frame = when (val obj = msg.obj) {
+                                    // the frame decoder verifies the checksum while framing
+                                    is ByteArray -> obj
+                                    is String -> {
+                                        val bytes = hexStringToByteArray(obj)
+                                        // Check checksum and see if the message is valid
+                                        if(!McuFrameView.hasValidChecksum(bytes)){
+                                            Log.d(TAG, TAG_CHECKSUM_VALIDATION_FAILED)
+                                            Sentry.captureMessage(TAG_CHECKSUM_VALIDATION_FAILED)
+                                            continue
+                                        }
+                                        bytes
+                                    }
+                                    else -> continue
                                 }
-                                checkStatues(receiveData)
+                                checkStatues(frame)
                             }
                             WHAT_PRINT_STATUS -> {
                                 ShellUtils.execShellCmd("cat /sys/class/gpio/gpio73/value")
-                                addTask {
+                                addTask(McuCommandClass.NORMAL) {
                                     delay(1800)
                                     sendMessage(MCUMessage(WHAT_PRINT_STATUS, null))
                                     Log.d(TAG, "startMessageProcessor: WHAT_PRINT_STATUS")
@@ -112,6 +147,10 @@ class MeasureBoardRepositoryImpl @Inject constructor(
                 } catch (e: CancellationException) {
                     Log.d(TAG, "Message processor cancelled")
                     throw e
+                } catch (e: ClosedReceiveChannelException) {
+                    // sendMessage starts a new processor with a new pipeline
+                    Log.d(TAG, "Message processor closed")
+                    return@launch
                 } catch (e: Exception) {
                     Log.e(TAG, "Error in message processor: ${e.message}", e)
                     Sentry.captureException(e)
@@ -121,33 +160,49 @@ class MeasureBoardRepositoryImpl @Inject constructor(
         }
     }
 
+    /**
+     * Queues a message for the message processor in its [McuLane].
+     * Called on the serial dispatch thread and never blocks it.
+     */
     private fun sendMessage(msg: MCUMessage) {
-        externalScope?.launch(ioDispatcher + exceptionHandler) {
-            if (messageChannel.isClosedForSend || messageChannel.isClosedForReceive) {
-                messageChannel = Channel<MCUMessage>(capacity = 50, onBufferOverflow = BufferOverflow.DROP_OLDEST)
-                startMessageProcessor()
-                Log.d(TAG, "sendMessage: messageChannel is closed")
+        if (externalScope == null) return
+        if (inbound.isClosed) {
+            inbound = McuInboundPipeline()
+            startMessageProcessor()
+            Log.d(TAG, "sendMessage: inbound pipeline is closed")
+        }
+
+        if (!inbound.offer(msg)) {
+            val lane = McuInboundPipeline.classify(msg)
+            Log.w(TAG, "sendMessage: $lane message dropped")
+            if (lane == McuLane.CRITICAL) {
+                Sentry.captureMessage("sendMessage: critical MCU message dropped")
             }
-
-            messageChannel.send(msg)
-            Log.d(TAG, "sendMessage: $msg")
+            return
         }
+        logV(TAG) { "sendMessage: $msg" }
     }
 
     private fun startTaskProcessor() {
+        val commands = scheduler
         externalScope?.launch(ioDispatcher + exceptionHandler) {
             while (true) {
                 try {
                     currentCoroutineContext().ensureActive() // Check for cancellation
-                    for (task in taskChannel) {
+                    while (true) {
+                        val task = commands.take()
                         currentCoroutineContext().ensureActive() // Check for cancellation in the loop
-                        
+
                         task()
-                        Log.d(TAG, "startTaskProcessor: $task")
+                        logV(TAG) { "startTaskProcessor: $task" }
                     }
                 } catch (e: CancellationException) {
                     Log.d(TAG, "Task processor cancelled")
                     throw e
+                } catch (e: ClosedReceiveChannelException) {
+                    // addTask starts a new processor with a new scheduler
+                    Log.d(TAG, "Task processor closed")
+                    return@launch
                 } catch (e: Exception) {
                     Log.e(TAG, "Error in task processor: ${e.message}", e)
                     Sentry.captureException(e)
@@ -157,16 +212,69 @@ class MeasureBoardRepositoryImpl @Inject constructor(
         }
     }
 
-    private fun addTask(task: suspend () -> Unit) {
-        externalScope?.launch(ioDispatcher + exceptionHandler) {
-            if (taskChannel.isClosedForSend || taskChannel.isClosedForReceive) {
-                taskChannel = Channel<suspend () -> Unit>(capacity = 50, onBufferOverflow = BufferOverflow.DROP_OLDEST)
-                startTaskProcessor()
-                Log.d(TAG, "addTask: taskChannel is closed")
+    /**
+     * Encodes a command with the shared [CommandEncoder] and queues its bytes on the serial port.
+     */
+    private fun sendEncoded(encode: CommandEncoder.() -> ByteBuffer): Boolean =
+        synchronized(commandEncoder) {
+            mBusModel?.send(commandEncoder.encode()) ?: false
+        }
+
+    /**
+     * [sendEncoded] for a [McuCommandClass.CRITICAL] command, retried while the serial write queue drops it.
+     *
+     * @return false if every attempt was dropped, which is also reported to Sentry
+     */
+    private suspend fun sendCritical(name: String, encode: CommandEncoder.() -> ByteBuffer): Boolean {
+        repeat(CRITICAL_SEND_ATTEMPTS) { attempt ->
+            if (sendEncoded(encode)) return true
+            Log.w(TAG, "sendCritical: $name not queued, attempt ${attempt + 1} of $CRITICAL_SEND_ATTEMPTS")
+            delay(CRITICAL_SEND_RETRY_DELAY_MS)
+        }
+        Log.e(TAG, "sendCritical: $name dropped")
+        Sentry.captureMessage("sendCritical: $name dropped after $CRITICAL_SEND_ATTEMPTS attempts")
+        return false
+    }
+
+    /**
+     * Sends a command that the MCU answers and completes with true when the answer arrives.
+     * The command is queued behind the pending tasks, but the task processor does not wait for the answer,
+     * so other commands can be in flight meanwhile. The answer is still handled by [checkStatues].
+     */
+    private fun sendRequest(request: McuRequest, encode: CommandEncoder.() -> ByteBuffer): Deferred<Boolean> {
+        val scope = externalScope ?: return CompletableDeferred(false)
+        return scope.async(ioDispatcher) {
+            val response = requestTracker.request(request) { written ->
+                addTask(McuCommandClass.NORMAL) { written.complete(sendEncoded(encode)) }
+            }
+            if (response == null) {
+                Log.w(TAG, "sendRequest: no response to $request after ${request.retries + 1} attempts")
             }
-            taskChannel.send(task)
-            Log.d(TAG, "addTask: $task")
+            response != null
+        }
+    }
+
+    /**
+     * Queues a task for the task processor in call order, [commandClass] decides whether it can be dropped,
+     * coalesced with the queued task of the same [key] or rate limited, see [McuCommandScheduler].
+     */
+    private fun addTask(
+        commandClass: McuCommandClass,
+        key: String? = null,
+        task: suspend () -> Unit,
+    ): Boolean {
+        if (externalScope == null) return false
+        if (scheduler.isClosed) {
+            scheduler = McuCommandScheduler()
+            startTaskProcessor()
+            Log.d(TAG, "addTask: scheduler is closed")
         }
+        val queued = scheduler.offer(commandClass, key, task)
+        if (!queued) {
+            Log.w(TAG, "addTask: $commandClass task not queued")
+        }
+        logV(TAG) { "addTask: $task" }
+        return queued
     }
 
     override fun startCommunicate() {
@@ -178,7 +286,7 @@ class MeasureBoardRepositoryImpl @Inject constructor(
         externalScope = scope
         startTaskProcessor()
         startMessageProcessor()
-        addTask {
+        addTask(McuCommandClass.CRITICAL) {
             openCommonUart()
             delay(200)
             setReceiveEvalDataLs()
@@ -193,27 +301,25 @@ class MeasureBoardRepositoryImpl @Inject constructor(
         Log.d(TAG, "MeasureBoardRepositoryImpl: init")
     }
 
-    private suspend fun handleIdleHeartbeatResult(result: String) {
-        val timeHex = result.substring(40, 40 + 12)
-        fun isHBValid(): Boolean {
-            if (!MeasureBoardUtils.isValidDate(timeHex, "yyyyMMddHHmm")) return false
-            return true
-        }
-        if (result.length < 125 || !result.startsWith(HEARTBEAT_IDENTIFIER) || !isHBValid()) {
-            Log.d(TAG, "handleIdleHeartbeatResult: Invalid result length: ${result.length}")
-            Sentry.captureMessage("handleIdleHeartbeatResult: Invalid result length: ${result.length}")
+    private suspend fun handleIdleHeartbeatResult(frame: ByteArray) {
+        val heartbeat = idleHeartbeatView
+        if (!heartbeat.wrap(frame) || !heartbeat.isValid()) {
+            Log.d(TAG, "handleIdleHeartbeatResult: Invalid result length: ${frame.size}")
+            Sentry.captureMessage("handleIdleHeartbeatResult: Invalid result: ${frame.toHex()}")
             return
         }
         DeviceDataStore.setMCUHeartbeatActive(true)
-        val measureBoardDeviceId = result.substring(52, 52 + 10)
-        val licensePlateHex = result.substring(110, 110 + 16)
-        val licensePlate = MeasureBoardUtils.convertToASCIICharacters(licensePlateHex) ?: ""
+        val time = heartbeat.currentTimeEpochSeconds()
+        val measureBoardDeviceId = heartbeat.measureBoardDeviceId()
+        val licensePlate = heartbeat.licensePlate()
 
         DeviceDataStore.setDeviceIdData(DeviceIdData(measureBoardDeviceId, licensePlate))
-        DeviceDataStore.setMCUTime(timeHex)
+        DeviceDataStore.setMCUTime(time)
 
         TripDataStore.ongoingTripData.value?.let { _ ->
             TripDataStore.clearTripData()
+            ongoingTripCheckpoint.clear()
+            durability.requestSync(checkpointSync)
         }
         dashManagerConfig.setDeviceIdData(deviceId = measureBoardDeviceId, licensePlate =  licensePlate)
         meterPreferenceRepository.saveDeviceId(measureBoardDeviceId)
@@ -221,20 +327,20 @@ class MeasureBoardRepositoryImpl @Inject constructor(
         Sentry.configureScope { scope: IScope ->
             scope.setTag("license_plate", licensePlate)
         }
-        Log.d(TAG, "IDLE_HEARTBEAT: $result")
+        logV(TAG) { "IDLE_HEARTBEAT: $measureBoardDeviceId ${heartbeat.currentTime()}" }
         TripDataStore.setHasReceivedAtLeastOneHeartBeat(true)
     }
 
-    private suspend  fun handleOngoingHeartbearResult(result: String) {
-        Log.d(TAG, "ONGOING_HEARTBEAT: $result")
-        if (result.length < 75 || !result.startsWith(HEARTBEAT_IDENTIFIER)) {
-            Log.d(TAG, "parseHeartbeatResult: Invalid result length: ${result.length}")
-            Sentry.captureMessage("parseHeartbeatResult: Invalid result length: ${result.length}")
+    private suspend  fun handleOngoingHeartbearResult(frame: ByteArray) {
+        // fields are decoded from the frame bytes on access, the view is only used by the message processor
+        val heartbeatData = ongoingHeartbeatView
+        if (!heartbeatData.wrap(frame)) {
+            Log.d(TAG, "parseHeartbeatResult: Invalid result length: ${frame.size}")
+            Sentry.captureMessage("parseHeartbeatResult: Invalid result length: ${frame.size}")
             return
         }
-        // Parse the heartbeat result into a data class for better organization
-        val heartbeatData = parseHeartbeatResult(result)
-        if (heartbeatData == null) {
+        if (!heartbeatData.isValid()) {
+            val result = frame.toHex()
             Log.d(TAG, "parseHeartbeatResult: Invalid content: ${result}")
             Sentry.captureMessage("parseHeartbeatResult: Invalid content: ${result}")
             return
@@ -242,11 +348,13 @@ class MeasureBoardRepositoryImpl @Inject constructor(
 
         DeviceDataStore.setMCUHeartbeatActive(true)
         // Update the MCU time
-        DeviceDataStore.setMCUTime(heartbeatData.currentTime)
+        val mcuTime = heartbeatData.currentTimeEpochSeconds()
+        DeviceDataStore.setMCUTime(mcuTime)
 
-        // Retrieve saved device ID and license plate
-        val savedDeviceId = meterPreferenceRepository.getDeviceId().firstOrNull() ?: ""
-        val savedLicensePlate = meterPreferenceRepository.getLicensePlate().firstOrNull() ?: ""
+        // Retrieve saved device ID, license plate and ongoing trip from memory
+        val savedPreferences = meterPreferenceRepository.snapshot()
+        val savedDeviceId = savedPreferences.deviceId ?: ""
+        val savedLicensePlate = savedPreferences.licensePlate ?: ""
 
         // Update device ID data
         dashManagerConfig.setDeviceIdData(deviceId = savedDeviceId, licensePlate = savedLicensePlate)
@@ -259,16 +367,16 @@ class MeasureBoardRepositoryImpl @Inject constructor(
                 ongoingTrip.extra != heartbeatData.extras
 
         val ongoingTripOverSpeedDurationInSeconds = ongoingTrip?.overSpeedDurationInSeconds ?: 0
-        val overSpeedDurationInSeconds = if (ongoingTripOverSpeedDurationInSeconds > heartbeatData.lockedDurationDecimal
+        val overSpeedDurationInSeconds = if (ongoingTripOverSpeedDurationInSeconds > heartbeatData.lockedDuration
         ) {
-            ongoingTripOverSpeedDurationInSeconds  + heartbeatData.lockedDurationDecimal
+            ongoingTripOverSpeedDurationInSeconds  + heartbeatData.lockedDuration
         } else {
-            heartbeatData.lockedDurationDecimal
+            heartbeatData.lockedDuration
         }
-        val savedOngoingTripId = meterPreferenceRepository.getOngoingTripId().firstOrNull() ?: ""
+        val savedOngoingTripId = savedPreferences.ongoingTripId ?: ""
 
         val newTrip = if (ongoingTrip == null) {
-            val savedOngoingStartTime = meterPreferenceRepository.getOngoingTripStartTime().firstOrNull()?.run {
+            val savedOngoingStartTime = savedPreferences.ongoingTripStartTime?.run {
                 if (this != 0L) {
                     Timestamp(this, 0)
                 } else null
@@ -283,16 +391,17 @@ class MeasureBoardRepositoryImpl @Inject constructor(
                 totalFare = heartbeatData.totalFare,
                 paidDistanceInMeters = heartbeatData.paidDistance,
                 unpaidDistanceInMeters = heartbeatData.unpaidDistance,
-                waitDurationInSeconds = getTimeInSeconds(heartbeatData.duration),
+                waitDurationInSeconds = heartbeatData.waitDurationInSeconds,
                 pauseTime = getPauseTime(tripStatus = heartbeatData.tripStatus, currentPauseTime = null, startTime = savedOngoingStartTime, isFromTripStart = true),
                 endTime = null,
                 requiresUpdateOnDatabase = true,
                 licensePlate = savedLicensePlate,
                 deviceId = savedDeviceId,
                 overSpeedDurationInSeconds = overSpeedDurationInSeconds,
-                overSpeedCounter = heartbeatData.overspeedCounterDecimal,
-                abnormalPulseCounter = heartbeatData.abnormalPulseCounterDecimal,
-                mcuStatus = heartbeatData.mcuStatus,
+                overSpeedCounter = heartbeatData.overspeedCounter,
+                abnormalPulseCounter = heartbeatData.abnormalPulseCounter,
+                mcuStatus = heartbeatData.measureBoardStatus,
+                mcuTime = mcuTime,
             )
         } else {
             // update Trip
@@ -305,24 +414,44 @@ class MeasureBoardRepositoryImpl @Inject constructor(
                 totalFare = heartbeatData.totalFare,
                 paidDistanceInMeters = heartbeatData.paidDistance,
                 unpaidDistanceInMeters = heartbeatData.unpaidDistance,
-                waitDurationInSeconds = getTimeInSeconds(heartbeatData.duration),
+                waitDurationInSeconds = heartbeatData.waitDurationInSeconds,
                 overSpeedDurationInSeconds = overSpeedDurationInSeconds,
                 requiresUpdateOnDatabase = requiresUpdate,
-                overSpeedCounter = heartbeatData.overspeedCounterDecimal,
-                abnormalPulseCounter = heartbeatData.abnormalPulseCounterDecimal,
-                mcuStatus = heartbeatData.mcuStatus,
+                overSpeedCounter = heartbeatData.overspeedCounter,
+                abnormalPulseCounter = heartbeatData.abnormalPulseCounter,
+                mcuStatus = heartbeatData.measureBoardStatus,
+                mcuTime = mcuTime,
             )
         }
 
         if(ongoingTrip?.fare != heartbeatData.fare && ongoingTrip != null) {
             emitBeepSound(5, 0, 1)
-            Log.d(TAG, "handleOngoingHeartbeatResult: fare changed - beep sound emitted")
+            logD(TAG) { "handleOngoingHeartbeatResult: fare changed - beep sound emitted" }
         }
 
         TripDataStore.updateTripDataValue(newTrip)
+        if (ongoingTripCheckpoint.save(newTrip)) durability.requestSync(checkpointSync)
         TripDataStore.setHasReceivedAtLeastOneHeartBeat(true)
     }
 
+    /**
+     * Puts the trip checkpointed before the app restarted back in [TripDataStore], so the next heartbeat
+     * continues it with its pause time, overspeed duration and extras instead of starting over.
+     */
+    private suspend fun restoreOngoingTrip() {
+        if (TripDataStore.ongoingTripData.value != null) return
+        val trip = ongoingTripCheckpoint.restore() ?: return
+        val ongoingTripId = meterPreferenceRepository.snapshot().ongoingTripId
+        if (trip.tripStatus == TripStatus.ENDED || trip.tripId.isBlank() || trip.tripId != ongoingTripId) {
+            Log.d(TAG, "restoreOngoingTrip: discarding checkpoint of trip ${trip.tripId}")
+            ongoingTripCheckpoint.clear()
+            durability.requestSync(checkpointSync)
+            return
+        }
+        TripDataStore.updateTripDataValue(trip.copy(requiresUpdateOnDatabase = false))
+        Log.d(TAG, "restoreOngoingTrip: restored trip ${trip.tripId}")
+    }
+
     private fun getPauseTime(tripStatus: TripStatus, currentPauseTime: Timestamp?, startTime: Timestamp? = null, isFromTripStart: Boolean = false): Timestamp? {
         return if (tripStatus == TripStatus.STOP) {
             if (currentPauseTime != null) {
@@ -339,53 +468,22 @@ class MeasureBoardRepositoryImpl @Inject constructor(
         }
     }
 
-    private fun parseHeartbeatResult(result: String): OngoingMCUHeartbeatData? {
-        val status = result.extractSubstring(17, 1).toIntOrNull().takeIf { it in 0..7 } ?: return null
-        if(!MeasureBoardUtils.isValidDate(result.extractSubstring(56, 12), "yyyyMMddHHmm")) return null
-        val heartbeatData = OngoingMCUHeartbeatData(
-            measureBoardStatus = status,
-            lockedDurationHex = result.extractSubstring(18, 4),
-            paidDistanceHex = result.extractSubstring(22, 6),
-            duration = result.extractSubstring(28, 6),
-            extrasHex = result.extractSubstring(38, 6),
-            fareHex = result.extractSubstring(44, 6),
-            totalFareHex = result.extractSubstring(50, 6),
-            currentTime = result.extractSubstring(56, 12),
-            abnormalPulseCounterHex = result.extractSubstring(68, 2),
-            overspeedCounterHex = result.extractSubstring(70, 2),
-            unpaidDistanceHex = result.extractSubstring(72, 6)
-        )
-
-        return heartbeatData.processHexValues()
-    }
-
-    private suspend fun handleTripEndSummaryResult(result: String) {
-        val distanceHex = result.substring(118, 118 + 6)
-        val durationHex = result.substring(124, 124 + 6)
-        val fareHex = result.substring(130, 130 + 6)
-        val extrasHex = result.substring(136, 136 + 6)
-        val totalFareHex = result.substring(142, 142 + 6)
-        fun isHBValid(): Boolean {
-            distanceHex.toDoubleOrNull()?.takeIf { it >= 0.0 } ?: return false
-            if (!MeasureBoardUtils.isDurationValid(durationHex)) return false
-            fareHex.toDoubleOrNull()?.takeIf { it >= 0.0 } ?: return false
-            extrasHex.toDoubleOrNull()?.takeIf { it >= 0.0 } ?: return false
-            totalFareHex.toDoubleOrNull()?.takeIf { it >= 0.0 } ?: return false
-            return true
-        }
-        if (result.length < 147 || !result.startsWith(HEARTBEAT_IDENTIFIER) || !isHBValid()) {
+    private suspend fun handleTripEndSummaryResult(frame: ByteArray) {
+        val summary = tripEndSummaryView
+        if (!summary.wrap(frame) || !summary.isValid()) {
+            val result = frame.toHex()
             Log.d(TAG, "handleTripEndSummaryResult: Invalid result length or content: $result")
             Sentry.captureMessage("handleTripEndSummaryResult: Invalid result length or content: $result")
             return
         }
         DeviceDataStore.setMCUHeartbeatActive(true)
-        val distance = distanceHex.multiplyBy10AndConvertToDouble()
-        val duration = durationHex
-        val fare = fareHex.divideBy100AndConvertToDouble()
-        val extras = extrasHex.divideBy100AndConvertToDouble()
-        val totalFare = totalFareHex.divideBy100AndConvertToDouble()
+        val distance = summary.paidDistance
+        val waitDurationInSeconds = summary.waitDurationInSeconds
+        val fare = summary.fare
+        val extras = summary.extras
+        val totalFare = summary.totalFare
 
-        Log.d(TAG, "TRIP_END_SUMMARY: $distance, ${getTimeInSeconds(duration)}, $fare, $extras, $totalFare")
+        Log.d(TAG, "TRIP_END_SUMMARY: $distance, $waitDurationInSeconds, $fare, $extras, $totalFare")
 
         val currentOngoingTrip = TripDataStore.ongoingTripData.firstOrNull()
 
@@ -398,7 +496,7 @@ class MeasureBoardRepositoryImpl @Inject constructor(
                 extra = extras,
                 totalFare = totalFare,
                 paidDistanceInMeters = distance,
-                waitDurationInSeconds = getTimeInSeconds(duration),
+                waitDurationInSeconds = waitDurationInSeconds,
                 pauseTime = currentOngoingTrip.pauseTime,
                 endTime = Timestamp.now(),
                 requiresUpdateOnDatabase = true,
@@ -411,27 +509,44 @@ class MeasureBoardRepositoryImpl @Inject constructor(
             Sentry.captureMessage("handleTripEndSummaryResult: currentOngoingTripInDB is null")
         }
         meterPreferenceRepository.saveOngoingTripId("", 0L)
-        addTask {
+        ongoingTripCheckpoint.clear()
+        durability.requestSync(checkpointSync)
+        addTask(McuCommandClass.CRITICAL) {
             // after a trip ends, MCU will only continue sending IDLE heartbeats after it receives this response
-            mBusModel?.write(Command.CMD_END_RESPONSE)
-        }
-    }
-
-    private suspend fun checkStatues(result: String) {
-        Log.d(TAG, "checkStatues: $result")
-        when (getResultType(result)) {
-            IDLE_HEARTBEAT -> handleIdleHeartbeatResult(result = result)
-            ONGOING_HEARTBEAT -> handleOngoingHeartbearResult(result = result)
-            TRIP_END_SUMMARY -> handleTripEndSummaryResult(result = result)
-            PARAMETERS_ENQUIRY -> handleParametersEnquiryResult(result = result)
-            METERING_BOARD_INFO_RESPONSE -> handleMeteringBoardInfoResponse(result = result)
-            ABNORMAL_PULSE -> handleAbnormalPulse(result = result)
-            REQUEST_UPGRADE_FIRMWARE -> handleUpgradeFirmwareRequestResult(result)
-            UPGRADING_FIRMWARE -> handleFirmwareUpdate(result)
-            ANDROID_FIRMWARE_VERSION_RESPONSE -> handleAndroidFirmwareVersionResponse(result)
+            sendCritical("tripEndResponse") { tripEndResponse() }
+        }
+    }
+
+    private suspend fun checkStatues(frame: ByteArray) {
+        try {
+            dispatchFrame(frame)
+        } finally {
+            // after the handler, so a request that waited for this frame sees what the handler stored
+            requestTracker.complete(frame)
+        }
+    }
+
+    private suspend fun dispatchFrame(frame: ByteArray) {
+        // heartbeats and summaries are decoded straight from the bytes, the rest still use the hex string
+        when (McuFrameView.commandOf(frame)) {
+            IDLE_HEARTBEAT_CODE -> handleIdleHeartbeatResult(frame = frame)
+            ONGOING_HEARTBEAT_CODE -> handleOngoingHeartbearResult(frame = frame)
+            TRIP_END_SUMMARY_CODE -> handleTripEndSummaryResult(frame = frame)
+            PARAMETERS_ENQUIRY_CODE -> handleParametersEnquiryResult(frame = frame)
+            METERING_BOARD_INFO_RESPONSE_CODE -> handleMeteringBoardInfoResponse(frame = frame)
             else -> {
-                Log.d(TAG, "$TAG_UNKNOWN_RESULT type: ${getResultType(result)}")
-                Sentry.captureMessage("$TAG_UNKNOWN_RESULT: $result")
+                val result = frame.toHex()
+                logV(TAG) { "checkStatues: $result" }
+                when (getResultType(result)) {
+                    ABNORMAL_PULSE -> handleAbnormalPulse(result = result)
+                    REQUEST_UPGRADE_FIRMWARE -> handleUpgradeFirmwareRequestResult(result)
+                    UPGRADING_FIRMWARE -> handleFirmwareUpdate(result)
+                    ANDROID_FIRMWARE_VERSION_RESPONSE -> handleAndroidFirmwareVersionResponse(result)
+                    else -> {
+                        Log.d(TAG, "$TAG_UNKNOWN_RESULT type: ${getResultType(result)}")
+                        Sentry.captureMessage("$TAG_UNKNOWN_RESULT: $result")
+                    }
+                }
             }
         }
     }
@@ -439,23 +554,43 @@ class MeasureBoardRepositoryImpl @Inject constructor(
     private suspend fun handleFirmwareUpdate(result: String) {
         val version = result.substring(16, 16 + 8)
         val offset = result.substring(24, 24 + 4)
-        val fileName = meterPreferenceRepository.getFirmwareFilenameForOTA().firstOrNull()
         Log.d(TAG, "handleFirmwareUpdate - result $result - offset - ${offset.toIntOrNull(16)}")
-        if (offset.toIntOrNull(16) == null || fileName == null) return
-        val offsetInt = offset.toInt(16)
-        val firmwareBytes =
-            MeasureBoardUtils.getPatchMeterBoardFirmwareCmd(fileName, version, offsetInt)
+        val offsetInt = offset.toIntOrNull(16) ?: return
+        val versionInt = version.toLongOrNull(16)?.toInt() ?: return
+        val fileName = meterPreferenceRepository.getFirmwareFilenameForOTA().firstOrNull() ?: return
+        val streamer = openFirmwareStreamer(fileName) ?: return
+        val firmwareBytes = streamer.chunk(offsetInt, versionInt)
+        if (firmwareBytes == null) {
+            Log.w(TAG, "handleFirmwareUpdate - chunk $offsetInt is past the end of $fileName")
+            return
+        }
         mBusModel?.sendCmd(firmwareBytes)
-        val total = MeasureBoardUtils.getFirmwareTotalOffset(fileName)
-        val progress =
-            Math.round(((total.toDouble() - offsetInt.toDouble()) / total.toDouble()) * 100)
-                .toInt()
+        // build the next chunk while this one is being written to the MCU
+        streamer.prefetch()
 
-        if (progress == 100) {
+        if (streamer.progress(offsetInt) == 100) {
+            Log.i(TAG, "handleFirmwareUpdate - complete ${streamer.stats()}")
             DeviceDataStore.setFirmwareUpdateComplete(true)
         }
     }
 
+    /**
+     * The streamer for [fileName], mapping the image again when the path, length or modification time of
+     * the file changes, or always when [reopen] is set.
+     */
+    private fun openFirmwareStreamer(fileName: String, reopen: Boolean = false): FirmwareStreamer? {
+        if (!reopen) {
+            firmwareStreamer?.takeIf { it.path == fileName && it.isCurrent() }?.let { return it }
+        }
+        return try {
+            FirmwareStreamer.open(fileName).also { firmwareStreamer = it }
+        } catch (e: Exception) {
+            Log.e(TAG, "openFirmwareStreamer - cannot map $fileName", e)
+            Sentry.captureException(e)
+            null
+        }
+    }
+
     private fun handleUpgradeFirmwareRequestResult(result: String) {
         val requestResult = result.substring(18, 18 + 2)
         Log.d(TAG, "REQUEST_UPGRADE_FIRMWARE ${result} == $requestResult")
@@ -480,59 +615,28 @@ class MeasureBoardRepositoryImpl @Inject constructor(
         Log.d(TAG, "ABNORMAL_PULSE: $result")
     }
 
-    private suspend fun handleParametersEnquiryResult(result: String) {
-        if (result.length < 97 || !result.startsWith(HEARTBEAT_IDENTIFIER)) {
-            Log.d(TAG, "handleParametersEnquiryResult: Invalid result length: ${result.length}")
-            Sentry.captureMessage("handleParametersEnquiryResult: Invalid result length: ${result.length}")
+    private suspend fun handleParametersEnquiryResult(frame: ByteArray) {
+        val parameters = parametersView
+        if (!parameters.wrap(frame) || !parameters.isValid()) {
+            Log.d(TAG, "handleParametersEnquiryResult: Invalid result length: ${frame.size}")
+            Sentry.captureMessage("handleParametersEnquiryResult: Invalid result: ${frame.toHex()}")
             return
         }
         DeviceDataStore.setMCUHeartbeatActive(true)
         //parameters enquiry
-        val firmwareVersion = result.substring(18, 18 + 8)
-        val parametersVersion = result.substring(26, 26 + 8)
-        val kValue = result.substring(34, 34 + 4)
-        val startDistance = result.substring(38, 38 + 4)
-        val startPrice = result.substring(42, 42 + 4) // 13
-        val peakPrice = result.substring(46, 46 + 4)
-        val stepPrice = result.substring(50, 50 + 4) // 17
-        val peakStepPrice = result.substring(54, 54 + 4)
-        val morningPeakStartTime = result.substring(58, 58 + 4)
-        val morningPeakEndTime = result.substring(62, 62 + 4)
-        val nightPeakStartTime = result.substring(66, 66 + 4)
-        val nightPeakEndTime = result.substring(70, 70 + 4)
-        val stepPriceChangedAt = result.substring(74, 74 + 4) // 29
-        val changedStepPrice = result.substring(78, 78 + 4)  // 31
-        val changedPeakStepPrice = result.substring(82, 82 + 4)
-        val distanceInterval = result.substring(86, 86 + 4)
-        val waitingTimeInterval = result.substring(90, 90 + 4)
-        val overSpeed = result.substring(94, 94 + 4)
-
-        val mcuData = MCUFareParams(
-            parametersVersion = parametersVersion,
-            firmwareVersion = firmwareVersion,
-            kValue = kValue,
-            startingDistance = startDistance,
-            startingPrice = startPrice,
-            stepPrice = stepPrice,
-            changedPriceAt = stepPriceChangedAt,
-            changedStepPrice = changedStepPrice,
-        )
+        val mcuData = parameters.toMCUFareParams()
         DeviceDataStore.setMCUFareData(mcuData)
         Log.d(TAG, "handleParametersEnquiryResult: ${mcuData.kValue} ${mcuData.startingPrice} ${mcuData.stepPrice} ${mcuData.changedStepPrice}")
     }
 
-    private suspend fun handleMeteringBoardInfoResponse(result: String) {
-        if (result.length < 170 || !result.startsWith(HEARTBEAT_IDENTIFIER)) {
-            Log.d(TAG, "handleMeteringBoardInfoResponse: Invalid result length: ${result.length}")
-            Sentry.captureMessage("handleMeteringBoardInfoResponse: Invalid result length: ${result.length}")
-            return
-        }
-        val meteringBoardInfo = MeteringBoardInfo.parseFromHexResponse(result)
-        if (meteringBoardInfo == null) {
-            Log.e(TAG, "handleMeteringBoardInfoResponse: Failed to parse response")
-            Sentry.captureMessage("handleMeteringBoardInfoResponse: Failed to parse response")
+    private suspend fun handleMeteringBoardInfoResponse(frame: ByteArray) {
+        val boardInfo = boardInfoView
+        if (!boardInfo.wrap(frame) || !boardInfo.isValid()) {
+            Log.d(TAG, "handleMeteringBoardInfoResponse: Invalid result length: ${frame.size}")
+            Sentry.captureMessage("handleMeteringBoardInfoResponse: Invalid result length: ${frame.size}")
             return
         }
+        val meteringBoardInfo = boardInfo.toMeteringBoardInfo()
         
         // Store the metering board info in DataStore
         DeviceDataStore.setMeteringBoardInfo(meteringBoardInfo)
@@ -578,30 +682,19 @@ class MeasureBoardRepositoryImpl @Inject constructor(
         }
     }
 
-    override fun enquireParameters() {
-        addTask {
-            mBusModel?.write(Command.CMD_PARAMETERS_ENQUIRY)
-            delay(200)
-        }
-    }
+    override fun enquireParameters(): Deferred<Boolean> =
+        sendRequest(McuRequest.PARAMETERS_ENQUIRY) { parametersEnquiry() }
 
-    override fun getMeteringBoardInfo() {
-        addTask {
-            mBusModel?.write(MeasureBoardUtils.getMeteringBoardInfoCmd())
-            delay(200)
-        }
-    }
+    override fun getMeteringBoardInfo(): Deferred<Boolean> =
+        sendRequest(McuRequest.METERING_BOARD_INFO) { meteringBoardInfo() }
 
     override fun updateKValue(kValue: Int?, boardShutdownMinsDelayAfterAcc: Int?) {
-        addTask {
+        addTask(McuCommandClass.STATE, "k_value") {
             try {
-                val cmd = MeasureBoardUtils.getUpdateKValueCmd(
-                    kValue = kValue,
-                    powerOffTimeInMins = boardShutdownMinsDelayAfterAcc
-                )
-                mBusModel?.write(cmd)
+                sendEncoded {
+                    updateKValue(kValue = kValue, powerOffTimeInMins = boardShutdownMinsDelayAfterAcc)
+                }
                 Log.d(TAG, "updateKValue: $kValue, boardShutdownMinsDelayAfterAcc: $boardShutdownMinsDelayAfterAcc")
-                Log.d(TAG, "updateKValue cmd: $cmd")
                 delay(200)
             }
             catch (e: Exception) {
@@ -612,8 +705,8 @@ class MeasureBoardRepositoryImpl @Inject constructor(
     }
 
     override fun updateLicensePlate(licensePlate: String) {
-        addTask {
-            mBusModel?.write(MeasureBoardUtils.getWritingDataIntoMeasureBoardCmd(licensePlate = licensePlate))
+        addTask(McuCommandClass.STATE, "license_plate") {
+            sendEncoded { writeLicensePlate(licensePlate) }
             delay(200)
         }
     }
@@ -621,15 +714,15 @@ class MeasureBoardRepositoryImpl @Inject constructor(
     override fun updatePriceParams(
         startPrice: Int, stepPrice: Int, stepPrice2nd:Int, threshold:Int
     ) {
-        addTask {
-            mBusModel?.write(
-                MeasureBoardUtils.getUpdatePriceParamCmd(
+        addTask(McuCommandClass.STATE, "price_params") {
+            sendEncoded {
+                updatePriceParams(
                     startPrice,
                     stepPrice,
                     stepPrice2nd,
                     threshold,
                 )
-            )
+            }
             delay(200)
         }
     }
@@ -639,89 +732,105 @@ class MeasureBoardRepositoryImpl @Inject constructor(
         interval: Int,
         repeatCount: Int,
     ) {
-        addTask {
-            mBusModel?.write(MeasureBoardUtils.getBeepSoundCmd(duration, interval, repeatCount))
+        addTask(McuCommandClass.COSMETIC) {
+            sendEncoded { beep(duration, interval, repeatCount) }
             delay(200)
         }
     }
 
     override fun writeStartTripCommand(tripId: String) {
-        addTask {
-            mBusModel?.write(MeasureBoardUtils.getStartTripCmd(tripId = tripId))
+        addTask(McuCommandClass.CRITICAL) {
+            sendCritical("startTrip") { startTrip(tripId) }
             delay(200)
         }
     }
 
     override fun writeResumeTripCommand() {
-        addTask {
-            mBusModel?.write(MeasureBoardUtils.getContinueTripCmd())
+        addTask(McuCommandClass.CRITICAL) {
+            sendCritical("continueTrip") { continueTrip() }
             delay(200)
         }
     }
 
     override fun writeEndTripCommand() {
-        addTask {
-            mBusModel?.write(MeasureBoardUtils.getEndTripCmd())
+        addTask(McuCommandClass.CRITICAL) {
+            sendCritical("endTrip") { endTrip() }
             delay(200)
         }
     }
 
     override fun writePauseTripCommand() {
-        addTask {
-            mBusModel?.write(MeasureBoardUtils.getPauseTripCmd())
+        addTask(McuCommandClass.CRITICAL) {
+            sendCritical("pauseTrip") { pauseTrip() }
             delay(200)
         }
     }
 
     override fun writeStartAndPauseTripCommand(tripId: String) {
-        addTask {
-            mBusModel?.write(MeasureBoardUtils.getStartPauseTripCmd(tripId))
+        addTask(McuCommandClass.CRITICAL) {
+            sendCritical("startAndPauseTrip") { startTrip(tripId, isPause = true) }
             delay(200)
         }
     }
 
     override fun writeAddExtrasCommand(extrasAmount: Int) {
-        addTask {
-            mBusModel?.write(MeasureBoardUtils.getUpdateExtrasCmd("$extrasAmount"))
+        addTask(McuCommandClass.STATE, "extras") {
+            sendEncoded { updateExtras(extrasAmount) }
             delay(200)
         }
     }
 
     override fun unlockMeter() {
-        addTask {
-            mBusModel?.write(MeasureBoardUtils.getUnlockCmd()) ?: false
+        addTask(McuCommandClass.CRITICAL) {
+            sendCritical("unlock") { unlock() }
             delay(200)
         }
     }
 
     override fun updateMeasureBoardTime(formattedDateStr: String) {
-        addTask {
-            mBusModel?.write(MeasureBoardUtils.getUpdateTimeCmd(formattedDateStr = formattedDateStr))
+        addTask(McuCommandClass.STATE, "time") {
+            sendEncoded { updateTime(formattedDateStr) }
             delay(200)
         }
     }
 
-    override suspend fun requestPatchFirmware(fileName: String) {
+    override suspend fun requestPatchFirmware(fileName: String): Boolean {
         meterPreferenceRepository.saveFirmwareFilenameForOTA(fileName)
         val version = (fileName.split("/").lastOrNull() ?: "").substringBefore(".")
-        addTask {
-            mBusModel?.write(
-                MeasureBoardUtils.getRequestPatchMeterBoardFirmwareCmd(
-                    fileName,
-                    version
-                )!!.toHexString().replace(" ", "")
-            )
+        // a new upgrade never reuses chunks cached for an earlier image at the same path
+        val streamer = openFirmwareStreamer(fileName, reopen = true) ?: return false
+        val request = try {
+            streamer.requestFrame(FirmwareStreamer.parseVersion(version))
+        } catch (e: IllegalArgumentException) {
+            Log.e(TAG, "requestPatchFirmware - invalid firmware file name $fileName", e)
+            return false
+        }
+        streamer.start()
+        val response = requestTracker.request(McuRequest.REQUEST_UPGRADE_FIRMWARE) { written ->
+            addTask(McuCommandClass.NORMAL) {
+                written.complete(mBusModel?.sendCmd(request) ?: false)
+            }
         }
+        // same result byte as handleUpgradeFirmwareRequestResult, 0x90 means the upgrade can start
+        return response != null && response.size > 9 && response[9] == 0x90.toByte()
     }
 
+    override fun firmwareStreamStats(): FirmwareStreamStats? = firmwareStreamer?.stats()
+
+    override fun serialSessionStats(): SerialSession.Stats? = mBusModel?.sessionStats
+
+    override fun inboundStats(): McuInboundStats = inbound.stats().copy(droppedTasks = scheduler.stats().dropped)
+
+    override fun commandStats(): McuCommandStats = scheduler.stats()
+
     override fun close() {
         try {
             // Cancel the external scope to stop all coroutines
             externalScope?.cancel()
             
             // Close channels
-            taskChannel.close()
-            messageChannel.close()
+            scheduler.close()
+            inbound.close()
             
             // Stop communication
             mBusModel?.stopCommunicate()
@@ -733,27 +842,32 @@ class MeasureBoardRepositoryImpl @Inject constructor(
     }
 
     override fun notifyShutdown() {
-        addTask {
-            mBusModel?.write(MeasureBoardUtils.getShutdownNotificationCmd())
+        addTask(McuCommandClass.CRITICAL) {
+            sendCritical("shutdownNotification") { shutdownNotification() }
             delay(200)
             Log.d(TAG, "notifyShutdown: Shutdown notification sent to measure board")
         }
     }
 
-    override fun notifyAndroidFirmwareVersion(androidFirmwareVersion: String) {
-        addTask {
-            mBusModel?.write(MeasureBoardUtils.sendAndroidFirmwareVersionCmd(androidFirmwareVersion))
-            delay(200)
-            Log.d(TAG, "notifyAndroidFirmwareVersion: Android firmware version notification sent to measure board: $androidFirmwareVersion")
-        }
+    override fun notifyAndroidFirmwareVersion(androidFirmwareVersion: String): Deferred<Boolean> {
+        Log.d(TAG, "notifyAndroidFirmwareVersion: Android firmware version notification sent to measure board: $androidFirmwareVersion")
+        return sendRequest(McuRequest.ANDROID_FIRMWARE_VERSION) { androidFirmwareVersion(androidFirmwareVersion) }
     }
 
     private fun setReceiveEvalDataLs() {
-        mBusModel?.setListener { data: String ->
-            sendMessage(MCUMessage(IAtCmd.W_MSG_DISPLAY, data))
-            Log.d(TAG, "setReceiveEvalDataLs $data")
-            DeviceDataStore.setBusModelListenerDataReceived(true)
-        }
+        mBusModel?.setListener(object : UartWorker.OnDistributeListener {
+            override fun onDistribution(data: String) {
+                sendMessage(MCUMessage(IAtCmd.W_MSG_DISPLAY, data))
+                logV(TAG) { "setReceiveEvalDataLs $data" }
+                DeviceDataStore.setBusModelListenerDataReceived(true)
+            }
+
+            override fun onFrame(frame: FrameDecoder.Frame) {
+                // the decoder reuses its buffer, the message processor gets its own copy of the bytes
+                sendMessage(MCUMessage(IAtCmd.W_MSG_DISPLAY, frame.copy()))
+                DeviceDataStore.setBusModelListenerDataReceived(true)
+            }
+        })
         if(mBusModel == null) {
            Log.e(TAG, "setReceiveEvalDataLs: mBusModel is null")
             Sentry.captureMessage("setReceiveEvalDataLs: mBusModel is null")
@@ -777,17 +891,6 @@ class MeasureBoardRepositoryImpl @Inject constructor(
     }
 
 
-    /**
-     * xor Checksum algo
-     */
-    fun calculateXORChecksum(data: ByteArray): Byte {
-        var checksum: Int = 0 // Use Int for intermediate computation
-        for (byte in data) {
-            checksum = checksum xor byte.toInt()
-        }
-        return checksum.toByte() // Convert result back to Byte
-    }
-
     /**
      * hex string to byte
      */
@@ -796,42 +899,23 @@ class MeasureBoardRepositoryImpl @Inject constructor(
         val length = fixedHex.length
         val byteArray = ByteArray(length / 2)
         for (i in 0 until length step 2) {
-            val byte = fixedHex.substring(i, i + 2).toInt(16).toByte()
-            byteArray[i / 2] = byte
+            val byte = (Character.digit(fixedHex[i], 16) shl 4) or Character.digit(fixedHex[i + 1], 16)
+            byteArray[i / 2] = byte.toByte()
         }
         return byteArray
     }
 
-    fun validateChecksum(hexString: String): Boolean {
-        // Step 1: Locate and trim the 55AA markers
-        val startIndex = hexString.indexOf("55AA")
-        if (startIndex == -1) return false // No valid 55AA found
-
-        val endIndex = hexString.indexOf("55AA", startIndex + 4) // Look for the next 55AA
-        if (endIndex == -1) return false // No second 55AA found
-
-        // Extract the body (everything between the two 55AA markers)
-        val bodyHex = hexString.substring(startIndex + 4, endIndex)
-
-        // Step 2: Convert the body into ByteArray and extract the checksum byte
-        val bodyBytes = hexStringToByteArray(bodyHex)
-        if (bodyBytes.size < 2) return false // Ensure there's at least one data byte and one checksum byte
-
-        val checksumByte = bodyBytes.last() // Last byte is the checksum
-        val dataWithoutChecksum = bodyBytes.dropLast(1).toByteArray() // Remove the last byte (checksum)
-
-        // Step 3: Calculate the XOR checksum for the remaining data
-        val calculatedChecksum = calculateXORChecksum(dataWithoutChecksum)
-
-        // Step 4: Compare the first byte of the calculated checksum with the checksum byte
-        return calculatedChecksum == checksumByte
-    }
+    private fun ByteArray.toHex(): String = ByteUtils.byteArrayToHexString(this)
 
+    fun validateChecksum(hexString: String): Boolean =
+        McuFrameView.hasValidChecksum(hexStringToByteArray(hexString))
 
     companion object {
         private const val WHAT_PRINT_STATUS: Int = 110
         private const val TAG = "MeasureBoardRepository"
-        private const val HEARTBEAT_IDENTIFIER = "55AA"
+        private const val CHECKPOINT_FILE_NAME = "ongoing_trip.ckpt"
+        private const val CRITICAL_SEND_ATTEMPTS = 3
+        private const val CRITICAL_SEND_RETRY_DELAY_MS = 100L
         const val TAG_CHECKSUM_VALIDATION_FAILED = "Checksum validation failed"
         const val TAG_UNKNOWN_RESULT = "Unknown result"
     }
@@ -4,28 +4,167 @@ import android.content.Context
 import android.util.Base64
 import android.util.Log
 import androidx.datastore.core.DataStore
+import androidx.datastore.preferences.core.MutablePreferences
 import androidx.datastore.preferences.core.Preferences
 import androidx.datastore.preferences.core.booleanPreferencesKey
 import androidx.datastore.preferences.core.edit
+import androidx.datastore.preferences.core.emptyPreferences
 import androidx.datastore.preferences.core.longPreferencesKey
 import androidx.datastore.preferences.core.stringPreferencesKey
 import androidx.datastore.preferences.preferencesDataStore
+import androidx.datastore.preferences.preferencesDataStoreFile
 import com.vismo.nextgenmeter.BuildConfig
-import com.vismo.nextgenmeter.util.GlobalUtils.withTransactionSync
 import dagger.hilt.android.qualifiers.ApplicationContext
+import io.sentry.Sentry
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.async
+import kotlinx.coroutines.delay
 import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.distinctUntilChanged
+import kotlinx.coroutines.flow.filterNotNull
+import kotlinx.coroutines.flow.first
 import kotlinx.coroutines.flow.map
+import kotlinx.coroutines.flow.update
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import java.io.IOException
+
+/**
+ * The preferences read on every MCU heartbeat, as one consistent value.
+ */
+data class MeterPreferenceSnapshot(
+    val deviceId: String?,
+    val licensePlate: String?,
+    val ongoingTripId: String?,
+    val ongoingTripStartTime: Long?,
+)
 
 class MeterPreferenceRepository(
     @ApplicationContext private val context: Context,
+    private val durability: DurabilityService,
 ) {
     private val Context.dataStore: DataStore<Preferences> by preferencesDataStore(name = SETTING_PREFS_NAME)
+    // DataStore syncs the file it writes, the rename over the old file is made durable by syncing the directory
+    private val dataStoreSync by lazy { SyncTarget.directory(context.preferencesDataStoreFile(SETTING_PREFS_NAME).parentFile!!) }
     
     private val licensePlateConsecutiveValues = mutableListOf<String>()
     private val deviceIdConsecutiveValues = mutableListOf<String>()
 
+    /**
+     * In-memory copy of the [MeterPreferenceSnapshot] keys, null until loaded from the DataStore.
+     * Saves update it first and persist afterwards, so readers never wait for disk once it is loaded.
+     */
+    private val snapshotState = MutableStateFlow<MeterPreferenceSnapshot?>(null)
+    private val cacheScope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+    private val persistMutex = Mutex()
+    /** Last snapshot written to the DataStore, guarded by [persistMutex] */
+    private var persistedSnapshot: MeterPreferenceSnapshot? = null
+    /** Writes the snapshot again after a failed write, guarded by `this` */
+    private var retryJob: Job? = null
+
+    init {
+        cacheScope.launch {
+            val settings = try {
+                context.dataStore.data.first()
+            } catch (e: IOException) {
+                // start from empty values rather than leave every reader waiting
+                Log.e("MeterPreferenceRepository", "Failed to load preferences", e)
+                emptyPreferences()
+            }
+            val loaded = MeterPreferenceSnapshot(
+                deviceId = settings[KEY_DEVICE_ID],
+                licensePlate = settings[KEY_LICENSE_PLATE],
+                ongoingTripId = settings[KEY_ONGOING_TRIP_ID],
+                ongoingTripStartTime = settings[KEY_ONGOING_TRIP_START_TIME],
+            )
+            persistMutex.withLock { persistedSnapshot = loaded }
+            snapshotState.update { it ?: loaded }
+        }
+    }
+
+    /**
+     * The cached device ID, license plate and ongoing trip. Only suspends until the first load from the DataStore.
+     */
+    suspend fun snapshot(): MeterPreferenceSnapshot = snapshotState.filterNotNull().first()
+
+    private fun snapshotFlow(): Flow<MeterPreferenceSnapshot> = snapshotState.filterNotNull()
+
+    /**
+     * Applies [change] to the cached snapshot and writes it to the DataStore in the background if it changed.
+     * @return the write, completing with false if it failed, or null if nothing changed
+     */
+    private suspend fun updateSnapshot(change: (MeterPreferenceSnapshot) -> MeterPreferenceSnapshot): Deferred<Boolean>? {
+        snapshot()
+        var changed = false
+        snapshotState.update { current ->
+            val updated = change(current!!)
+            changed = updated != current
+            updated
+        }
+        return if (changed) cacheScope.async { persistSnapshot() } else null
+    }
+
+    /**
+     * Writes the latest snapshot, and keeps retrying in the background if the write fails.
+     * @return false if the write failed, the snapshot then stays dirty until a retry or a later save writes it
+     */
+    private suspend fun persistSnapshot(): Boolean {
+        val persisted = persistMutex.withLock { writeSnapshot() }
+        if (!persisted) scheduleRetry()
+        return persisted
+    }
+
+    /**
+     * Writes the keys that differ from the last persisted snapshot, called with [persistMutex] held. Always writes
+     * the latest snapshot, so writes launched out of order still end with the newest values on disk.
+     */
+    private suspend fun writeSnapshot(): Boolean {
+        val snapshot = snapshotState.value ?: return true
+        val persisted = persistedSnapshot
+        if (snapshot == persisted) return true
+        try {
+            durability.withDurable(dataStoreSync) {
+                context.dataStore.edit { settings ->
+                    if (snapshot.deviceId != persisted?.deviceId) settings.putOrRemove(KEY_DEVICE_ID, snapshot.deviceId)
+                    if (snapshot.licensePlate != persisted?.licensePlate) settings.putOrRemove(KEY_LICENSE_PLATE, snapshot.licensePlate)
+                    if (snapshot.ongoingTripId != persisted?.ongoingTripId) settings.putOrRemove(KEY_ONGOING_TRIP_ID, snapshot.ongoingTripId)
+                    if (snapshot.ongoingTripStartTime != persisted?.ongoingTripStartTime) settings.putOrRemove(KEY_ONGOING_TRIP_START_TIME, snapshot.ongoingTripStartTime)
+                }
+            }
+        } catch (e: IOException) {
+            Log.e("MeterPreferenceRepository", "Failed to persist preferences", e)
+            Sentry.captureException(e)
+            return false
+        }
+        persistedSnapshot = snapshot
+        return true
+    }
+
+    private fun scheduleRetry() {
+        synchronized(this) {
+            if (retryJob?.isActive == true) return
+            retryJob = cacheScope.launch {
+                var delayMillis = PERSIST_RETRY_DELAY_MS
+                do {
+                    delay(delayMillis)
+                    delayMillis = (delayMillis * 2).coerceAtMost(PERSIST_MAX_RETRY_DELAY_MS)
+                } while (!persistMutex.withLock { writeSnapshot() })
+            }
+        }
+    }
+
+    private fun <T> MutablePreferences.putOrRemove(key: Preferences.Key<T>, value: T?) {
+        if (value != null) this[key] = value else remove(key)
+    }
+
     suspend fun saveTotpSecret(secret: ByteArray) {
-        withTransactionSync {
+        durability.withDurable(dataStoreSync) {
             context.dataStore.edit { settings ->
                 settings[KEY_TOTP_SECRET] = Base64.encodeToString(secret, Base64.DEFAULT)
             }
@@ -40,7 +179,7 @@ class MeterPreferenceRepository(
     }
 
     suspend fun saveShowLoginToggle(showLoginToggle: Boolean) {
-        withTransactionSync {
+        durability.withDurable(dataStoreSync) {
             context.dataStore.edit { settings ->
                 settings[KEY_SHOW_LOGIN_TOGGLE] = showLoginToggle.toString()
             }
@@ -78,21 +217,17 @@ class MeterPreferenceRepository(
         
         // Check if all 3 values are the same
         if (licensePlateConsecutiveValues.size == 3 && licensePlateConsecutiveValues.all { it == licensePlate }) {
-            // Update the actual license plate value in DataStore
-            withTransactionSync {
-                context.dataStore.edit { settings ->
-                    settings[KEY_LICENSE_PLATE] = licensePlate
-                }
+            // Update the actual license plate value, only written to the DataStore when it changed
+            if (updateSnapshot { it.copy(licensePlate = licensePlate) } != null) {
+                Log.d("MeterPreferenceRepository", "License plate updated after 3 consecutive values: $licensePlate")
             }
-            Log.d("MeterPreferenceRepository", "License plate updated after 3 consecutive values: $licensePlate")
         }
     }
 
     suspend fun getLicensePlate(): Flow<String?> {
-        return context.dataStore.data
-            .map { settings ->
-                settings[KEY_LICENSE_PLATE]
-            }
+        return snapshotFlow()
+            .map { it.licensePlate }
+            .distinctUntilChanged()
     }
 
     suspend fun saveDeviceId(deviceId: String) {
@@ -106,25 +241,21 @@ class MeterPreferenceRepository(
         
         // Check if all 3 values are the same
         if (deviceIdConsecutiveValues.size == 3 && deviceIdConsecutiveValues.all { it == deviceId }) {
-            // Update the actual device ID value in DataStore
-            withTransactionSync {
-                context.dataStore.edit { settings ->
-                    settings[KEY_DEVICE_ID] = deviceId
-                }
+            // Update the actual device ID value, only written to the DataStore when it changed
+            if (updateSnapshot { it.copy(deviceId = deviceId) } != null) {
+                Log.d("MeterPreferenceRepository", "Device ID updated after 3 consecutive values: $deviceId")
             }
-            Log.d("MeterPreferenceRepository", "Device ID updated after 3 consecutive values: $deviceId")
         }
     }
 
     suspend fun getDeviceId(): Flow<String?> {
-        return context.dataStore.data
-            .map { settings ->
-                settings[KEY_DEVICE_ID]
-            }
+        return snapshotFlow()
+            .map { it.deviceId }
+            .distinctUntilChanged()
     }
 
     suspend fun saveSelectedLocale(ttsLanguage: String) {
-        withTransactionSync {
+        durability.withDurable(dataStoreSync) {
             context.dataStore.edit { settings ->
                 settings[KEY_LOCALE] = ttsLanguage
             }
@@ -139,7 +270,7 @@ class MeterPreferenceRepository(
     }
 
     suspend fun saveMcuStartPrice(mcuStartPrice: String) {
-        withTransactionSync {
+        durability.withDurable(dataStoreSync) {
             context.dataStore.edit { settings ->
                 settings[KEY_MCU_START_PRICE] = mcuStartPrice
             }
@@ -153,37 +284,32 @@ class MeterPreferenceRepository(
             }
     }
 
-    suspend fun saveOngoingTripId(ongoingTripId: String, startTime: Long) {
-        withTransactionSync {
-            saveOngoingTripStartTime(startTime)
-            context.dataStore.edit { settings ->
-                settings[KEY_ONGOING_TRIP_ID] = ongoingTripId
-            }
+    /**
+     * Readers see the new trip immediately, the call returns once it is on disk so a restart can resume the trip.
+     * @return false if the write failed, it is retried in the background
+     */
+    suspend fun saveOngoingTripId(ongoingTripId: String, startTime: Long): Boolean {
+        val persisted = updateSnapshot { it.copy(ongoingTripId = ongoingTripId, ongoingTripStartTime = startTime) }?.await() ?: true
+        if (!persisted) {
+            Log.w("MeterPreferenceRepository", "saveOngoingTripId: $ongoingTripId is not on disk yet")
         }
+        return persisted
     }
 
     suspend fun getOngoingTripId(): Flow<String?> {
-        return context.dataStore.data
-            .map { settings ->
-                settings[KEY_ONGOING_TRIP_ID]
-            }
-    }
-
-    private suspend fun saveOngoingTripStartTime(startTime: Long) {
-        context.dataStore.edit { settings ->
-            settings[KEY_ONGOING_TRIP_START_TIME] = startTime
-        }
+        return snapshotFlow()
+            .map { it.ongoingTripId }
+            .distinctUntilChanged()
     }
 
     suspend fun getOngoingTripStartTime(): Flow<Long?> {
-        return context.dataStore.data
-            .map { settings ->
-                settings[KEY_ONGOING_TRIP_START_TIME]
-            }
+        return snapshotFlow()
+            .map { it.ongoingTripStartTime }
+            .distinctUntilChanged()
     }
 
     suspend fun saveFirmwareFilenameForOTA(fileName: String) {
-        withTransactionSync {
+        durability.withDurable(dataStoreSync) {
             context.dataStore.edit { settings ->
                 settings[KEY_FIRMWARE_FILENAME_FOR_OTA] = fileName
             }
@@ -198,7 +324,7 @@ class MeterPreferenceRepository(
     }
 
     suspend fun saveRecentlyCompletedUpdateId(id: String) {
-        withTransactionSync {
+        durability.withDurable(dataStoreSync) {
             context.dataStore.edit { settings ->
                 settings[KEY_MOST_RECENTLY_COMPLETED_OTA_UPDATE_ID] = id
             }
@@ -213,7 +339,7 @@ class MeterPreferenceRepository(
     }
 
     suspend fun saveWasMeterOnlineAtLastAccOff(wasOnline: Boolean) {
-        withTransactionSync {
+        durability.withDurable(dataStoreSync) {
             context.dataStore.edit { settings ->
                 settings[KEY_WAS_METER_ONLINE_AT_LAST_ACC_OFF] = wasOnline.toString()
             }
@@ -228,7 +354,7 @@ class MeterPreferenceRepository(
     }
 
     suspend fun saveAndroidGpsLastUpdateTime(time: Long) {
-        withTransactionSync {
+        durability.withDurable(dataStoreSync) {
             context.dataStore.edit { settings ->
                 settings[KEY_ANDROID_GPS_LAST_UPDATE_TIME] = time
             }
@@ -250,7 +376,7 @@ class MeterPreferenceRepository(
     }
 
     suspend fun saveStartAccInquiryFromDriverTrigger(start: Boolean) {
-        withTransactionSync {
+        durability.withDurable(dataStoreSync) {
             context.dataStore.edit { settings ->
                 settings[KEY_START_ACC_INQUIRY_FROM_DRIVER_TRIGGER] = start
             }
@@ -259,6 +385,8 @@ class MeterPreferenceRepository(
 
     companion object {
         private const val SETTING_PREFS_NAME = "settings"
+        private const val PERSIST_RETRY_DELAY_MS = 1_000L
+        private const val PERSIST_MAX_RETRY_DELAY_MS = 60_000L
         private val KEY_TOTP_SECRET = stringPreferencesKey("totp_secret")
         private val KEY_SHOW_LOGIN_TOGGLE = stringPreferencesKey("show_login_toggle")
         private val KEY_SHOW_CONNECTION_ICONS_TOGGLE = stringPreferencesKey("show_connection_icons_toggle")
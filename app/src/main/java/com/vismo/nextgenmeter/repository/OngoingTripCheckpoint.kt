@@ -0,0 +1,240 @@
+package com.vismo.nextgenmeter.repository
+
+import android.util.Log
+import com.google.firebase.Timestamp
+import com.vismo.nextgenmeter.model.TripData
+import com.vismo.nextgenmeter.model.TripStatus
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.util.zip.CRC32
+
+/**
+ * Crash-safe checkpoint of the ongoing trip, written at heartbeat rate.
+ *
+ * The file holds two fixed-size slots in one memory-mapped page. Each [save] fills the slot the previous save did
+ * not use with `[magic][version][length][sequence][trip][crc32]` and flushes the page, so a write torn by a crash
+ * or power cut can only damage the slot being written and the other one still holds the previous trip state.
+ * [restore] reads both slots and returns the trip of the valid one with the highest sequence number.
+ *
+ * The trip is encoded field by field in a fixed binary layout, no JSON, so a save is a few hundred bytes copied
+ * into the mapping and a restore takes microseconds.
+ *
+ * With [syncOnWrite] false a save only updates the mapping, which survives an app crash, and the caller flushes
+ * it to storage with [sync] through the [DurabilityService].
+ */
+class OngoingTripCheckpoint(
+    private val file: File,
+    private val syncOnWrite: Boolean = true,
+) {
+    private val crc = CRC32()
+    private val scratch = ByteArray(SLOT_BYTES)
+    @Volatile
+    private var mapped: MappedByteBuffer? = null
+    private var nextSequence = 0L
+
+    /**
+     * @return the checkpointed trip, or null if there is none, it was cleared, or both slots are invalid
+     */
+    @Synchronized
+    fun restore(): TripData? {
+        val buffer = map() ?: return null
+        var newest: TripData? = null
+        var newestSequence = -1L
+        for (slot in 0 until SLOT_COUNT) {
+            val length = readSlot(buffer, slot) ?: continue
+            val record = ByteBuffer.wrap(scratch, 0, length)
+            val sequence = record.getLong(SEQUENCE_OFFSET)
+            if (sequence <= newestSequence) continue
+            newestSequence = sequence
+            record.position(PAYLOAD_OFFSET)
+            newest = try {
+                decode(record)
+            } catch (e: RuntimeException) {
+                Log.w(TAG, "Unreadable checkpoint in slot $slot: ${e.message}")
+                null
+            }
+        }
+        nextSequence = newestSequence + 1
+        return newest
+    }
+
+    /**
+     * @return false if the checkpoint file could not be mapped or the trip does not fit in a slot
+     */
+    @Synchronized
+    fun save(trip: TripData): Boolean = write(trip)
+
+    /**
+     * Marks the checkpoint empty, [restore] returns null until the next [save].
+     */
+    @Synchronized
+    fun clear() {
+        write(null)
+    }
+
+    /**
+     * Flushes the mapped page to storage, can be called from any thread.
+     */
+    fun sync() {
+        mapped?.force()
+    }
+
+    @Synchronized
+    fun close() {
+        mapped = null
+    }
+
+    private fun write(trip: TripData?): Boolean {
+        val buffer = mapped ?: run {
+            // the sequence numbers continue from the slots already on disk
+            restore()
+            mapped
+        } ?: return false
+        val record = ByteBuffer.wrap(scratch)
+        val sequence = nextSequence
+        try {
+            record.putInt(MAGIC).putShort(VERSION).putShort(0).putLong(sequence)
+            if (trip == null) record.put(0) else encode(record.put(1), trip)
+        } catch (e: RuntimeException) {
+            // BufferOverflowException for a trip whose strings do not fit
+            Log.w(TAG, "Trip ${trip?.tripId} does not fit in a checkpoint slot: ${e.message}")
+            return false
+        }
+        val length = record.position()
+        if (length + CRC_BYTES > SLOT_BYTES) return false
+        record.putShort(LENGTH_OFFSET, length.toShort())
+        crc.reset()
+        crc.update(scratch, 0, length)
+        record.putInt(crc.value.toInt())
+        buffer.position((sequence and 1).toInt() * SLOT_BYTES)
+        buffer.put(scratch, 0, length + CRC_BYTES)
+        if (syncOnWrite) buffer.force()
+        nextSequence = sequence + 1
+        return true
+    }
+
+    /**
+     * Copies a slot into [scratch] and checks it.
+     *
+     * @return the length of the record before its CRC, or null if the slot is empty or invalid
+     */
+    private fun readSlot(buffer: MappedByteBuffer, slot: Int): Int? {
+        val offset = slot * SLOT_BYTES
+        if (buffer.getInt(offset) != MAGIC || buffer.getShort(offset + 4) != VERSION) return null
+        val length = buffer.getShort(offset + LENGTH_OFFSET).toInt()
+        if (length < PAYLOAD_OFFSET + 1 || length + CRC_BYTES > SLOT_BYTES) return null
+        buffer.position(offset)
+        buffer.get(scratch, 0, length + CRC_BYTES)
+        crc.reset()
+        crc.update(scratch, 0, length)
+        return if (ByteBuffer.wrap(scratch).getInt(length) == crc.value.toInt()) length else null
+    }
+
+    private fun map(): MappedByteBuffer? {
+        mapped?.let { return it }
+        return try {
+            RandomAccessFile(file, "rw").use { raf ->
+                if (raf.length() != FILE_BYTES.toLong()) raf.setLength(FILE_BYTES.toLong())
+                // the mapping stays valid after the channel is closed
+                raf.channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_BYTES.toLong())
+            }.also { mapped = it }
+        } catch (e: IOException) {
+            Log.e(TAG, "Failed to map ${file.path}: ${e.message}")
+            null
+        }
+    }
+
+    companion object {
+        private const val TAG = "OngoingTripCheckpoint"
+        private const val MAGIC = 0x54434B50 // "TCKP"
+        private const val VERSION: Short = 1
+        private const val SLOT_COUNT = 2
+        private const val SLOT_BYTES = 1024
+        private const val FILE_BYTES = SLOT_COUNT * SLOT_BYTES
+        private const val LENGTH_OFFSET = 6
+        private const val SEQUENCE_OFFSET = 8
+        private const val PAYLOAD_OFFSET = 16
+        private const val CRC_BYTES = 4
+        private const val NULL_INT = Int.MIN_VALUE
+        private const val NULL_LONG = Long.MIN_VALUE
+
+        private fun encode(record: ByteBuffer, trip: TripData) {
+            record.putLong(trip.internalId)
+            putString(record, trip.tripId)
+            putString(record, trip.licensePlate)
+            putString(record, trip.deviceId)
+            putTimestamp(record, trip.startTime)
+            record.put((trip.tripStatus?.ordinal ?: -1).toByte())
+            record.putDouble(trip.fare)
+            record.putDouble(trip.extra)
+            record.putDouble(trip.totalFare)
+            record.putDouble(trip.paidDistanceInMeters)
+            record.putDouble(trip.unpaidDistanceInMeters)
+            record.putLong(trip.waitDurationInSeconds)
+            putTimestamp(record, trip.pauseTime)
+            putTimestamp(record, trip.endTime)
+            record.put(if (trip.isDash) 1 else 0)
+            record.putInt(trip.overSpeedDurationInSeconds)
+            record.put(if (trip.requiresUpdateOnDatabase) 1 else 0)
+            record.putInt(trip.abnormalPulseCounter ?: NULL_INT)
+            record.putInt(trip.overSpeedCounter ?: NULL_INT)
+            record.putInt(trip.mcuStatus ?: NULL_INT)
+            record.put(if (trip.isNewTrip) 1 else 0)
+            record.putLong(trip.mcuTime ?: NULL_LONG)
+        }
+
+        private fun decode(record: ByteBuffer): TripData? {
+            if (record.get().toInt() == 0) return null
+            return TripData(
+                internalId = record.getLong(),
+                tripId = getString(record),
+                licensePlate = getString(record),
+                deviceId = getString(record),
+                startTime = getTimestamp(record) ?: Timestamp(0, 0),
+                tripStatus = record.get().toInt().let { TripStatus.values().getOrNull(it) },
+                fare = record.getDouble(),
+                extra = record.getDouble(),
+                totalFare = record.getDouble(),
+                paidDistanceInMeters = record.getDouble(),
+                unpaidDistanceInMeters = record.getDouble(),
+                waitDurationInSeconds = record.getLong(),
+                pauseTime = getTimestamp(record),
+                endTime = getTimestamp(record),
+                isDash = record.get().toInt() != 0,
+                overSpeedDurationInSeconds = record.getInt(),
+                requiresUpdateOnDatabase = record.get().toInt() != 0,
+                abnormalPulseCounter = record.getInt().takeIf { it != NULL_INT },
+                overSpeedCounter = record.getInt().takeIf { it != NULL_INT },
+                mcuStatus = record.getInt().takeIf { it != NULL_INT },
+                isNewTrip = record.get().toInt() != 0,
+                mcuTime = record.getLong().takeIf { it != NULL_LONG },
+            )
+        }
+
+        private fun putString(record: ByteBuffer, value: String) {
+            val bytes = value.toByteArray(Charsets.UTF_8)
+            record.putShort(bytes.size.toShort()).put(bytes)
+        }
+
+        private fun getString(record: ByteBuffer): String {
+            val length = record.getShort().toInt()
+            val value = String(record.array(), record.arrayOffset() + record.position(), length, Charsets.UTF_8)
+            record.position(record.position() + length)
+            return value
+        }
+
+        private fun putTimestamp(record: ByteBuffer, value: Timestamp?) {
+            record.putLong(value?.seconds ?: NULL_LONG).putInt(value?.nanoseconds ?: 0)
+        }
+
+        private fun getTimestamp(record: ByteBuffer): Timestamp? {
+            val seconds = record.getLong()
+            val nanoseconds = record.getInt()
+            return if (seconds == NULL_LONG) null else Timestamp(seconds, nanoseconds)
+        }
+    }
+}
@@ -4,6 +4,7 @@ import android.util.Log
 import com.google.android.gms.tasks.Task
 import com.google.firebase.Timestamp
 import com.ilin.util.ShellUtils
+import com.serial.opt.MeterLog
 import com.vismo.nextgenmeter.BuildConfig
 import com.vismo.nextgenmeter.datastore.DeviceDataStore
 import com.vismo.nextgenmeter.datastore.TripDataStore
@@ -46,6 +47,7 @@ class RemoteMeterControlRepositoryImpl @Inject constructor(
     override val remoteUpdateRequest: StateFlow<Update?> = dashManager.mostRelevantUpdate
 
     private var externalScope: CoroutineScope? = null
+    private var appliedLogLevels: Map<String, String>? = null
 
     override suspend fun initDashManager(scope: CoroutineScope) {
         DashManagerConfig.simIccId = getICCID() ?: ""
@@ -55,9 +57,8 @@ class RemoteMeterControlRepositoryImpl @Inject constructor(
 
         if(TripDataStore.isTripInProgress.firstOrNull() == false) {
             delay(20_000L) // wait for the initial heartbeats to slow down
-            measureBoardRepository.enquireParameters()
+            measureBoardRepository.enquireParameters().await() // wait for the parameters to be set
             Log.d(TAG, "Parameters enquired after initialization")
-            delay(20_000L) // wait for the parameters to be set
             measureBoardRepository.getMeteringBoardInfo()
             Log.d(TAG, "Metering board info requested after initialization")
         }
@@ -108,6 +109,12 @@ class RemoteMeterControlRepositoryImpl @Inject constructor(
                         if (meterInfo.settings?.heartbeatInterval != _heartBeatInterval.value)
                             _heartBeatInterval.value = meterInfo.settings?.heartbeatInterval ?: DEFAULT_HEARTBEAT_INTERVAL
 
+                        val logLevels = meterInfo.settings?.logLevels
+                        if (logLevels != appliedLogLevels) {
+                            appliedLogLevels = logLevels
+                            MeterLog.setLevels(logLevels)
+                        }
+
                         // Trigger log shipping if needed
                         if (meterInfo.settings?.triggerLogUpload == true) {
                             triggerLogUpload()
@@ -140,7 +147,10 @@ class RemoteMeterControlRepositoryImpl @Inject constructor(
     override fun updateLicensePlateAndKValue(licensePlate: String, kValue: String) {
         externalScope?.launch {
             measureBoardRepository.updateKValue(kValue.toInt())
-            delay(3000L) // seems like this delay is necessary for the measure board to process the kValue update
+            // the enquiry is queued after the k value update, its answer means the measure board has processed it
+            if (!measureBoardRepository.enquireParameters().await()) {
+                Log.w(TAG, "updateLicensePlateAndKValue: no parameters response after the k value update")
+            }
             measureBoardRepository.updateLicensePlate(licensePlate)
             healthCheckApprovedAndLicensePlateSet()
         }
@@ -2,16 +2,21 @@ package com.vismo.nextgenmeter.repository
 
 import android.content.Context
 import android.util.Log
+import com.google.firebase.Timestamp
 import com.google.gson.Gson
 import com.google.gson.reflect.TypeToken
 import com.vismo.nextgenmeter.model.TripData
+import com.vismo.nextgenmeter.model.TripStatus
 import com.vismo.nextgenmeter.module.IoDispatcher
-import com.vismo.nextgenmeter.util.GlobalUtils
 import dagger.hilt.android.qualifiers.ApplicationContext
 import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
 import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.launch
 import kotlinx.coroutines.sync.Mutex
 import kotlinx.coroutines.sync.withLock
 import kotlinx.coroutines.withContext
@@ -22,20 +27,40 @@ import java.io.IOException
 import java.io.InputStreamReader
 import javax.inject.Inject
 
+/**
+ * Keeps the last [MAX_TRIPS] trips on the device in a [TripJournal].
+ *
+ * A change is one record appended to `trips.journal`, made durable by the [DurabilityService] in the next group
+ * commit before the call returns. The journal is compacted in the background once it is mostly dead records.
+ * The trips.json written by earlier versions is imported into the journal the first time it is opened and then
+ * deleted, or renamed to trips.json.bak if it cannot be parsed.
+ *
+ * Ended trips are also kept in a [TripHistoryStore] under `trip_history`, which is not trimmed to [MAX_TRIPS]
+ * nor cleared by [deleteAllTrips], only by its retention. [tripsBetween] and [recentTrips] query it.
+ */
 class TripFileManager @Inject constructor(
     @ApplicationContext private val context: Context,
     private val gson: Gson,
-    @IoDispatcher private val ioDispatcher: CoroutineDispatcher
+    @IoDispatcher private val ioDispatcher: CoroutineDispatcher,
+    private val durability: DurabilityService
 ) {
 
-    // Get the file
+    // Get the legacy file
     private fun getFile(): File = File(context.filesDir, FILE_NAME)
+    private val journal by lazy { TripJournal(File(context.filesDir, JOURNAL_FILE_NAME), gson, syncOnWrite = false) }
+    private val journalSync = SyncTarget(JOURNAL_FILE_NAME) { journal.sync() }
+    // makes the journal file and the renames of compaction durable
+    private val filesDirSync by lazy { SyncTarget.directory(context.filesDir) }
+    private val history by lazy { TripHistoryStore(File(context.filesDir, HISTORY_DIR_NAME), gson) }
+    private val historySync = SyncTarget(HISTORY_DIR_NAME) { history.sync() }
     private val _descendingSortedTrip = MutableStateFlow<List<TripData>>(emptyList())
     val descendingSortedTrip: StateFlow<List<TripData>> = _descendingSortedTrip
     private val mutex = Mutex()
+    private val compactionScope = CoroutineScope(SupervisorJob() + ioDispatcher)
+    private var compactionJob: Job? = null
 
-    // Load trips from the file
-    private suspend fun loadTrips(): List<TripData> = withContext(ioDispatcher) {
+    // Load trips from the legacy file, null if it could not be read or parsed
+    private suspend fun loadTrips(): List<TripData>? = withContext(ioDispatcher) {
         val originalFile = getFile()
         if (!originalFile.exists()) {
             Log.d(TAG, "Trip file does not exist. Returning empty list.")
@@ -49,61 +74,134 @@ class TripFileManager @Inject constructor(
             gson.fromJson<List<TripData>>(json, type) ?: emptyList()
         } catch (e: Exception) {
             Log.e(TAG, "Error loading trips from backup file: ${e.localizedMessage}", e)
-            emptyList<TripData>()
+            null
         }
     }
 
-    // Save trips to the file atomically
-    private suspend fun saveTrips(trips: List<TripData>): Boolean = withContext(ioDispatcher) {
-        val file = getFile()
-        Log.d(TAG, "save trip at ${file.path}")
-        return@withContext try {
-            val sortedTrips = trips.sortedByDescending { trip ->
-                trip.endTime ?: com.google.firebase.Timestamp.now()
-            }
-
-            // Trim the list to the maximum allowed trips
-            val trimmedTrips = if (sortedTrips.size > MAX_TRIPS) {
-                sortedTrips.take(MAX_TRIPS)
+    // Open the journal on first use, importing the legacy file. Must be called with the mutex held
+    private suspend fun openJournal() = withContext(ioDispatcher) {
+        if (journal.isOpen) return@withContext
+        journal.open()
+        durability.awaitDurable(filesDirSync)
+        val legacyFile = getFile()
+        if (legacyFile.exists()) {
+            val trips = if (journal.isEmpty) loadTrips() else emptyList()
+            if (trips == null) {
+                // keep the trips that could not be parsed for a later recovery
+                val backupFile = File(context.filesDir, BACKUP_FILE_NAME)
+                if (!legacyFile.renameTo(backupFile)) {
+                    Log.w(TAG, "Failed to rename ${legacyFile.path} to ${backupFile.name}")
+                }
             } else {
-                sortedTrips
+                if (journal.isEmpty) {
+                    journal.replaceAll(trips)
+                    Log.d(TAG, "Imported ${trips.size} trips from ${legacyFile.name}")
+                }
+                if (!legacyFile.delete()) {
+                    Log.w(TAG, "Failed to delete ${legacyFile.path}")
+                }
             }
+            durability.awaitDurable(filesDirSync)
+        }
+    }
 
-            // Serialize trips to JSON
-            val json = try {
-                gson.toJson(trimmedTrips)
-            } catch (e: Exception) {
-                Log.e(TAG, "Error serializing trips to JSON", e)
-                return@withContext false
+    // Open the history on first use, starting it with the ended trips of the journal.
+    // A failure leaves the history closed until the next call. Must be called with the mutex held, after openJournal
+    private suspend fun openHistory() {
+        if (history.isOpen) return
+        try {
+            history.open()
+            if (history.isEmpty) {
+                val endedTrips = journal.trips.filter { it.tripStatus == TripStatus.ENDED }
+                endedTrips.forEach { history.upsert(it) }
+                durability.awaitDurable(historySync)
+                Log.d(TAG, "Started trip history with ${endedTrips.size} trips")
             }
+        } catch (e: IOException) {
+            Log.e(TAG, "Error opening trip history", e)
+        }
+    }
 
-            file.outputStream().use { fos ->
-                // Write the text data
-                fos.write(json.toByteArray(Charsets.UTF_8))
-                fos.flush()  // Flushes the stream's internal buffers
+    // Keep an ended trip in the history, a failure loses it from the history only. Must be called with the mutex held
+    private fun archive(trip: TripData): Boolean {
+        if (trip.tripStatus != TripStatus.ENDED) return false
+        return try {
+            history.upsert(trip)
+            true
+        } catch (e: IOException) {
+            Log.e(TAG, "Error adding trip ${trip.tripId} to the history", e)
+            false
+        }
+    }
 
-                // Force the OS to sync changes to the disk
-                fos.fd.sync()
-            }
-            if (!GlobalUtils.forceOsWideSync()) {
-                Log.e(TAG, "OS-wide sync failed")
+    // Apply a change to the journal and publish the trips. Must be called with the mutex held
+    private suspend fun commit(change: TripJournal.() -> Boolean): Boolean = withContext(ioDispatcher) {
+        return@withContext try {
+            openJournal()
+            openHistory()
+            if (!journal.change()) {
+                return@withContext false
             }
-
+            val trimmedTrips = trimTrips()
             try {
                 _descendingSortedTrip.emit(trimmedTrips)
             } catch (e: Exception) {
                 Log.e(TAG, "Failed to emit trips", e)
             }
-
-            Log.d(TAG, "Trips saved successfully")
+            scheduleCompaction()
             true
-
         } catch (e: IOException) {
             Log.e(TAG, "Error saving trips", e)
             false
         }
     }
 
+    // Apply a change, add the trip to the history if it ended, and wait until both are durable.
+    // Other changes can be appended while this one waits
+    private suspend fun commitDurably(archived: TripData? = null, change: TripJournal.() -> Boolean): Boolean {
+        val historyChanged = mutex.withLock {
+            if (!commit(change)) {
+                return false
+            }
+            archived != null && archive(archived)
+        }
+        return try {
+            val historySynced = if (historyChanged) durability.requestSync(historySync) else null
+            durability.awaitDurable(journalSync)
+            historySynced?.await()
+            true
+        } catch (e: IOException) {
+            Log.e(TAG, "Error syncing trips", e)
+            false
+        }
+    }
+
+    // Sort the trips and delete the oldest ones beyond the maximum allowed trips, the ended ones stay in the history
+    private fun trimTrips(): List<TripData> {
+        val now = Timestamp.now()
+        val sortedTrips = journal.trips.sortedByDescending { trip -> trip.endTime ?: now }
+        if (sortedTrips.size <= MAX_TRIPS) {
+            return sortedTrips
+        }
+        sortedTrips.drop(MAX_TRIPS).forEach { journal.delete(it.tripId) }
+        return sortedTrips.take(MAX_TRIPS)
+    }
+
+    private fun scheduleCompaction() {
+        if (!journal.needsCompaction || compactionJob?.isActive == true) return
+        compactionJob = compactionScope.launch {
+            mutex.withLock {
+                if (!journal.needsCompaction) return@withLock
+                try {
+                    journal.compact()
+                    durability.awaitDurable(filesDirSync)
+                } catch (e: IOException) {
+                    Log.e(TAG, "Error compacting trip journal", e)
+                }
+            }
+        }
+    }
+
     private fun Process.errorOutput(): String =
         errorStream.bufferedReader().use { it.readText() }
 
@@ -111,10 +209,9 @@ class TripFileManager @Inject constructor(
     suspend fun addTrip(newTrip: TripData): Boolean = withContext(ioDispatcher) {
         try {
             withTimeout(DATABASE_OPERATION_TIMEOUT) {
-                mutex.withLock {
-                    val trips = loadTrips().toMutableList()
-                    trips.add(newTrip)
-                    saveTrips(trips)
+                commitDurably(archived = newTrip) {
+                    upsert(newTrip)
+                    true
                 }
             }
         } catch (e: Exception) {
@@ -127,18 +224,12 @@ class TripFileManager @Inject constructor(
     suspend fun updateTrip(updatedTrip: TripData): Boolean = withContext(ioDispatcher) {
         try {
             withTimeout(DATABASE_OPERATION_TIMEOUT) {
-                mutex.withLock {
-                    val trips = loadTrips().toMutableList()
-                    val index = trips.indexOfFirst { it.tripId == updatedTrip.tripId }
-                    return@withLock if (index != -1) {
-                        trips[index] = updatedTrip
-                        saveTrips(trips)
-                    } else {
-                        // Trip not found, add directly to the list instead of calling addTrip (to avoid deadlock)
+                commitDurably(archived = updatedTrip) {
+                    if (trips.none { it.tripId == updatedTrip.tripId }) {
                         Log.w(TAG, "Trip with ID ${updatedTrip.tripId} not found for update. Creating new trip")
-                        trips.add(updatedTrip)
-                        saveTrips(trips)
                     }
+                    upsert(updatedTrip)
+                    true
                 }
             }
         } catch (e: Exception) {
@@ -151,15 +242,13 @@ class TripFileManager @Inject constructor(
     suspend fun deleteTrip(id: Long): Boolean = withContext(ioDispatcher) {
         try {
             withTimeout(DATABASE_OPERATION_TIMEOUT) {
-                mutex.withLock {
-                    val trips = loadTrips().toMutableList()
-                    val removed = trips.removeAll { it.internalId == id }
-                    return@withLock if (removed) {
-                        saveTrips(trips)
-                    } else {
+                commitDurably {
+                    val removed = trips.filter { it.internalId == id }
+                    if (removed.isEmpty()) {
                         Log.e(TAG, "Trip with ID $id not found for deletion.")
-                        false
                     }
+                    removed.forEach { delete(it.tripId) }
+                    removed.isNotEmpty()
                 }
             }
         } catch (e: Exception) {
@@ -171,15 +260,9 @@ class TripFileManager @Inject constructor(
     suspend fun deleteAllTrips(): Boolean = withContext(ioDispatcher) {
         try {
             withTimeout(DATABASE_OPERATION_TIMEOUT) {
-                mutex.withLock {
-                    try {
-                        // Save an empty list of trips
-                        val saveSuccessful = saveTrips(emptyList())
-                        saveSuccessful
-                    } catch (e: Exception) {
-                        Log.e(TAG, "Error deleting all trips: ${e.localizedMessage}", e)
-                        false
-                    }
+                commitDurably {
+                    clear()
+                    true
                 }
             }
         } catch (e: Exception) {
@@ -190,14 +273,51 @@ class TripFileManager @Inject constructor(
 
     suspend fun initializeTrips() {
         mutex.withLock {
-            val trips = loadTrips()
-            _descendingSortedTrip.emit(trips)
+            commit { true }
+        }
+    }
+
+    // Trips that started between from and to inclusive, most recent first, read from the history
+    suspend fun tripsBetween(from: Timestamp, to: Timestamp): List<TripData> =
+        queryHistory { tripsBetween(from, to) }
+
+    // The count ended trips that started last, most recent first, read from the history
+    suspend fun recentTrips(count: Int): List<TripData> =
+        queryHistory { recentTrips(count) }
+
+    // Change how long and how much history is kept, the segments beyond it are deleted
+    suspend fun setHistoryRetention(retention: TripHistoryStore.Retention) {
+        withContext(ioDispatcher) {
+            mutex.withLock {
+                history.setRetention(retention)
+            }
         }
     }
 
+    // The mutex is only taken to open the history. The history has its own lock and reads the older segments
+    // without it, so a query over months of trips does not hold up trip writes
+    private suspend fun queryHistory(query: TripHistoryStore.() -> List<TripData>): List<TripData> =
+        withContext(ioDispatcher) {
+            try {
+                if (!history.isOpen) {
+                    mutex.withLock {
+                        openJournal()
+                        openHistory()
+                    }
+                }
+                history.query()
+            } catch (e: IOException) {
+                Log.e(TAG, "Error reading trip history", e)
+                emptyList()
+            }
+        }
+
     companion object {
         private const val TAG = "TripFileManager"
         private const val FILE_NAME = "trips.json"
+        private const val BACKUP_FILE_NAME = "trips.json.bak"
+        private const val JOURNAL_FILE_NAME = "trips.journal"
+        private const val HISTORY_DIR_NAME = "trip_history"
         private const val MAX_TRIPS = 100 // Maximum number of trips to retain
         private const val DATABASE_OPERATION_TIMEOUT = 10000L // 10 seconds
     }
@@ -0,0 +1,264 @@
+package com.vismo.nextgenmeter.repository
+
+import android.util.Log
+import com.google.firebase.Timestamp
+import com.google.gson.Gson
+import com.vismo.nextgenmeter.model.TripData
+import java.io.File
+import java.io.IOException
+import java.util.TreeSet
+
+/**
+ * Long-term history of the ended trips, kept for months where [TripFileManager] keeps only the last trips.
+ *
+ * Trips are stored in one segment per UTC day of their start time, each segment a [TripJournal] named
+ * `<epoch day>.journal` in [dir]. The index has two levels: the sorted segment days, read from the file names,
+ * and inside a segment the trips sorted by start time and trip id. A query replays only the segments its time
+ * range covers, so memory use is a few days of trips however long the history is, and the index cannot disagree
+ * with the segments after a crash.
+ *
+ * The history only shrinks by [retention], which deletes whole segments, oldest first.
+ *
+ * Writes are left in the page cache and made durable by [sync]. Thread safe: writes hold a lock, queries hold it
+ * only to list the segments and copy the trips of the segment being written, and read the other segments
+ * read-only without it.
+ */
+class TripHistoryStore(
+    private val dir: File,
+    private val gson: Gson,
+    retention: Retention = Retention()
+) {
+    /**
+     * @property maxAgeDays segments more than this many days older than the newest segment are deleted, the age is
+     * not taken from the clock so a clock set forward does not delete the history
+     * @property maxBytes the oldest segments are deleted while the history is larger, the newest one is kept
+     */
+    data class Retention(
+        val maxAgeDays: Int = DEFAULT_MAX_AGE_DAYS,
+        val maxBytes: Long = DEFAULT_MAX_BYTES,
+    )
+
+    @Volatile
+    var retention: Retention = retention
+        private set
+
+    /** Guards the segment days and the written segment */
+    private val lock = Any()
+    private val days = TreeSet<Long>()
+    /** Held while the written segment is replaced, so [sync] never misses it */
+    private val syncLock = Any()
+    private var writeDay = NO_DAY
+    private var writeSegment: TripJournal? = null
+    private var directoryChanged = false
+
+    @Volatile
+    var isOpen = false
+        private set
+
+    val isEmpty: Boolean
+        get() = synchronized(lock) { days.isEmpty() }
+
+    /**
+     * Lists the segments and applies the retention, creating [dir] if it does not exist.
+     */
+    @Throws(IOException::class)
+    fun open() {
+        synchronized(lock) {
+            if (isOpen) return
+            if (!dir.isDirectory && !dir.mkdirs()) throw IOException("Failed to create ${dir.path}")
+            days.clear()
+            dir.listFiles()?.forEach { file ->
+                if (file.name.endsWith(TMP_SUFFIX)) {
+                    // left by a compaction interrupted before its rename
+                    file.delete()
+                    return@forEach
+                }
+                file.name.removeSuffix(SEGMENT_SUFFIX).takeIf { it != file.name }?.toLongOrNull()?.let(days::add)
+            }
+            isOpen = true
+            enforceRetention()
+            Log.d(TAG, "Opened ${days.size} trip history segments")
+        }
+    }
+
+    /**
+     * Adds the trip to the segment of its start day, or replaces it there.
+     */
+    @Throws(IOException::class)
+    fun upsert(trip: TripData) {
+        synchronized(lock) {
+            val segment = writeSegment(dayOf(trip.startTime))
+            segment.upsert(trip)
+            if (segment.needsCompaction) {
+                segment.compact()
+                markDirectoryChanged()
+            }
+        }
+    }
+
+    /**
+     * Trips that started between [from] and [to] inclusive, most recent first.
+     */
+    @Throws(IOException::class)
+    fun tripsBetween(from: Timestamp, to: Timestamp): List<TripData> {
+        if (to < from) return emptyList()
+        val segments = synchronized(lock) {
+            segmentsLocked(days.subSet(dayOf(from), true, dayOf(to), true).descendingSet())
+        }
+        val trips = ArrayList<TripData>()
+        for (segment in segments) {
+            readSegment(segment).filterTo(trips) { it.startTime >= from && it.startTime <= to }
+        }
+        return trips
+    }
+
+    /**
+     * The [count] trips that started last, most recent first.
+     */
+    @Throws(IOException::class)
+    fun recentTrips(count: Int): List<TripData> {
+        val trips = ArrayList<TripData>(count.coerceAtLeast(0))
+        if (count <= 0) return trips
+        val segments = synchronized(lock) { segmentsLocked(days.descendingSet()) }
+        for (segment in segments) {
+            if (trips.size >= count) break
+            trips.addAll(readSegment(segment).take(count - trips.size))
+        }
+        return trips
+    }
+
+    fun setRetention(retention: Retention) {
+        synchronized(lock) {
+            this.retention = retention
+            enforceRetention()
+        }
+    }
+
+    /**
+     * `fdatasync` of the segment written last, and of [dir] if segments were created, renamed or deleted.
+     * Can be called from any thread.
+     */
+    @Throws(IOException::class)
+    fun sync() {
+        val (segment, syncDirectory) = synchronized(syncLock) {
+            (writeSegment to directoryChanged).also { directoryChanged = false }
+        }
+        segment?.sync()
+        if (syncDirectory) {
+            try {
+                SyncTarget.directory(dir).sync()
+            } catch (e: IOException) {
+                markDirectoryChanged()
+                throw e
+            }
+        }
+    }
+
+    fun close() {
+        synchronized(lock) {
+            closeWriteSegment()
+            isOpen = false
+        }
+    }
+
+    /**
+     * The segment of [day], opened for writing and created if needed. The segment written before is synced and
+     * closed, so at most one segment is open. Called with [lock] held.
+     */
+    private fun writeSegment(day: Long): TripJournal {
+        if (!isOpen) throw IOException("Trip history is not open")
+        if (day == writeDay) writeSegment?.let { return it }
+        val segment = TripJournal(segmentFile(day), gson, syncOnWrite = false)
+        segment.open()
+        closeWriteSegment()
+        synchronized(syncLock) {
+            writeDay = day
+            writeSegment = segment
+        }
+        if (days.add(day)) {
+            markDirectoryChanged()
+            enforceRetention()
+        }
+        return segment
+    }
+
+    private fun closeWriteSegment() {
+        val segment = synchronized(syncLock) {
+            writeSegment.also {
+                writeSegment = null
+                writeDay = NO_DAY
+            }
+        } ?: return
+        try {
+            // closing the channel does not sync it, and sync() no longer sees this segment
+            segment.sync()
+        } catch (e: IOException) {
+            Log.e(TAG, "Failed to sync trip history segment", e)
+        }
+        segment.close()
+    }
+
+    /**
+     * A segment to query, listed with [lock] held.
+     *
+     * @property writtenTrips a copy of the trips if it was the segment being written, null to read it from its file
+     */
+    private class SegmentRef(val day: Long, val writtenTrips: List<TripData>?)
+
+    private fun segmentsLocked(days: Collection<Long>): List<SegmentRef> =
+        days.map { day -> SegmentRef(day, if (day == writeDay) writeSegment?.trips else null) }
+
+    /**
+     * The trips of a segment, most recent first. A segment file is only read, it may be appended to or deleted
+     * by the retention meanwhile, a deleted segment has no trips.
+     */
+    private fun readSegment(segment: SegmentRef): List<TripData> {
+        val trips = segment.writtenTrips ?: TripJournal(segmentFile(segment.day), gson).read()
+        return trips.sortedWith(MOST_RECENT_FIRST)
+    }
+
+    private fun enforceRetention() {
+        if (!isOpen) return
+        val newestDay = days.lastOrNull() ?: return
+        val oldestDay = newestDay - retention.maxAgeDays
+        var bytes = days.sumOf { segmentFile(it).length() }
+        for (day in days.toList()) {
+            val tooOld = day < oldestDay
+            val tooLarge = bytes > retention.maxBytes && day != newestDay
+            if (!tooOld && !tooLarge) break
+            if (day == writeDay) continue
+            val file = segmentFile(day)
+            val length = file.length()
+            if (!file.delete() && file.exists()) {
+                Log.w(TAG, "Failed to delete ${file.path}")
+                continue
+            }
+            bytes -= length
+            days.remove(day)
+            markDirectoryChanged()
+            Log.d(TAG, "Deleted trip history segment ${file.name}, ${if (tooOld) "expired" else "over size"}")
+        }
+    }
+
+    private fun markDirectoryChanged() {
+        synchronized(syncLock) { directoryChanged = true }
+    }
+
+    private fun segmentFile(day: Long) = File(dir, "$day$SEGMENT_SUFFIX")
+
+    companion object {
+        private const val TAG = "TripHistoryStore"
+        private const val SEGMENT_SUFFIX = ".journal"
+        private const val TMP_SUFFIX = ".tmp"
+        private const val SECONDS_PER_DAY = 24 * 60 * 60L
+        private const val NO_DAY = Long.MIN_VALUE
+
+        const val DEFAULT_MAX_AGE_DAYS = 180
+        const val DEFAULT_MAX_BYTES = 64 * 1024 * 1024L
+
+        private val MOST_RECENT_FIRST =
+            compareByDescending<TripData> { it.startTime }.thenByDescending { it.tripId }
+
+        private fun dayOf(timestamp: Timestamp): Long = Math.floorDiv(timestamp.seconds, SECONDS_PER_DAY)
+    }
+}
@@ -0,0 +1,372 @@
+package com.vismo.nextgenmeter.repository
+
+import android.util.Log
+import com.google.gson.Gson
+import com.google.gson.JsonParseException
+import com.vismo.nextgenmeter.model.TripData
+import java.io.BufferedInputStream
+import java.io.DataInputStream
+import java.io.EOFException
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileNotFoundException
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.util.zip.CRC32
+
+/**
+ * Append-only journal of the trips kept on the device.
+ *
+ * Every change is one record appended to the end of the file and made durable with a single `fdatasync`:
+ * an upsert carrying the trip as JSON, or a tombstone carrying only the trip id. A record is
+ * `[length][crc32][type][payload]` and the CRC covers the type and payload, so a record torn by a power cut is
+ * found by the next [open] and the file is truncated back to the last complete record. A damaged record followed
+ * by other records is skipped by its length and left as a dead record. If a length cannot be trusted the records
+ * after it cannot be found, the rest of the file is copied to `<name>.corrupt` before it is truncated.
+ *
+ * The live trips are indexed in memory by trip id. Records overwritten by a later upsert or tombstone are dead,
+ * once they are more than [COMPACT_DEAD_RATIO] of the file [needsCompaction] turns true and [compact] rewrites
+ * the live trips to a new file that replaces the journal with a rename.
+ *
+ * With [syncOnWrite] false the writes are left in the page cache and the caller makes them durable with [sync],
+ * which lets the [DurabilityService] group them with other writes.
+ *
+ * [read] replays the file without opening it for writing, so a reader never truncates a record another instance is
+ * still appending.
+ *
+ * Not thread safe apart from [sync], [TripFileManager] serialises all other calls with its mutex.
+ */
+class TripJournal(
+    private val file: File,
+    private val gson: Gson,
+    private val syncOnWrite: Boolean = true
+) {
+    private class Entry(val trip: TripData, val recordBytes: Int)
+
+    /**
+     * @property validBytes length of the records at the start of the file that can be read
+     * @property corruptTail the bytes after [validBytes] are not a torn record, they start with a bad length
+     */
+    private class Replay(val validBytes: Long, val corruptTail: Boolean)
+
+    private val index = LinkedHashMap<String, Entry>()
+    /** Held while the channel is replaced, so [sync] never sees it closed */
+    private val channelLock = Any()
+    @Volatile
+    private var channel: FileChannel? = null
+    private var fileBytes = 0L
+    private var liveBytes = 0L
+
+    val isOpen: Boolean
+        get() = channel != null
+
+    val isEmpty: Boolean
+        get() = fileBytes == 0L
+
+    val trips: List<TripData>
+        get() = index.values.map { it.trip }
+
+    /** Share of the file taken by overwritten records and tombstones */
+    val deadRatio: Double
+        get() = if (fileBytes == 0L) 0.0 else (fileBytes - liveBytes).toDouble() / fileBytes
+
+    val needsCompaction: Boolean
+        get() = fileBytes >= COMPACT_MIN_BYTES && deadRatio > COMPACT_DEAD_RATIO
+
+    /**
+     * Replays the journal into the index, creating the file if it does not exist.
+     *
+     * @return the live trips
+     */
+    @Throws(IOException::class)
+    fun open(): List<TripData> {
+        close()
+        index.clear()
+        liveBytes = 0
+        val channel = RandomAccessFile(file, "rw").channel
+        val length = channel.size()
+        val replay = try {
+            if (length == 0L) Replay(0, corruptTail = false) else FileInputStream(file).use { replay(it, length) }
+        } catch (e: IOException) {
+            channel.close()
+            throw e
+        }
+        val valid = replay.validBytes
+        if (valid < length) {
+            if (replay.corruptTail) saveCorruptTail(channel, valid, length)
+            Log.w(TAG, "Dropping ${length - valid} bytes of incomplete or corrupt records at offset $valid")
+            channel.truncate(valid)
+            channel.force(false)
+        }
+        fileBytes = valid
+        synchronized(channelLock) { this.channel = channel }
+        return trips
+    }
+
+    /**
+     * Replays the journal without opening it for writing, for readers that must not change the file while another
+     * instance appends to it. A torn or corrupt tail is ignored instead of truncated, a missing file has no trips.
+     *
+     * @return the live trips
+     */
+    @Throws(IOException::class)
+    fun read(): List<TripData> {
+        check(!isOpen) { "Trip journal is open for writing" }
+        index.clear()
+        liveBytes = 0
+        val input = try {
+            FileInputStream(file)
+        } catch (e: FileNotFoundException) {
+            return emptyList()
+        }
+        // the length of the opened file, the path may be replaced by a compaction meanwhile
+        input.use { replay(it, it.channel.size()) }
+        return trips
+    }
+
+    /**
+     * Adds the trip or replaces the trip with the same id.
+     */
+    @Throws(IOException::class)
+    fun upsert(trip: TripData) {
+        val size = append(TYPE_UPSERT, gson.toJson(trip).toByteArray(Charsets.UTF_8))
+        index.put(trip.tripId, Entry(trip, size))?.let { liveBytes -= it.recordBytes }
+        liveBytes += size
+    }
+
+    /**
+     * @return false if there is no trip with this id
+     */
+    @Throws(IOException::class)
+    fun delete(tripId: String): Boolean {
+        val entry = index[tripId] ?: return false
+        append(TYPE_TOMBSTONE, tripId.toByteArray(Charsets.UTF_8))
+        index.remove(tripId)
+        liveBytes -= entry.recordBytes
+        return true
+    }
+
+    /**
+     * Deletes every trip by truncating the journal.
+     */
+    @Throws(IOException::class)
+    fun clear() {
+        val channel = requireChannel()
+        channel.truncate(0)
+        if (syncOnWrite) channel.force(false)
+        index.clear()
+        fileBytes = 0
+        liveBytes = 0
+    }
+
+    /**
+     * Replaces the content of the journal with [trips] in one [compact], used to import the old trips.json.
+     */
+    @Throws(IOException::class)
+    fun replaceAll(trips: List<TripData>) {
+        requireChannel()
+        index.clear()
+        trips.forEach { index[it.tripId] = Entry(it, 0) }
+        compact()
+    }
+
+    /**
+     * Writes the live trips to a temporary file, syncs it and renames it over the journal.
+     * The journal is left untouched if any step fails.
+     */
+    @Throws(IOException::class)
+    fun compact() {
+        requireChannel()
+        val tmp = File(file.path + TMP_SUFFIX)
+        val compacted = LinkedHashMap<String, Entry>(index.size * 2)
+        var written = 0L
+        RandomAccessFile(tmp, "rw").use { raf ->
+            raf.setLength(0)
+            val tmpChannel = raf.channel
+            for ((tripId, entry) in index) {
+                val record = encode(TYPE_UPSERT, gson.toJson(entry.trip).toByteArray(Charsets.UTF_8))
+                val size = record.remaining()
+                while (record.hasRemaining()) tmpChannel.write(record)
+                compacted[tripId] = Entry(entry.trip, size)
+                written += size
+            }
+            tmpChannel.force(true)
+        }
+        val renamed = synchronized(channelLock) {
+            close()
+            tmp.renameTo(file).also { renamed ->
+                if (!renamed) tmp.delete()
+                channel = RandomAccessFile(file, "rw").channel
+            }
+        }
+        if (!renamed) throw IOException("Failed to replace ${file.name} with the compacted journal")
+        val before = fileBytes
+        index.clear()
+        index.putAll(compacted)
+        fileBytes = written
+        liveBytes = written
+        Log.d(TAG, "Compacted ${index.size} trips from $before to $written bytes")
+    }
+
+    /**
+     * `fdatasync` of the journal, can be called from any thread.
+     */
+    @Throws(IOException::class)
+    fun sync() {
+        synchronized(channelLock) {
+            channel?.force(false)
+        }
+    }
+
+    fun close() {
+        synchronized(channelLock) {
+            try {
+                channel?.close()
+            } catch (e: IOException) {
+                Log.w(TAG, "Error closing journal: ${e.message}")
+            }
+            channel = null
+        }
+    }
+
+    /**
+     * Applies the records of the first [length] bytes of [stream] to the index.
+     */
+    private fun replay(stream: FileInputStream, length: Long): Replay {
+        var offset = 0L
+        var corruptTail = false
+        val crc = CRC32()
+        var body = ByteArray(INITIAL_RECORD_BYTES)
+        // the caller closes the stream
+        val input = DataInputStream(BufferedInputStream(stream))
+        while (length - offset >= HEADER_BYTES) {
+            val bodyLength = input.readInt()
+            val checksum = input.readInt()
+            if (bodyLength < 1 || bodyLength > MAX_RECORD_BYTES) {
+                corruptTail = true
+                break
+            }
+            // a record running past the end was torn by a power cut
+            if (offset + HEADER_BYTES + bodyLength > length) break
+            if (body.size < bodyLength) body = ByteArray(bodyLength)
+            try {
+                input.readFully(body, 0, bodyLength)
+            } catch (e: EOFException) {
+                break
+            }
+            val recordBytes = HEADER_BYTES + bodyLength
+            crc.reset()
+            crc.update(body, 0, bodyLength)
+            if (crc.value.toInt() != checksum) {
+                // the last record was torn, the records after a damaged one are still good
+                if (offset + recordBytes == length) break
+                Log.w(TAG, "Skipping corrupt record of $recordBytes bytes at offset $offset")
+            } else {
+                apply(body, bodyLength, recordBytes)
+            }
+            offset += recordBytes
+        }
+        return Replay(offset, corruptTail)
+    }
+
+    /**
+     * Copies the bytes from [from] to [to] to `<name>.corrupt`, replacing an older copy. A failure is only logged,
+     * the journal must still be truncated to take new records.
+     */
+    private fun saveCorruptTail(channel: FileChannel, from: Long, to: Long) {
+        val corruptFile = File(file.path + CORRUPT_SUFFIX)
+        try {
+            RandomAccessFile(corruptFile, "rw").use { raf ->
+                raf.setLength(0)
+                var position = from
+                while (position < to) {
+                    val copied = channel.transferTo(position, to - position, raf.channel)
+                    if (copied <= 0) throw IOException("Journal ended at $position")
+                    position += copied
+                }
+                raf.channel.force(false)
+            }
+            Log.w(TAG, "Saved ${to - from} corrupt bytes to ${corruptFile.name}")
+        } catch (e: IOException) {
+            Log.e(TAG, "Failed to save the corrupt records to ${corruptFile.name}", e)
+        }
+    }
+
+    private fun apply(body: ByteArray, bodyLength: Int, recordBytes: Int) {
+        when (body[0]) {
+            TYPE_UPSERT -> {
+                val trip = try {
+                    gson.fromJson(String(body, 1, bodyLength - 1, Charsets.UTF_8), TripData::class.java)
+                } catch (e: JsonParseException) {
+                    Log.w(TAG, "Skipping unreadable trip record: ${e.message}")
+                    null
+                } ?: return
+                index.put(trip.tripId, Entry(trip, recordBytes))?.let { liveBytes -= it.recordBytes }
+                liveBytes += recordBytes
+            }
+            TYPE_TOMBSTONE -> {
+                val tripId = String(body, 1, bodyLength - 1, Charsets.UTF_8)
+                index.remove(tripId)?.let { liveBytes -= it.recordBytes }
+            }
+            // records of an unknown type are dead, they are dropped by the next compaction
+        }
+    }
+
+    /**
+     * Writes one record at the end of the file and syncs its data if [syncOnWrite].
+     *
+     * @return the size of the record
+     */
+    private fun append(type: Byte, payload: ByteArray): Int {
+        val channel = requireChannel()
+        val record = encode(type, payload)
+        val size = record.remaining()
+        try {
+            while (record.hasRemaining()) channel.write(record, fileBytes + record.position())
+            if (syncOnWrite) channel.force(false)
+        } catch (e: IOException) {
+            // drop a partial record so the next append does not follow it
+            try {
+                channel.truncate(fileBytes)
+            } catch (ignored: IOException) {
+            }
+            throw e
+        }
+        fileBytes += size
+        return size
+    }
+
+    private fun requireChannel(): FileChannel = channel ?: throw IOException("Trip journal is not open")
+
+    companion object {
+        private const val TAG = "TripJournal"
+        private const val TYPE_UPSERT: Byte = 1
+        private const val TYPE_TOMBSTONE: Byte = 2
+        private const val TMP_SUFFIX = ".tmp"
+        private const val CORRUPT_SUFFIX = ".corrupt"
+
+        /** length and crc32 */
+        private const val HEADER_BYTES = 8
+        private const val INITIAL_RECORD_BYTES = 4096
+        private const val MAX_RECORD_BYTES = 1 shl 20
+
+        const val COMPACT_DEAD_RATIO = 0.5
+        /** Small journals are not worth rewriting whatever their dead ratio */
+        const val COMPACT_MIN_BYTES = 64 * 1024L
+
+        private fun encode(type: Byte, payload: ByteArray): ByteBuffer {
+            val crc = CRC32()
+            crc.update(type.toInt())
+            crc.update(payload)
+            val record = ByteBuffer.allocate(HEADER_BYTES + 1 + payload.size)
+            record.putInt(1 + payload.size)
+                .putInt(crc.value.toInt())
+                .put(type)
+                .put(payload)
+            record.flip()
+            return record
+        }
+    }
+}
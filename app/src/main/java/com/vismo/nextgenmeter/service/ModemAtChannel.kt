@@ -0,0 +1,137 @@
+package com.vismo.nextgenmeter.service
+
+import android.util.Log
+import com.ilin.util.Config
+import com.serial.opt.AtClient
+import com.serial.opt.UartWorkerCH
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withContext
+import java.io.IOException
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/**
+ * AT command channel to the 4G module on [Config.SERIAL_CH0].
+ *
+ * The port is opened on first use and kept open. [queryStatus] queues the SIM, signal and registration
+ * queries together on the [AtClient], so the module answers them back to back and a full check costs a few
+ * round trips over the UART instead of a process fork per property.
+ */
+@Singleton
+class ModemAtChannel @Inject constructor() {
+    private val openMutex = Mutex()
+
+    @Volatile
+    private var client: AtClient? = null
+    private var worker: UartWorkerCH? = null
+    private var nextOpenAttemptAt = 0L
+
+    /**
+     * @return the response, or null if the modem port could not be opened
+     */
+    suspend fun send(command: String, timeoutMs: Long = AtClient.DEFAULT_TIMEOUT_MS): AtClient.Response? {
+        val client = ensureOpen() ?: return null
+        return client.sendAll(listOf(command), timeoutMs).single()
+    }
+
+    /**
+     * @return the SIM, signal and registration state, or null if the modem port could not be opened
+     */
+    suspend fun queryStatus(): ModemStatus? {
+        val client = ensureOpen() ?: return null
+        val start = System.nanoTime()
+        val (sim, signal, lteRegistration) = client.sendAll(STATUS_COMMANDS, STATUS_TIMEOUT_MS)
+        // modules without LTE only answer the GSM/UMTS registration query
+        val registration = if (lteRegistration.isOk) {
+            lteRegistration.value("+CEREG")
+        } else {
+            client.sendAll(listOf("AT+CREG?"), STATUS_TIMEOUT_MS).single().value("+CREG")
+        }
+        return ModemStatus(
+            responded = listOf(sim, signal, lteRegistration).any { it.result != AtClient.Result.TIMEOUT && it.result != AtClient.Result.FAILED },
+            simState = sim.value("+CPIN") ?: sim.errorCode.takeIf { it >= 0 }?.let { "CME ERROR $it" },
+            rssi = signal.value("+CSQ")?.substringBefore(',')?.trim()?.toIntOrNull(),
+            registration = registration?.split(',')?.getOrNull(1)?.trim()?.toIntOrNull(),
+            latencyMs = (System.nanoTime() - start) / 1_000_000,
+        )
+    }
+
+    fun stats(): AtClient.Stats? = client?.stats
+
+    private suspend fun ensureOpen(): AtClient? {
+        client?.let { return it }
+        return openMutex.withLock {
+            client ?: withContext(Dispatchers.IO) { open() }
+        }
+    }
+
+    private fun open(): AtClient? {
+        val now = System.currentTimeMillis()
+        if (now < nextOpenAttemptAt) return null
+        return try {
+            val worker = UartWorkerCH(Config.SERIAL_CH0, Config.BATE, 0, "AT")
+            val client = AtClient.attach(worker)
+            worker.startCommunicate()
+            this.worker = worker
+            this.client = client
+            client
+        } catch (e: IOException) {
+            Log.w(TAG, "open modem port failed", e)
+            nextOpenAttemptAt = now + REOPEN_BACKOFF_MS
+            null
+        } catch (e: SecurityException) {
+            Log.w(TAG, "open modem port failed", e)
+            nextOpenAttemptAt = now + REOPEN_BACKOFF_MS
+            null
+        }
+    }
+
+    /** Queues all commands before waiting so they are written back to back */
+    private suspend fun AtClient.sendAll(commands: List<String>, timeoutMs: Long): List<AtClient.Response> {
+        val responses = commands.map { command ->
+            CompletableDeferred<AtClient.Response>().also { response ->
+                send(command, timeoutMs) { response.complete(it) }
+            }
+        }
+        return responses.awaitAll()
+    }
+
+    companion object {
+        private const val TAG = "ModemAtChannel"
+        private const val STATUS_TIMEOUT_MS = 1_000L
+        private const val REOPEN_BACKOFF_MS = 60_000L
+        private val STATUS_COMMANDS = listOf("AT+CPIN?", "AT+CSQ", "AT+CEREG?")
+    }
+}
+
+/**
+ * @property responded false if every query timed out or could not be written, e.g. no module is fitted
+ * @property simState `+CPIN` value such as `READY`, or the CME error when no SIM is inserted
+ * @property rssi `+CSQ` signal level 0..31, 99 if unknown
+ * @property registration `<stat>` of `+CEREG`/`+CREG`, 1 is home and 5 is roaming
+ */
+data class ModemStatus(
+    val responded: Boolean,
+    val simState: String?,
+    val rssi: Int?,
+    val registration: Int?,
+    val latencyMs: Long,
+) {
+    val isSimReady: Boolean
+        get() = simState == "READY"
+
+    val hasSignal: Boolean
+        get() = rssi != null && rssi in 1..31
+
+    val isRegistered: Boolean
+        get() = registration == REGISTERED_HOME || registration == REGISTERED_ROAMING
+
+    private companion object {
+        const val REGISTERED_HOME = 1
+        const val REGISTERED_ROAMING = 5
+    }
+}
@@ -21,6 +21,7 @@ import kotlin.time.Duration.Companion.seconds
 @Singleton
 class ModuleRestartManager @Inject constructor(
     @ApplicationContext private val context: Context,
+    private val modemAtChannel: ModemAtChannel,
 ) {
     private val preferences: SharedPreferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
     
@@ -121,7 +122,7 @@ class ModuleRestartManager @Inject constructor(
     /**
      * Perform 3 checks with 10-second intervals
      */
-    private suspend fun performMultipleChecks(sessionId: Long): List<CheckResult> = withContext(Dispatchers.Main) {
+    private suspend fun performMultipleChecks(sessionId: Long): List<CheckResult> = withContext(Dispatchers.Default) {
         val results = mutableListOf<CheckResult>()
         val startTime = System.currentTimeMillis()
         
@@ -156,8 +157,33 @@ class ModuleRestartManager @Inject constructor(
     
     /**
      * Perform a single SIM card and network check
+     * Asks the 4G module over AT commands, falls back to system properties if the module does not answer
      */
     private suspend fun performSingleCheck(): CheckResult {
+        return try {
+            val status = modemAtChannel.queryStatus()
+            if (status != null && status.responded) {
+                checkModemStatus(status)
+            } else {
+                performPropertyCheck()
+            }
+        } catch (e: Exception) {
+            Log.e(TAG, "Error during module check", e)
+            CheckResult(false, "Exception during check: ${e.message}")
+        }
+    }
+
+    private fun checkModemStatus(status: ModemStatus): CheckResult {
+        Log.d(TAG, "📡 AT check: $status")
+        return when {
+            !status.isSimReady -> CheckResult(false, "SIM state: ${status.simState}")
+            !status.hasSignal -> CheckResult(false, "Signal: CSQ ${status.rssi}")
+            !status.isRegistered -> CheckResult(false, "Network registration: ${status.registration}")
+            else -> CheckResult(true, "SIM ready, CSQ ${status.rssi}, registration ${status.registration} in ${status.latencyMs}ms")
+        }
+    }
+
+    private fun performPropertyCheck(): CheckResult {
         return try {
             // Check SIM card registration first
             val simCheck = checkSimCardRegistration()
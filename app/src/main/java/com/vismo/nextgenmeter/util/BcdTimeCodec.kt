@@ -0,0 +1,179 @@
+package com.vismo.nextgenmeter.util
+
+/**
+ * Validates and converts the BCD date/time and duration fields sent by the MCU without allocating.
+ *
+ * Date/times are `yyyyMMddHHmm` (6 bytes, heartbeats) or `yyyyMMddHHmmss` (7 bytes, board info) packed BCD,
+ * durations are `HHmmss` packed BCD. The same values can be read from frame bytes or from the hex/decimal
+ * strings the older parsers pass around, where each BCD byte is two digit characters.
+ *
+ * A decoded date/time is returned as a packed `long` in decimal `yyyyMMddHHmmss` form, e.g. 20240131235900,
+ * seconds are 0 for the 6 byte form. Every function returns [INVALID] instead of throwing.
+ */
+object BcdTimeCodec {
+    const val INVALID = -1L
+
+    /** MCU time is Hong Kong local time, which has no daylight saving */
+    const val HONG_KONG_UTC_OFFSET_SECONDS = 8 * 60 * 60
+
+    const val DATE_TIME_BYTES = 6
+    const val DATE_TIME_WITH_SECONDS_BYTES = 7
+    const val DURATION_BYTES = 3
+
+    /** Days per month of a common year, index 1..12 */
+    private val DAYS_IN_MONTH = intArrayOf(0, 31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31)
+
+    /** Days before the first of each month of a common year, index 1..12 */
+    private val DAYS_BEFORE_MONTH = IntArray(13).also { table ->
+        for (month in 2..12) {
+            table[month] = table[month - 1] + DAYS_IN_MONTH[month - 1]
+        }
+    }
+
+    /** 1970-01-01 counted as in [daysSinceYearZero] */
+    private const val EPOCH_DAY_OFFSET = 719_528L
+
+    fun isLeapYear(year: Int): Boolean = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0
+
+    fun daysInMonth(year: Int, month: Int): Int =
+        if (month == 2 && isLeapYear(year)) 29 else DAYS_IN_MONTH[month]
+
+    /**
+     * @return the packed `yyyyMMddHHmmss` value of the BCD date/time at [offset], or [INVALID] if a nibble is
+     * not a digit or the fields are not a real calendar date and time
+     */
+    fun packedDateTime(frame: ByteArray, offset: Int, withSeconds: Boolean): Long {
+        val bytes = if (withSeconds) DATE_TIME_WITH_SECONDS_BYTES else DATE_TIME_BYTES
+        if (offset < 0 || offset + bytes > frame.size) return INVALID
+        val yearHi = bcdByte(frame[offset])
+        val yearLo = bcdByte(frame[offset + 1])
+        if (yearHi < 0 || yearLo < 0) return INVALID
+        return pack(
+            year = yearHi * 100 + yearLo,
+            month = bcdByte(frame[offset + 2]),
+            day = bcdByte(frame[offset + 3]),
+            hour = bcdByte(frame[offset + 4]),
+            minute = bcdByte(frame[offset + 5]),
+            second = if (withSeconds) bcdByte(frame[offset + 6]) else 0,
+        )
+    }
+
+    /**
+     * Same as [packedDateTime] for the `yyyyMMddHHmm` or `yyyyMMddHHmmss` digits in [text], the length decides
+     * whether seconds are present.
+     */
+    fun packedDateTime(text: CharSequence): Long {
+        val withSeconds = when (text.length) {
+            DATE_TIME_BYTES * 2 -> false
+            DATE_TIME_WITH_SECONDS_BYTES * 2 -> true
+            else -> return INVALID
+        }
+        val yearHi = digits(text, 0)
+        val yearLo = digits(text, 2)
+        if (yearHi < 0 || yearLo < 0) return INVALID
+        return pack(
+            year = yearHi * 100 + yearLo,
+            month = digits(text, 4),
+            day = digits(text, 6),
+            hour = digits(text, 8),
+            minute = digits(text, 10),
+            second = if (withSeconds) digits(text, 12) else 0,
+        )
+    }
+
+    fun isValidDateTime(frame: ByteArray, offset: Int, withSeconds: Boolean): Boolean =
+        packedDateTime(frame, offset, withSeconds) != INVALID
+
+    /**
+     * Seconds since the epoch of a [packedDateTime] value in the local time [utcOffsetSeconds] east of UTC.
+     */
+    fun toEpochSeconds(packed: Long, utcOffsetSeconds: Int = HONG_KONG_UTC_OFFSET_SECONDS): Long {
+        if (packed < 0) return INVALID
+        val second = (packed % 100).toInt()
+        val minute = (packed / 100 % 100).toInt()
+        val hour = (packed / 10_000 % 100).toInt()
+        val day = (packed / 1_000_000 % 100).toInt()
+        val month = (packed / 100_000_000 % 100).toInt()
+        val year = (packed / 10_000_000_000).toInt()
+        val epochDay = daysSinceYearZero(year, month, day) - EPOCH_DAY_OFFSET
+        return epochDay * 86_400 + hour * 3_600 + minute * 60 + second - utcOffsetSeconds
+    }
+
+    /**
+     * [toEpochSeconds] of the BCD date/time at [offset], or [INVALID].
+     */
+    fun epochSeconds(
+        frame: ByteArray,
+        offset: Int,
+        withSeconds: Boolean,
+        utcOffsetSeconds: Int = HONG_KONG_UTC_OFFSET_SECONDS,
+    ): Long = toEpochSeconds(packedDateTime(frame, offset, withSeconds), utcOffsetSeconds)
+
+    /**
+     * @return the `HHmmss` BCD duration at [offset] in seconds, or [INVALID] if a nibble is not a digit.
+     * Minutes and seconds are not range checked, the MCU counts them as plain decimals.
+     */
+    fun durationSeconds(frame: ByteArray, offset: Int): Long {
+        if (offset < 0 || offset + DURATION_BYTES > frame.size) return INVALID
+        val hours = bcdByte(frame[offset])
+        val minutes = bcdByte(frame[offset + 1])
+        val seconds = bcdByte(frame[offset + 2])
+        if (hours < 0 || minutes < 0 || seconds < 0) return INVALID
+        return hours * 3_600L + minutes * 60L + seconds
+    }
+
+    /**
+     * Same as [durationSeconds] for the 6 `HHmmss` digits in [text].
+     */
+    fun durationSeconds(text: CharSequence): Long {
+        if (text.length != DURATION_BYTES * 2) return INVALID
+        val hours = digits(text, 0)
+        val minutes = digits(text, 2)
+        val seconds = digits(text, 4)
+        if (hours < 0 || minutes < 0 || seconds < 0) return INVALID
+        return hours * 3_600L + minutes * 60L + seconds
+    }
+
+    /**
+     * Seconds of the 6 `HHmmss` digits in [text] where a field that is not two digits counts as 0 and the other
+     * fields are still summed, as the string parser behind [MeasureBoardUtils.getTimeInSeconds] did.
+     * Any other length is 0.
+     */
+    fun durationSecondsOfValidFields(text: CharSequence): Long {
+        if (text.length != DURATION_BYTES * 2) return 0L
+        val hours = digits(text, 0).coerceAtLeast(0)
+        val minutes = digits(text, 2).coerceAtLeast(0)
+        val seconds = digits(text, 4).coerceAtLeast(0)
+        return hours * 3_600L + minutes * 60L + seconds
+    }
+
+    private fun pack(year: Int, month: Int, day: Int, hour: Int, minute: Int, second: Int): Long {
+        if (month !in 1..12 || hour !in 0..23 || minute !in 0..59 || second !in 0..59) return INVALID
+        if (day < 1 || day > daysInMonth(year, month)) return INVALID
+        return year * 10_000_000_000L + month * 100_000_000L + day * 1_000_000L +
+            hour * 10_000L + minute * 100L + second
+    }
+
+    /** Days since 0000-01-01 of the proleptic Gregorian calendar */
+    private fun daysSinceYearZero(year: Int, month: Int, day: Int): Long {
+        val y = year.toLong()
+        val leapDays = if (y > 0) (y - 1) / 4 - (y - 1) / 100 + (y - 1) / 400 + 1 else 0L
+        val leapThisYear = if (month > 2 && isLeapYear(year)) 1 else 0
+        return y * 365 + leapDays + DAYS_BEFORE_MONTH[month] + leapThisYear + day - 1
+    }
+
+    /** Two decimal nibbles as 0..99, or -1 */
+    private fun bcdByte(b: Byte): Int {
+        val v = b.toInt() and 0xFF
+        val hi = v shr 4
+        val lo = v and 0x0F
+        return if (hi > 9 || lo > 9) -1 else hi * 10 + lo
+    }
+
+    /** Two decimal digit characters at [index] as 0..99, or -1 */
+    private fun digits(text: CharSequence, index: Int): Int {
+        val hi = text[index] - '0'
+        val lo = text[index + 1] - '0'
+        return if (hi !in 0..9 || lo !in 0..9) -1 else hi * 10 + lo
+    }
+}
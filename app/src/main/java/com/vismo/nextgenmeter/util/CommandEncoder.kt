@@ -0,0 +1,270 @@
+package com.vismo.nextgenmeter.util
+
+import java.nio.ByteBuffer
+
+/**
+ * Encodes MCU commands straight into a reusable [ByteBuffer].
+ *
+ * Frame layout: `55 AA | length(2) | type | pro | cmd(2) | payload | xor | 55 AA`, where length counts
+ * type..payload and the checksum is the XOR of length..payload. The bytes are the same as the String
+ * builders in [MeasureBoardUtils] (with the checksum always written as a full byte).
+ *
+ * The buffer returned by the encode functions is only valid until the next call and the encoder is not
+ * thread-safe, so callers should hand the result to [com.ilin.atelec.BusModel.send] right away.
+ * Commands without parameters are precomputed once, see [Templates].
+ */
+class CommandEncoder(capacity: Int = DEFAULT_CAPACITY) {
+
+    private val buffer: ByteBuffer = ByteBuffer.allocate(capacity)
+
+    fun startTrip(tripId: String, isPause: Boolean = false): ByteBuffer {
+        begin(CMD_START_TRIP)
+        buffer.put(if (isPause) 0x01.toByte() else 0x00.toByte())
+        putAscii(tripId, TRIP_ID_LENGTH)
+        putDefaultBeep()
+        return finish()
+    }
+
+    fun pauseTrip(): ByteBuffer = Templates.PAUSE_TRIP.duplicate()
+
+    fun continueTrip(isMute: Boolean = false): ByteBuffer =
+        if (isMute) Templates.CONTINUE_TRIP_MUTE.duplicate() else Templates.CONTINUE_TRIP.duplicate()
+
+    fun endTrip(): ByteBuffer = Templates.END_TRIP.duplicate()
+
+    /**
+     * @param amount extras in the same decimal units as [MeasureBoardUtils.getUpdateExtrasCmd], capped at 9999
+     */
+    fun updateExtras(amount: Int): ByteBuffer {
+        begin(CMD_EXTRAS)
+        putBcd(amount.coerceIn(0, MAX_BCD_4), 2)
+        buffer.put(0x00.toByte())
+        putDefaultBeep()
+        return finish()
+    }
+
+    fun beep(durationIn10ms: Int, intervalIn10ms: Int, repeatCount: Int): ByteBuffer {
+        begin(CMD_BEEP)
+        putBeep(durationIn10ms, intervalIn10ms, repeatCount)
+        return finish()
+    }
+
+    /**
+     * @param formattedDateStr yyyyMMddHHmmss or yyyyMMddHHmm as reported by the heartbeat
+     */
+    fun updateTime(formattedDateStr: String): ByteBuffer {
+        val dateTime = when {
+            MeasureBoardUtils.isDateTimeFormatValid(formattedDateStr) -> formattedDateStr
+            MeasureBoardUtils.isDateTimeFormatValid("${formattedDateStr}00") -> "${formattedDateStr}00"
+            else -> FALLBACK_DATE_TIME
+        }
+        begin(CMD_UPDATE_TIME_PARAMS)
+        buffer.put(0x01.toByte()) // only update the time, k value and power off delay are ignored
+        putBcdDigits(dateTime)
+        putBcd(1000, 2)
+        putBcd(15, 2)
+        return finish()
+    }
+
+    fun updateKValue(kValue: Int?, powerOffTimeInMins: Int?): ByteBuffer {
+        val type = when {
+            kValue != null && powerOffTimeInMins != null -> 0x06
+            kValue != null -> 0x02
+            powerOffTimeInMins != null -> 0x04
+            else -> throw IllegalArgumentException("Either kValue or powerOffTimeInMins must be provided")
+        }
+        begin(CMD_UPDATE_TIME_PARAMS)
+        buffer.put(type.toByte())
+        putBcdDigits(FALLBACK_DATE_TIME) // the time is not applied for these types
+        putBcd((kValue ?: DEFAULT_K_VALUE).coerceIn(0, MAX_BCD_4), 2)
+        putBcd((powerOffTimeInMins ?: MeasureBoardUtils.DEFAULT_MEASURE_BOARD_ACC_OFF_DELAY_MINS).coerceIn(0, MAX_BCD_4), 2)
+        return finish()
+    }
+
+    fun updatePriceParams(startPrice: Int, stepPrice: Int, stepPrice2nd: Int, threshold: Int): ByteBuffer {
+        begin(CMD_PRICE_PARAMS)
+        buffer.put(PRICE_PARAM_VERSION)
+        putBcd(PRICE_START_DISTANCE, 2)
+        putBcd(startPrice.coerceIn(0, MAX_BCD_4), 2)
+        putBcd(startPrice.coerceIn(0, MAX_BCD_4), 2) // peak
+        putBcd(stepPrice.coerceIn(0, MAX_BCD_4), 2)
+        putBcd(stepPrice.coerceIn(0, MAX_BCD_4), 2) // peak
+        buffer.put(PRICE_PEAK_HOURS)
+        putBcd(threshold.coerceIn(0, MAX_BCD_4), 2)
+        putBcd(stepPrice2nd.coerceIn(0, MAX_BCD_4), 2)
+        putBcd(stepPrice2nd.coerceIn(0, MAX_BCD_4), 2) // peak
+        buffer.put(PRICE_TRAILER)
+        return finish()
+    }
+
+    /**
+     * Writes the license plate into the last 8 bytes of the MCU user data, left padded with 0xFF.
+     */
+    fun writeLicensePlate(licensePlate: String): ByteBuffer {
+        begin(CMD_READ_WRITE_DATA)
+        buffer.put(0xAA.toByte())
+        repeat(USER_DATA_LENGTH - LICENSE_PLATE_LENGTH) { buffer.put(0xFF.toByte()) }
+        val length = minOf(licensePlate.length, LICENSE_PLATE_LENGTH)
+        repeat(LICENSE_PLATE_LENGTH - length) { buffer.put(0xFF.toByte()) }
+        for (i in 0 until length) {
+            buffer.put(licensePlate[i].code.toByte())
+        }
+        return finish()
+    }
+
+    /**
+     * @param androidFirmwareVersion X.X.X where each X is 0-99
+     */
+    fun androidFirmwareVersion(androidFirmwareVersion: String): ByteBuffer {
+        val parts = androidFirmwareVersion.split(".")
+        require(parts.size == 3 && parts.all { (it.toIntOrNull() ?: -1) in 0..99 }) {
+            "Android firmware version must be in the format 'X.X.X' where each X is a number between 0-99"
+        }
+        begin(CMD_ANDROID_FIRMWARE_VERSION)
+        buffer.put(0x90.toByte())
+        for (part in parts) {
+            putBcd(part.toInt(), 1)
+        }
+        return finish()
+    }
+
+    fun unlock(): ByteBuffer = Templates.UNLOCK.duplicate()
+
+    fun shutdownNotification(): ByteBuffer = Templates.SHUTDOWN.duplicate()
+
+    fun meteringBoardInfo(): ByteBuffer = Templates.METERING_BOARD_INFO.duplicate()
+
+    fun readDeviceId(): ByteBuffer = Templates.READ_DEVICE_ID.duplicate()
+
+    fun parametersEnquiry(): ByteBuffer = Templates.PARAMETERS_ENQUIRY.duplicate()
+
+    fun tripEndResponse(): ByteBuffer = Templates.TRIP_END_RESPONSE.duplicate()
+
+    private fun begin(command: Int, type: Int = 0x00, protocol: Int = 0x00) {
+        beginFrame(buffer, command, type, protocol)
+    }
+
+    private fun finish(): ByteBuffer = finishFrame(buffer)
+
+    private fun putDefaultBeep() {
+        putBeep(MeasureBoardUtils.BEEP_SOUND_LENGTH, 0, 1)
+    }
+
+    private fun putBeep(durationIn10ms: Int, intervalIn10ms: Int, repeatCount: Int) {
+        buffer.put(durationIn10ms.toByte())
+        buffer.put(intervalIn10ms.toByte())
+        buffer.put(repeatCount.toByte())
+    }
+
+    private fun putAscii(value: String, length: Int) {
+        for (i in 0 until length) {
+            buffer.put(if (i < value.length) value[i].code.toByte() else 0x00.toByte())
+        }
+    }
+
+    /** Packs the lowest `bytes * 2` decimal digits of [value], most significant first. */
+    private fun putBcd(value: Int, bytes: Int) {
+        var divisor = 1
+        repeat(bytes * 2 - 2) { divisor *= 10 }
+        var remaining = value
+        repeat(bytes) {
+            val pair = (remaining / divisor) % 100
+            buffer.put((((pair / 10) shl 4) or (pair % 10)).toByte())
+            remaining %= divisor
+            divisor /= 100
+        }
+    }
+
+    private fun putBcdDigits(digits: String) {
+        var i = 0
+        while (i + 1 < digits.length) {
+            buffer.put((((digits[i] - '0') shl 4) or (digits[i + 1] - '0')).toByte())
+            i += 2
+        }
+    }
+
+    /**
+     * Fixed commands, encoded once. Each accessor returns a [ByteBuffer.duplicate] so the shared
+     * position and limit are never moved by callers.
+     */
+    private object Templates {
+        val PAUSE_TRIP: ByteBuffer = build(CMD_PAUSE_RESUME, 0x01, MeasureBoardUtils.BEEP_SOUND_LENGTH, 0x00, 0x01)
+        val CONTINUE_TRIP: ByteBuffer = build(CMD_PAUSE_RESUME, 0x00, MeasureBoardUtils.BEEP_SOUND_LENGTH, 0x00, 0x01)
+        val CONTINUE_TRIP_MUTE: ByteBuffer = build(CMD_PAUSE_RESUME, 0x00, 0x00, 0x00, 0x00)
+        // the repeat count has always been sent as 0x11 for the end trip beep
+        val END_TRIP: ByteBuffer = build(CMD_END_TRIP, 0x01, MeasureBoardUtils.BEEP_SOUND_LENGTH, 0x00, 0x11)
+        val UNLOCK: ByteBuffer = build(CMD_UNLOCK, 0x90)
+        val SHUTDOWN: ByteBuffer = build(CMD_SHUTDOWN, 0x90)
+        val METERING_BOARD_INFO: ByteBuffer = build(CMD_METERING_BOARD_INFO, 0x90)
+        val READ_DEVICE_ID: ByteBuffer = build(CMD_READ_WRITE_DATA, 0x55)
+        val PARAMETERS_ENQUIRY: ByteBuffer = build(CMD_PARAMETERS_ENQUIRY, 0x20, 0x23, 0x02, 0x25, 0x20, 0x03)
+        val TRIP_END_RESPONSE: ByteBuffer = build(RESPONSE_TRIP_END, 0x90)
+
+        private fun build(command: Int, vararg payload: Int): ByteBuffer {
+            val buffer = ByteBuffer.allocate(FRAME_OVERHEAD + COMMAND_HEADER_LENGTH + payload.size)
+            beginFrame(buffer, command, 0x00, 0x00)
+            for (b in payload) {
+                buffer.put(b.toByte())
+            }
+            return finishFrame(buffer).asReadOnlyBuffer()
+        }
+    }
+
+    companion object {
+        const val DEFAULT_CAPACITY = 256
+
+        /** head(2) + length(2) + checksum(1) + tail(2) */
+        const val FRAME_OVERHEAD = 7
+        /** type + pro + cmd(2) */
+        const val COMMAND_HEADER_LENGTH = 4
+
+        const val CMD_START_TRIP = 0x10A0
+        const val CMD_PAUSE_RESUME = 0x10A1
+        const val CMD_EXTRAS = 0x10A2
+        const val CMD_END_TRIP = 0x10A3
+        const val CMD_PARAMETERS_ENQUIRY = 0x10A4
+        const val CMD_UPDATE_TIME_PARAMS = 0x10A5
+        const val CMD_PRICE_PARAMS = 0x10A6
+        const val CMD_UNLOCK = 0x10AA
+        const val CMD_BEEP = 0x10AB
+        const val CMD_READ_WRITE_DATA = 0x10AC
+        const val CMD_METERING_BOARD_INFO = 0x10B0
+        const val CMD_SHUTDOWN = 0x10B1
+        const val CMD_ANDROID_FIRMWARE_VERSION = 0x10B2
+        const val RESPONSE_TRIP_END = 0x00E4
+
+        private const val TRIP_ID_LENGTH = 32
+        private const val USER_DATA_LENGTH = 32
+        private const val LICENSE_PLATE_LENGTH = 8
+        private const val MAX_BCD_4 = 9999
+        private const val DEFAULT_K_VALUE = 650
+        private const val PRICE_START_DISTANCE = 200
+        private const val FALLBACK_DATE_TIME = "20240101161718"
+
+        private val PRICE_PARAM_VERSION = byteArrayOf(0x24, 0x07, 0x14, 0xA1.toByte())
+        private val PRICE_PEAK_HOURS = byteArrayOf(0x08, 0x00, 0x10, 0x30, 0x17, 0x00, 0x19, 0x30)
+        private val PRICE_TRAILER = byteArrayOf(0x00, 0x20, 0x00, 0x60, 0x01, 0x50)
+
+        private fun beginFrame(buffer: ByteBuffer, command: Int, type: Int, protocol: Int) {
+            buffer.clear()
+            buffer.put(0x55.toByte()).put(0xAA.toByte())
+            buffer.putShort(0) // length, filled in by finishFrame
+            buffer.put(type.toByte())
+            buffer.put(protocol.toByte())
+            buffer.putShort(command.toShort())
+        }
+
+        private fun finishFrame(buffer: ByteBuffer): ByteBuffer {
+            val end = buffer.position()
+            buffer.putShort(2, (end - 4).toShort())
+            var checksum = 0
+            for (i in 2 until end) {
+                checksum = checksum xor buffer.get(i).toInt()
+            }
+            buffer.put(checksum.toByte())
+            buffer.put(0x55.toByte()).put(0xAA.toByte())
+            buffer.flip()
+            return buffer
+        }
+    }
+}
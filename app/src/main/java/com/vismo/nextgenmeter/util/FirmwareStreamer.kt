@@ -0,0 +1,250 @@
+package com.vismo.nextgenmeter.util
+
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * Serves the chunk frames of an MCU firmware image during an OTA upgrade.
+ *
+ * The image is memory-mapped once, and each E1 chunk frame
+ * (`55 AA | 080F | 00 00 00 E1 | 90 | version(4) | chunk(2) | data(2048) | data sum(4) | xor | 55 AA`)
+ * is built in a single pass that copies the data and computes both checksums, then kept in a small LRU
+ * cache so a chunk the MCU asks for again is not rebuilt. After a chunk is handed out, [prefetch] builds
+ * the one the MCU is expected to ask for next while the current one is still on the wire.
+ *
+ * The bytes are the same as [MeasureBoardUtils.getPatchMeterBoardFirmwareCmd], including the `length / 2048 + 1`
+ * chunk count and the 0xFF padding of the last chunk. Returned frames are never modified afterwards, so they
+ * can be queued for sending without a copy.
+ */
+class FirmwareStreamer private constructor(
+    val path: String,
+    private val image: ByteBuffer,
+    private val cacheSize: Int,
+    private val fileLength: Long,
+    private val fileLastModified: Long,
+) {
+    /** Chunk count announced in the upgrade request and used for progress, as [MeasureBoardUtils.getFirmwareTotalOffset] */
+    val chunkCount: Int = image.capacity() / CHUNK_SIZE + 1
+
+    private val cache = object : LinkedHashMap<Int, ByteArray>(cacheSize + 1, 1f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Int, ByteArray>?): Boolean = size > cacheSize
+    }
+    private var cachedVersion = 0
+    private var lastIndex = -1
+    private var direction = -1
+
+    private var startNanos = 0L
+    private var firstChunkNanos = 0L
+    private var lastChunkNanos = 0L
+    private var chunksSent = 0
+    private var cacheHits = 0
+    private var completedNanos = 0L
+
+    /**
+     * Whether the file at [path] is still the one that was mapped. A new image copied to the same path is not,
+     * and its chunks must not be served from this streamer's cache.
+     */
+    fun isCurrent(): Boolean {
+        val file = File(path)
+        return file.length() == fileLength && file.lastModified() == fileLastModified
+    }
+
+    /**
+     * Marks the start of the upgrade, so [stats] includes the time the MCU takes to ask for the first chunk.
+     */
+    @Synchronized
+    fun start() {
+        startNanos = System.nanoTime()
+        firstChunkNanos = 0L
+        lastChunkNanos = 0L
+        completedNanos = 0L
+        chunksSent = 0
+        cacheHits = 0
+        lastIndex = -1
+    }
+
+    /**
+     * The A8 upgrade request announcing [chunkCount] chunks of [version].
+     */
+    fun requestFrame(version: Int): ByteArray {
+        val frame = ByteBuffer.allocate(REQUEST_FRAME_SIZE)
+        frame.put(0x55.toByte()).put(0xAA.toByte())
+        frame.putShort(REQUEST_LENGTH.toShort())
+        frame.put(0x02).put(0x01)
+        frame.putShort(CMD_REQUEST_UPGRADE.toShort())
+        frame.putInt(version)
+        frame.putShort(chunkCount.toShort())
+        val bytes = frame.array()
+        bytes[REQUEST_FRAME_SIZE - 3] = xor(bytes, 2, REQUEST_FRAME_SIZE - 3)
+        bytes[REQUEST_FRAME_SIZE - 2] = 0x55
+        bytes[REQUEST_FRAME_SIZE - 1] = 0xAA.toByte()
+        return bytes
+    }
+
+    /**
+     * The frame for chunk [index] of [version], or null if the chunk is past the end of the image.
+     */
+    @Synchronized
+    fun chunk(index: Int, version: Int): ByteArray? {
+        val frame = cached(index, version) ?: build(index, version) ?: return null
+        val now = System.nanoTime()
+        if (firstChunkNanos == 0L) firstChunkNanos = now
+        lastChunkNanos = now
+        chunksSent++
+        if (lastIndex >= 0 && index != lastIndex) direction = if (index < lastIndex) -1 else 1
+        lastIndex = index
+        // the MCU asks for the chunks from the last one down to 0
+        if (index == 0) completedNanos = now
+        return frame
+    }
+
+    /**
+     * Builds the chunk after the last one handed out, in the order the MCU has been asking for them.
+     */
+    @Synchronized
+    fun prefetch() {
+        if (lastIndex < 0) return
+        val next = lastIndex + direction
+        if (next < 0 || next >= chunkCount || cache.containsKey(next)) return
+        build(next, cachedVersion)
+    }
+
+    /**
+     * Progress in percent after chunk [index] was sent, 100 once chunk 0 is out.
+     */
+    fun progress(index: Int): Int = Math.round((chunkCount - index).toDouble() / chunkCount * 100).toInt()
+
+    @Synchronized
+    fun stats(): FirmwareStreamStats {
+        val end = if (completedNanos != 0L) completedNanos else lastChunkNanos
+        val streamingNanos = if (firstChunkNanos != 0L) end - firstChunkNanos else 0L
+        val totalNanos = if (startNanos != 0L && end != 0L) end - startNanos else streamingNanos
+        return FirmwareStreamStats(
+            chunkCount = chunkCount,
+            chunksSent = chunksSent,
+            cacheHits = cacheHits,
+            chunksPerSecond = if (streamingNanos > 0L) (chunksSent - 1) * 1e9 / streamingNanos else 0.0,
+            totalFlashTimeMillis = totalNanos / 1_000_000L,
+            isComplete = completedNanos != 0L,
+        )
+    }
+
+    private fun cached(index: Int, version: Int): ByteArray? {
+        if (version != cachedVersion) {
+            // the version is part of every frame, frames built for another version cannot be reused
+            cache.clear()
+            cachedVersion = version
+            return null
+        }
+        val frame = cache[index] ?: return null
+        cacheHits++
+        return frame
+    }
+
+    private fun build(index: Int, version: Int): ByteArray? {
+        val offset = index.toLong() * CHUNK_SIZE
+        if (index < 0 || offset >= image.capacity()) return null
+        val length = minOf(CHUNK_SIZE, image.capacity() - offset.toInt())
+
+        val frame = ByteArray(CHUNK_FRAME_SIZE)
+        val header = ByteBuffer.wrap(frame)
+        header.put(0x55.toByte()).put(0xAA.toByte())
+        header.putShort(CHUNK_LENGTH.toShort())
+        header.put(0x00).put(0x00)
+        header.putShort(CMD_CHUNK.toShort())
+        header.put(0x90.toByte())
+        header.putInt(version)
+        header.putShort(index.toShort())
+
+        val source = image.duplicate()
+        source.position(offset.toInt())
+        source.get(frame, DATA_OFFSET, length)
+        frame.fill(0xFF.toByte(), DATA_OFFSET + length, DATA_OFFSET + CHUNK_SIZE)
+
+        var checksum = xor(frame, 2, DATA_OFFSET).toInt()
+        var sum = 0
+        for (i in DATA_OFFSET until DATA_OFFSET + CHUNK_SIZE) {
+            val b = frame[i].toInt()
+            sum += b and 0xFF
+            checksum = checksum xor b
+        }
+        val sumOffset = DATA_OFFSET + CHUNK_SIZE
+        ByteBuffer.wrap(frame, sumOffset, 4).putInt(sum)
+        for (i in sumOffset until sumOffset + 4) {
+            checksum = checksum xor frame[i].toInt()
+        }
+        frame[CHUNK_FRAME_SIZE - 3] = checksum.toByte()
+        frame[CHUNK_FRAME_SIZE - 2] = 0x55
+        frame[CHUNK_FRAME_SIZE - 1] = 0xAA.toByte()
+        cache[index] = frame
+        return frame
+    }
+
+    companion object {
+        const val CHUNK_SIZE = 2048
+        const val DEFAULT_CACHE_SIZE = 4
+
+        private const val CMD_CHUNK = 0x00E1
+        private const val CMD_REQUEST_UPGRADE = 0x10A8
+        /** type..data sum */
+        private const val CHUNK_LENGTH = 2063
+        private const val CHUNK_FRAME_SIZE = CHUNK_LENGTH + 7
+        /** 55 AA, length(2), type, pro, cmd(2), result, version(4), chunk(2) */
+        private const val DATA_OFFSET = 15
+        /** type..chunk count */
+        private const val REQUEST_LENGTH = 10
+        private const val REQUEST_FRAME_SIZE = 17
+
+        /**
+         * Maps the image at [path].
+         *
+         * @throws IOException if the file cannot be read
+         */
+        @Throws(IOException::class)
+        fun open(path: String, cacheSize: Int = DEFAULT_CACHE_SIZE): FirmwareStreamer {
+            val file = File(path)
+            val lastModified = file.lastModified()
+            // the mapping stays valid after the file is closed
+            val image = RandomAccessFile(file, "r").use {
+                it.channel.map(FileChannel.MapMode.READ_ONLY, 0, it.length())
+            }
+            return FirmwareStreamer(path, image, cacheSize.coerceAtLeast(1), image.capacity().toLong(), lastModified)
+        }
+
+        /**
+         * Parses the 8 hex digit version sent by the MCU or taken from the image file name.
+         */
+        fun parseVersion(version: String): Int {
+            require(version.length == 8) { "expected version name in 8 char numeric formac" }
+            return version.toLong(16).toInt()
+        }
+
+        private fun xor(data: ByteArray, from: Int, to: Int): Byte {
+            var checksum = 0
+            for (i in from until to) {
+                checksum = checksum xor data[i].toInt()
+            }
+            return checksum.toByte()
+        }
+    }
+}
+
+/**
+ * Throughput of a firmware upgrade, see [FirmwareStreamer.stats].
+ *
+ * @property chunksSent frames handed out, including chunks the MCU asked for again
+ * @property cacheHits frames served from the cache, either prefetched or asked for again
+ * @property chunksPerSecond from the first chunk to the last one
+ * @property totalFlashTimeMillis from the upgrade request to the last chunk
+ */
+data class FirmwareStreamStats(
+    val chunkCount: Int,
+    val chunksSent: Int,
+    val cacheHits: Int,
+    val chunksPerSecond: Double,
+    val totalFlashTimeMillis: Long,
+    val isComplete: Boolean,
+)
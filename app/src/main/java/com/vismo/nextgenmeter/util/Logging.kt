@@ -0,0 +1,28 @@
+package com.vismo.nextgenmeter.util
+
+import com.serial.opt.MeterLog
+
+/*
+ * Kotlin entry points of [MeterLog]. The functions are inline so the message lambda is not allocated either:
+ * when the tag's level is off the call is a level check and nothing else, no String is built.
+ */
+
+inline fun logV(tag: String, message: () -> String) {
+    if (MeterLog.isLoggable(tag, MeterLog.VERBOSE)) MeterLog.println(MeterLog.VERBOSE, tag, message(), null)
+}
+
+inline fun logD(tag: String, message: () -> String) {
+    if (MeterLog.isLoggable(tag, MeterLog.DEBUG)) MeterLog.println(MeterLog.DEBUG, tag, message(), null)
+}
+
+inline fun logI(tag: String, message: () -> String) {
+    if (MeterLog.isLoggable(tag, MeterLog.INFO)) MeterLog.println(MeterLog.INFO, tag, message(), null)
+}
+
+inline fun logW(tag: String, throwable: Throwable? = null, message: () -> String) {
+    if (MeterLog.isLoggable(tag, MeterLog.WARN)) MeterLog.println(MeterLog.WARN, tag, message(), throwable)
+}
+
+inline fun logE(tag: String, throwable: Throwable? = null, message: () -> String) {
+    if (MeterLog.isLoggable(tag, MeterLog.ERROR)) MeterLog.println(MeterLog.ERROR, tag, message(), throwable)
+}
@@ -26,6 +26,20 @@ object MeasureBoardUtils {
     const val METERING_BOARD_INFO_RESPONSE = "B0"
     const val ANDROID_FIRMWARE_VERSION_RESPONSE = "B2"
 
+    // response codes as read from the command byte of a raw frame
+    const val IDLE_HEARTBEAT_CODE = 0xE2
+    const val ONGOING_HEARTBEAT_CODE = 0xE3
+    const val TRIP_END_SUMMARY_CODE = 0xE4
+    const val ABNORMAL_PULSE_CODE = 0xE5
+    const val UPGRADING_FIRMWARE_CODE = 0xE1
+    const val PARAMETERS_ENQUIRY_CODE = 0xA4
+    const val METERING_BOARD_INFO_RESPONSE_CODE = 0xB0
+    const val ANDROID_FIRMWARE_VERSION_RESPONSE_CODE = 0xB2
+    const val REQUEST_UPGRADE_FIRMWARE_CODE = 0xA8
+
+    const val MCU_DATE_TIME_FORMAT = "yyyyMMddHHmm"
+    const val MCU_DATE_TIME_WITH_SECONDS_FORMAT = "yyyyMMddHHmmss"
+
     fun formatStartingPrice(input: String): String {
         return if (input.length == 4) {
             "${input.substring(0, 2)}.${input.substring(2)}"
@@ -35,6 +49,10 @@ object MeasureBoardUtils {
     }
 
     fun isValidDate(date: String, format: String): Boolean {
+        if (format == MCU_DATE_TIME_FORMAT || format == MCU_DATE_TIME_WITH_SECONDS_FORMAT) {
+            // the formats the MCU sends are checked without a SimpleDateFormat
+            return date.length == format.length && BcdTimeCodec.packedDateTime(date) != BcdTimeCodec.INVALID
+        }
         return try {
             val sdf = SimpleDateFormat(format, Locale.ENGLISH).apply {
                 isLenient = false
@@ -45,33 +63,11 @@ object MeasureBoardUtils {
         }
     }
 
-    fun isDurationValid(duration: String): Boolean {
-        return if (duration.length == 6) {
-            val hour = duration.substring(0, 2)
-            val min = duration.substring(2, 4)
-            val sec = duration.substring(4, 6)
-            val hourInSeconds = hour.toLongOrNull()
-            val minInSeconds = min.toLongOrNull()
-            val seconds = sec.toLongOrNull()
-            hourInSeconds != null && minInSeconds != null && seconds != null
-        } else {
-            false
-        }
-    }
+    fun isDurationValid(duration: String): Boolean =
+        BcdTimeCodec.durationSeconds(duration) != BcdTimeCodec.INVALID
 
-    fun getTimeInSeconds(duration: String): Long {
-        return if (duration.length == 6) {
-            val hour = duration.substring(0, 2)
-            val min = duration.substring(2, 4)
-            val sec = duration.substring(4, 6)
-            val hourInSeconds = hour.toLongOrNull()?.times(60 * 60) ?: 0
-            val minInSeconds = min.toLongOrNull()?.times(60) ?: 0
-            val seconds = sec.toLongOrNull() ?: 0
-            hourInSeconds + minInSeconds + seconds
-        } else {
-            0
-        }
-    }
+    fun getTimeInSeconds(duration: String): Long =
+        BcdTimeCodec.durationSecondsOfValidFields(duration)
 
     fun getPaidMin(duration: String): BigDecimal =
         if (duration.length == 6) {
@@ -112,7 +108,7 @@ object MeasureBoardUtils {
             "999900"
         }
         val CMD_EXTRAS = "00 0A 00 00 10 A2 ${formattedAmount.substring(0, 2)} ${formattedAmount.substring(2, 4)} 00 $durationHex $intervalHex $repeatCountHex"
-        Log.d("getUpdateExtrasCmd", "addExtras: getUpdateExtrasCmd: $CMD_EXTRAS")
+        logV("getUpdateExtrasCmd") { "addExtras: getUpdateExtrasCmd: $CMD_EXTRAS" }
         val checkSum = xorHexStrings(CMD_EXTRAS.trim().split(" "))
         val cmdStringBuilder = StringBuilder()
         cmdStringBuilder.append("55 AA ").append(CMD_EXTRAS).append(checkSum).append(" 55 AA")
@@ -146,7 +142,7 @@ object MeasureBoardUtils {
         val mTripId = encodeHexString(tripId)
         val isPauseFlag = if (isPause) "01" else "00"
         val CMD_START = "00 28 00 00 10 A0 $isPauseFlag $mTripId $durationHex $intervalHex $repeatCountHex"
-        Log.d("getStartTripCmd()", "startTrip: getStartTripCmd(): $CMD_START")
+        logV("getStartTripCmd()") { "startTrip: getStartTripCmd(): $CMD_START" }
         val checkSum = xorHexStrings(CMD_START.trim().split(" "))
         val cmdStringBuilder = StringBuilder()
         cmdStringBuilder.append("55 AA ").append(CMD_START).append(checkSum).append(" 55 AA")
@@ -238,7 +234,7 @@ object MeasureBoardUtils {
         val intervalHex = decimalToHex(intervalIn10ms).padStart(2,'0')
         val repeatCountHex = decimalToHex(repeatCount).padStart(2,'0')
         val CMD_BEEP_SOUND = "00 07 00 00 10 AB $durationHex $intervalHex $repeatCountHex"
-        Log.d("DurationInSecond", "DurationInSecond: DurationInSecond(): $durationIn10ms -> $durationHex")
+        logV("DurationInSecond") { "DurationInSecond: DurationInSecond(): $durationIn10ms -> $durationHex" }
         val checkSum = xorHexStrings(CMD_BEEP_SOUND.trim().split(" "))
         val cmdStringBuilder = StringBuilder()
         cmdStringBuilder.append("55 AA ").append(CMD_BEEP_SOUND).append(checkSum).append(" 55 AA")
@@ -389,7 +385,7 @@ object MeasureBoardUtils {
     }
 
     private fun xorHexStrings(hexStrings: List<String>): String? {
-        Log.d("xorHexStrings", "xorHexStrings =>> ${hexStrings}")
+        logV("xorHexStrings") { "xorHexStrings =>> $hexStrings" }
         if (hexStrings.isEmpty()) {
             return null
         }
@@ -577,17 +573,9 @@ object MeasureBoardUtils {
         return buffer.array()
     }
 
-    fun isDateTimeFormatValid(datetime: String): Boolean {
-        val format = SimpleDateFormat("yyyyMMddHHmmss")
-        format.isLenient = false
-
-        return try {
-            format.parse(datetime)
-            true
-        } catch (e: Exception) {
-            false
-        }
-    }
+    fun isDateTimeFormatValid(datetime: String): Boolean =
+        datetime.length == MCU_DATE_TIME_WITH_SECONDS_FORMAT.length &&
+            BcdTimeCodec.packedDateTime(datetime) != BcdTimeCodec.INVALID
 
     const val DEFAULT_MEASURE_BOARD_ACC_OFF_DELAY_MINS = 15
 }
@@ -0,0 +1,218 @@
+package com.vismo.nextgenmeter.model
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+/**
+ * Checks the [McuFrameView] offsets against frames captured from the measure board, and against the hex string
+ * offsets the String parsers used for the frames without a capture.
+ */
+class McuFrameViewTest {
+
+    @Test
+    fun ongoingHeartbeat() {
+        val frame = hex(ONGOING_HEARTBEAT)
+        val view = OngoingHeartbeatView()
+        assertTrue(view.wrap(frame))
+        assertTrue(view.isValid())
+        assertTrue(McuFrameView.hasValidChecksum(frame))
+        assertEquals(0xE3, McuFrameView.commandOf(frame))
+        assertEquals(0xE3, view.command)
+
+        assertEquals(0, view.measureBoardStatus)
+        assertEquals(TripStatus.HIRED, view.tripStatus)
+        assertEquals(0, view.lockedDuration)
+        assertEquals(480.0, view.paidDistance, 0.0)
+        assertEquals(0L, view.waitDurationInSeconds)
+        assertEquals(12.0, view.extras, 0.0)
+        assertEquals(27.0, view.fare, 0.0)
+        assertEquals(39.0, view.totalFare, 0.0)
+        assertEquals("202610172127", view.currentTime())
+        assertEquals(0, view.abnormalPulseCounter)
+        assertEquals(0, view.overspeedCounter)
+        assertEquals(0.0, view.unpaidDistance, 0.0)
+    }
+
+    @Test
+    fun ongoingHeartbeatMatchesStringOffsets() {
+        val hex = frameHex(
+            0xE3, 31,
+            16 to "03", 18 to "012C", 22 to "001234", 28 to "000130", 38 to "000250",
+            44 to "004560", 50 to "004810", 56 to "202503010930", 68 to "02", 70 to "05", 72 to "000077"
+        )
+        val view = OngoingHeartbeatView()
+        view.wrap(hex(hex))
+        assertTrue(view.isValid())
+
+        assertEquals(hex.substring(17, 18).toInt(), view.measureBoardStatus)
+        assertEquals(TripStatus.STOP, view.tripStatus)
+        assertEquals(hex.substring(18, 22).toInt(16), view.lockedDuration)
+        assertEquals(hex.substring(22, 28).toDouble() * 10, view.paidDistance, 0.0)
+        assertEquals(90L, view.waitDurationInSeconds)
+        assertEquals(hex.substring(38, 44).toDouble() / 100, view.extras, 0.0)
+        assertEquals(hex.substring(44, 50).toDouble() / 100, view.fare, 0.0)
+        assertEquals(hex.substring(50, 56).toDouble() / 100, view.totalFare, 0.0)
+        assertEquals(hex.substring(56, 68), view.currentTime())
+        assertEquals(hex.substring(68, 70).toInt(16), view.abnormalPulseCounter)
+        assertEquals(hex.substring(70, 72).toInt(16), view.overspeedCounter)
+        assertEquals(hex.substring(72, 78).toDouble() * 10, view.unpaidDistance, 0.0)
+    }
+
+    @Test
+    fun ongoingHeartbeatRejectsBadFields() {
+        val view = OngoingHeartbeatView()
+
+        val badBcd = hex(ONGOING_HEARTBEAT)
+        badBcd[12] = 0x4A
+        view.wrap(badBcd)
+        assertFalse(view.isValid())
+
+        val badMonth = hex(ONGOING_HEARTBEAT)
+        badMonth[30] = 0x13
+        view.wrap(badMonth)
+        assertFalse(view.isValid())
+
+        val badStatus = hex(ONGOING_HEARTBEAT)
+        badStatus[8] = 0x09
+        view.wrap(badStatus)
+        assertFalse(view.isValid())
+
+        val frame = hex(ONGOING_HEARTBEAT)
+        assertFalse(view.wrap(frame, frame.size - 4))
+        assertFalse(view.isValid())
+    }
+
+    @Test
+    fun parametersResponse() {
+        val frame = hex(PARAMETERS)
+        val view = ParametersView()
+        assertTrue(view.wrap(frame))
+        assertTrue(view.isValid())
+        assertTrue(McuFrameView.hasValidChecksum(frame))
+
+        assertEquals("24010101", view.firmwareVersion())
+        assertEquals("240714A1", view.parametersVersion())
+        assertEquals(650, view.kValue)
+        assertEquals(200, view.startingDistance)
+        assertEquals(2700, view.startingPrice)
+        assertEquals(100, view.stepPrice)
+        assertEquals(8300, view.changedPriceAt)
+        assertEquals(70, view.changedStepPrice)
+
+        // the String parser's offsets, see MCUFareParams
+        assertEquals(
+            MCUFareParams(
+                parametersVersion = PARAMETERS.substring(26, 34),
+                firmwareVersion = PARAMETERS.substring(18, 26),
+                kValue = PARAMETERS.substring(34, 38),
+                startingDistance = PARAMETERS.substring(38, 42),
+                startingPrice = PARAMETERS.substring(42, 46),
+                stepPrice = PARAMETERS.substring(50, 54),
+                changedPriceAt = PARAMETERS.substring(74, 78),
+                changedStepPrice = PARAMETERS.substring(78, 82),
+            ),
+            view.toMCUFareParams()
+        )
+    }
+
+    @Test
+    fun tripEndSummaryMatchesStringOffsets() {
+        val hex = frameHex(
+            0xE4, 66,
+            118 to "000356", 124 to "001015", 130 to "004850", 136 to "000500", 142 to "005350"
+        )
+        val view = TripEndSummaryView()
+        assertTrue(view.wrap(hex(hex)))
+        assertTrue(view.isValid())
+
+        assertEquals(hex.substring(118, 124).toDouble() * 10, view.paidDistance, 0.0)
+        assertEquals(10 * 60 + 15L, view.waitDurationInSeconds)
+        assertEquals(hex.substring(130, 136).toDouble() / 100, view.fare, 0.0)
+        assertEquals(hex.substring(136, 142).toDouble() / 100, view.extras, 0.0)
+        assertEquals(hex.substring(142, 148).toDouble() / 100, view.totalFare, 0.0)
+    }
+
+    @Test
+    fun tripEndSummaryRejectsTheShortCapture() {
+        // the early firmware's E4 frame ends before the summary fields
+        val frame = hex(SHORT_TRIP_END)
+        assertTrue(McuFrameView.hasValidChecksum(frame))
+        assertFalse(TripEndSummaryView().wrap(frame))
+    }
+
+    @Test
+    fun idleHeartbeatMatchesStringOffsets() {
+        val plate = "AB1234".map { "%02X".format(it.code) }.joinToString("")
+        val hex = frameHex(
+            0xE2, 55,
+            40 to "202503010930", 52 to "1122334455", 110 to "FFFF$plate"
+        )
+        val view = IdleHeartbeatView()
+        assertTrue(view.wrap(hex(hex)))
+        assertTrue(view.isValid())
+
+        assertEquals(hex.substring(40, 52), view.currentTime())
+        assertEquals(hex.substring(52, 62), view.measureBoardDeviceId())
+        assertEquals("AB1234", view.licensePlate())
+    }
+
+    @Test
+    fun boardInfoMatchesHexParser() {
+        val tripId = "0123456789abcdef0123456789abcdef".map { "%02X".format(it.code) }.joinToString("")
+        val hex = frameHex(
+            0xB0, 81,
+            16 to "01", 18 to "20250301093015", 32 to "0720", 36 to "A1B2C3D4E5", 46 to "FF".repeat(32),
+            110 to tripId, 174 to "0015"
+        )
+        val view = BoardInfoView()
+        assertTrue(view.wrap(hex(hex)))
+        assertTrue(view.isValid())
+
+        assertEquals(MeteringBoardInfo.parseFromHexResponse(hex), view.toMeteringBoardInfo())
+        assertEquals("0123456789abcdef0123456789abcdef", view.toMeteringBoardInfo().tripId)
+    }
+
+    @Test(expected = IndexOutOfBoundsException::class)
+    fun readingPastTheWrappedLengthThrows() {
+        val view = TripEndSummaryView()
+        view.wrap(hex(ONGOING_HEARTBEAT))
+        view.totalFare
+    }
+
+    companion object {
+        /** 0xE3 ongoing heartbeat */
+        const val ONGOING_HEARTBEAT =
+            "55AA0023000000E3000000000048000000000000120000270000390020261017212700000000008355AA"
+
+        /** 0xA4 parameters enquiry response */
+        const val PARAMETERS =
+            "55AA002D000000A40024010101240714A106500200270027000100000000000000000000008300007000000000000000009C55AA"
+
+        /** 0xE4 trip end as sent by the early firmware */
+        const val SHORT_TRIP_END =
+            "55AA0031020100E4415830303031202020200002202302252047202302252119000000020000000000162500130000000000130001A355AA"
+
+        /**
+         * A frame of [command] with a body of [bodyLength] zero bytes after the command, [fields] written at
+         * their hex string offsets and a valid checksum.
+         */
+        fun frameHex(command: Int, bodyLength: Int, vararg fields: Pair<Int, String>): String {
+            val sb = StringBuilder()
+            sb.append("%04X".format(bodyLength + 4)).append("0000").append("%04X".format(command))
+            repeat(bodyLength) { sb.append("00") }
+            sb.insert(0, "55AA")
+            for ((offset, value) in fields) {
+                sb.replace(offset, offset + value.length, value)
+            }
+            var checksum = 0
+            for (i in 4 until sb.length step 2) {
+                checksum = checksum xor sb.substring(i, i + 2).toInt(16)
+            }
+            return sb.append("%02X".format(checksum)).append("55AA").toString()
+        }
+
+        fun hex(s: String): ByteArray = ByteArray(s.length / 2) { s.substring(it * 2, it * 2 + 2).toInt(16).toByte() }
+    }
+}
@@ -0,0 +1,115 @@
+package com.vismo.nextgenmeter.repository
+
+import kotlinx.coroutines.channels.ClosedReceiveChannelException
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeoutOrNull
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class McuCommandSchedulerTest {
+
+    private val scheduler = McuCommandScheduler()
+    private val sent = ArrayList<String>()
+
+    @Test
+    fun criticalCommandsAreNeverDropped() = runBlocking {
+        for (i in 0 until McuCommandScheduler.NORMAL_CAPACITY * 2) {
+            assertTrue(scheduler.offer(McuCommandClass.CRITICAL) { sent.add("critical $i") })
+            assertTrue(scheduler.offer(McuCommandClass.NORMAL) { sent.add("normal $i") })
+            scheduler.offer(McuCommandClass.COSMETIC) { sent.add("beep $i") }
+        }
+        drain()
+
+        val critical = sent.filter { it.startsWith("critical") }
+        assertEquals((0 until McuCommandScheduler.NORMAL_CAPACITY * 2).map { "critical $it" }, critical)
+        val stats = scheduler.stats().classes
+        assertEquals(0, stats.getValue(McuCommandClass.CRITICAL).dropped)
+        assertEquals(McuCommandScheduler.NORMAL_CAPACITY.toLong(), stats.getValue(McuCommandClass.NORMAL).dropped)
+        // the oldest normal commands were dropped
+        assertEquals("normal ${McuCommandScheduler.NORMAL_CAPACITY}", sent.first { it.startsWith("normal") })
+    }
+
+    @Test
+    fun commandsAreSentInQueueOrder() = runBlocking {
+        scheduler.offer(McuCommandClass.STATE, "extras") { sent.add("extras") }
+        scheduler.offer(McuCommandClass.NORMAL) { sent.add("request") }
+        scheduler.offer(McuCommandClass.CRITICAL) { sent.add("end trip") }
+        drain()
+
+        assertEquals(listOf("extras", "request", "end trip"), sent)
+    }
+
+    @Test
+    fun stateCommandReplacesTheQueuedValue() = runBlocking {
+        scheduler.offer(McuCommandClass.STATE, "extras") { sent.add("extras 1") }
+        scheduler.offer(McuCommandClass.STATE, "k value") { sent.add("k value") }
+        scheduler.offer(McuCommandClass.STATE, "extras") { sent.add("extras 2") }
+        scheduler.offer(McuCommandClass.STATE, "extras") { sent.add("extras 3") }
+        drain()
+
+        // keeps the place of the first extras update
+        assertEquals(listOf("extras 3", "k value"), sent)
+        assertEquals(2, scheduler.stats().classes.getValue(McuCommandClass.STATE).coalesced)
+    }
+
+    @Test
+    fun stateCommandIsNotMovedPastACriticalCommand() = runBlocking {
+        scheduler.offer(McuCommandClass.STATE, "extras") { sent.add("extras 1") }
+        scheduler.offer(McuCommandClass.CRITICAL) { sent.add("end trip") }
+        scheduler.offer(McuCommandClass.STATE, "extras") { sent.add("extras 2") }
+        drain()
+
+        assertEquals(listOf("extras 1", "end trip", "extras 2"), sent)
+        assertEquals(0, scheduler.stats().classes.getValue(McuCommandClass.STATE).coalesced)
+    }
+
+    @Test
+    fun stateCommandIsQueuedAgainOnceTaken() = runBlocking {
+        scheduler.offer(McuCommandClass.STATE, "extras") { sent.add("extras 1") }
+        scheduler.take()()
+        scheduler.offer(McuCommandClass.STATE, "extras") { sent.add("extras 2") }
+        drain()
+
+        assertEquals(listOf("extras 1", "extras 2"), sent)
+    }
+
+    @Test
+    fun cosmeticCommandsAreRateLimited() = runBlocking {
+        assertTrue(scheduler.offer(McuCommandClass.COSMETIC) { sent.add("beep 1") })
+        assertFalse(scheduler.offer(McuCommandClass.COSMETIC) { sent.add("beep 2") })
+        Thread.sleep(McuCommandScheduler.COSMETIC_INTERVAL_MS + 50)
+        assertTrue(scheduler.offer(McuCommandClass.COSMETIC) { sent.add("beep 3") })
+        drain()
+
+        assertEquals(listOf("beep 1", "beep 3"), sent)
+        val stats = scheduler.stats().classes.getValue(McuCommandClass.COSMETIC)
+        assertEquals(1, stats.rateLimited)
+        assertEquals(2, stats.sent)
+    }
+
+    @Test
+    fun closeDropsQueuedCommandsAndWakesTake() = runBlocking {
+        scheduler.offer(McuCommandClass.CRITICAL) { sent.add("end trip") }
+        scheduler.close()
+
+        assertFalse(scheduler.offer(McuCommandClass.CRITICAL) { sent.add("unlock") })
+        val result = runCatching { scheduler.take() }
+        assertTrue(result.exceptionOrNull() is ClosedReceiveChannelException)
+        assertEquals(2, scheduler.stats().classes.getValue(McuCommandClass.CRITICAL).dropped)
+        assertTrue(sent.isEmpty())
+    }
+
+    /** Runs the queued commands until the queue stays empty */
+    private suspend fun drain() {
+        while (true) {
+            val task = withTimeoutOrNull(TAKE_TIMEOUT_MS) { scheduler.take() } ?: break
+            task()
+        }
+    }
+
+    companion object {
+        private const val TAKE_TIMEOUT_MS = 100L
+    }
+}
@@ -0,0 +1,107 @@
+package com.vismo.nextgenmeter.repository
+
+import com.vismo.nextgenmeter.model.MCUMessage
+import com.vismo.nextgenmeter.model.TripStatus
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeoutOrNull
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class McuInboundPipelineTest {
+
+    private val pipeline = McuInboundPipeline()
+
+    @Test
+    fun heartbeatQueuedBeforeTripEndDoesNotReopenTheTrip() = runBlocking {
+        var status = TripStatus.HIRED
+        pipeline.offer(message(ONGOING_HEARTBEAT))
+        pipeline.offer(message(TRIP_END_SUMMARY))
+
+        // the same transitions as the repository: E3 rebuilds an ongoing trip, E4 ends it
+        while (true) {
+            val msg = withTimeoutOrNull(RECEIVE_TIMEOUT_MS) { pipeline.receive() } ?: break
+            status = when (command(msg)) {
+                ONGOING_HEARTBEAT -> TripStatus.HIRED
+                TRIP_END_SUMMARY -> TripStatus.ENDED
+                else -> status
+            }
+        }
+
+        assertEquals(TripStatus.ENDED, status)
+        val heartbeats = pipeline.stats().lanes.getValue(McuLane.HEARTBEAT)
+        assertEquals(1, heartbeats.dropped)
+        assertEquals(0, heartbeats.processed)
+    }
+
+    @Test
+    fun heartbeatAfterTripEndIsDelivered() = runBlocking {
+        pipeline.offer(message(ONGOING_HEARTBEAT))
+        pipeline.offer(message(TRIP_END_SUMMARY))
+        assertEquals(TRIP_END_SUMMARY, command(pipeline.receive()))
+
+        pipeline.offer(message(IDLE_HEARTBEAT))
+        assertEquals(IDLE_HEARTBEAT, command(pipeline.receive()))
+        assertNull(withTimeoutOrNull(RECEIVE_TIMEOUT_MS) { pipeline.receive() })
+    }
+
+    @Test
+    fun criticalFramesAreServedFirst() = runBlocking {
+        pipeline.offer(message(PARAMETERS))
+        pipeline.offer(message(IDLE_HEARTBEAT))
+        pipeline.offer(message(ABNORMAL_PULSE))
+
+        assertEquals(ABNORMAL_PULSE, command(pipeline.receive()))
+        assertEquals(PARAMETERS, command(pipeline.receive()))
+        // the heartbeat arrived before the abnormal pulse frame
+        assertNull(withTimeoutOrNull(RECEIVE_TIMEOUT_MS) { pipeline.receive() })
+    }
+
+    @Test
+    fun heartbeatsAreConflated() = runBlocking {
+        repeat(3) { pipeline.offer(message(ONGOING_HEARTBEAT)) }
+
+        assertEquals(ONGOING_HEARTBEAT, command(pipeline.receive()))
+        assertNull(withTimeoutOrNull(RECEIVE_TIMEOUT_MS) { pipeline.receive() })
+        assertEquals(2, pipeline.stats().lanes.getValue(McuLane.HEARTBEAT).conflated)
+    }
+
+    @Test
+    fun criticalLaneNeverBlocksOrDrops() = runBlocking {
+        val count = 1_000
+        val start = System.nanoTime()
+        repeat(count) { assertTrue(pipeline.offer(message(TRIP_END_SUMMARY, tag = it))) }
+        // no consumer is running, a bounded lane would have blocked or dropped by now
+        assertTrue(System.nanoTime() - start < 1_000_000_000L)
+
+        repeat(count) { assertEquals(it, tag(pipeline.receive())) }
+        val critical = pipeline.stats().lanes.getValue(McuLane.CRITICAL)
+        assertEquals(count.toLong(), critical.processed)
+        assertEquals(0, critical.dropped)
+    }
+
+    private fun message(command: Int, tag: Int = 0): MCUMessage {
+        val frame = ByteArray(12)
+        frame[0] = 0x55
+        frame[1] = 0xAA.toByte()
+        frame[7] = command.toByte()
+        frame[8] = (tag shr 8).toByte()
+        frame[9] = tag.toByte()
+        return MCUMessage(0, frame)
+    }
+
+    private fun tag(msg: MCUMessage): Int =
+        (((msg.obj as ByteArray)[8].toInt() and 0xFF) shl 8) or ((msg.obj as ByteArray)[9].toInt() and 0xFF)
+
+    private fun command(msg: MCUMessage): Int = (msg.obj as ByteArray)[7].toInt() and 0xFF
+
+    private companion object {
+        const val RECEIVE_TIMEOUT_MS = 100L
+        const val IDLE_HEARTBEAT = 0xE2
+        const val ONGOING_HEARTBEAT = 0xE3
+        const val TRIP_END_SUMMARY = 0xE4
+        const val ABNORMAL_PULSE = 0xE5
+        const val PARAMETERS = 0xA4
+    }
+}
@@ -0,0 +1,113 @@
+package com.vismo.nextgenmeter.repository
+
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.async
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class McuRequestTrackerTest {
+
+    private val tracker = McuRequestTracker()
+    private var sent = 0
+
+    @Test
+    fun responsesAreMatchedByCommandCode() = runBlocking {
+        val parameters = async { tracker.request(McuRequest.PARAMETERS_ENQUIRY, ::writeNow) }
+        val boardInfo = async { tracker.request(McuRequest.METERING_BOARD_INFO, ::writeNow) }
+        val sameParameters = async { tracker.request(McuRequest.PARAMETERS_ENQUIRY, ::writeNow) }
+        awaitSent(3)
+
+        assertFalse(tracker.complete(frame(0xE2)))
+        val boardInfoFrame = frame(McuRequest.METERING_BOARD_INFO.responseCode)
+        val parametersFrame = frame(McuRequest.PARAMETERS_ENQUIRY.responseCode)
+        assertTrue(tracker.complete(boardInfoFrame))
+        assertTrue(tracker.complete(parametersFrame))
+
+        assertSame(boardInfoFrame, boardInfo.await())
+        // concurrent requests of the same kind share one response
+        assertSame(parametersFrame, parameters.await())
+        assertSame(parametersFrame, sameParameters.await())
+        assertEquals(3, sent)
+    }
+
+    @Test
+    fun timeoutSendsTheCommandAgain() = runBlocking {
+        val request = McuRequest.PARAMETERS_ENQUIRY
+        val response = async { tracker.request(request, ::writeNow) }
+        awaitSent(2)
+        val frame = frame(request.responseCode)
+        assertTrue(tracker.complete(frame))
+
+        assertSame(frame, response.await())
+        assertEquals(2, sent)
+    }
+
+    @Test
+    fun noResponseAfterAllRetries() = runBlocking {
+        val request = McuRequest.PARAMETERS_ENQUIRY
+
+        assertNull(tracker.request(request, ::writeNow))
+        assertEquals(request.retries + 1, sent)
+        assertFalse(tracker.complete(frame(request.responseCode)))
+    }
+
+    @Test
+    fun lateResponseIsNotKeptForTheNextRequest() = runBlocking {
+        val request = McuRequest.REQUEST_UPGRADE_FIRMWARE
+        assertNull(tracker.request(request, ::writeNow))
+        assertEquals(1, sent)
+
+        // arrives after the request gave up, nobody is waiting for it
+        assertFalse(tracker.complete(frame(request.responseCode)))
+        val next = async { tracker.request(request, ::writeNow) }
+        awaitSent(2)
+        delay(request.timeoutMillis / 2)
+        assertFalse(next.isCompleted)
+        val frame = frame(request.responseCode)
+        assertTrue(tracker.complete(frame))
+        assertSame(frame, next.await())
+    }
+
+    @Test
+    fun commandThatIsNeverWrittenIsNotRetried() = runBlocking {
+        val tracker = McuRequestTracker(writeTimeoutMillis = 100L)
+        val request = McuRequest.PARAMETERS_ENQUIRY
+
+        // queued, but the task is dropped before it writes the command
+        assertNull(tracker.request(request) { sent++; true })
+        assertEquals(1, sent)
+        assertFalse(tracker.complete(frame(request.responseCode)))
+
+        // a failed write or a full queue gives up at once
+        assertNull(tracker.request(request) { written -> sent++; written.complete(false) })
+        assertNull(tracker.request(request) { sent++; false })
+        assertEquals(3, sent)
+    }
+
+    private fun writeNow(written: CompletableDeferred<Boolean>): Boolean {
+        sent++
+        written.complete(true)
+        return true
+    }
+
+    private suspend fun awaitSent(count: Int) {
+        var waited = 0L
+        while (sent < count && waited < AWAIT_MS) {
+            delay(5)
+            waited += 5
+        }
+        assertEquals(count, sent)
+    }
+
+    private fun frame(command: Int) = ByteArray(16).also { it[7] = command.toByte() }
+
+    companion object {
+        private const val AWAIT_MS = 3_000L
+    }
+}
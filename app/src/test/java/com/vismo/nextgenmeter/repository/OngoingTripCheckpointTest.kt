@@ -0,0 +1,137 @@
+package com.vismo.nextgenmeter.repository
+
+import com.google.firebase.Timestamp
+import com.vismo.nextgenmeter.model.TripData
+import com.vismo.nextgenmeter.model.TripStatus
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.io.RandomAccessFile
+
+class OngoingTripCheckpointTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private val file: File by lazy { File(folder.root, "ongoing_trip.checkpoint") }
+
+    @Test
+    fun restoresEveryField() {
+        val trip = TripData(
+            internalId = 7,
+            tripId = "3f2a9c1e7b444d0a9e610c5b8d2f4a77",
+            licensePlate = "AB1234",
+            deviceId = "1234567890",
+            startTime = Timestamp(1_700_000_000, 123),
+            tripStatus = TripStatus.STOP,
+            fare = 27.0,
+            extra = 5.5,
+            totalFare = 32.5,
+            paidDistanceInMeters = 1_234.5,
+            unpaidDistanceInMeters = 12.0,
+            waitDurationInSeconds = 90,
+            pauseTime = Timestamp(1_700_000_600, 0),
+            isDash = true,
+            overSpeedDurationInSeconds = 3,
+            abnormalPulseCounter = 1,
+            mcuStatus = 2,
+            mcuTime = 20240131235900,
+        )
+        assertTrue(checkpoint().save(trip))
+
+        assertEquals(trip, checkpoint().restore())
+    }
+
+    @Test
+    fun higherSequenceWins() {
+        checkpoint().apply {
+            save(trip(fare = 1.0))
+            save(trip(fare = 2.0))
+            // the third save goes back to the first slot
+            save(trip(fare = 3.0))
+        }
+        assertEquals(3.0, checkpoint().restore()!!.fare, 0.0)
+
+        // a new instance continues the sequence from the slots on disk
+        checkpoint().save(trip(fare = 4.0))
+        assertEquals(4.0, checkpoint().restore()!!.fare, 0.0)
+    }
+
+    @Test
+    fun corruptSlotFallsBackToTheOther() {
+        checkpoint().apply {
+            save(trip(fare = 1.0))
+            save(trip(fare = 2.0))
+        }
+        // the second save, sequence 1, is in the second slot
+        flipByte(SLOT_BYTES + 40)
+
+        assertEquals(1.0, checkpoint().restore()!!.fare, 0.0)
+    }
+
+    @Test
+    fun bothSlotsCorruptRestoresNothing() {
+        checkpoint().apply {
+            save(trip(fare = 1.0))
+            save(trip(fare = 2.0))
+        }
+        flipByte(40)
+        flipByte(SLOT_BYTES + 40)
+
+        assertNull(checkpoint().restore())
+    }
+
+    @Test
+    fun clearHidesTheTrip() {
+        checkpoint().apply {
+            save(trip(fare = 1.0))
+            clear()
+            assertNull(restore())
+        }
+        assertNull(checkpoint().restore())
+
+        checkpoint().save(trip(fare = 2.0))
+        assertEquals(2.0, checkpoint().restore()!!.fare, 0.0)
+    }
+
+    @Test
+    fun tripThatDoesNotFitIsRejected() {
+        val checkpoint = checkpoint()
+        assertTrue(checkpoint.save(trip(fare = 1.0)))
+
+        assertFalse(checkpoint.save(trip(fare = 2.0).copy(licensePlate = "x".repeat(2 * SLOT_BYTES.toInt()))))
+        assertEquals(1.0, checkpoint().restore()!!.fare, 0.0)
+    }
+
+    @Test
+    fun missingFileRestoresNothing() {
+        assertNull(checkpoint().restore())
+    }
+
+    private fun checkpoint() = OngoingTripCheckpoint(file)
+
+    private fun flipByte(position: Long) {
+        RandomAccessFile(file, "rw").use { raf ->
+            raf.seek(position)
+            val b = raf.read()
+            raf.seek(position)
+            raf.write(b xor 0x40)
+        }
+    }
+
+    private fun trip(fare: Double) = TripData(
+        tripId = "3f2a9c1e7b444d0a9e610c5b8d2f4a77",
+        startTime = Timestamp(1_700_000_000, 0),
+        tripStatus = TripStatus.HIRED,
+        fare = fare,
+    )
+
+    companion object {
+        private const val SLOT_BYTES = 1024L
+    }
+}
@@ -0,0 +1,155 @@
+package com.vismo.nextgenmeter.repository
+
+import com.google.firebase.Timestamp
+import com.google.gson.Gson
+import com.vismo.nextgenmeter.model.TripData
+import com.vismo.nextgenmeter.model.TripStatus
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.io.RandomAccessFile
+
+class TripHistoryStoreTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private val gson = Gson()
+    private val dir: File by lazy { File(folder.root, "trip_history") }
+    private var store: TripHistoryStore? = null
+
+    @After
+    fun tearDown() {
+        store?.close()
+    }
+
+    @Test
+    fun tripsBetweenSpansDayBoundaries() {
+        open().apply {
+            upsert(trip("a", day = 0, minute = 22 * 60))
+            upsert(trip("b", day = 0, minute = 23 * 60 + 30))
+            upsert(trip("c", day = 1, minute = 30))
+            upsert(trip("d", day = 1, minute = 90))
+            upsert(trip("e", day = 2, minute = 60))
+        }
+        val store = store!!
+
+        assertEquals(listOf("c", "b"), store.tripsBetween(at(0, 23 * 60), at(1, 60)).map { it.tripId })
+        assertEquals(listOf("e", "d", "c", "b", "a"), store.tripsBetween(at(0, 0), at(3, 0)).map { it.tripId })
+        // both ends are inclusive
+        assertEquals(listOf("c", "b"), store.tripsBetween(at(0, 23 * 60 + 30), at(1, 30)).map { it.tripId })
+        assertTrue(store.tripsBetween(at(1, 0), at(0, 0)).isEmpty())
+        assertTrue(store.tripsBetween(at(5, 0), at(6, 0)).isEmpty())
+
+        // the same from the segment files after a reopen
+        assertEquals(listOf("c", "b"), open().tripsBetween(at(0, 23 * 60), at(1, 60)).map { it.tripId })
+    }
+
+    @Test
+    fun recentTripsSpanDayBoundaries() {
+        open().apply {
+            upsert(trip("a", day = 0, minute = 60))
+            upsert(trip("b", day = 0, minute = 23 * 60 + 59))
+            upsert(trip("c", day = 2, minute = 0))
+            upsert(trip("d", day = 2, minute = 10))
+        }
+
+        assertEquals(listOf("d", "c", "b"), store!!.recentTrips(3).map { it.tripId })
+        assertEquals(listOf("d", "c", "b", "a"), store!!.recentTrips(10).map { it.tripId })
+        assertTrue(store!!.recentTrips(0).isEmpty())
+        assertEquals(listOf("d", "c", "b"), open().recentTrips(3).map { it.tripId })
+    }
+
+    @Test
+    fun upsertReplacesTheTripInItsSegment() {
+        open().apply {
+            upsert(trip("a", day = 0, minute = 60))
+            upsert(trip("b", day = 1, minute = 60))
+            // the segment of day 0 is written again after day 1
+            upsert(trip("a", day = 0, minute = 60).copy(fare = 99.0))
+        }
+
+        val trips = open().recentTrips(10)
+        assertEquals(listOf("b", "a"), trips.map { it.tripId })
+        assertEquals(99.0, trips.last().fare, 0.0)
+    }
+
+    @Test
+    fun retentionByAgeCountsFromTheNewestSegment() {
+        open().apply {
+            for (day in listOf(0, 10, 20)) upsert(trip("t$day", day = day, minute = 60))
+        }
+        // the trips are years old, a retention measured from the clock would delete all of them
+        assertEquals(3, store!!.recentTrips(10).size)
+
+        store!!.setRetention(TripHistoryStore.Retention(maxAgeDays = 15))
+
+        assertEquals(listOf("t20", "t10"), store!!.recentTrips(10).map { it.tripId })
+        assertEquals(listOf("${DAY_0 + 10}.journal", "${DAY_0 + 20}.journal"), segmentNames())
+        assertEquals(listOf("t20", "t10"), open().recentTrips(10).map { it.tripId })
+    }
+
+    @Test
+    fun retentionBySizeKeepsTheNewestSegment() {
+        open().apply {
+            for (day in 0 until 5) upsert(trip("t$day", day = day, minute = 60))
+        }
+        val segmentBytes = File(dir, "$DAY_0.journal").length()
+
+        store!!.setRetention(TripHistoryStore.Retention(maxBytes = segmentBytes * 2))
+        assertEquals(listOf("t4", "t3"), store!!.recentTrips(10).map { it.tripId })
+
+        store!!.setRetention(TripHistoryStore.Retention(maxBytes = 1))
+        assertEquals(listOf("t4"), store!!.recentTrips(10).map { it.tripId })
+        assertEquals(1, segmentNames().size)
+    }
+
+    @Test
+    fun queriesDoNotTruncateSegments() {
+        open().apply {
+            upsert(trip("a", day = 0, minute = 60))
+            upsert(trip("b", day = 0, minute = 120))
+            upsert(trip("c", day = 1, minute = 60))
+        }
+        store!!.close()
+        val segment = File(dir, "$DAY_0.journal")
+        // as if another writer was still appending the last record
+        RandomAccessFile(segment, "rw").use { it.setLength(it.length() - 5) }
+        val length = segment.length()
+
+        // the day 0 segment is not the one being written, it is read from its file
+        val store = TripHistoryStore(dir, gson).also { it.open(); this.store = it }
+        store.upsert(trip("d", day = 1, minute = 120))
+        assertEquals(listOf("d", "c", "a"), store.recentTrips(10).map { it.tripId })
+        assertEquals(length, segment.length())
+    }
+
+    private fun open(): TripHistoryStore {
+        store?.close()
+        return TripHistoryStore(dir, gson).also {
+            it.open()
+            store = it
+        }
+    }
+
+    private fun segmentNames(): List<String> = dir.list()!!.sorted()
+
+    private fun at(day: Int, minute: Int) = Timestamp((DAY_0 + day) * SECONDS_PER_DAY + minute * 60L, 0)
+
+    private fun trip(id: String, day: Int, minute: Int) = TripData(
+        tripId = id,
+        startTime = at(day, minute),
+        tripStatus = TripStatus.ENDED,
+        fare = 27.0,
+    )
+
+    companion object {
+        private const val SECONDS_PER_DAY = 24 * 60 * 60L
+        /** 2023-11-14 UTC */
+        private const val DAY_0 = 19_675L
+    }
+}
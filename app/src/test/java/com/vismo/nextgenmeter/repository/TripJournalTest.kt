@@ -0,0 +1,177 @@
+package com.vismo.nextgenmeter.repository
+
+import com.google.firebase.Timestamp
+import com.google.gson.Gson
+import com.vismo.nextgenmeter.model.TripData
+import com.vismo.nextgenmeter.model.TripStatus
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.io.RandomAccessFile
+
+class TripJournalTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private val gson = Gson()
+    private val file: File by lazy { File(folder.root, "trips.journal") }
+    private var journal: TripJournal? = null
+
+    @After
+    fun tearDown() {
+        journal?.close()
+    }
+
+    @Test
+    fun reopenReplaysUpsertsAndTombstones() {
+        open().apply {
+            upsert(trip("a", fare = 1.0))
+            upsert(trip("b"))
+            upsert(trip("a", fare = 2.0))
+            assertTrue(delete("b"))
+            assertFalse(delete("b"))
+            upsert(trip("c"))
+        }
+
+        val trips = open().trips
+        assertEquals(listOf("a", "c"), trips.map { it.tripId })
+        assertEquals(2.0, trips.first().fare, 0.0)
+    }
+
+    @Test
+    fun tornTailIsTruncated() {
+        open().apply {
+            upsert(trip("a"))
+            upsert(trip("b"))
+        }
+        val complete = file.length()
+        open().upsert(trip("c"))
+        journal!!.close()
+        // a power cut in the middle of the last record
+        RandomAccessFile(file, "rw").use { it.setLength(complete + 10) }
+
+        assertEquals(listOf("a", "b"), open().trips.map { it.tripId })
+        assertEquals(complete, file.length())
+        assertFalse(corruptFile().exists())
+
+        journal!!.upsert(trip("d"))
+        assertEquals(listOf("a", "b", "d"), open().trips.map { it.tripId })
+    }
+
+    @Test
+    fun lastRecordWithBadChecksumIsTruncated() {
+        open().upsert(trip("a"))
+        val complete = file.length()
+        open().upsert(trip("b"))
+        journal!!.close()
+        flipByte(file.length() - 1)
+
+        assertEquals(listOf("a"), open().trips.map { it.tripId })
+        assertEquals(complete, file.length())
+    }
+
+    @Test
+    fun damagedRecordInTheMiddleIsSkipped() {
+        open().upsert(trip("a"))
+        val damagedAt = file.length()
+        journal!!.apply {
+            upsert(trip("b"))
+            upsert(trip("c"))
+            upsert(trip("d"))
+        }
+        val length = file.length()
+        journal!!.close()
+        // a byte of the payload of b, its length is intact
+        flipByte(damagedAt + 20)
+
+        assertEquals(listOf("a", "c", "d"), open().trips.map { it.tripId })
+        assertEquals(length, file.length())
+        assertTrue(journal!!.deadRatio > 0.0)
+    }
+
+    @Test
+    fun unreadableLengthKeepsTheRestInCorruptFile() {
+        open().upsert(trip("a"))
+        val damagedAt = file.length()
+        journal!!.upsert(trip("b"))
+        journal!!.upsert(trip("c"))
+        val length = file.length()
+        journal!!.close()
+        // the length of b is larger than any record
+        flipByte(damagedAt)
+
+        assertEquals(listOf("a"), open().trips.map { it.tripId })
+        assertEquals(damagedAt, file.length())
+        assertEquals(length - damagedAt, corruptFile().length())
+    }
+
+    @Test
+    fun compactionKeepsTheLiveTripsAcrossReopen() {
+        open().apply {
+            // each trip is rewritten many times, so most of the journal is dead records
+            for (round in 0 until 200) {
+                for (id in listOf("a", "b", "c")) upsert(trip(id, fare = round.toDouble()))
+            }
+            upsert(trip("d"))
+            assertTrue(delete("d"))
+        }
+        val journal = journal!!
+        assertTrue(journal.needsCompaction)
+        val before = file.length()
+
+        journal.compact()
+
+        assertTrue(file.length() < before)
+        assertEquals(0.0, journal.deadRatio, 0.0)
+        assertFalse(File(file.path + ".tmp").exists())
+        journal.upsert(trip("e"))
+        val trips = open().trips
+        assertEquals(listOf("a", "b", "c", "e"), trips.map { it.tripId })
+        assertTrue(trips.take(3).all { it.fare == 199.0 })
+    }
+
+    @Test
+    fun clearAndReplaceAll() {
+        open().apply {
+            upsert(trip("a"))
+            clear()
+            assertTrue(isEmpty)
+        }
+        assertTrue(open().trips.isEmpty())
+
+        journal!!.replaceAll(listOf(trip("x"), trip("y")))
+        assertEquals(listOf("x", "y"), open().trips.map { it.tripId })
+    }
+
+    private fun open(): TripJournal {
+        journal?.close()
+        return TripJournal(file, gson).also {
+            it.open()
+            journal = it
+        }
+    }
+
+    private fun corruptFile() = File(file.path + ".corrupt")
+
+    private fun flipByte(position: Long) {
+        RandomAccessFile(file, "rw").use { raf ->
+            raf.seek(position)
+            val b = raf.read()
+            raf.seek(position)
+            raf.write(b xor 0x40)
+        }
+    }
+
+    private fun trip(id: String, fare: Double = 0.0) = TripData(
+        tripId = id,
+        startTime = Timestamp(1_700_000_000, 0),
+        tripStatus = TripStatus.ENDED,
+        fare = fare,
+    )
+}
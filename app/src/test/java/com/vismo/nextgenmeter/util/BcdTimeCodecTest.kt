@@ -0,0 +1,124 @@
+package com.vismo.nextgenmeter.util
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.time.LocalDateTime
+import java.time.ZoneOffset
+import java.util.Random
+
+class BcdTimeCodecTest {
+
+    @Test
+    fun roundTripsRandomDateTimes() {
+        val random = Random(1)
+        repeat(10_000) {
+            val dateTime = LocalDateTime.of(
+                2000 + random.nextInt(100),
+                1 + random.nextInt(12),
+                1,
+                random.nextInt(24),
+                random.nextInt(60),
+                random.nextInt(60),
+            ).plusDays(random.nextInt(31).toLong())
+            val text = "%04d%02d%02d%02d%02d%02d".format(
+                dateTime.year, dateTime.monthValue, dateTime.dayOfMonth,
+                dateTime.hour, dateTime.minute, dateTime.second,
+            )
+            val frame = bcd("FF$text")
+            val expected = dateTime.toEpochSecond(ZoneOffset.ofHours(8))
+
+            assertEquals(text.toLong(), BcdTimeCodec.packedDateTime(frame, 1, withSeconds = true))
+            assertEquals(text.toLong(), BcdTimeCodec.packedDateTime(text))
+            assertEquals(text, expected, BcdTimeCodec.epochSeconds(frame, 1, withSeconds = true))
+            assertEquals(
+                text,
+                dateTime.withSecond(0).toEpochSecond(ZoneOffset.ofHours(8)),
+                BcdTimeCodec.epochSeconds(frame, 1, withSeconds = false),
+            )
+        }
+    }
+
+    @Test
+    fun leapDays() {
+        assertEquals(20240229120000L, BcdTimeCodec.packedDateTime("202402291200"))
+        assertEquals(20000229120000L, BcdTimeCodec.packedDateTime("200002291200"))
+        assertEquals(BcdTimeCodec.INVALID, BcdTimeCodec.packedDateTime("202302291200"))
+        assertEquals(BcdTimeCodec.INVALID, BcdTimeCodec.packedDateTime("210002291200"))
+        assertEquals(
+            LocalDateTime.of(2024, 2, 29, 12, 0).toEpochSecond(ZoneOffset.UTC),
+            BcdTimeCodec.toEpochSeconds(20240229120000L, utcOffsetSeconds = 0),
+        )
+    }
+
+    @Test
+    fun rejectsNibblesThatAreNotDigits() {
+        val valid = bcd("20240131235959")
+        assertTrue(BcdTimeCodec.isValidDateTime(valid, 0, withSeconds = true))
+        for (index in valid.indices) {
+            for (nibble in listOf(0xA0, 0x0A, 0xF0, 0x0F)) {
+                val frame = valid.copyOf()
+                frame[index] = if (nibble > 0x0F) {
+                    ((frame[index].toInt() and 0x0F) or nibble).toByte()
+                } else {
+                    ((frame[index].toInt() and 0xF0) or nibble).toByte()
+                }
+                assertFalse(
+                    "byte $index nibble ${Integer.toHexString(nibble)}",
+                    BcdTimeCodec.isValidDateTime(frame, 0, withSeconds = true),
+                )
+            }
+        }
+        assertEquals(BcdTimeCodec.INVALID, BcdTimeCodec.packedDateTime("2024013123A9"))
+        assertEquals(BcdTimeCodec.INVALID, BcdTimeCodec.packedDateTime("20240131 359"))
+    }
+
+    @Test
+    fun rejectsOutOfRangeFields() {
+        for (text in listOf(
+            "202400011200", "202413011200", "202401001200", "202404311200",
+            "202401012400", "202401011260", "20240101120060",
+        )) {
+            assertEquals(text, BcdTimeCodec.INVALID, BcdTimeCodec.packedDateTime(text))
+            assertEquals(text, BcdTimeCodec.INVALID, BcdTimeCodec.packedDateTime(bcd(text), 0, text.length == 14))
+        }
+        assertEquals(BcdTimeCodec.INVALID, BcdTimeCodec.toEpochSeconds(BcdTimeCodec.INVALID))
+    }
+
+    @Test
+    fun rejectsWrongLengthsAndOffsets() {
+        assertEquals(BcdTimeCodec.INVALID, BcdTimeCodec.packedDateTime("2024013123"))
+        assertEquals(BcdTimeCodec.INVALID, BcdTimeCodec.packedDateTime("2024013123595"))
+        val frame = bcd("202401312359")
+        assertEquals(BcdTimeCodec.INVALID, BcdTimeCodec.packedDateTime(frame, 0, withSeconds = true))
+        assertEquals(BcdTimeCodec.INVALID, BcdTimeCodec.packedDateTime(frame, 1, withSeconds = false))
+        assertEquals(BcdTimeCodec.INVALID, BcdTimeCodec.packedDateTime(frame, -1, withSeconds = false))
+        assertEquals(BcdTimeCodec.INVALID, BcdTimeCodec.durationSeconds(frame, 4))
+        assertEquals(BcdTimeCodec.INVALID, BcdTimeCodec.durationSeconds("01234"))
+    }
+
+    @Test
+    fun durations() {
+        assertEquals(0L, BcdTimeCodec.durationSeconds(bcd("000000"), 0))
+        assertEquals(3_723L, BcdTimeCodec.durationSeconds(bcd("010203"), 0))
+        assertEquals(99 * 3_600L + 99 * 60L + 99, BcdTimeCodec.durationSeconds(bcd("999999"), 0))
+        assertEquals(3_723L, BcdTimeCodec.durationSeconds("010203"))
+        assertEquals(BcdTimeCodec.INVALID, BcdTimeCodec.durationSeconds(byteArrayOf(0x01, 0x0A, 0x00), 0))
+        assertEquals(BcdTimeCodec.INVALID, BcdTimeCodec.durationSeconds("01:203"))
+    }
+
+    @Test
+    fun durationsOfValidFieldsKeepTheOtherFields() {
+        assertEquals(3_723L, BcdTimeCodec.durationSecondsOfValidFields("010203"))
+        // the invalid field counts as 0, unlike durationSeconds
+        assertEquals(3_603L, BcdTimeCodec.durationSecondsOfValidFields("01:203"))
+        assertEquals(123L, BcdTimeCodec.durationSecondsOfValidFields("xx0203"))
+        assertEquals(0L, BcdTimeCodec.durationSecondsOfValidFields("------"))
+        assertEquals(0L, BcdTimeCodec.durationSecondsOfValidFields("01020"))
+    }
+
+    /** Packs the decimal digits in [text], two per byte, as the MCU sends them */
+    private fun bcd(text: String): ByteArray =
+        ByteArray(text.length / 2) { text.substring(it * 2, it * 2 + 2).toInt(16).toByte() }
+}
@@ -0,0 +1,141 @@
+package com.vismo.nextgenmeter.util
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.nio.ByteBuffer
+
+/**
+ * Checks every [CommandEncoder] command byte for byte against the String builders in [MeasureBoardUtils].
+ */
+class CommandEncoderTest {
+
+    private val encoder = CommandEncoder()
+
+    @Test
+    fun startTrip() {
+        val tripId = MeasureBoardUtils.getIdWithoutHyphens("3f2a9c1e-7b44-4d0a-9e61-0c5b8d2f4a77")
+        assertSameBytes(MeasureBoardUtils.getStartTripCmd(tripId), encoder.startTrip(tripId))
+        assertSameBytes(MeasureBoardUtils.getStartPauseTripCmd(tripId), encoder.startTrip(tripId, isPause = true))
+    }
+
+    @Test
+    fun pauseContinueAndEndTrip() {
+        assertSameBytes(MeasureBoardUtils.getPauseTripCmd(), encoder.pauseTrip())
+        assertSameBytes(MeasureBoardUtils.getContinueTripCmd(), encoder.continueTrip())
+        assertSameBytes(MeasureBoardUtils.getContinueTripCmd(isMute = true), encoder.continueTrip(isMute = true))
+        assertSameBytes(MeasureBoardUtils.getEndTripCmd(), encoder.endTrip())
+    }
+
+    @Test
+    fun updateExtras() {
+        for (amount in listOf(0, 5, 50, 120, 999, 1000, 9999)) {
+            assertSameBytes(MeasureBoardUtils.getUpdateExtrasCmd(amount.toString()), encoder.updateExtras(amount))
+        }
+        // the legacy builder caps longer amounts at 9999
+        assertSameBytes(MeasureBoardUtils.getUpdateExtrasCmd("12345"), encoder.updateExtras(12345))
+    }
+
+    @Test
+    fun beep() {
+        assertSameBytes(MeasureBoardUtils.getBeepSoundCmd(10, 0, 1), encoder.beep(10, 0, 1))
+        assertSameBytes(MeasureBoardUtils.getBeepSoundCmd(20, 5, 3), encoder.beep(20, 5, 3))
+        assertSameBytes(MeasureBoardUtils.getBeepSoundCmd(255, 255, 255), encoder.beep(255, 255, 255))
+    }
+
+    @Test
+    fun updateTime() {
+        for (dateTime in listOf("20250301093015", "202503010930", "20251231235959")) {
+            assertSameBytes(MeasureBoardUtils.getUpdateTimeCmd(dateTime), encoder.updateTime(dateTime))
+        }
+    }
+
+    @Test
+    fun updateTimeFallsBackOnInvalidDate() {
+        // the legacy builder throws on its own fallback date, so compare with the valid one
+        assertSameBytes(MeasureBoardUtils.getUpdateTimeCmd("20240101161718"), encoder.updateTime("not a date"))
+    }
+
+    @Test
+    fun updateKValue() {
+        assertSameBytes(MeasureBoardUtils.getUpdateKValueCmd(720, 30), encoder.updateKValue(720, 30))
+        assertSameBytes(MeasureBoardUtils.getUpdateKValueCmd(720, null), encoder.updateKValue(720, null))
+        assertSameBytes(MeasureBoardUtils.getUpdateKValueCmd(null, 5), encoder.updateKValue(null, 5))
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun updateKValueNeedsAValue() {
+        encoder.updateKValue(null, null)
+    }
+
+    @Test
+    fun updatePriceParams() {
+        assertSameBytes(
+            MeasureBoardUtils.getUpdatePriceParamCmd(2700, 100, 70, 9300),
+            encoder.updatePriceParams(2700, 100, 70, 9300)
+        )
+        assertSameBytes(
+            MeasureBoardUtils.getUpdatePriceParamCmd(0, 0, 0, 0),
+            encoder.updatePriceParams(0, 0, 0, 0)
+        )
+    }
+
+    @Test
+    fun writeLicensePlate() {
+        for (plate in listOf("AB1234", "XY9", "ABCD1234")) {
+            assertSameBytes(
+                MeasureBoardUtils.getWritingDataIntoMeasureBoardCmd(plate),
+                encoder.writeLicensePlate(plate)
+            )
+        }
+    }
+
+    @Test
+    fun androidFirmwareVersion() {
+        for (version in listOf("1.5.3", "0.0.0", "12.34.99")) {
+            assertSameBytes(
+                MeasureBoardUtils.sendAndroidFirmwareVersionCmd(version),
+                encoder.androidFirmwareVersion(version)
+            )
+        }
+    }
+
+    @Test
+    fun fixedCommands() {
+        assertSameBytes(MeasureBoardUtils.getUnlockCmd(), encoder.unlock())
+        assertSameBytes(MeasureBoardUtils.getShutdownNotificationCmd(), encoder.shutdownNotification())
+        assertSameBytes(MeasureBoardUtils.getMeteringBoardInfoCmd(), encoder.meteringBoardInfo())
+        assertSameBytes(MeasureBoardUtils.getMeasureBoardDeviceIdCmd(), encoder.readDeviceId())
+    }
+
+    @Test
+    fun templatesAreNotMovedByCallers() {
+        val first = encoder.unlock()
+        first.position(first.limit())
+        assertSameBytes(MeasureBoardUtils.getUnlockCmd(), encoder.unlock())
+    }
+
+    private fun assertSameBytes(legacy: String, encoded: ByteBuffer) {
+        assertEquals(legacyHex(legacy), hexOf(encoded))
+    }
+
+    companion object {
+        /**
+         * The legacy builders write a checksum below 0x10 as a single digit, the MCU reads it as the full byte.
+         */
+        fun legacyHex(cmd: String): String {
+            val hex = cmd.uppercase()
+            if (hex.length % 2 == 0) return hex
+            val checksumAt = hex.length - 5
+            return hex.substring(0, checksumAt) + "0" + hex.substring(checksumAt)
+        }
+
+        fun hexOf(buffer: ByteBuffer): String {
+            val copy = buffer.duplicate()
+            val sb = StringBuilder()
+            while (copy.hasRemaining()) {
+                sb.append("%02X".format(copy.get().toInt() and 0xFF))
+            }
+            return sb.toString()
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.vismo.nextgenmeter.util
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.util.Random
+
+/**
+ * Checks every [FirmwareStreamer] frame byte for byte against [MeasureBoardUtils.getPatchMeterBoardFirmwareCmd].
+ */
+class FirmwareStreamerTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    @Test
+    fun imageWithAPartialLastChunk() {
+        // the last chunk is padded with 0xFF
+        assertSameChunks(image(FirmwareStreamer.CHUNK_SIZE * 3 + 517))
+    }
+
+    @Test
+    fun imageOfWholeChunks() {
+        // length / 2048 + 1 announces one chunk past the end, neither builder has a frame for it
+        assertSameChunks(image(FirmwareStreamer.CHUNK_SIZE * 2))
+    }
+
+    @Test
+    fun imageSmallerThanOneChunk() {
+        assertSameChunks(image(100))
+    }
+
+    @Test
+    fun framesForAnotherVersionAreNotReused() {
+        val file = image(FirmwareStreamer.CHUNK_SIZE + 1)
+        val streamer = FirmwareStreamer.open(file.path)
+
+        assertArrayEquals(legacy(file, VERSION, 1), streamer.chunk(1, FirmwareStreamer.parseVersion(VERSION)))
+        assertArrayEquals(legacy(file, OTHER_VERSION, 1), streamer.chunk(1, FirmwareStreamer.parseVersion(OTHER_VERSION)))
+    }
+
+    private fun assertSameChunks(file: File) {
+        val streamer = FirmwareStreamer.open(file.path)
+        val version = FirmwareStreamer.parseVersion(VERSION)
+        assertEquals(MeasureBoardUtils.getFirmwareTotalOffset(file.path), streamer.chunkCount)
+
+        // the MCU asks for the chunks from the last one down to 0, with prefetch building the next one
+        for (index in streamer.chunkCount - 1 downTo 0) {
+            val expected = legacy(file, VERSION, index)
+            val actual = streamer.chunk(index, version)
+            if (expected == null) {
+                assertNull("chunk $index", actual)
+            } else {
+                assertArrayEquals("chunk $index", expected, actual)
+            }
+            streamer.prefetch()
+        }
+        // asked again, from the cache or rebuilt
+        for (index in 0 until streamer.chunkCount) {
+            assertArrayEquals("chunk $index again", legacy(file, VERSION, index), streamer.chunk(index, version))
+        }
+        assertNull(streamer.chunk(streamer.chunkCount, version))
+        assertNull(streamer.chunk(-1, version))
+        assertNull(legacy(file, VERSION, streamer.chunkCount))
+    }
+
+    private fun legacy(file: File, version: String, index: Int): ByteArray? =
+        MeasureBoardUtils.getPatchMeterBoardFirmwareCmd(file.path, version, index)
+
+    private fun image(length: Int): File {
+        val bytes = ByteArray(length).also { Random(length.toLong()).nextBytes(it) }
+        return folder.newFile("firmware_$length.bin").apply { writeBytes(bytes) }
+    }
+
+    companion object {
+        private const val VERSION = "23082501"
+        private const val OTHER_VERSION = "23090100"
+    }
+}
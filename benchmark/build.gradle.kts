@@ -0,0 +1,108 @@
+/*
+ * JMH benchmarks for the serial, codec and trip persistence hot paths.
+ *
+ * The benchmarked classes have no Android dependencies of their own, so their sources are compiled
+ * straight from measure-board-module and app into this JVM module. Only the platform classes they
+ * touch (android.util.Log, com.google.firebase.Timestamp) are stubbed in src/main/java.
+ *
+ *   ./gradlew :benchmark:jmh                   run everything, JSON results in build/results/jmh/results.json
+ *   ./gradlew :benchmark:jmh -Pjmh.includes=Frame   run the benchmarks matching a regex
+ *   ./gradlew :benchmark:jmhCompare -Pbaseline=path/to/baseline.json
+ *                                              compare the last run against a saved baseline
+ *   ./gradlew :benchmark:storageFaults -Ptrips=60 -Pseed=1
+ *                                              crash the trip storage backends mid-write, JSON report on stdout
+ */
+plugins {
+    java
+    alias(libs.plugins.jetbrainsKotlinJvm)
+    alias(libs.plugins.jmh)
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_11
+    targetCompatibility = JavaVersion.VERSION_11
+}
+
+kotlin {
+    jvmToolchain(17)
+    compilerOptions {
+        jvmTarget.set(org.jetbrains.kotlin.gradle.dsl.JvmTarget.JVM_11)
+    }
+}
+
+val measureBoardSources = "$rootDir/measure-board-module/src/main/java"
+val appSources = "$rootDir/app/src/main/java"
+
+sourceSets {
+    main {
+        java {
+            srcDir(measureBoardSources)
+            include(
+                "android/**",
+                "com/google/firebase/**",
+                "android_serialport_api/CRC.java",
+                "android_serialport_api/SerialUtils.java",
+                "com/serial/port/ByteUtils.java",
+                "com/serial/opt/CircleBuff.java",
+                "com/serial/opt/FrameDecoder.java",
+                "com/serial/opt/JLog.java",
+                "com/serial/opt/MeterLog.java",
+                "com/serial/opt/SpscByteRing.java",
+            )
+        }
+        kotlin {
+            srcDir(appSources)
+            include(
+                "com/vismo/nextgenmeter/util/MeasureBoardUtil.kt",
+                "com/vismo/nextgenmeter/util/Logging.kt",
+                "com/vismo/nextgenmeter/util/BcdTimeCodec.kt",
+                "com/vismo/nextgenmeter/util/CommandEncoder.kt",
+                "com/vismo/nextgenmeter/model/TripData.kt",
+                "com/vismo/nextgenmeter/repository/TripJournal.kt",
+                "com/vismo/nextgenmeter/repository/OngoingTripCheckpoint.kt",
+                "com/vismo/nextgenmeter/model/OngoingMeasureBoardStatusOverspeed.kt",
+                "com/vismo/nextgenmeter/db/Converters.kt",
+            )
+        }
+    }
+}
+
+dependencies {
+    implementation(libs.gson)
+    implementation(libs.room.common)
+    implementation(libs.jsr305)
+}
+
+jmh {
+    jmhVersion.set(libs.versions.jmh.get())
+    warmupIterations.set(3)
+    iterations.set(5)
+    fork.set(1)
+    // the gc profiler adds gc.alloc.rate.norm, the bytes allocated per operation
+    profilers.add("gc")
+    resultFormat.set("JSON")
+    resultsFile.set(layout.buildDirectory.file("results/jmh/results.json"))
+    (findProperty("jmh.includes") as String?)?.let { includes.add(it) }
+}
+
+tasks.register<JavaExec>("jmhCompare") {
+    group = "benchmark"
+    description = "Compares build/results/jmh/results.json with the JSON results given by -Pbaseline"
+    classpath = sourceSets["jmh"].runtimeClasspath
+    mainClass.set("com.vismo.nextgenmeter.benchmark.ResultComparison")
+    args(
+        findProperty("baseline") ?: "",
+        layout.buildDirectory.file("results/jmh/results.json").get().asFile.path,
+    )
+}
+
+tasks.register<JavaExec>("storageFaults") {
+    group = "benchmark"
+    description = "Injects power-loss crash images into the trip storage backends and reports what they recover"
+    classpath = sourceSets["jmh"].runtimeClasspath
+    mainClass.set("com.vismo.nextgenmeter.benchmark.StorageFaultHarness")
+    args(
+        findProperty("trips") ?: "60",
+        findProperty("seed") ?: "1",
+    )
+}
@@ -0,0 +1,71 @@
+package com.vismo.nextgenmeter.benchmark
+
+import com.vismo.nextgenmeter.util.BcdTimeCodec
+import com.vismo.nextgenmeter.util.CommandEncoder
+import com.vismo.nextgenmeter.util.MeasureBoardUtils
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.State
+import java.nio.ByteBuffer
+import java.util.concurrent.TimeUnit
+
+/**
+ * The hex String command builders and heartbeat field helpers in [MeasureBoardUtils],
+ * next to the [CommandEncoder] and [BcdTimeCodec] equivalents.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class CommandBuilderBenchmark {
+
+    private val encoder = CommandEncoder()
+    private val heartbeatHex = Samples.ONGOING_HEARTBEAT_HEX
+    private val heartbeat = Samples.ongoingHeartbeat
+
+    @Benchmark
+    fun startTripString(): String = MeasureBoardUtils.getStartTripCmd(Samples.TRIP_ID)
+
+    @Benchmark
+    fun startTripEncoder(): ByteBuffer = encoder.startTrip(Samples.TRIP_ID)
+
+    @Benchmark
+    fun extrasString(): String = MeasureBoardUtils.getUpdateExtrasCmd("12")
+
+    @Benchmark
+    fun extrasEncoder(): ByteBuffer = encoder.updateExtras(12)
+
+    @Benchmark
+    fun kValueString(): String = MeasureBoardUtils.getUpdateKValueCmd(650, 15)
+
+    @Benchmark
+    fun kValueEncoder(): ByteBuffer = encoder.updateKValue(650, 15)
+
+    @Benchmark
+    fun priceParamsString(): String = MeasureBoardUtils.getUpdatePriceParamCmd(2700, 100, 70, 8300)
+
+    @Benchmark
+    fun priceParamsEncoder(): ByteBuffer = encoder.updatePriceParams(2700, 100, 70, 8300)
+
+    /** Response type lookup on the hex string of an ongoing heartbeat. */
+    @Benchmark
+    fun heartbeatResultType(): String? = MeasureBoardUtils.getResultType(heartbeatHex)
+
+    /** Wait duration (HHMMSS) and MCU time fields of an ongoing heartbeat, as hex substrings. */
+    @Benchmark
+    fun heartbeatFields(): Long {
+        val duration = heartbeatHex.substring(28, 34)
+        val time = heartbeatHex.substring(56, 68)
+        val seconds = if (MeasureBoardUtils.isDurationValid(duration)) MeasureBoardUtils.getTimeInSeconds(duration) else -1L
+        return if (MeasureBoardUtils.isDateTimeFormatValid("${time}00")) seconds else -seconds
+    }
+
+    /** The same two fields decoded from the frame bytes with [BcdTimeCodec]. */
+    @Benchmark
+    fun heartbeatFieldsCodec(): Long {
+        val seconds = BcdTimeCodec.durationSeconds(heartbeat, 14)
+        return if (BcdTimeCodec.epochSeconds(heartbeat, 28, withSeconds = false) != BcdTimeCodec.INVALID) seconds else -seconds
+    }
+}
@@ -0,0 +1,64 @@
+package com.vismo.nextgenmeter.benchmark
+
+import com.serial.opt.FrameDecoder
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OperationsPerInvocation
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.infra.Blackhole
+import java.util.concurrent.TimeUnit
+
+/**
+ * Framing of the raw serial stream, the logic that used to be `UartWorker.checkData`.
+ * The stream is fed in reads of [readSize] bytes so frames are split across reads as on the device.
+ * Scores are per frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class FrameDecoderBenchmark {
+
+    @Param("32", "1024")
+    var readSize: Int = 0
+
+    private val stream = Samples.stream(FRAMES)
+    private val decoder = FrameDecoder()
+    private lateinit var blackhole: Blackhole
+
+    private val toBytes = FrameDecoder.OnFrameListener { frame -> blackhole.consume(frame.copy()) }
+    private val toHex = FrameDecoder.OnFrameListener { frame -> blackhole.consume(frame.toHexString()) }
+
+    @Setup
+    fun setup(blackhole: Blackhole) {
+        this.blackhole = blackhole
+    }
+
+    /** Frames handed on as byte copies, the path the repository uses now. */
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    fun decodeToBytes() = decode(toBytes)
+
+    /** Frames handed on as hex strings, the old `onDistribution(String)` path. */
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    fun decodeToHex() = decode(toHex)
+
+    private fun decode(listener: FrameDecoder.OnFrameListener) {
+        decoder.reset()
+        var offset = 0
+        while (offset < stream.size) {
+            val len = minOf(readSize, stream.size - offset)
+            decoder.decode(stream, offset, len, listener)
+            offset += len
+        }
+    }
+
+    private companion object {
+        const val FRAMES = 256
+    }
+}
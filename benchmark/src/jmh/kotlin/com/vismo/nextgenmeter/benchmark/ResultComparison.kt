@@ -0,0 +1,88 @@
+package com.vismo.nextgenmeter.benchmark
+
+import com.google.gson.GsonBuilder
+import com.google.gson.JsonArray
+import com.google.gson.JsonObject
+import com.google.gson.JsonParser
+import java.io.File
+import kotlin.system.exitProcess
+
+/**
+ * Compares two JMH JSON result files and prints the differences as a JSON array on stdout.
+ *
+ * Benchmarks are matched by name and parameters. Each entry holds the score and the bytes allocated
+ * per operation (`gc.alloc.rate.norm`) of both runs and the change in percent, so an optimization
+ * can be checked against the baseline by a script as well as by eye.
+ *
+ * Usage: `ResultComparison <baseline.json> <current.json>`
+ */
+object ResultComparison {
+
+    private const val ALLOC_METRIC = "gc.alloc.rate.norm"
+
+    @JvmStatic
+    fun main(args: Array<String>) {
+        if (args.size < 2 || args[0].isEmpty()) {
+            System.err.println("usage: ResultComparison <baseline.json> <current.json>")
+            exitProcess(2)
+        }
+        val baseline = load(File(args[0]))
+        val current = load(File(args[1]))
+
+        val report = JsonArray()
+        for ((key, now) in current) {
+            val before = baseline[key]
+            val entry = JsonObject()
+            entry.addProperty("benchmark", key)
+            entry.addProperty("mode", now.mode)
+            entry.addProperty("unit", now.unit)
+            entry.add("score", compare(before?.score, now.score))
+            entry.add("allocBytesPerOp", compare(before?.allocPerOp, now.allocPerOp))
+            report.add(entry)
+        }
+        for (key in baseline.keys - current.keys) {
+            val entry = JsonObject()
+            entry.addProperty("benchmark", key)
+            entry.addProperty("missing", true)
+            report.add(entry)
+        }
+        println(GsonBuilder().setPrettyPrinting().create().toJson(report))
+    }
+
+    private class Result(val mode: String, val unit: String, val score: Double, val allocPerOp: Double?)
+
+    private fun load(file: File): Map<String, Result> {
+        val results = LinkedHashMap<String, Result>()
+        for (element in JsonParser.parseString(file.readText()).asJsonArray) {
+            val run = element.asJsonObject
+            val primary = run.getAsJsonObject("primaryMetric")
+            val alloc = run.getAsJsonObject("secondaryMetrics")
+                ?.getAsJsonObject(ALLOC_METRIC)
+                ?.get("score")?.asDouble
+            results[keyOf(run)] = Result(
+                mode = run.get("mode").asString,
+                unit = primary.get("scoreUnit").asString,
+                score = primary.get("score").asDouble,
+                allocPerOp = alloc,
+            )
+        }
+        return results
+    }
+
+    /** `benchmark` or `benchmark{name=value,...}` when the benchmark has parameters. */
+    private fun keyOf(run: JsonObject): String {
+        val params = run.getAsJsonObject("params") ?: return run.get("benchmark").asString
+        val joined = params.entrySet().sortedBy { it.key }.joinToString(",") { "${it.key}=${it.value.asString}" }
+        return "${run.get("benchmark").asString}{$joined}"
+    }
+
+    private fun compare(before: Double?, now: Double?): JsonObject {
+        val result = JsonObject()
+        before?.let { result.addProperty("baseline", it) }
+        now?.let { result.addProperty("current", it) }
+        if (before != null && now != null && before != 0.0) {
+            result.addProperty("changePercent", (now - before) / before * 100.0)
+        }
+        return result
+    }
+}
@@ -0,0 +1,34 @@
+package com.vismo.nextgenmeter.benchmark
+
+import com.serial.port.ByteUtils
+
+/**
+ * Frames as they arrive from the measure board, shared by the benchmarks.
+ */
+internal object Samples {
+    /** 0xE3 ongoing heartbeat, the most frequent frame during a trip */
+    const val ONGOING_HEARTBEAT_HEX =
+        "55AA0023000000E3000000000048000000000000120000270000390020261017212700000000008355AA"
+
+    /** 0xA4 parameters enquiry response */
+    const val PARAMETERS_HEX =
+        "55AA002D000000A40024010101240714A106500200270027000100000000000000000000008300007000000000000000009C55AA"
+
+    const val TRIP_ID = "0123456789abcdef0123456789abcdef"
+
+    val ongoingHeartbeat: ByteArray = ByteUtils.hexStr2Byte(ONGOING_HEARTBEAT_HEX)
+    val parameters: ByteArray = ByteUtils.hexStr2Byte(PARAMETERS_HEX)
+
+    /**
+     * [frames] frames alternating heartbeat and parameters, with a few noise bytes in between,
+     * as one contiguous serial stream.
+     */
+    fun stream(frames: Int): ByteArray {
+        val out = java.io.ByteArrayOutputStream()
+        repeat(frames) { i ->
+            out.write(if (i % 4 == 3) parameters else ongoingHeartbeat)
+            if (i % 16 == 15) out.write(byteArrayOf(0x00, 0x55, 0x13))
+        }
+        return out.toByteArray()
+    }
+}
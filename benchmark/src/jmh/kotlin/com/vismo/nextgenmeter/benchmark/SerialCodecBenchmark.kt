@@ -0,0 +1,61 @@
+package com.vismo.nextgenmeter.benchmark
+
+import android_serialport_api.CRC
+import android_serialport_api.SerialUtils
+import com.serial.opt.CircleBuff
+import com.serial.opt.SpscByteRing
+import com.serial.port.ByteUtils
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.State
+import java.util.concurrent.TimeUnit
+
+/**
+ * Hex conversion, CRC and the serial read buffers, per heartbeat sized frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Suppress("DEPRECATION")
+open class SerialCodecBenchmark {
+
+    private val frame = Samples.ongoingHeartbeat
+    private val frameHex = Samples.ONGOING_HEARTBEAT_HEX
+    private val readBuffer = ByteArray(frame.size)
+    private val circleBuff = CircleBuff(4096)
+    private val ring = SpscByteRing(4096)
+
+    @Benchmark
+    fun byteArrayToHexString(): String = ByteUtils.byteArrayToHexString(frame)
+
+    @Benchmark
+    fun hexStr2Byte(): ByteArray = ByteUtils.hexStr2Byte(frameHex)
+
+    @Benchmark
+    fun serialUtilsHexToByteArr(): ByteArray = SerialUtils.HexToByteArr(frameHex)
+
+    @Benchmark
+    fun crcFromHexString(): String = CRC.getCRC(frameHex)
+
+    @Benchmark
+    fun crcFromBytes(): String = CRC.getCRC(frame)
+
+    @Benchmark
+    fun crc16(): Int = CRC.crc16(frame, 0, frame.size)
+
+    /** One read's worth of bytes through the buffer the CH reader used before [SpscByteRing]. */
+    @Benchmark
+    fun circleBuffWriteRead(): Int {
+        circleBuff.writeDataWithBlock(frame, 0, frame.size)
+        return circleBuff.readDataWithBlock(readBuffer, 0, readBuffer.size)
+    }
+
+    @Benchmark
+    fun spscRingWriteRead(): Int {
+        ring.offer(frame, 0, frame.size)
+        return ring.drain(readBuffer, 0, readBuffer.size)
+    }
+}
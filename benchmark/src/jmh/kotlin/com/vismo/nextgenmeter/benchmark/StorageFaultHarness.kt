@@ -0,0 +1,341 @@
+package com.vismo.nextgenmeter.benchmark
+
+import com.google.firebase.Timestamp
+import com.google.gson.GsonBuilder
+import com.google.gson.JsonArray
+import com.google.gson.JsonObject
+import com.vismo.nextgenmeter.model.TripData
+import com.vismo.nextgenmeter.model.TripStatus
+import java.io.File
+import java.nio.file.Files
+import kotlin.random.Random
+import kotlin.system.exitProcess
+
+/**
+ * Drives each [TripStorageBackend] through scripted trip lifecycles, simulates a power loss during every write
+ * and checks what the backend recovers. Prints one JSON object per backend on stdout.
+ *
+ * The backend directory is snapshotted before and after each write. A crash during the write leaves a mix of the
+ * two on storage, built in three ways:
+ * - [CrashKind.TRUNCATED]: the new bytes reached storage in order up to a random offset
+ * - [CrashKind.TORN_PAGE]: everything reached storage except one random 4 KB page that kept its old content
+ * - [CrashKind.MISSING_FSYNC]: the final sync never ran, every page and the file size are old or new at random
+ *
+ * The write in progress may be lost or applied, but every trip written before it must be recovered exactly:
+ * `lostCompletedTrips` counts ended trips that are missing or changed, `lostUpdates` the same for ongoing trips.
+ * Maintenance such as a journal compaction is crashed as all or nothing.
+ *
+ * Write latencies are measured on the normal run, recovery times on the crash images.
+ *
+ * Exits with status 1 if a backend that claims to be durable lost a completed trip on any crash image.
+ *
+ * Usage: `StorageFaultHarness [trips] [seed]`
+ */
+object StorageFaultHarness {
+
+    private const val PAGE_BYTES = 4096
+    private const val IMAGES_PER_KIND = 2
+    private const val DELETE_EVERY = 10
+
+    enum class CrashKind { TRUNCATED, TORN_PAGE, MISSING_FSYNC }
+
+    private sealed class Op(val tripId: String) {
+        class Upsert(val trip: TripData) : Op(trip.tripId)
+        class Delete(tripId: String) : Op(tripId)
+    }
+
+    private class KindCounters {
+        var images = 0
+        var failedImages = 0
+        var lostCompletedTrips = 0
+        var lostUpdates = 0
+        var resurrectedTrips = 0
+        var openFailures = 0
+
+        fun toJson() = JsonObject().apply {
+            addProperty("images", images)
+            addProperty("failedImages", failedImages)
+            addProperty("lostCompletedTrips", lostCompletedTrips)
+            addProperty("lostUpdates", lostUpdates)
+            addProperty("resurrectedTrips", resurrectedTrips)
+            addProperty("openFailures", openFailures)
+        }
+    }
+
+    private val backends: List<() -> TripStorageBackend> = listOf(
+        ::GsonFileBackend,
+        { TripJournalBackend(syncOnWrite = true) },
+        { TripJournalBackend(syncOnWrite = false) },
+    )
+
+    @JvmStatic
+    fun main(args: Array<String>) {
+        val tripCount = args.getOrNull(0)?.toIntOrNull() ?: 60
+        val seed = args.getOrNull(1)?.toLongOrNull() ?: 1L
+        val script = script(tripCount, Random(seed))
+        val report = JsonArray()
+        for (factory in backends) {
+            report.add(run(factory, script, Random(seed)))
+        }
+        println(GsonBuilder().setPrettyPrinting().create().toJson(report))
+
+        val failed = report.map { it.asJsonObject }
+            .filter { it["durable"].asBoolean && it["lostCompletedTrips"].asInt > 0 }
+        if (failed.isNotEmpty()) {
+            System.err.println("Completed trips lost by ${failed.joinToString { it["backend"].asString }}")
+            exitProcess(1)
+        }
+    }
+
+    private fun run(factory: () -> TripStorageBackend, script: List<Op>, random: Random): JsonObject {
+        val dir = Files.createTempDirectory("trip-storage").toFile()
+        val backend = factory()
+        backend.open(dir)
+        val model = LinkedHashMap<String, TripData>()
+        val writeNanos = ArrayList<Long>(script.size)
+        val recoveryNanos = ArrayList<Long>()
+        val kinds = CrashKind.values().associateWith { KindCounters() }
+        val maintenance = KindCounters()
+
+        for (op in script) {
+            val before = snapshot(dir)
+            val start = System.nanoTime()
+            when (op) {
+                is Op.Upsert -> backend.upsert(op.trip)
+                is Op.Delete -> backend.delete(op.tripId)
+            }
+            writeNanos.add(System.nanoTime() - start)
+            val after = snapshot(dir)
+            val newValue = (op as? Op.Upsert)?.trip
+            for ((kind, counters) in kinds) {
+                repeat(IMAGES_PER_KIND) {
+                    val image = crashImage(kind, before, after, random)
+                    verify(factory, image, model, op.tripId, model[op.tripId], newValue, counters, recoveryNanos)
+                }
+            }
+            if (newValue != null) model[op.tripId] = newValue else model.remove(op.tripId)
+
+            val beforeMaintenance = snapshot(dir)
+            if (backend.maintain()) {
+                for (image in listOf(beforeMaintenance, snapshot(dir))) {
+                    verify(factory, image, model, null, null, null, maintenance, recoveryNanos)
+                }
+            }
+        }
+        backend.close()
+        val finalBytes = dir.listFiles()?.sumOf { it.length() } ?: 0L
+        dir.deleteRecursively()
+
+        return JsonObject().apply {
+            addProperty("backend", backend.name)
+            addProperty("durable", backend.isDurable)
+            addProperty("writes", script.size)
+            addProperty("finalBytes", finalBytes)
+            add("writeMicros", percentiles(writeNanos))
+            add("recoveryMicros", percentiles(recoveryNanos))
+            addProperty("crashImages", kinds.values.sumOf { it.images } + maintenance.images)
+            addProperty("failedImages", kinds.values.sumOf { it.failedImages } + maintenance.failedImages)
+            addProperty(
+                "lostCompletedTrips",
+                kinds.values.sumOf { it.lostCompletedTrips } + maintenance.lostCompletedTrips,
+            )
+            add("crashes", JsonObject().apply {
+                kinds.forEach { (kind, counters) -> add(kind.name, counters.toJson()) }
+                add("MAINTENANCE", maintenance.toJson())
+            })
+        }
+    }
+
+    /**
+     * Opens a new backend on [image] and compares what it recovers with [model]. The trip [inFlightId] may be
+     * recovered as [before] or [after].
+     */
+    private fun verify(
+        factory: () -> TripStorageBackend,
+        image: Map<String, ByteArray>,
+        model: Map<String, TripData>,
+        inFlightId: String?,
+        before: TripData?,
+        after: TripData?,
+        counters: KindCounters,
+        recoveryNanos: MutableList<Long>,
+    ) {
+        val dir = Files.createTempDirectory("trip-crash").toFile()
+        image.forEach { (name, bytes) -> File(dir, name).writeBytes(bytes) }
+        val backend = factory()
+        val start = System.nanoTime()
+        val recovered = try {
+            backend.open(dir)
+            backend.trips().associateBy { it.tripId }
+        } catch (e: Exception) {
+            null
+        }
+        recoveryNanos.add(System.nanoTime() - start)
+        backend.close()
+        dir.deleteRecursively()
+
+        counters.images++
+        if (recovered == null) {
+            counters.openFailures++
+            counters.failedImages++
+            return
+        }
+        var lostCompleted = 0
+        var lostUpdates = 0
+        for ((tripId, expected) in model) {
+            if (tripId == inFlightId) continue
+            if (!sameTrip(recovered[tripId], expected)) {
+                if (expected.tripStatus == TripStatus.ENDED) lostCompleted++ else lostUpdates++
+            }
+        }
+        if (inFlightId != null) {
+            val actual = recovered[inFlightId]
+            if (!sameTrip(actual, before) && !sameTrip(actual, after)) {
+                if (before?.tripStatus == TripStatus.ENDED) lostCompleted++ else lostUpdates++
+            }
+        }
+        val resurrected = recovered.keys.count { it != inFlightId && it !in model }
+        counters.lostCompletedTrips += lostCompleted
+        counters.lostUpdates += lostUpdates
+        counters.resurrectedTrips += resurrected
+        if (lostCompleted + lostUpdates + resurrected > 0) counters.failedImages++
+    }
+
+    private fun sameTrip(actual: TripData?, expected: TripData?): Boolean {
+        if (actual == null || expected == null) return actual == expected
+        return actual.tripId == expected.tripId &&
+            actual.tripStatus == expected.tripStatus &&
+            actual.fare == expected.fare &&
+            actual.extra == expected.extra &&
+            actual.totalFare == expected.totalFare
+    }
+
+    /**
+     * What storage holds if the power is lost while [before] becomes [after]. Files the write did not touch are
+     * kept, a file missing from the result was not created yet or was already deleted.
+     */
+    fun crashImage(
+        kind: CrashKind,
+        before: Map<String, ByteArray>,
+        after: Map<String, ByteArray>,
+        random: Random,
+    ): Map<String, ByteArray> {
+        val image = HashMap<String, ByteArray>()
+        for (name in before.keys + after.keys) {
+            val old = before[name]
+            val new = after[name]
+            val content = when {
+                old != null && new != null && old.contentEquals(new) -> new
+                new == null -> if (random.nextBoolean()) old else null
+                else -> when (kind) {
+                    CrashKind.TRUNCATED -> {
+                        // an append never shortens the file, a rewrite in place truncates it first
+                        val from = if (old != null && startsWith(new, old)) old.size else 0
+                        new.copyOf(from + random.nextInt(new.size - from + 1))
+                    }
+                    CrashKind.TORN_PAGE -> {
+                        val pages = changedPages(old, new)
+                        new.copyOf().also { torn ->
+                            if (pages.isNotEmpty()) copyPage(old, torn, pages[random.nextInt(pages.size)])
+                        }
+                    }
+                    CrashKind.MISSING_FSYNC -> {
+                        if (old == null && random.nextBoolean()) {
+                            null
+                        } else {
+                            val size = if (random.nextBoolean()) old?.size ?: 0 else new.size
+                            new.copyOf(size).also { mixed ->
+                                changedPages(old, new).forEach { page ->
+                                    if (random.nextBoolean()) copyPage(old, mixed, page)
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+            if (content != null) image[name] = content
+        }
+        return image
+    }
+
+    private fun changedPages(old: ByteArray?, new: ByteArray): List<Int> {
+        val pageCount = (maxOf(old?.size ?: 0, new.size) + PAGE_BYTES - 1) / PAGE_BYTES
+        return (0 until pageCount).filter { page ->
+            val from = page * PAGE_BYTES
+            val to = minOf(from + PAGE_BYTES, new.size)
+            from >= new.size || old == null || to > old.size ||
+                !old.copyOfRange(from, to).contentEquals(new.copyOfRange(from, to))
+        }
+    }
+
+    /** Puts the old content of [page] back into [target], zeros where the old file was shorter */
+    private fun copyPage(old: ByteArray?, target: ByteArray, page: Int) {
+        val from = page * PAGE_BYTES
+        for (i in from until minOf(from + PAGE_BYTES, target.size)) {
+            target[i] = if (old != null && i < old.size) old[i] else 0
+        }
+    }
+
+    private fun startsWith(bytes: ByteArray, prefix: ByteArray): Boolean =
+        prefix.size <= bytes.size && prefix.indices.all { bytes[it] == prefix[it] }
+
+    private fun snapshot(dir: File): Map<String, ByteArray> =
+        dir.listFiles()?.filter { it.isFile }?.associate { it.name to it.readBytes() } ?: emptyMap()
+
+    /**
+     * [tripCount] trips one after the other: started, a few fare updates and a pause, then ended.
+     * Every [DELETE_EVERY] trips the oldest trip is deleted.
+     */
+    private fun script(tripCount: Int, random: Random): List<Op> {
+        val ops = ArrayList<Op>()
+        val stored = ArrayDeque<String>()
+        val base = 1_700_000_000L
+        for (i in 0 until tripCount) {
+            val startTime = Timestamp(base + i * 900L, 0)
+            var trip = TripData(
+                tripId = "%032x".format(i),
+                licensePlate = "AB1234",
+                deviceId = "1234567890",
+                startTime = startTime,
+                tripStatus = TripStatus.HIRED,
+                fare = 27.0,
+                totalFare = 27.0,
+            )
+            ops.add(Op.Upsert(trip))
+            repeat(2 + random.nextInt(3)) { update ->
+                val fare = trip.fare + 1 + random.nextInt(10)
+                trip = trip.copy(
+                    tripStatus = if (update == 1) TripStatus.STOP else TripStatus.HIRED,
+                    fare = fare,
+                    totalFare = fare + trip.extra,
+                    paidDistanceInMeters = trip.paidDistanceInMeters + random.nextInt(2000),
+                )
+                ops.add(Op.Upsert(trip))
+            }
+            val extra = random.nextInt(5).toDouble()
+            ops.add(Op.Upsert(trip.copy(
+                tripStatus = TripStatus.ENDED,
+                extra = extra,
+                totalFare = trip.fare + extra,
+                endTime = Timestamp(startTime.seconds + 600L + random.nextInt(300), 0),
+            )))
+            stored.addLast(trip.tripId)
+            if ((i + 1) % DELETE_EVERY == 0) {
+                ops.add(Op.Delete(stored.removeFirst()))
+            }
+        }
+        return ops
+    }
+
+    private fun percentiles(nanos: List<Long>): JsonObject {
+        val sorted = nanos.sorted()
+        fun at(fraction: Double): Long =
+            if (sorted.isEmpty()) 0 else sorted[minOf(sorted.size - 1, (fraction * sorted.size).toInt())] / 1_000
+        return JsonObject().apply {
+            addProperty("p50", at(0.50))
+            addProperty("p90", at(0.90))
+            addProperty("p99", at(0.99))
+            addProperty("max", if (sorted.isEmpty()) 0 else sorted.last() / 1_000)
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.vismo.nextgenmeter.benchmark
+
+import com.google.firebase.Timestamp
+import com.google.gson.Gson
+import com.google.gson.reflect.TypeToken
+import com.vismo.nextgenmeter.model.TripData
+import com.vismo.nextgenmeter.model.TripStatus
+import com.vismo.nextgenmeter.repository.OngoingTripCheckpoint
+import com.vismo.nextgenmeter.repository.TripJournal
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.TearDown
+import java.io.File
+import java.util.concurrent.TimeUnit
+
+/**
+ * The JSON save and load done by `TripFileManager`: sort, serialize the whole list with Gson,
+ * write and fsync, then read it back with a TypeToken.
+ *
+ * `TripFileManager` trims the file to its 100 most recent trips, the larger sizes show how the
+ * whole-file rewrite scales if that limit is raised.
+ *
+ * [journalUpdate] is what `TripFileManager` does now: one record appended to a [TripJournal] and one
+ * `fdatasync`, with the compactions the updates trigger amortised over them.
+ *
+ * [checkpointSave] and [checkpointRestore] are the ongoing trip checkpoint written on every heartbeat and read
+ * at startup, they do not depend on [tripCount].
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+open class TripFileBenchmark {
+
+    @Param("100", "1000", "10000")
+    var tripCount: Int = 0
+
+    private val gson = Gson()
+    private val type = object : TypeToken<List<TripData>>() {}.type
+    private lateinit var trips: List<TripData>
+    private lateinit var file: File
+    private lateinit var journalFile: File
+    private lateinit var journal: TripJournal
+    private var nextTrip = 0
+    private lateinit var checkpointFile: File
+    private lateinit var checkpoint: OngoingTripCheckpoint
+
+    @Setup(Level.Trial)
+    fun setup() {
+        val start = 1_700_000_000L
+        trips = List(tripCount) { i ->
+            TripData(
+                tripId = "%032x".format(i),
+                licensePlate = "AB1234",
+                deviceId = "1234567890",
+                startTime = Timestamp(start + i * 600L, 0),
+                tripStatus = TripStatus.ENDED,
+                fare = 27.0 + i % 100,
+                extra = (i % 5).toDouble(),
+                totalFare = 27.0 + i % 100 + i % 5,
+                paidDistanceInMeters = 1000.0 + i,
+                waitDurationInSeconds = (i % 300).toLong(),
+                endTime = Timestamp(start + i * 600L + 540L, 0),
+            )
+        }
+        file = File.createTempFile("trips", ".json")
+        file.writeText(gson.toJson(trips))
+        journalFile = File.createTempFile("trips", ".journal")
+        journal = TripJournal(journalFile, gson)
+        journal.open()
+        journal.replaceAll(trips)
+        checkpointFile = File.createTempFile("ongoing_trip", ".ckpt")
+        checkpoint = OngoingTripCheckpoint(checkpointFile)
+        checkpoint.save(trips[0].copy(tripStatus = TripStatus.HIRED, endTime = null))
+    }
+
+    @TearDown(Level.Trial)
+    fun tearDown() {
+        file.delete()
+        journal.close()
+        journalFile.delete()
+        checkpoint.close()
+        checkpointFile.delete()
+    }
+
+    @Benchmark
+    fun serialize(): String = gson.toJson(trips.sortedByDescending { it.endTime ?: Timestamp.now() })
+
+    @Benchmark
+    fun save(): Boolean {
+        val json = serialize()
+        file.outputStream().use { fos ->
+            fos.write(json.toByteArray(Charsets.UTF_8))
+            fos.flush()
+            fos.fd.sync()
+        }
+        return true
+    }
+
+    @Benchmark
+    fun load(): List<TripData> = gson.fromJson<List<TripData>>(file.readText(), type) ?: emptyList()
+
+    @Benchmark
+    fun journalUpdate() {
+        journal.upsert(trips[nextTrip])
+        nextTrip = (nextTrip + 1) % tripCount
+        if (journal.needsCompaction) journal.compact()
+    }
+
+    @Benchmark
+    fun checkpointSave(): Boolean = checkpoint.save(trips[nextTrip].also { nextTrip = (nextTrip + 1) % tripCount })
+
+    @Benchmark
+    fun checkpointRestore(): TripData? = checkpoint.restore()
+}
@@ -0,0 +1,137 @@
+package com.vismo.nextgenmeter.benchmark
+
+import com.google.firebase.Timestamp
+import com.google.gson.Gson
+import com.google.gson.reflect.TypeToken
+import com.vismo.nextgenmeter.model.TripData
+import com.vismo.nextgenmeter.repository.TripJournal
+import java.io.File
+
+/**
+ * A trip store driven by [StorageFaultHarness]. Every file it writes must be inside the directory given to [open],
+ * the harness snapshots that directory to build the crash images.
+ *
+ * Room is not included: it needs the SQLite of the device, an instrumented test can implement this interface on
+ * top of `TripsDao` and reuse the harness.
+ */
+interface TripStorageBackend {
+    val name: String
+
+    /** Whether the backend claims to keep every completed write across a power loss, checked by the harness */
+    val isDurable: Boolean
+
+    /** Opens the store in [dir], recovering whatever is there */
+    fun open(dir: File)
+
+    /** Returns once the trip is durable */
+    fun upsert(trip: TripData)
+
+    fun delete(tripId: String)
+
+    fun trips(): List<TripData>
+
+    /**
+     * Maintenance the backend wants to run after a write, e.g. a compaction. It must replace files atomically,
+     * by writing and syncing a new file and renaming it, the harness crashes it as all or nothing.
+     *
+     * @return false if there was nothing to do
+     */
+    fun maintain(): Boolean = false
+
+    fun close()
+}
+
+/**
+ * The trips.json store `TripFileManager` used before the journal: every change rewrites the sorted list in place
+ * and syncs it, a file that does not parse is loaded as no trips.
+ */
+class GsonFileBackend : TripStorageBackend {
+    override val name = "gson-file"
+    // a crash while the file is rewritten in place loses every trip
+    override val isDurable = false
+
+    private val gson = Gson()
+    private val type = object : TypeToken<List<TripData>>() {}.type
+    private lateinit var file: File
+    private var trips = mutableListOf<TripData>()
+
+    override fun open(dir: File) {
+        file = File(dir, "trips.json")
+        trips = try {
+            if (file.exists()) gson.fromJson<List<TripData>>(file.readText(), type)?.toMutableList() ?: mutableListOf()
+            else mutableListOf()
+        } catch (e: Exception) {
+            mutableListOf()
+        }
+    }
+
+    override fun upsert(trip: TripData) {
+        val index = trips.indexOfFirst { it.tripId == trip.tripId }
+        if (index >= 0) trips[index] = trip else trips.add(trip)
+        save()
+    }
+
+    override fun delete(tripId: String) {
+        if (trips.removeAll { it.tripId == tripId }) save()
+    }
+
+    override fun trips(): List<TripData> = trips
+
+    override fun close() = Unit
+
+    private fun save() {
+        val json = gson.toJson(trips.sortedByDescending { it.endTime ?: Timestamp.now() })
+        file.outputStream().use { fos ->
+            fos.write(json.toByteArray(Charsets.UTF_8))
+            fos.flush()
+            fos.fd.sync()
+        }
+    }
+}
+
+/**
+ * [TripJournal] with compaction once it is mostly dead records.
+ *
+ * With [syncOnWrite] the journal syncs every record as it appends it. Without it the records are left in the
+ * page cache and each write ends with an explicit [TripJournal.sync], as `TripFileManager` does through the
+ * `DurabilityService` before its calls return.
+ */
+class TripJournalBackend(private val syncOnWrite: Boolean) : TripStorageBackend {
+    override val name = if (syncOnWrite) "trip-journal" else "trip-journal-deferred-sync"
+    override val isDurable = true
+
+    private var journal: TripJournal? = null
+
+    override fun open(dir: File) {
+        journal = TripJournal(File(dir, "trips.journal"), Gson(), syncOnWrite).also { it.open() }
+    }
+
+    override fun upsert(trip: TripData) {
+        requireJournal().upsert(trip)
+        syncIfDeferred()
+    }
+
+    override fun delete(tripId: String) {
+        if (requireJournal().delete(tripId)) syncIfDeferred()
+    }
+
+    override fun trips(): List<TripData> = requireJournal().trips
+
+    override fun maintain(): Boolean {
+        val journal = requireJournal()
+        if (!journal.needsCompaction) return false
+        journal.compact()
+        return true
+    }
+
+    override fun close() {
+        journal?.close()
+        journal = null
+    }
+
+    private fun syncIfDeferred() {
+        if (!syncOnWrite) requireJournal().sync()
+    }
+
+    private fun requireJournal(): TripJournal = checkNotNull(journal) { "not open" }
+}
@@ -0,0 +1,52 @@
+package android.util;
+
+/**
+ * JVM stand-in for android.util.Log so the benchmarked sources compile outside Android.
+ * Logging is dropped, as it would be below the release log level on a device.
+ */
+public final class Log
+{
+    private Log()
+    {
+    }
+
+    public static int v(String tag, String msg)
+    {
+        return 0;
+    }
+
+    public static int d(String tag, String msg)
+    {
+        return 0;
+    }
+
+    public static int i(String tag, String msg)
+    {
+        return 0;
+    }
+
+    public static int w(String tag, String msg)
+    {
+        return 0;
+    }
+
+    public static int e(String tag, String msg)
+    {
+        return 0;
+    }
+
+    public static int e(String tag, String msg, Throwable tr)
+    {
+        return 0;
+    }
+
+    public static int println(int priority, String tag, String msg)
+    {
+        return 0;
+    }
+
+    public static String getStackTraceString(Throwable tr)
+    {
+        return "";
+    }
+}
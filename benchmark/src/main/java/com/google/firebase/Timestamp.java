@@ -0,0 +1,64 @@
+package com.google.firebase;
+
+/**
+ * JVM stand-in for the Firestore Timestamp used by TripData.
+ * It has the same two fields, so Gson writes and reads the same JSON as the real class.
+ */
+public final class Timestamp implements Comparable<Timestamp>
+{
+    private final long seconds;
+    private final int nanoseconds;
+
+    public Timestamp(long seconds, int nanoseconds)
+    {
+        this.seconds = seconds;
+        this.nanoseconds = nanoseconds;
+    }
+
+    public static Timestamp now()
+    {
+        long millis = System.currentTimeMillis();
+        return new Timestamp(millis / 1000, (int) (millis % 1000) * 1_000_000);
+    }
+
+    public long getSeconds()
+    {
+        return seconds;
+    }
+
+    public int getNanoseconds()
+    {
+        return nanoseconds;
+    }
+
+    @Override
+    public int compareTo(Timestamp other)
+    {
+        if (seconds != other.seconds)
+        {
+            return Long.compare(seconds, other.seconds);
+        }
+        return Integer.compare(nanoseconds, other.nanoseconds);
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o)
+        {
+            return true;
+        }
+        if (!(o instanceof Timestamp))
+        {
+            return false;
+        }
+        Timestamp other = (Timestamp) o;
+        return seconds == other.seconds && nanoseconds == other.nanoseconds;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return 31 * Long.hashCode(seconds) + nanoseconds;
+    }
+}
@@ -9,4 +9,6 @@ plugins {
     alias(libs.plugins.androidLibrary) apply false
     alias(libs.plugins.googleServices) apply false
     alias(libs.plugins.crashlyticsGradle) apply false
+    alias(libs.plugins.jetbrainsKotlinJvm) apply false
+    alias(libs.plugins.jmh) apply false
 }
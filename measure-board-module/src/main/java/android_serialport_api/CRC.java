@@ -16,13 +16,52 @@ public class CRC {
         int num = len / 2;
         byte[] para = new byte[num];
         for (int i = 0; i < num; i++) {
-            int value = Integer.valueOf(data.substring(i * 2, 2 * (i + 1)), 16);
+            int value = (Character.digit(data.charAt(i * 2), 16) << 4) | Character.digit(data.charAt(i * 2 + 1), 16);
             para[i] = (byte) value;
         }
         return getCRC(para);
     }
 
 
+    /** CRC16/Modbus 多项式 0x8005 的反序 */
+    private static final int POLYNOMIAL = 0x0000a001;
+
+    private static final char[] HEX_CHARS = "0123456789ABCDEF".toCharArray();
+
+    /** 按字节查表, 每个字节只需一次查表和移位 */
+    private static final char[] CRC16_TABLE = new char[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int j = 0; j < 8; j++) {
+                if ((crc & 0x00000001) != 0) {
+                    crc = (crc >>> 1) ^ POLYNOMIAL;
+                } else {
+                    crc >>>= 1;
+                }
+            }
+            CRC16_TABLE[i] = (char) crc;
+        }
+    }
+
+    /**
+     * 计算CRC16(Modbus)校验码
+     *
+     * @param bytes  字节数组
+     * @param offset 起始位置
+     * @param len    长度
+     * @return 校验码, 低16位有效, 发送时先低字节后高字节
+     */
+    public static int crc16(byte[] bytes, int offset, int len) {
+        //CRC寄存器全为1
+        int crc = 0x0000ffff;
+        for (int i = offset, end = offset + len; i < end; i++) {
+            crc = (crc >>> 8) ^ CRC16_TABLE[(crc ^ bytes[i]) & 0xff];
+        }
+        return crc;
+    }
+
     /**
      * 计算CRC16校验码
      *
@@ -31,31 +70,16 @@ public class CRC {
      * @since 1.0
      */
     public static String getCRC(byte[] bytes) {
-        //CRC寄存器全为1
-        int CRC = 0x0000ffff;
-        //多项式校验值
-        int POLYNOMIAL = 0x0000a001;
-        int i, j;
-        for (i = 0; i < bytes.length; i++) {
-            CRC ^= ((int) bytes[i] & 0x000000ff);
-            for (j = 0; j < 8; j++) {
-                if ((CRC & 0x00000001) != 0) {
-                    CRC >>= 1;
-                    CRC ^= POLYNOMIAL;
-                } else {
-                    CRC >>= 1;
-                }
-            }
-        }
-        //结果转换为16进制
-        String result = Integer.toHexString(CRC).toUpperCase();
-        if (result.length() != 4) {
-            StringBuffer sb = new StringBuffer("0000");
-            result = sb.replace(4 - result.length(), 4, result).toString();
-        }
-        //交换高低位
-        return result.substring(2, 4) + result.substring(0, 2);
+        int crc = crc16(bytes, 0, bytes.length);
+        //交换高低位, 先低字节后高字节
+        char[] out = new char[4];
+        out[0] = HEX_CHARS[(crc >>> 4) & 0x0f];
+        out[1] = HEX_CHARS[crc & 0x0f];
+        out[2] = HEX_CHARS[(crc >>> 12) & 0x0f];
+        out[3] = HEX_CHARS[(crc >>> 8) & 0x0f];
+        return new String(out);
     }
+
     public static void main(String[] args) {
         //01 03 20 7F FF 7F FF 7F FF 7F FF 7F FF 7F FF 7F FF 7F FF 7F FF 7F FF 7F FF 7F FF 7F FF 7F FF 7F FF 7F FF 8C 45
         //01 03 00 00 00 08 44 0C
@@ -76,6 +76,14 @@ public class SerialPort {
 		return mFileOutputStream;
 	}
 
+	/**
+	 * The descriptor opened by the native layer, used to wait for readability with poll().
+	 * May be null if the native open failed.
+	 */
+	public FileDescriptor getFileDescriptor() {
+		return mFd;
+	}
+
 	// JNI
 	private native static FileDescriptor open(String path, int baudrate, int flags);
 	public native void close();
@@ -4,6 +4,7 @@ import android.content.Context;
 import android.util.Log;
 import android.widget.Toast;
 
+import com.serial.opt.AtClient;
 import com.serial.opt.AtProtocal;
 import com.serial.opt.UartWorkerCH;
 import com.serial.opt.UartWorkerCH.OnReceiveListener;
@@ -19,6 +20,8 @@ public class AtBusModel {
 
     private UartWorkerCH uartWorker = null;
     private AtProtocal atProtocal = null;
+    /** 按指令匹配结果的客户端, 与下面按监听收结果的方法共用串口 */
+    private AtClient atClient = null;
 
     final String TAG = getClass().getSimpleName();
     private Context mCtx;
@@ -47,6 +50,8 @@ public class AtBusModel {
         StringBuffer sb = new StringBuffer();
         @Override
         public void onReceive(String data) {
+            AtClient client = atClient;
+            if (client != null) client.onReceive(data);
             sb.append(data);
             if (data.contains("\r\n")){
                 if (mListener != null) mListener.onReceive(sb.toString());
@@ -63,6 +68,10 @@ public class AtBusModel {
      * @param bitRate
      */
     public void init(final String path, int bitRate) {
+        if (atClient != null) {
+            atClient.close();
+            atClient = null;
+        }
         if (uartWorker != null) {
             uartWorker.release();
         }
@@ -86,6 +95,7 @@ public class AtBusModel {
 
         if (null != uartWorker) {
             uartWorker.setIsHexResult(false); // At结果非16进制
+            atClient = new AtClient(uartWorker.getWriter());
             uartWorker.startCommunicate();
             uartWorker.setOnReceiveListener(selfListener);
         }
@@ -100,6 +110,14 @@ public class AtBusModel {
         mListener = null;
     }
 
+    /***
+     * 按指令匹配结果及超时的客户端, 串口未打开时为 null
+     * @return
+     */
+    public AtClient getAtClient() {
+        return atClient;
+    }
+
     /**
      * 16进制转Ascii
      * @param hexStr
@@ -145,6 +163,9 @@ public class AtBusModel {
     }
 
     public void stop() {
+        if (atClient != null) {
+            atClient.close();
+        }
         if (uartWorker != null) {
             //uartWorker.stopCommunicate();
             uartWorker.release();
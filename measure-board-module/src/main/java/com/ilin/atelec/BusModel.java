@@ -6,9 +6,10 @@ import android.util.Log;
 import android.widget.Toast;
 
 import com.serial.opt.JLog;
+import com.serial.opt.SerialSession;
 import com.serial.opt.UartWorker;
 
-import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import android_serialport_api.SerialUtils;
 
@@ -21,6 +22,8 @@ public class BusModel {
 
     private final String TAG = getClass().getSimpleName();
     private UartWorker uartWorker = null;
+    /** 打开实际串口时的会话, 负责在出错或收不到数据时重新打开, uartWorker 为其当前的实例 */
+    private SerialSession session = null;
 
     private static final JLog LOG = new JLog("BusModel", ICmd.isLogOn, JLog.TYPE_INFO);
 
@@ -42,10 +45,14 @@ public class BusModel {
 
     public void setListener(UartWorker.OnDistributeListener listener) {
         this.mListener = listener;
-        boolean isSimulator = Build.MODEL.contains("sdk") || Build.MODEL.contains("google_sdk") || Build.MODEL.contains("Android SDK built for arm64");
+        // 单元测试中 Build.MODEL 为 null
+        String model = Build.MODEL != null ? Build.MODEL : "";
+        boolean isSimulator = model.contains("sdk") || model.contains("google_sdk") || model.contains("Android SDK built for arm64");
 
         if (!isSimulator) {
-            if (uartWorker != null) {
+            if (session != null) {
+                session.setListener(mListener);
+            } else if (uartWorker != null) {
                 uartWorker.setProtocalDistributeListener(mListener);
             }
         }
@@ -58,38 +65,73 @@ public class BusModel {
      * @param bitRate
      */
     public void init(final String path, int bitRate) {
-        if (uartWorker != null) {
-            uartWorker.release();
-        }
-        try {
-            uartWorker = new UartWorker(path, bitRate, 0);
-        } catch (SecurityException e) {
-            LOG.print("打开串口失败，安全问题，即权限不够！");
-            Toast.makeText(mCtx, "打开串口失败，安全问题，即权限不够！", Toast.LENGTH_SHORT).show();
-        } catch (IOException e) {
-            LOG.print("打开串口失败，不存在！");
-            //LOG.print(e.getLocalizedMessage());
+        releaseWorker();
+        session = new SerialSession(path, bitRate, 0);
+        session.setListener(mListener);
+        if (!session.start()) {
+            // 会话在后台按退避时间继续重试打开
+            LOG.print("打开串口失败，稍后重试！");
             Toast.makeText(mCtx, "打开串口失败，异常发生了", Toast.LENGTH_SHORT).show();
         }
+    }
 
-        if (null != uartWorker) {
-            uartWorker.setProtocalDistributeListener(mListener);
-            uartWorker.startCommunicate();
-        }
+    /***
+     * 使用已创建的串口工作类, 例如连接计价板模拟器, 不需要打开实际的串口
+     * @param worker
+     */
+    public void init(UartWorker worker) {
+        releaseWorker();
+        uartWorker = worker;
+        uartWorker.setProtocalDistributeListener(mListener);
+        uartWorker.startCommunicate();
     }
 
     public void stopCommunicate() {
-        if (uartWorker != null) {
+        if (session != null) {
+            session.stop();
+        } else if (uartWorker != null) {
             uartWorker.stopCommunicate();
         }
     }
 
+    /***
+     * 开始通信, 会话已开始但收不到数据时请求重新打开串口, 重复的请求合并为一次
+     */
     public void startCommunicate() {
-        if (uartWorker != null) {
+        if (session != null) {
+            if (session.getState() == SerialSession.State.CLOSED) {
+                session.start();
+            } else if (session.getState() != SerialSession.State.LIVE) {
+                session.requestReopen("startCommunicate");
+            }
+        } else if (uartWorker != null) {
             uartWorker.startCommunicate();
         }
     }
 
+    /***
+     * 串口会话的重新连接次数、首帧时间等, 未打开实际串口时为 null
+     * @return
+     */
+    public SerialSession.Stats getSessionStats() {
+        return session != null ? session.getStats() : null;
+    }
+
+    private UartWorker currentWorker() {
+        return session != null ? session.getWorker() : uartWorker;
+    }
+
+    private void releaseWorker() {
+        if (session != null) {
+            session.close();
+            session = null;
+        }
+        if (uartWorker != null) {
+            uartWorker.release();
+            uartWorker = null;
+        }
+    }
+
     /***
      *
      * activity 的context
@@ -102,7 +144,7 @@ public class BusModel {
 
     public boolean write(String data) {
         try {
-            boolean isOk = uartWorker.getWriter().writeData(SerialUtils.HexToByteArr(data));
+            boolean isOk = currentWorker().getWriter().writeData(SerialUtils.HexToByteArr(data));
             Log.i(TAG, "write: 写入数据 = " + data);
             return isOk;
         } catch (Exception e) {
@@ -117,7 +159,7 @@ public class BusModel {
      */
     public boolean sendCmd(byte[] data) {
         try {
-            boolean isOk = uartWorker.getWriter().writeData(data);
+            boolean isOk = currentWorker().getWriter().writeData(data);
             return isOk;
         } catch (Exception e) {
             Log.e("BusModelWriteError", e.getLocalizedMessage(), e);
@@ -125,8 +167,28 @@ public class BusModel {
         }
     }
 
+    /***
+     * 发送已编码好的命令, 不经过16进制字符串转换
+     * buffer 中 position 到 limit 的数据复制一次后放入发送队列, 返回后 buffer 可立即复用, position 不变
+     * @param buffer
+     */
+    public boolean send(ByteBuffer buffer) {
+        try {
+            byte[] data = new byte[buffer.remaining()];
+            int position = buffer.position();
+            buffer.get(data);
+            buffer.position(position);
+            return currentWorker().getWriter().writeData(data);
+        } catch (Exception e) {
+            Log.e("BusModelWriteError", e.getLocalizedMessage(), e);
+            return false;
+        }
+    }
+
     public void stop() {
-        if (uartWorker != null) {
+        if (session != null) {
+            session.close();
+        } else if (uartWorker != null) {
 //            uartWorker.stopCommunicate();
             uartWorker.release();
         }
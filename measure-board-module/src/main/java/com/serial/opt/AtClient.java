@@ -0,0 +1,606 @@
+package com.serial.opt;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 4G 模块的 AT 指令客户端
+ * <p>
+ * 指令按顺序排队, 模块一次只处理一条指令: 上一条收到最终结果 (OK、ERROR、+CME ERROR、+CMS ERROR)
+ * 或超时后立即写入下一条, 不需要等调用方处理完结果. 每条指令有自己的超时时间, 超时后以
+ * {@link Result#TIMEOUT} 结束并继续发送后面的指令.
+ * </p>
+ * <p>
+ * 收到的数据按行解析: 与当前指令相同的行是回显, 忽略; 以 + 或 ^ 开头但前缀与当前指令不同的行,
+ * 以及没有指令等待结果时收到的行, 作为主动上报 (URC) 交给 {@link OnUrcListener}; 其余行是当前指令的中间结果.
+ * 超时后模块迟到的最终结果无法与指令对应, 会记到下一条指令上, 因此超时时间应按指令的最长响应时间设置.
+ * </p>
+ */
+public final class AtClient implements UartWorkerCH.OnReceiveListener
+{
+    private static final JLog LOG = new JLog("AtClient", true, JLog.TYPE_INFO);
+
+    public static final long DEFAULT_TIMEOUT_MS = 1000L;
+    /** 排队等待发送的指令上限, 超过时直接以 {@link Result#FAILED} 结束 */
+    private static final int MAX_QUEUED = 32;
+    /** 一行的最大长度, 超过时丢弃这一行 */
+    private static final int MAX_LINE = 1024;
+
+    public enum Result
+    {
+        OK,
+        ERROR,
+        CME_ERROR,
+        CMS_ERROR,
+        /** 超过指令的超时时间没有收到最终结果 */
+        TIMEOUT,
+        /** 写入失败、队列已满或客户端已关闭 */
+        FAILED,
+    }
+
+    public interface OnResponseListener
+    {
+        /***
+         * 在读取线程或超时线程中调用, 不能阻塞
+         * @param response
+         */
+        void onResponse(Response response);
+    }
+
+    public interface OnUrcListener
+    {
+        /***
+         * 在读取线程中调用, 不能阻塞
+         * @param line 不含换行
+         */
+        void onUrc(String line);
+    }
+
+    /**
+     * 一条指令的结果
+     */
+    public static final class Response
+    {
+        public final String command;
+        public final Result result;
+        /** +CME ERROR 或 +CMS ERROR 的错误码, 其他为 -1 */
+        public final int errorCode;
+        /** 中间结果行, 不含回显和最终结果 */
+        public final List<String> lines;
+        /** 写入到收到最终结果的时间, 未写入时为 0 */
+        public final long latencyNanos;
+
+        Response(String command, Result result, int errorCode, List<String> lines, long latencyNanos)
+        {
+            this.command = command;
+            this.result = result;
+            this.errorCode = errorCode;
+            this.lines = lines;
+            this.latencyNanos = latencyNanos;
+        }
+
+        public boolean isOk()
+        {
+            return result == Result.OK;
+        }
+
+        /***
+         * 以 prefix 开头的第一行冒号后面的内容, 例如 "+CSQ" 返回 "30,99"
+         * @param prefix
+         * @return 没有时为 null
+         */
+        public String value(String prefix)
+        {
+            for (int i = 0; i < lines.size(); i++)
+            {
+                String line = lines.get(i);
+                if (line.startsWith(prefix) && line.length() > prefix.length() && line.charAt(prefix.length()) == ':')
+                {
+                    return line.substring(prefix.length() + 1).trim();
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Response{" + command + " -> " + result + (errorCode >= 0 ? " " + errorCode : "")
+                    + ", lines=" + lines + ", latencyUs=" + latencyNanos / 1000L + "}";
+        }
+    }
+
+    /**
+     * 客户端的统计数据
+     */
+    public static final class Stats
+    {
+        public long sent;
+        public long ok;
+        public long errors;
+        public long timeouts;
+        public long failed;
+        public long urcs;
+        public long maxLatencyNanos;
+        public long totalLatencyNanos;
+
+        public long getAverageLatencyNanos()
+        {
+            long done = ok + errors;
+            return done > 0 ? totalLatencyNanos / done : 0L;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Stats{sent=" + sent + ", ok=" + ok + ", errors=" + errors + ", timeouts=" + timeouts
+                    + ", failed=" + failed + ", urcs=" + urcs + ", avgLatencyUs=" + getAverageLatencyNanos() / 1000L
+                    + ", maxLatencyUs=" + maxLatencyNanos / 1000L + "}";
+        }
+    }
+
+    private static final class Pending
+    {
+        final String command;
+        final byte[] bytes;
+        /** 中间结果的前缀, 例如 AT+CSQ 为 +CSQ, 没有时为空串 */
+        final String prefix;
+        final long timeoutNanos;
+        final OnResponseListener listener;
+        final ArrayList<String> lines = new ArrayList<>(2);
+        long sentNanos;
+        long deadlineNanos;
+
+        Pending(String command, long timeoutNanos, OnResponseListener listener)
+        {
+            this.command = command;
+            this.bytes = (command + "\r\n").getBytes();
+            this.prefix = prefixOf(command);
+            this.timeoutNanos = timeoutNanos;
+            this.listener = listener;
+        }
+    }
+
+    private final UartCommunication mWriter;
+    private final Object mLock = new Object();
+    private final ArrayDeque<Pending> mQueue = new ArrayDeque<>();
+    /** 已写入、等待最终结果的指令 */
+    private Pending mInFlight;
+    private boolean mClosed;
+    private final Stats mStats = new Stats();
+
+    /** 只在读取线程中使用 */
+    private final StringBuilder mLine = new StringBuilder(128);
+    private boolean mLineOverflow;
+
+    private volatile OnUrcListener mUrcListener;
+
+    private final Thread mDeadlineThread;
+
+    /***
+     * @param writer 模块串口, 收到的数据由调用方通过 {@link #onReceive} 交给客户端,
+     *               例如设置为 {@link UartWorkerCH} 的接收监听, 结果不转为16进制
+     */
+    public AtClient(UartCommunication writer)
+    {
+        this.mWriter = writer;
+        this.mDeadlineThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                deadlineLoop();
+            }
+        }, "AtClient-deadline");
+        this.mDeadlineThread.setDaemon(true);
+        this.mDeadlineThread.start();
+    }
+
+    /***
+     * 使用串口工作类收发, 会替换它的接收监听
+     * @param worker
+     * @return
+     */
+    public static AtClient attach(UartWorkerCH worker)
+    {
+        AtClient client = new AtClient(worker.getWriter());
+        worker.setIsHexResult(false);
+        worker.setOnReceiveListener(client);
+        return client;
+    }
+
+    public void setOnUrcListener(OnUrcListener listener)
+    {
+        this.mUrcListener = listener;
+    }
+
+    /***
+     * 指令排队发送, 不等待结果
+     * @param command 不含 \r\n, 例如 "AT+CSQ"
+     * @param timeoutMs 从写入开始计算
+     * @param listener 可以为 null
+     */
+    public void send(String command, long timeoutMs, OnResponseListener listener)
+    {
+        Pending pending = new Pending(command, TimeUnit.MILLISECONDS.toNanos(Math.max(1L, timeoutMs)), listener);
+        boolean rejected;
+        synchronized (mLock)
+        {
+            rejected = mClosed || mQueue.size() >= MAX_QUEUED;
+            if (!rejected)
+            {
+                mQueue.add(pending);
+            }
+        }
+        if (rejected)
+        {
+            finish(pending, Result.FAILED, -1);
+            return;
+        }
+        sendNext();
+    }
+
+    /***
+     * 发送指令并等待结果, 不能在读取线程中调用
+     * @param command
+     * @param timeoutMs
+     * @return
+     * @throws InterruptedException
+     */
+    public Response execute(String command, long timeoutMs) throws InterruptedException
+    {
+        final CountDownLatch done = new CountDownLatch(1);
+        final Response[] holder = new Response[1];
+        send(command, timeoutMs, new OnResponseListener()
+        {
+            @Override
+            public void onResponse(Response response)
+            {
+                holder[0] = response;
+                done.countDown();
+            }
+        });
+        // 超时由超时线程处理, 这里只等待回调
+        done.await();
+        return holder[0];
+    }
+
+    public Stats getStats()
+    {
+        Stats s = new Stats();
+        synchronized (mLock)
+        {
+            s.sent = mStats.sent;
+            s.ok = mStats.ok;
+            s.errors = mStats.errors;
+            s.timeouts = mStats.timeouts;
+            s.failed = mStats.failed;
+            s.urcs = mStats.urcs;
+            s.maxLatencyNanos = mStats.maxLatencyNanos;
+            s.totalLatencyNanos = mStats.totalLatencyNanos;
+        }
+        return s;
+    }
+
+    /***
+     * 关闭客户端, 等待中的指令以 {@link Result#FAILED} 结束, 不关闭串口
+     */
+    public void close()
+    {
+        ArrayList<Pending> dropped = new ArrayList<>();
+        synchronized (mLock)
+        {
+            if (mClosed)
+            {
+                return;
+            }
+            mClosed = true;
+            if (mInFlight != null)
+            {
+                dropped.add(mInFlight);
+                mInFlight = null;
+            }
+            dropped.addAll(mQueue);
+            mQueue.clear();
+            mLock.notifyAll();
+        }
+        for (int i = 0; i < dropped.size(); i++)
+        {
+            finish(dropped.get(i), Result.FAILED, -1);
+        }
+    }
+
+    /***
+     * 收到的数据, 可以是不完整的行
+     * @param data
+     */
+    @Override
+    public void onReceive(String data)
+    {
+        for (int i = 0; i < data.length(); i++)
+        {
+            char c = data.charAt(i);
+            if (c == '\r' || c == '\n')
+            {
+                if (mLine.length() > 0 && !mLineOverflow)
+                {
+                    handleLine(mLine.toString());
+                }
+                mLine.setLength(0);
+                mLineOverflow = false;
+            }
+            else if (mLine.length() < MAX_LINE)
+            {
+                mLine.append(c);
+            }
+            else
+            {
+                mLineOverflow = true;
+            }
+        }
+    }
+
+    private void handleLine(String line)
+    {
+        Pending pending;
+        synchronized (mLock)
+        {
+            pending = mInFlight;
+        }
+        if (pending == null)
+        {
+            onUrc(line);
+            return;
+        }
+        if (line.equals(pending.command))
+        {
+            return;
+        }
+        if (line.equals("OK"))
+        {
+            complete(pending, Result.OK, -1);
+        }
+        else if (line.equals("ERROR"))
+        {
+            complete(pending, Result.ERROR, -1);
+        }
+        else if (line.startsWith("+CME ERROR:"))
+        {
+            complete(pending, Result.CME_ERROR, parseCode(line));
+        }
+        else if (line.startsWith("+CMS ERROR:"))
+        {
+            complete(pending, Result.CMS_ERROR, parseCode(line));
+        }
+        else if (isUrc(line, pending.prefix))
+        {
+            onUrc(line);
+        }
+        else
+        {
+            synchronized (mLock)
+            {
+                if (mInFlight == pending)
+                {
+                    pending.lines.add(line);
+                }
+            }
+        }
+    }
+
+    private void onUrc(String line)
+    {
+        synchronized (mLock)
+        {
+            mStats.urcs++;
+        }
+        OnUrcListener listener = mUrcListener;
+        if (listener != null)
+        {
+            listener.onUrc(line);
+        }
+    }
+
+    /***
+     * 写入队列中的下一条指令, 已有指令等待结果时不写入
+     */
+    private void sendNext()
+    {
+        Pending next;
+        synchronized (mLock)
+        {
+            if (mInFlight != null || mClosed)
+            {
+                return;
+            }
+            next = mQueue.poll();
+            if (next == null)
+            {
+                return;
+            }
+            mInFlight = next;
+            next.sentNanos = System.nanoTime();
+            next.deadlineNanos = next.sentNanos + next.timeoutNanos;
+            mStats.sent++;
+            mLock.notifyAll();
+        }
+        boolean written;
+        try
+        {
+            written = mWriter != null && mWriter.writeData(next.bytes);
+        }
+        catch (IOException e)
+        {
+            LOG.print("写入失败: " + next.command + ", " + e.getMessage());
+            written = false;
+        }
+        if (!written)
+        {
+            complete(next, Result.FAILED, -1);
+        }
+    }
+
+    /***
+     * 结束正在等待结果的指令并发送下一条, 指令已经结束时不处理
+     */
+    private void complete(Pending pending, Result result, int errorCode)
+    {
+        synchronized (mLock)
+        {
+            if (mInFlight != pending)
+            {
+                return;
+            }
+            mInFlight = null;
+        }
+        finish(pending, result, errorCode);
+        sendNext();
+    }
+
+    private void finish(Pending pending, Result result, int errorCode)
+    {
+        long latency = pending.sentNanos > 0L ? System.nanoTime() - pending.sentNanos : 0L;
+        List<String> lines;
+        synchronized (mLock)
+        {
+            lines = pending.lines.isEmpty()
+                    ? Collections.<String>emptyList()
+                    : Collections.unmodifiableList(new ArrayList<>(pending.lines));
+            switch (result)
+            {
+                case OK:
+                    mStats.ok++;
+                    break;
+                case TIMEOUT:
+                    mStats.timeouts++;
+                    break;
+                case FAILED:
+                    mStats.failed++;
+                    break;
+                default:
+                    mStats.errors++;
+                    break;
+            }
+            if (result != Result.TIMEOUT && result != Result.FAILED)
+            {
+                mStats.totalLatencyNanos += latency;
+                mStats.maxLatencyNanos = Math.max(mStats.maxLatencyNanos, latency);
+            }
+        }
+        if (result == Result.TIMEOUT || result == Result.FAILED)
+        {
+            LOG.print(pending.command + " -> " + result);
+        }
+        if (pending.listener != null)
+        {
+            pending.listener.onResponse(new Response(pending.command, result, errorCode, lines, latency));
+        }
+    }
+
+    /***
+     * 超时线程, 只等待当前写入的指令
+     */
+    private void deadlineLoop()
+    {
+        while (true)
+        {
+            Pending expired = null;
+            synchronized (mLock)
+            {
+                while (!mClosed && expired == null)
+                {
+                    try
+                    {
+                        if (mInFlight == null)
+                        {
+                            mLock.wait();
+                            continue;
+                        }
+                        long remaining = mInFlight.deadlineNanos - System.nanoTime();
+                        if (remaining > 0L)
+                        {
+                            TimeUnit.NANOSECONDS.timedWait(mLock, remaining);
+                        }
+                        else
+                        {
+                            expired = mInFlight;
+                        }
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                }
+                if (mClosed)
+                {
+                    return;
+                }
+            }
+            complete(expired, Result.TIMEOUT, -1);
+        }
+    }
+
+    /***
+     * 以 + 或 ^ 开头且前缀与当前指令不同的行, 或模块的开机、来电等提示
+     */
+    private static boolean isUrc(String line, String prefix)
+    {
+        char first = line.charAt(0);
+        if (first == '+' || first == '^')
+        {
+            if (prefix.length() == 0)
+            {
+                return true;
+            }
+            return !(line.startsWith(prefix)
+                    && (line.length() == prefix.length() || line.charAt(prefix.length()) == ':'));
+        }
+        return line.equals("RING") || line.equals("RDY");
+    }
+
+    /***
+     * AT+CSQ、AT+CPIN? 、AT+QIPOPEN=1,... 的结果前缀分别为 +CSQ、+CPIN、+QIPOPEN
+     */
+    static String prefixOf(String command)
+    {
+        if (command.length() < 3 || !command.regionMatches(true, 0, "AT", 0, 2))
+        {
+            return "";
+        }
+        char first = command.charAt(2);
+        if (first != '+' && first != '^')
+        {
+            return "";
+        }
+        int end = 3;
+        while (end < command.length())
+        {
+            char c = command.charAt(end);
+            if (c == '=' || c == '?')
+            {
+                break;
+            }
+            end++;
+        }
+        return command.substring(2, end);
+    }
+
+    private static int parseCode(String line)
+    {
+        int colon = line.indexOf(':');
+        try
+        {
+            return Integer.parseInt(line.substring(colon + 1).trim());
+        }
+        catch (NumberFormatException e)
+        {
+            // 模块设置为文字错误信息 (AT+CMEE=2) 时没有错误码
+            return -1;
+        }
+    }
+}
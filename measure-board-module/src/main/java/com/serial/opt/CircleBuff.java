@@ -3,8 +3,9 @@ package com.serial.opt;
 /**
  * 循环队列缓存数据
  * Created by fanjc on 2016/7/5 005.
+ * @deprecated 每个字节都要加锁, 串口读写线程之间请使用 {@link SpscByteRing}
  */
-
+@Deprecated
 public class CircleBuff
 {
     private static final JLog LOG = new JLog("CircleBuff", false, JLog.TYPE_DEBUG);
@@ -88,7 +89,7 @@ public class CircleBuff
 
     public void writeDataWithBlock(byte[] data, int offset, int len)
     {
-        for (int i = offset; i < len; i++)
+        for (int i = offset; i < offset + len; i++)
         {
             writeDataWithBlock(data[i]);
         }
@@ -147,7 +148,7 @@ public class CircleBuff
     public int readDataWithBlock(byte[] data, int offset, int len)
     {
         int size = 0;
-        for (int i = offset; i < len; i++)
+        for (int i = offset; i < offset + len; i++)
         {
             if (isCanReadData())
             {
@@ -165,7 +166,7 @@ public class CircleBuff
             return this.mWriteIndex - this.mReadIndex;
         }
 
-        return this.mReadIndex + this.mWriteIndex;
+        return this.mCapacity - this.mReadIndex + this.mWriteIndex;
     }
 
     public void clear()
@@ -0,0 +1,402 @@
+package com.serial.opt;
+
+/***
+ * 55AA 协议帧解码器
+ * <p>
+ * 帧格式: 55 AA | 长度(2字节, 大端) | 数据(长度个字节) | 异或校验(1) | 55 AA
+ * 长度字段不包含自身、校验位及首尾标志, 因此整帧长度 = 长度 + {@link #FRAME_OVERHEAD}
+ * </p>
+ * 直接在原始字节上按状态机解析, 一次读取中包含多帧时会逐帧分发, 帧被拆分到多次读取时会等待剩余字节.
+ * 异或校验在接收数据的同时逐字节计算, 校验失败的帧默认丢弃, 分发的帧都已通过校验.
+ * 长度非法、帧尾不匹配或校验失败时只丢弃帧头的 55, 从下一个字节起重新寻找帧头.
+ * 分发的 {@link Frame} 是复用的视图, 只在回调期间有效, 需要保留时调用 {@link Frame#copy()}.
+ * 非线程安全, 只能由一个读取线程调用.
+ */
+public class FrameDecoder
+{
+    public static final byte FLAG_1 = (byte) 0x55;
+    public static final byte FLAG_2 = (byte) 0xAA;
+
+    /** 首尾标志(4) + 长度(2) + 校验(1) */
+    public static final int FRAME_OVERHEAD = 7;
+
+    /** 类型(1) + 协议(1) + 命令(2) */
+    public static final int MIN_BODY_LENGTH = 4;
+
+    /** 命令字节在帧中的位置 */
+    public static final int INDEX_COMMAND = 7;
+
+    public static final int DEFAULT_MAX_FRAME_SIZE = 1024 * 4;
+
+    private static final int STATE_HEAD_1 = 0;
+    private static final int STATE_HEAD_2 = 1;
+    private static final int STATE_LENGTH_HI = 2;
+    private static final int STATE_LENGTH_LO = 3;
+    private static final int STATE_BODY = 4;
+    private static final int STATE_CHECKSUM = 5;
+    private static final int STATE_TAIL_1 = 6;
+    private static final int STATE_TAIL_2 = 7;
+
+    private final byte[] mFrameBuf;
+    private final Frame mFrame;
+    /** 候选帧失败后等待重新扫描的字节, 有效数据为 [mPendingStart, mPendingEnd) */
+    private final byte[] mPending;
+    private int mPendingStart;
+    private int mPendingEnd;
+    /** 上一个候选帧失败后, mFrameBuf[1, 1 + mRescanLength) 需要重新扫描 */
+    private int mRescanLength;
+
+    private int mState = STATE_HEAD_1;
+    private int mPos;
+    /** 长度字段之后还需读取的数据字节数 */
+    private int mRemaining;
+    /** 长度字段到当前位置的异或值 */
+    private int mChecksum;
+    private boolean mChecksumOk;
+    private boolean mVerifyChecksum = true;
+
+    private long mFrameCount;
+    private long mDiscardedBytes;
+    private long mChecksumErrorCount;
+
+    public FrameDecoder()
+    {
+        this(DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    public FrameDecoder(int maxFrameSize)
+    {
+        if (maxFrameSize < FRAME_OVERHEAD + MIN_BODY_LENGTH)
+        {
+            throw new IllegalArgumentException("maxFrameSize too small: " + maxFrameSize);
+        }
+        this.mFrameBuf = new byte[maxFrameSize];
+        this.mFrame = new Frame(this.mFrameBuf);
+        this.mPending = new byte[maxFrameSize];
+    }
+
+    /***
+     * 解析一段读取到的数据, 每得到一个完整的帧就回调一次
+     * @param data 读取缓冲区
+     * @param offset 起始位置
+     * @param len 有效长度
+     * @param listener 帧回调
+     */
+    public void decode(byte[] data, int offset, int len, OnFrameListener listener)
+    {
+        final int end = offset + len;
+        int i = offset;
+        while (true)
+        {
+            // 先处理候选帧失败后需要重新扫描的字节, 它们在数据流中位于 data[i] 之前
+            if (mPendingStart < mPendingEnd)
+            {
+                mPendingStart += step(mPending, mPendingStart, mPendingEnd, listener);
+            }
+            else if (i < end)
+            {
+                i += step(data, i, end, listener);
+            }
+            else
+            {
+                break;
+            }
+            if (mRescanLength > 0)
+            {
+                rescan();
+            }
+        }
+    }
+
+    /***
+     * 按当前状态处理 data[i] 开始的字节
+     * @return 消耗的字节数, 为 0 时当前字节需要在新的状态下重新判断
+     */
+    private int step(byte[] data, int i, int end, OnFrameListener listener)
+    {
+        byte b = data[i];
+        switch (mState)
+        {
+            case STATE_HEAD_1:
+                if (b == FLAG_1)
+                {
+                    mFrameBuf[0] = b;
+                    mPos = 1;
+                    mState = STATE_HEAD_2;
+                }
+                else
+                {
+                    mDiscardedBytes++;
+                }
+                return 1;
+            case STATE_HEAD_2:
+                if (b == FLAG_2)
+                {
+                    mFrameBuf[1] = b;
+                    mPos = 2;
+                    mState = STATE_LENGTH_HI;
+                    return 1;
+                }
+                // 上一个 55 不是帧头, 当前字节重新作为帧头判断
+                mDiscardedBytes++;
+                mPos = 0;
+                mState = STATE_HEAD_1;
+                return 0;
+            case STATE_LENGTH_HI:
+                mFrameBuf[mPos++] = b;
+                mChecksum = b;
+                mState = STATE_LENGTH_LO;
+                return 1;
+            case STATE_LENGTH_LO:
+            {
+                mFrameBuf[mPos++] = b;
+                mChecksum ^= b;
+                int bodyLen = ((mFrameBuf[2] & 0xFF) << 8) | (b & 0xFF);
+                if (bodyLen < MIN_BODY_LENGTH || bodyLen + FRAME_OVERHEAD > mFrameBuf.length)
+                {
+                    // 长度非法, 从帧头的下一个字节重新寻找帧头
+                    resync();
+                }
+                else
+                {
+                    mRemaining = bodyLen;
+                    mState = STATE_BODY;
+                }
+                return 1;
+            }
+            case STATE_BODY:
+            {
+                int n = Math.min(mRemaining, end - i);
+                System.arraycopy(data, i, mFrameBuf, mPos, n);
+                int checksum = mChecksum;
+                for (int k = i, last = i + n; k < last; k++)
+                {
+                    checksum ^= data[k];
+                }
+                mChecksum = checksum;
+                mPos += n;
+                mRemaining -= n;
+                if (mRemaining == 0)
+                {
+                    mState = STATE_CHECKSUM;
+                }
+                return n;
+            }
+            case STATE_CHECKSUM:
+                mFrameBuf[mPos++] = b;
+                mChecksumOk = ((mChecksum ^ b) & 0xFF) == 0;
+                mState = STATE_TAIL_1;
+                return 1;
+            case STATE_TAIL_1:
+                if (b == FLAG_1)
+                {
+                    mFrameBuf[mPos++] = b;
+                    mState = STATE_TAIL_2;
+                    return 1;
+                }
+                // 帧尾不匹配, 当前字节在重新扫描的字节之后判断
+                resync();
+                return 0;
+            case STATE_TAIL_2:
+                if (b != FLAG_2)
+                {
+                    resync();
+                    return 0;
+                }
+                mFrameBuf[mPos++] = b;
+                if (!mChecksumOk && mVerifyChecksum)
+                {
+                    // 帧结构完整但校验失败, 帧内可能还有真正的帧头
+                    mChecksumErrorCount++;
+                    resync();
+                    return 1;
+                }
+                mFrame.mLength = mPos;
+                mFrame.mChecksumValid = mChecksumOk;
+                mFrameCount++;
+                mState = STATE_HEAD_1;
+                mPos = 0;
+                if (listener != null)
+                {
+                    listener.onFrame(mFrame);
+                }
+                return 1;
+            default:
+                resync();
+                return 0;
+        }
+    }
+
+    /***
+     * 放弃当前的候选帧. 只丢弃帧头的 55, 其后已缓存的字节由 {@link #rescan()} 重新扫描,
+     * 这样假帧头带着看似合法的长度时不会吞掉紧随其后的真实帧
+     */
+    private void resync()
+    {
+        if (mPos > 0)
+        {
+            mDiscardedBytes++;
+            mRescanLength = mPos - 1;
+        }
+        mPos = 0;
+        mRemaining = 0;
+        mChecksum = 0;
+        mState = STATE_HEAD_1;
+    }
+
+    /***
+     * 把候选帧中帧头之后的字节放到待处理字节的最前面
+     */
+    private void rescan()
+    {
+        int length = mRescanLength;
+        mRescanLength = 0;
+        int remaining = mPendingEnd - mPendingStart;
+        if (length + remaining > mPending.length)
+        {
+            // 不会发生: 重新扫描的字节总是少于产生它们的候选帧
+            mDiscardedBytes += length;
+            return;
+        }
+        if (mPendingStart < length)
+        {
+            System.arraycopy(mPending, mPendingStart, mPending, length, remaining);
+            mPendingStart = length;
+        }
+        mPendingStart -= length;
+        mPendingEnd = mPendingStart + length + remaining;
+        System.arraycopy(mFrameBuf, 1, mPending, mPendingStart, length);
+    }
+
+    /***
+     * 设置是否丢弃校验失败的帧, 默认丢弃
+     * 关闭后校验失败的帧也会分发, 通过 {@link Frame#isChecksumValid()} 判断
+     * @param verify
+     */
+    public void setVerifyChecksum(boolean verify)
+    {
+        this.mVerifyChecksum = verify;
+    }
+
+    /***
+     * 清除未完成的帧
+     */
+    public void reset()
+    {
+        mPendingStart = 0;
+        mPendingEnd = 0;
+        mRescanLength = 0;
+        mPos = 0;
+        mRemaining = 0;
+        mChecksum = 0;
+        mState = STATE_HEAD_1;
+    }
+
+    /** 已分发的帧数 */
+    public long getFrameCount()
+    {
+        return mFrameCount;
+    }
+
+    /** 因不属于任何完整帧而被丢弃的字节数, 包括校验失败的帧 */
+    public long getDiscardedBytes()
+    {
+        return mDiscardedBytes;
+    }
+
+    /** 结构完整但异或校验失败的帧数 */
+    public long getChecksumErrorCount()
+    {
+        return mChecksumErrorCount;
+    }
+
+    /***
+     * 一个完整帧的只读视图, 包含首尾的 55AA
+     */
+    public static final class Frame
+    {
+        private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+        private final byte[] mBuf;
+        private int mLength;
+        private boolean mChecksumValid;
+
+        Frame(byte[] buf)
+        {
+            this.mBuf = buf;
+        }
+
+        /** 底层缓冲区, 有效数据为 [0, length()) */
+        public byte[] array()
+        {
+            return mBuf;
+        }
+
+        public int length()
+        {
+            return mLength;
+        }
+
+        public byte get(int index)
+        {
+            if (index < 0 || index >= mLength)
+            {
+                throw new IndexOutOfBoundsException("index " + index + " length " + mLength);
+            }
+            return mBuf[index];
+        }
+
+        /** 长度字段的值 */
+        public int bodyLength()
+        {
+            return ((mBuf[2] & 0xFF) << 8) | (mBuf[3] & 0xFF);
+        }
+
+        /** 异或校验是否正确, 解码器开启校验时总为 true */
+        public boolean isChecksumValid()
+        {
+            return mChecksumValid;
+        }
+
+        /** 命令字, 例如 0xE2 心跳 */
+        public int command()
+        {
+            return mBuf[INDEX_COMMAND] & 0xFF;
+        }
+
+        public byte[] copy()
+        {
+            byte[] out = new byte[mLength];
+            System.arraycopy(mBuf, 0, out, 0, mLength);
+            return out;
+        }
+
+        /** 与旧的字符串接口相同的大写16进制格式 */
+        public String toHexString()
+        {
+            char[] out = new char[mLength * 2];
+            for (int i = 0; i < mLength; i++)
+            {
+                int v = mBuf[i] & 0xFF;
+                out[i * 2] = HEX[v >>> 4];
+                out[i * 2 + 1] = HEX[v & 0x0F];
+            }
+            return new String(out);
+        }
+
+        @Override
+        public String toString()
+        {
+            return toHexString();
+        }
+    }
+
+    public interface OnFrameListener
+    {
+        /***
+         * 收到一个完整帧, frame 只在回调期间有效
+         * @param frame
+         */
+        void onFrame(Frame frame);
+    }
+}
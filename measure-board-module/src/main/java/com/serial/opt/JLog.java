@@ -38,27 +38,38 @@ public class JLog {
 
     public void print(String str, int aType) {
         if (this.isPrint) {
-            switch (aType) {
-                case 5:
-                    android.util.Log.e(this.iTag, str);
-                    break;
-                case 1:
-                    android.util.Log.i(this.iTag, str);
-                    break;
-                case 0:
-                    android.util.Log.v(this.iTag, str);
-                    break;
-                case 3:
-                    android.util.Log.d(this.iTag, str);
-                    break;
-                case 2:
-                case 4:
-                    android.util.Log.w(this.iTag, str);
-                    break;
+            int level = toLevel(aType);
+            // 经过 MeterLog, 级别可在运行时按 tag 修改, 同时写入内存日志
+            if (MeterLog.isLoggable(this.iTag, level)) {
+                MeterLog.println(level, this.iTag, str, null);
             }
         }
     }
 
+    /***
+     * 拼接日志内容之前检查, 关闭时不生成字符串
+     * @return
+     */
+    public boolean isLoggable() {
+        return this.isPrint && MeterLog.isLoggable(this.iTag, toLevel(this.mDefaultType));
+    }
+
+    private static int toLevel(int aType) {
+        switch (aType) {
+            case TYPE_ERROR:
+                return MeterLog.ERROR;
+            case TYPE_VERBOSE:
+                return MeterLog.VERBOSE;
+            case TYPE_DEBUG:
+                return MeterLog.DEBUG;
+            case 2:
+            case TYPE_WARN:
+                return MeterLog.WARN;
+            default:
+                return MeterLog.INFO;
+        }
+    }
+
     public void print(int value) {
         print(String.valueOf(value));
     }
@@ -0,0 +1,324 @@
+package com.serial.opt;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 计价器共用的日志入口, measure-board-module 和 app 都通过它输出日志
+ * <p>
+ * 每个 tag 的级别可以在运行时修改, 例如按 Firestore 的 Settings 打开某个 tag 的 VERBOSE.
+ * 低于 tag 级别的日志在调用处直接返回: 消息通过 {@link Message} 或 Kotlin 的 inline 函数延迟生成,
+ * 关闭时不拼接字符串, 也不分配对象.
+ * </p>
+ * <p>
+ * 通过级别检查的日志写入预先分配的内存环形缓存, 只保留最近 {@link #RING_CAPACITY} 条,
+ * 达到 logcat 级别的日志 (默认 INFO, 单独设置了级别的 tag 按其级别) 同时输出到 logcat.
+ * 上传日志时用 {@link #dump} 导出环形缓存.
+ * </p>
+ */
+public final class MeterLog
+{
+    /** 与 android.util.Log 的级别相同 */
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+    /** 关闭 */
+    public static final int OFF = 8;
+
+    public static final int RING_CAPACITY = 1024;
+    private static final int RING_MASK = RING_CAPACITY - 1;
+
+    /**
+     * 延迟生成的日志内容, 只在级别打开时调用
+     */
+    public interface Message
+    {
+        String get();
+    }
+
+    private static volatile int sDefaultLevel = DEBUG;
+    /** {@link #setDefaultLevel} 设置的默认级别, {@link #setLevels} 中没有 "*" 时恢复为它 */
+    private static volatile int sBaseLevel = DEBUG;
+    private static volatile int sLogcatLevel = INFO;
+    private static final ConcurrentHashMap<String, Integer> sTagLevels = new ConcurrentHashMap<>();
+    /** 默认级别与所有 tag 级别中最低的, 低于它时不查表 */
+    private static volatile int sMinLevel = DEBUG;
+
+    private static final Object RING_LOCK = new Object();
+    private static final long[] sTimes = new long[RING_CAPACITY];
+    private static final int[] sLevels = new int[RING_CAPACITY];
+    private static final long[] sThreads = new long[RING_CAPACITY];
+    private static final String[] sTags = new String[RING_CAPACITY];
+    private static final String[] sMessages = new String[RING_CAPACITY];
+    /** 下一条写入的序号, 由 RING_LOCK 保护 */
+    private static long sNext;
+
+    private MeterLog()
+    {
+    }
+
+    /***
+     * 级别检查, 不分配对象
+     * @param tag
+     * @param level
+     * @return
+     */
+    public static boolean isLoggable(String tag, int level)
+    {
+        if (level < sMinLevel)
+        {
+            return false;
+        }
+        Integer tagLevel = sTagLevels.get(tag);
+        return level >= (tagLevel != null ? tagLevel : sDefaultLevel);
+    }
+
+    public static void v(String tag, Message message)
+    {
+        if (isLoggable(tag, VERBOSE))
+        {
+            println(VERBOSE, tag, message.get(), null);
+        }
+    }
+
+    public static void d(String tag, Message message)
+    {
+        if (isLoggable(tag, DEBUG))
+        {
+            println(DEBUG, tag, message.get(), null);
+        }
+    }
+
+    public static void i(String tag, Message message)
+    {
+        if (isLoggable(tag, INFO))
+        {
+            println(INFO, tag, message.get(), null);
+        }
+    }
+
+    public static void w(String tag, Message message)
+    {
+        if (isLoggable(tag, WARN))
+        {
+            println(WARN, tag, message.get(), null);
+        }
+    }
+
+    public static void e(String tag, Message message, Throwable tr)
+    {
+        if (isLoggable(tag, ERROR))
+        {
+            println(ERROR, tag, message.get(), tr);
+        }
+    }
+
+    /***
+     * 常量内容的日志
+     */
+    public static void log(int level, String tag, String message)
+    {
+        if (isLoggable(tag, level))
+        {
+            println(level, tag, message, null);
+        }
+    }
+
+    /***
+     * 写入环形缓存, 达到 logcat 级别时输出到 logcat, 调用前应已检查 {@link #isLoggable}
+     */
+    public static void println(int level, String tag, String message, Throwable tr)
+    {
+        synchronized (RING_LOCK)
+        {
+            int i = (int) (sNext++ & RING_MASK);
+            sTimes[i] = System.currentTimeMillis();
+            sLevels[i] = level;
+            sThreads[i] = Thread.currentThread().getId();
+            sTags[i] = tag;
+            sMessages[i] = tr != null ? message + ": " + tr : message;
+        }
+        Integer tagLevel = sTagLevels.get(tag);
+        if (level >= sLogcatLevel || (tagLevel != null && level >= tagLevel))
+        {
+            android.util.Log.println(Math.min(level, ERROR), tag,
+                    tr != null ? message + '\n' + android.util.Log.getStackTraceString(tr) : message);
+        }
+    }
+
+    /***
+     * 没有单独设置级别的 tag 的级别
+     * @param level
+     */
+    public static void setDefaultLevel(int level)
+    {
+        sBaseLevel = level;
+        sDefaultLevel = level;
+        updateMinLevel();
+    }
+
+    public static int getDefaultLevel()
+    {
+        return sDefaultLevel;
+    }
+
+    /***
+     * 达到这个级别的日志同时输出到 logcat
+     * @param level
+     */
+    public static void setLogcatLevel(int level)
+    {
+        sLogcatLevel = level;
+    }
+
+    /***
+     * 设置一个 tag 的级别
+     * @param tag
+     * @param level 小于0时恢复为默认级别
+     */
+    public static void setLevel(String tag, int level)
+    {
+        if (level < 0)
+        {
+            sTagLevels.remove(tag);
+        }
+        else
+        {
+            sTagLevels.put(tag, level);
+        }
+        updateMinLevel();
+    }
+
+    /***
+     * 用 tag 到级别名称的表替换所有 tag 的级别, 例如 {"MeasureBoardRepositoryImpl": "VERBOSE"}
+     * 键 "*" 设置默认级别, 无法识别的级别忽略
+     * @param levels 为 null 时清除所有 tag 的级别并恢复默认级别
+     */
+    public static void setLevels(Map<String, String> levels)
+    {
+        sTagLevels.clear();
+        sDefaultLevel = sBaseLevel;
+        if (levels != null)
+        {
+            for (Map.Entry<String, String> entry : levels.entrySet())
+            {
+                int level = parseLevel(entry.getValue());
+                if (level < 0 || entry.getKey() == null)
+                {
+                    continue;
+                }
+                if ("*".equals(entry.getKey()))
+                {
+                    sDefaultLevel = level;
+                }
+                else
+                {
+                    sTagLevels.put(entry.getKey(), level);
+                }
+            }
+        }
+        updateMinLevel();
+    }
+
+    /***
+     * @param name VERBOSE、DEBUG、INFO、WARN、ERROR、OFF 或首字母, 不区分大小写
+     * @return 无法识别时为 -1
+     */
+    public static int parseLevel(String name)
+    {
+        if (name == null || name.length() == 0)
+        {
+            return -1;
+        }
+        switch (Character.toUpperCase(name.charAt(0)))
+        {
+            case 'V':
+                return VERBOSE;
+            case 'D':
+                return DEBUG;
+            case 'I':
+                return INFO;
+            case 'W':
+                return WARN;
+            case 'E':
+                return ERROR;
+            case 'O':
+                return OFF;
+            default:
+                return -1;
+        }
+    }
+
+    /***
+     * 按时间顺序导出环形缓存中的日志
+     * @param out
+     * @return 导出的条数
+     * @throws IOException
+     */
+    public static int dump(Appendable out) throws IOException
+    {
+        long[] times = new long[RING_CAPACITY];
+        int[] levels = new int[RING_CAPACITY];
+        long[] threads = new long[RING_CAPACITY];
+        String[] tags = new String[RING_CAPACITY];
+        String[] messages = new String[RING_CAPACITY];
+        long first;
+        int count;
+        synchronized (RING_LOCK)
+        {
+            count = (int) Math.min(sNext, RING_CAPACITY);
+            first = sNext - count;
+            for (int n = 0; n < count; n++)
+            {
+                int i = (int) ((first + n) & RING_MASK);
+                times[n] = sTimes[i];
+                levels[n] = sLevels[i];
+                threads[n] = sThreads[i];
+                tags[n] = sTags[i];
+                messages[n] = sMessages[i];
+            }
+        }
+        SimpleDateFormat format = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+        for (int n = 0; n < count; n++)
+        {
+            out.append(format.format(new Date(times[n]))).append(' ')
+                    .append(levelChar(levels[n])).append('/').append(tags[n])
+                    .append('(').append(String.valueOf(threads[n])).append("): ")
+                    .append(messages[n]).append('\n');
+        }
+        return count;
+    }
+
+    private static char levelChar(int level)
+    {
+        switch (level)
+        {
+            case VERBOSE:
+                return 'V';
+            case DEBUG:
+                return 'D';
+            case INFO:
+                return 'I';
+            case WARN:
+                return 'W';
+            default:
+                return 'E';
+        }
+    }
+
+    private static void updateMinLevel()
+    {
+        int min = sDefaultLevel;
+        for (Integer level : sTagLevels.values())
+        {
+            min = Math.min(min, level);
+        }
+        sMinLevel = min;
+    }
+}
@@ -0,0 +1,564 @@
+package com.serial.opt;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * 串口收发数据的二进制记录
+ * <p>
+ * 记录写入两块预先分配的缓存, 一块写满后与另一块交换, 不为每帧创建字符串或数组.
+ * 设置目录后由后台线程把写满或超过 {@link #FLUSH_INTERVAL_MS} 的缓存写入分段文件,
+ * 文件超过 segmentBytes 后换到下一个, 只保留最近 maxSegments 个; 没有设置目录时只在内存中保留最近两块缓存.
+ * 后台线程来不及写入时丢弃新的记录并计数, 不会阻塞读写线程.
+ * </p>
+ * 记录格式(大端): 类型(1) 串口(1) 长度(2) 单调时间纳秒(8) 数据.
+ * 每个分段以 {@link #TYPE_HEADER} 开头, 内容为 "SCAP"、版本(2)、墙上时间毫秒(8)、同一时刻的单调时间纳秒(8),
+ * 之后是各串口名称的 {@link #TYPE_PORT} 记录. 导出的文件是各分段依次相连, 由 {@link SerialReplayer} 读取.
+ */
+public final class SerialCapture
+{
+    private static final JLog LOG = new JLog("SerialCapture", true, JLog.TYPE_INFO);
+
+    public static final int TYPE_RX = 0;
+    public static final int TYPE_TX = 1;
+    public static final int TYPE_PORT = 2;
+    public static final int TYPE_HEADER = 3;
+
+    public static final int RECORD_HEADER_SIZE = 12;
+    public static final int MAX_RECORD_DATA = 0xFFFF;
+    public static final int MAGIC = 0x53434150; // "SCAP"
+    public static final int VERSION = 1;
+    public static final int MAX_PORTS = 256;
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    public static final long DEFAULT_SEGMENT_BYTES = 1024 * 1024;
+    public static final int DEFAULT_MAX_SEGMENTS = 8;
+    /** 缓存未写满时写入文件的最长间隔 */
+    public static final long FLUSH_INTERVAL_MS = 1000L;
+
+    private static final String SEGMENT_PREFIX = "serial-";
+    private static final String SEGMENT_SUFFIX = ".cap";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static SerialCapture sDefault;
+
+    /***
+     * 所有串口共用的实例, 默认开启, 只在内存中保留
+     * @return
+     */
+    public static synchronized SerialCapture getDefault()
+    {
+        if (sDefault == null)
+        {
+            sDefault = new SerialCapture(DEFAULT_BUFFER_SIZE);
+        }
+        return sDefault;
+    }
+
+    private final Object mLock = new Object();
+    /** 正在写入记录的缓存 */
+    private byte[] mActive;
+    private int mActiveSize;
+    /** 已写满等待写入文件的缓存, mStandbySize 为0时空闲 */
+    private byte[] mStandby;
+    private int mStandbySize;
+    /** 后台线程正在写入 mStandby */
+    private boolean mFlushing = false;
+    private volatile boolean mEnabled = true;
+
+    private final ArrayList<String> mPorts = new ArrayList<>();
+
+    private File mDirectory;
+    private long mSegmentBytes = DEFAULT_SEGMENT_BYTES;
+    private int mMaxSegments = DEFAULT_MAX_SEGMENTS;
+    private Thread mFlushThread;
+
+    /* 以下只由后台线程或持有 mFileLock 时访问 */
+    private final Object mFileLock = new Object();
+    private OutputStream mSegmentOut;
+    private long mSegmentSize;
+    private int mSegmentIndex;
+
+    private volatile long mRecordCount;
+    private volatile long mByteCount;
+    private volatile long mDroppedCount;
+
+    public SerialCapture(int bufferSize)
+    {
+        this.mActive = new byte[bufferSize];
+        this.mStandby = new byte[bufferSize];
+    }
+
+    /***
+     * 开启或关闭记录, 关闭后 {@link #record} 直接返回
+     * @param enabled
+     */
+    public void setEnabled(boolean enabled)
+    {
+        this.mEnabled = enabled;
+    }
+
+    public boolean isEnabled()
+    {
+        return this.mEnabled;
+    }
+
+    /***
+     * 写入分段文件, 启动后台写入线程
+     * @param directory 分段文件目录
+     * @param segmentBytes 单个分段的最大字节数
+     * @param maxSegments 保留的分段数, 更早的分段被删除
+     */
+    public void setDirectory(File directory, long segmentBytes, int maxSegments)
+    {
+        synchronized (mLock)
+        {
+            if (!directory.isDirectory() && !directory.mkdirs())
+            {
+                LOG.print("cannot create capture directory " + directory);
+                return;
+            }
+            this.mDirectory = directory;
+            this.mSegmentBytes = Math.max(mActive.length, segmentBytes);
+            this.mMaxSegments = Math.max(1, maxSegments);
+            if (this.mFlushThread == null)
+            {
+                this.mFlushThread = new Thread(mFlushRunnable, "SerialCapture");
+                this.mFlushThread.setDaemon(true);
+                this.mFlushThread.start();
+            }
+        }
+    }
+
+    /***
+     * 串口的编号, 记录中用编号代替名称
+     * @param name 串口名称, 例如路径
+     * @return 0 - 255, 超过 {@link #MAX_PORTS} 个串口时共用最后一个编号
+     */
+    public int registerPort(String name)
+    {
+        synchronized (mLock)
+        {
+            int id = mPorts.indexOf(name);
+            if (id >= 0)
+            {
+                return id;
+            }
+            if (mPorts.size() >= MAX_PORTS)
+            {
+                return MAX_PORTS - 1;
+            }
+            mPorts.add(name);
+            id = mPorts.size() - 1;
+            // 当前分段的端口表中没有新串口, 在数据记录之前补一条
+            byte[] bytes = name.getBytes(UTF_8);
+            append(TYPE_PORT, id, System.nanoTime(), bytes, 0, Math.min(bytes.length, MAX_RECORD_DATA));
+            return id;
+        }
+    }
+
+    /***
+     * 记录一次收发的数据, 任意线程可调用
+     * @param type {@link #TYPE_RX} 或 {@link #TYPE_TX}
+     * @param port {@link #registerPort} 返回的编号
+     */
+    public void record(int type, int port, byte[] data, int offset, int len)
+    {
+        if (!mEnabled || len <= 0)
+        {
+            return;
+        }
+        final long now = System.nanoTime();
+        synchronized (mLock)
+        {
+            while (len > 0)
+            {
+                int n = Math.min(len, MAX_RECORD_DATA);
+                if (!append(type, port, now, data, offset, n))
+                {
+                    mDroppedCount++;
+                    return;
+                }
+                offset += n;
+                len -= n;
+            }
+        }
+    }
+
+    /***
+     * 写入一条记录, 调用时已持有 mLock
+     * @return 缓存已满且无法交换时为 false
+     */
+    private boolean append(int type, int port, long timeNanos, byte[] data, int offset, int len)
+    {
+        final int size = RECORD_HEADER_SIZE + len;
+        if (size > mActive.length)
+        {
+            return false;
+        }
+        if (mActiveSize + size > mActive.length && !swap())
+        {
+            return false;
+        }
+        byte[] buf = mActive;
+        int p = mActiveSize;
+        buf[p++] = (byte) type;
+        buf[p++] = (byte) port;
+        buf[p++] = (byte) (len >>> 8);
+        buf[p++] = (byte) len;
+        p = putLong(buf, p, timeNanos);
+        System.arraycopy(data, offset, buf, p, len);
+        mActiveSize = p + len;
+        mRecordCount++;
+        mByteCount += len;
+        return true;
+    }
+
+    /***
+     * 交换两块缓存, 调用时已持有 mLock
+     * @return 另一块缓存还未写入文件时为 false
+     */
+    private boolean swap()
+    {
+        if (mDirectory != null)
+        {
+            if (mStandbySize > 0 || mFlushing)
+            {
+                return false;
+            }
+        }
+        // 没有目录时直接覆盖较早的一块, 内存中始终保留最近两块
+        byte[] full = mActive;
+        mActive = mStandby;
+        mStandby = full;
+        mStandbySize = mActiveSize;
+        mActiveSize = 0;
+        mLock.notifyAll();
+        return true;
+    }
+
+    private final Runnable mFlushRunnable = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            while (true)
+            {
+                byte[] buffer;
+                int size;
+                synchronized (mLock)
+                {
+                    if (mStandbySize == 0)
+                    {
+                        try
+                        {
+                            mLock.wait(FLUSH_INTERVAL_MS);
+                        }
+                        catch (InterruptedException e)
+                        {
+                            return;
+                        }
+                        if (mStandbySize == 0 && mActiveSize > 0)
+                        {
+                            swap();
+                        }
+                    }
+                    if (mStandbySize == 0)
+                    {
+                        continue;
+                    }
+                    buffer = mStandby;
+                    size = mStandbySize;
+                    mFlushing = true;
+                }
+                try
+                {
+                    writeSegment(buffer, size);
+                }
+                catch (IOException e)
+                {
+                    LOG.print("write capture segment failed: " + e.getMessage());
+                }
+                synchronized (mLock)
+                {
+                    mStandbySize = 0;
+                    mFlushing = false;
+                    mLock.notifyAll();
+                }
+            }
+        }
+    };
+
+    /***
+     * 把一块缓存写入当前分段, 超过大小后换到新的分段
+     */
+    private void writeSegment(byte[] buffer, int size) throws IOException
+    {
+        synchronized (mFileLock)
+        {
+            if (mSegmentSize + size > mSegmentBytes)
+            {
+                closeSegment();
+            }
+            if (mSegmentOut == null)
+            {
+                openSegment();
+            }
+            mSegmentOut.write(buffer, 0, size);
+            mSegmentOut.flush();
+            mSegmentSize += size;
+        }
+    }
+
+    private void openSegment() throws IOException
+    {
+        File[] existing = listSegments(mDirectory);
+        if (mSegmentIndex == 0 && existing.length > 0)
+        {
+            mSegmentIndex = segmentIndex(existing[existing.length - 1]);
+        }
+        mSegmentIndex++;
+        File file = new File(mDirectory, String.format("%s%06d%s", SEGMENT_PREFIX, mSegmentIndex, SEGMENT_SUFFIX));
+        mSegmentOut = new FileOutputStream(file);
+        byte[] header = segmentHeader();
+        mSegmentOut.write(header);
+        mSegmentSize = header.length;
+
+        // 加上新分段后超过数量的最早分段
+        for (int i = 0; i <= existing.length - mMaxSegments; i++)
+        {
+            if (!existing[i].delete())
+            {
+                LOG.print("cannot delete " + existing[i]);
+            }
+        }
+    }
+
+    /***
+     * 分段开头的头记录及端口表
+     */
+    private byte[] segmentHeader()
+    {
+        String[] ports;
+        synchronized (mLock)
+        {
+            ports = mPorts.toArray(new String[0]);
+        }
+        final long nanos = System.nanoTime();
+        java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream(256);
+        byte[] header = new byte[4 + 2 + 8 + 8];
+        int p = 0;
+        header[p++] = (byte) (MAGIC >>> 24);
+        header[p++] = (byte) (MAGIC >>> 16);
+        header[p++] = (byte) (MAGIC >>> 8);
+        header[p++] = (byte) MAGIC;
+        header[p++] = (byte) (VERSION >>> 8);
+        header[p++] = (byte) VERSION;
+        p = putLong(header, p, System.currentTimeMillis());
+        putLong(header, p, nanos);
+        writeRecord(out, TYPE_HEADER, 0, nanos, header, header.length);
+        for (int i = 0; i < ports.length; i++)
+        {
+            byte[] name = ports[i].getBytes(UTF_8);
+            writeRecord(out, TYPE_PORT, i, nanos, name, Math.min(name.length, MAX_RECORD_DATA));
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeRecord(java.io.ByteArrayOutputStream out, int type, int port, long nanos, byte[] data, int len)
+    {
+        byte[] head = new byte[RECORD_HEADER_SIZE];
+        head[0] = (byte) type;
+        head[1] = (byte) port;
+        head[2] = (byte) (len >>> 8);
+        head[3] = (byte) len;
+        putLong(head, 4, nanos);
+        out.write(head, 0, head.length);
+        out.write(data, 0, len);
+    }
+
+    /***
+     * 导出已记录的数据, 写入文件的分段加上内存中还未写入的记录
+     * <p>
+     * 导出期间占用后台线程的写入权 (mFlushing), 先把内存中的记录写入分段并换到新的分段,
+     * 再列出分段, 导出的分段之后不再被写入, 记录的顺序与写入时相同.
+     * </p>
+     * @param out 导出的文件
+     * @return 导出的字节数
+     * @throws IOException
+     */
+    public long export(File out) throws IOException
+    {
+        byte[] older = null;
+        byte[] pending;
+        File directory;
+        synchronized (mLock)
+        {
+            // 等后台线程或其他导出写完正在写入的缓存, 保证分段中的记录在内存中的记录之前
+            while (mFlushing)
+            {
+                try
+                {
+                    mLock.wait();
+                }
+                catch (InterruptedException e)
+                {
+                    throw new java.io.InterruptedIOException("export interrupted");
+                }
+            }
+            if (mStandbySize > 0)
+            {
+                older = Arrays.copyOf(mStandby, mStandbySize);
+            }
+            pending = Arrays.copyOf(mActive, mActiveSize);
+            directory = mDirectory;
+            if (directory != null)
+            {
+                // 已复制的记录由本线程写入分段, 之后的记录写入清空的缓存, 写完之前后台线程不再写入
+                mStandbySize = 0;
+                mActiveSize = 0;
+                mFlushing = true;
+            }
+        }
+        long total = 0;
+        try (FileOutputStream fos = new FileOutputStream(out))
+        {
+            if (directory != null)
+            {
+                synchronized (mFileLock)
+                {
+                    if (older != null)
+                    {
+                        writeSegment(older, older.length);
+                    }
+                    if (pending.length > 0)
+                    {
+                        writeSegment(pending, pending.length);
+                    }
+                    closeSegment();
+                    for (File segment : listSegments(directory))
+                    {
+                        total += copy(segment, fos);
+                    }
+                }
+            }
+            else
+            {
+                byte[] header = segmentHeader();
+                fos.write(header);
+                total += header.length;
+                if (older != null)
+                {
+                    fos.write(older);
+                    total += older.length;
+                }
+                fos.write(pending);
+                total += pending.length;
+            }
+        }
+        finally
+        {
+            if (directory != null)
+            {
+                synchronized (mLock)
+                {
+                    mFlushing = false;
+                    mLock.notifyAll();
+                }
+            }
+        }
+        return total;
+    }
+
+    /***
+     * 关闭当前分段, 下次写入时换到新的分段, 调用时已持有 mFileLock
+     */
+    private void closeSegment() throws IOException
+    {
+        if (mSegmentOut != null)
+        {
+            mSegmentOut.close();
+            mSegmentOut = null;
+        }
+    }
+
+    private static long copy(File file, OutputStream out) throws IOException
+    {
+        long total = 0;
+        byte[] buffer = new byte[8192];
+        try (java.io.FileInputStream in = new java.io.FileInputStream(file))
+        {
+            int n;
+            while ((n = in.read(buffer)) > 0)
+            {
+                out.write(buffer, 0, n);
+                total += n;
+            }
+        }
+        return total;
+    }
+
+    private static File[] listSegments(File directory)
+    {
+        File[] files = directory.listFiles(new java.io.FilenameFilter()
+        {
+            @Override
+            public boolean accept(File dir, String name)
+            {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null)
+        {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static int segmentIndex(File file)
+    {
+        String name = file.getName();
+        try
+        {
+            return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        }
+        catch (NumberFormatException e)
+        {
+            return 0;
+        }
+    }
+
+    static int putLong(byte[] buf, int p, long v)
+    {
+        for (int shift = 56; shift >= 0; shift -= 8)
+        {
+            buf[p++] = (byte) (v >>> shift);
+        }
+        return p;
+    }
+
+    public long getRecordCount()
+    {
+        return mRecordCount;
+    }
+
+    public long getByteCount()
+    {
+        return mByteCount;
+    }
+
+    /***
+     * 缓存已满来不及写入而丢弃的记录数
+     * @return
+     */
+    public long getDroppedCount()
+    {
+        return mDroppedCount;
+    }
+}
@@ -0,0 +1,173 @@
+package com.serial.opt;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+
+/**
+ * {@link SerialReactor} 等待描述符就绪的方式
+ * <p>
+ * 默认的 {@link #SYSTEM} 使用 {@link Os#poll} 和 pipe. 就绪状态使用本接口的常量而不是 {@link OsConstants},
+ * 单元测试中可换成不需要真实描述符的实现.
+ * </p>
+ */
+interface SerialPoller
+{
+    /** 可读 */
+    int READABLE = 1;
+    /** 出错或对端已挂断, 不需要登记也会返回 */
+    int HANGUP = 1 << 1;
+    /** 描述符已关闭, 不需要登记也会返回 */
+    int INVALID = 1 << 2;
+
+    SerialPoller SYSTEM = new SystemPoller();
+
+    /***
+     * 创建唤醒用的 pipe
+     * @return [0] 为读端, [1] 为写端
+     * @throws IOException
+     */
+    FileDescriptor[] pipe() throws IOException;
+
+    /***
+     * 等待描述符就绪
+     * @param fds 描述符
+     * @param events 各描述符等待的状态, {@link #READABLE} 或 0
+     * @param revents 返回各描述符的就绪状态
+     * @param count 有效的描述符数
+     * @param timeoutMs 最长等待时间, -1 为一直等待
+     * @return 就绪的描述符数, 超时或被信号中断时为0
+     * @throws IOException
+     */
+    int poll(FileDescriptor[] fds, int[] events, int[] revents, int count, int timeoutMs) throws IOException;
+
+    int read(FileDescriptor fd, byte[] buffer, int offset, int len) throws IOException;
+
+    int write(FileDescriptor fd, byte[] buffer, int offset, int len) throws IOException;
+
+    void close(FileDescriptor fd) throws IOException;
+
+    /**
+     * 使用 {@link Os} 的实现
+     */
+    final class SystemPoller implements SerialPoller
+    {
+        /** 上次 poll 使用的数组, 描述符不变时复用 */
+        private StructPollfd[] mPollFds = new StructPollfd[0];
+
+        private SystemPoller()
+        {
+        }
+
+        @Override
+        public FileDescriptor[] pipe() throws IOException
+        {
+            try
+            {
+                return Os.pipe();
+            }
+            catch (ErrnoException e)
+            {
+                throw new IOException("pipe failed", e);
+            }
+        }
+
+        @Override
+        public int poll(FileDescriptor[] fds, int[] events, int[] revents, int count, int timeoutMs) throws IOException
+        {
+            StructPollfd[] pollFds = mPollFds;
+            if (pollFds.length != count)
+            {
+                pollFds = new StructPollfd[count];
+            }
+            for (int i = 0; i < count; i++)
+            {
+                StructPollfd pollFd = pollFds[i];
+                if (pollFd == null || pollFd.fd != fds[i])
+                {
+                    pollFd = new StructPollfd();
+                    pollFd.fd = fds[i];
+                    pollFds[i] = pollFd;
+                }
+                pollFd.events = (events[i] & READABLE) != 0 ? (short) OsConstants.POLLIN : 0;
+                pollFd.revents = 0;
+            }
+            mPollFds = pollFds;
+            int ready;
+            try
+            {
+                ready = Os.poll(pollFds, timeoutMs);
+            }
+            catch (ErrnoException e)
+            {
+                if (e.errno == OsConstants.EINTR)
+                {
+                    return 0;
+                }
+                throw new IOException("poll failed", e);
+            }
+            for (int i = 0; i < count; i++)
+            {
+                int r = pollFds[i].revents;
+                int state = 0;
+                if ((r & OsConstants.POLLIN) != 0)
+                {
+                    state |= READABLE;
+                }
+                if ((r & (OsConstants.POLLERR | OsConstants.POLLHUP)) != 0)
+                {
+                    state |= HANGUP;
+                }
+                if ((r & OsConstants.POLLNVAL) != 0)
+                {
+                    state |= INVALID;
+                }
+                revents[i] = state;
+            }
+            return Math.max(0, ready);
+        }
+
+        @Override
+        public int read(FileDescriptor fd, byte[] buffer, int offset, int len) throws IOException
+        {
+            try
+            {
+                return Os.read(fd, buffer, offset, len);
+            }
+            catch (ErrnoException e)
+            {
+                throw new IOException("read failed", e);
+            }
+        }
+
+        @Override
+        public int write(FileDescriptor fd, byte[] buffer, int offset, int len) throws IOException
+        {
+            try
+            {
+                return Os.write(fd, buffer, offset, len);
+            }
+            catch (ErrnoException e)
+            {
+                throw new IOException("write failed", e);
+            }
+        }
+
+        @Override
+        public void close(FileDescriptor fd) throws IOException
+        {
+            try
+            {
+                Os.close(fd);
+            }
+            catch (ErrnoException e)
+            {
+                throw new IOException("close failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,399 @@
+package com.serial.opt;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 所有串口共用的读取线程
+ * <p>
+ * 一个线程在所有已注册串口的描述符上 poll, 可读时读取并交给该串口的 {@link Handler},
+ * 取代每个串口各自的读取线程. 注册变化时通过一个 pipe 唤醒 poll, 空闲时线程在内核中休眠, 不会定时醒来.
+ * 串口出错、挂断或描述符失效时取消注册, 不论是否设置了 Handler, 避免 poll 一直立即返回.
+ * </p>
+ * 本线程只做读取: 阻塞的 write 由各串口自己的写入线程完成, Handler 只能把数据交给其他线程,
+ * 不能阻塞, 一个串口的处理不会拖慢其他串口的读取.
+ * 没有描述符的串口(例如单元测试中的 UartPipe)不能注册, 仍使用各自的读取线程.
+ */
+public final class SerialReactor
+{
+    private static final JLog LOG = new JLog("SerialReactor", true, JLog.TYPE_INFO);
+
+    private static final int READ_BUFFER_SIZE = 2048;
+    private static final long ERROR_BACKOFF_MS = 100L;
+
+    private static SerialReactor sDefault;
+
+    /***
+     * 所有串口共用的实例, 线程在第一个串口注册时启动
+     * @return
+     */
+    public static synchronized SerialReactor getDefault()
+    {
+        if (sDefault == null)
+        {
+            sDefault = new SerialReactor(SerialPoller.SYSTEM);
+        }
+        return sDefault;
+    }
+
+    /**
+     * 串口收到数据后的处理, 在 reactor 线程中调用, 不能阻塞
+     */
+    public interface Handler
+    {
+        /***
+         * 收到数据, data 只在回调期间有效, 应复制后交给其他线程处理
+         * @param data
+         * @param offset
+         * @param len
+         */
+        void onRead(byte[] data, int offset, int len);
+
+        /***
+         * 串口已关闭或读取出错, 此后不再回调
+         * @param e
+         */
+        default void onClosed(IOException e)
+        {
+        }
+    }
+
+    /**
+     * 一个已注册的串口
+     */
+    public final class Key
+    {
+        final UartCommunication mPort;
+        final FileDescriptor mFd;
+        volatile Handler mHandler;
+        volatile boolean mCancelled = false;
+
+        Key(UartCommunication port, FileDescriptor fd)
+        {
+            this.mPort = port;
+            this.mFd = fd;
+        }
+
+        /***
+         * 设置读取的处理, 为 null 时不再读取该串口, 之后出错或挂断时直接取消注册
+         * @param handler
+         */
+        public void setHandler(Handler handler)
+        {
+            if (this.mHandler != handler)
+            {
+                this.mHandler = handler;
+                requestUpdate();
+            }
+        }
+
+        public Handler getHandler()
+        {
+            return this.mHandler;
+        }
+
+        /***
+         * 取消注册, 任意线程可调用, 之后不再读取该串口
+         */
+        public void cancel()
+        {
+            if (!this.mCancelled)
+            {
+                this.mCancelled = true;
+                requestUpdate();
+            }
+        }
+
+        public boolean isCancelled()
+        {
+            return this.mCancelled;
+        }
+    }
+
+    private final SerialPoller mPoller;
+    private final Object mLock = new Object();
+    /** 等待加入的注册, 由 mLock 保护 */
+    private final ArrayList<Key> mPendingKeys = new ArrayList<>();
+    /** 注册或读取设置有变化, 需要重建 poll 数组 */
+    private volatile boolean mKeysChanged = false;
+    private volatile boolean mShutdown = false;
+    private Thread mThread;
+
+    private FileDescriptor mWakeupRead;
+    private FileDescriptor mWakeupWrite;
+    private final AtomicBoolean mWakeupPending = new AtomicBoolean(false);
+    private final byte[] mWakeupByte = new byte[1];
+
+    /* 以下只由 reactor 线程访问 */
+    private final ArrayList<Key> mKeys = new ArrayList<>();
+    /** [0] 为唤醒 pipe, [i + 1] 对应 mKeys[i] */
+    private FileDescriptor[] mFds = new FileDescriptor[0];
+    private int[] mEvents = new int[0];
+    private int[] mRevents = new int[0];
+    private final byte[] mReadBuffer = new byte[READ_BUFFER_SIZE];
+    private final byte[] mDrainBuffer = new byte[64];
+
+    SerialReactor(SerialPoller poller)
+    {
+        this.mPoller = poller;
+    }
+
+    /***
+     * 注册串口, 之后通过 {@link Key#setHandler} 开始读取
+     * @param port
+     * @param fd 串口描述符
+     * @return 用于设置读取处理和取消注册
+     * @throws IOException 无法创建唤醒用的 pipe, 或已停止
+     */
+    Key register(UartCommunication port, FileDescriptor fd) throws IOException
+    {
+        Key key = new Key(port, fd);
+        synchronized (mLock)
+        {
+            if (mShutdown)
+            {
+                throw new IOException("reactor is shut down");
+            }
+            ensureStarted();
+            mPendingKeys.add(key);
+        }
+        requestUpdate();
+        return key;
+    }
+
+    /***
+     * 停止线程并关闭唤醒 pipe, 已注册的串口不再读取, 默认实例一直运行, 用于单元测试
+     */
+    void shutdown()
+    {
+        Thread thread;
+        synchronized (mLock)
+        {
+            mShutdown = true;
+            thread = mThread;
+        }
+        if (thread == null)
+        {
+            return;
+        }
+        wakeup();
+        try
+        {
+            thread.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try
+        {
+            mPoller.close(mWakeupRead);
+            mPoller.close(mWakeupWrite);
+        }
+        catch (IOException e)
+        {
+            LOG.print("close wakeup pipe failed: " + e);
+        }
+    }
+
+    public boolean isReactorThread()
+    {
+        return Thread.currentThread() == mThread;
+    }
+
+    /***
+     * 唤醒 reactor 线程, 用于注册或读取设置变化后
+     */
+    private void wakeup()
+    {
+        if (!mWakeupPending.compareAndSet(false, true))
+        {
+            // 已有未处理的唤醒, reactor 线程处理它之后会重建 poll 数组
+            return;
+        }
+        try
+        {
+            mPoller.write(mWakeupWrite, mWakeupByte, 0, 1);
+        }
+        catch (IOException e)
+        {
+            mWakeupPending.set(false);
+            LOG.print("wakeup failed: " + e);
+        }
+    }
+
+    private void requestUpdate()
+    {
+        mKeysChanged = true;
+        wakeup();
+    }
+
+    private void ensureStarted() throws IOException
+    {
+        if (mThread != null)
+        {
+            return;
+        }
+        FileDescriptor[] pipe = mPoller.pipe();
+        mWakeupRead = pipe[0];
+        mWakeupWrite = pipe[1];
+        // 第一次 poll 前建立 poll 数组, 否则线程可能在空数组上一直等待
+        mKeysChanged = true;
+        mThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                loop();
+            }
+        }, "SerialReactor");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    private void loop()
+    {
+        while (!mShutdown)
+        {
+            try
+            {
+                if (mKeysChanged)
+                {
+                    updateKeys();
+                }
+                if (mPoller.poll(mFds, mEvents, mRevents, mFds.length, -1) <= 0)
+                {
+                    continue;
+                }
+                if (mRevents[0] != 0)
+                {
+                    drainWakeup();
+                }
+                for (int i = 0, n = mKeys.size(); i < n; i++)
+                {
+                    int revents = mRevents[i + 1];
+                    if (revents != 0)
+                    {
+                        onReady(mKeys.get(i), revents);
+                    }
+                }
+            }
+            catch (Throwable e)
+            {
+                // 单个串口的错误不能停止所有串口
+                LOG.print("loop error: " + e);
+                e.printStackTrace();
+                // 避免同一错误反复出现时空转
+                try
+                {
+                    Thread.sleep(ERROR_BACKOFF_MS);
+                }
+                catch (InterruptedException ignored)
+                {
+                }
+            }
+        }
+    }
+
+    /***
+     * 加入新注册的串口, 移除已取消的, 按是否需要读取重建 poll 数组
+     */
+    private void updateKeys()
+    {
+        mKeysChanged = false;
+        synchronized (mLock)
+        {
+            mKeys.addAll(mPendingKeys);
+            mPendingKeys.clear();
+        }
+        for (int i = mKeys.size() - 1; i >= 0; i--)
+        {
+            if (mKeys.get(i).mCancelled)
+            {
+                mKeys.remove(i);
+            }
+        }
+        int count = mKeys.size() + 1;
+        if (mFds.length != count)
+        {
+            mFds = new FileDescriptor[count];
+            mEvents = new int[count];
+            mRevents = new int[count];
+        }
+        mFds[0] = mWakeupRead;
+        mEvents[0] = SerialPoller.READABLE;
+        for (int i = 0, n = mKeys.size(); i < n; i++)
+        {
+            Key key = mKeys.get(i);
+            mFds[i + 1] = key.mFd;
+            // 没有读取处理时 events 为0, 出错、挂断或描述符失效时仍会返回
+            mEvents[i + 1] = key.mHandler != null ? SerialPoller.READABLE : 0;
+        }
+    }
+
+    private void drainWakeup() throws IOException
+    {
+        // 先清除标志再读取, 之后的唤醒会再写入一个字节, 不会丢失
+        mWakeupPending.set(false);
+        mPoller.read(mWakeupRead, mDrainBuffer, 0, mDrainBuffer.length);
+    }
+
+    private void onReady(Key key, int revents)
+    {
+        if (key.mCancelled)
+        {
+            return;
+        }
+        Handler handler = key.mHandler;
+        if ((revents & SerialPoller.INVALID) != 0)
+        {
+            close(key, handler, new IOException("serial port descriptor is closed"));
+            return;
+        }
+        final boolean hangUp = (revents & SerialPoller.HANGUP) != 0;
+        if (handler == null)
+        {
+            // 没有读取处理时只会因出错或挂断返回, 不取消注册则每次 poll 都立即返回
+            if (hangUp)
+            {
+                close(key, null, new IOException("serial port hung up"));
+            }
+            return;
+        }
+        final long readyNanos = System.nanoTime();
+        try
+        {
+            int size = key.mPort.readReady(mReadBuffer, 0, mReadBuffer.length, readyNanos);
+            if (size > 0)
+            {
+                // 挂断时先读完剩余数据, 下一次 poll 仍会返回, 读不到数据时再关闭
+                handler.onRead(mReadBuffer, 0, size);
+            }
+            else if (size < 0)
+            {
+                close(key, handler, new IOException("end of stream"));
+            }
+            else if (hangUp)
+            {
+                close(key, handler, new IOException("serial port hung up"));
+            }
+        }
+        catch (IOException e)
+        {
+            close(key, handler, e);
+        }
+    }
+
+    private void close(Key key, Handler handler, IOException e)
+    {
+        LOG.print("close " + key.mPort + ": " + e.getMessage());
+        key.cancel();
+        if (handler != null)
+        {
+            handler.onClosed(e);
+        }
+    }
+}
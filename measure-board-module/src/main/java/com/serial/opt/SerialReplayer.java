@@ -0,0 +1,256 @@
+package com.serial.opt;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+
+/**
+ * 回放 {@link SerialCapture} 导出的记录, 用于回归及吞吐测试
+ * <p>
+ * 按记录的时间间隔除以速度回放, 速度为0时不等待, 尽快回放.
+ * 导出文件中每个分段的单调时间以各自的头记录为起点, 分段之间不等待.
+ * </p>
+ */
+public class SerialReplayer
+{
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * 回放的每条数据记录
+     */
+    public interface Sink
+    {
+        /***
+         * @param type {@link SerialCapture#TYPE_RX} 或 {@link SerialCapture#TYPE_TX}
+         * @param port 串口名称
+         * @param timeNanos 记录时的单调时间
+         * @param data 只在回调期间有效
+         */
+        void onRecord(int type, String port, long timeNanos, byte[] data, int offset, int len) throws IOException;
+    }
+
+    /**
+     * 一次回放的结果
+     */
+    public static final class Result
+    {
+        public long records;
+        public long bytes;
+        /** 经过帧解码器回放时解出的帧数 */
+        public long frames;
+        public long checksumErrors;
+        public long discardedBytes;
+        /** 记录中第一条到最后一条的时间, 不含分段之间的间隔 */
+        public long capturedNanos;
+        /** 回放用时 */
+        public long elapsedNanos;
+
+        public double getBytesPerSecond()
+        {
+            return elapsedNanos > 0 ? bytes * 1e9 / elapsedNanos : 0.0;
+        }
+
+        public double getFramesPerSecond()
+        {
+            return elapsedNanos > 0 ? frames * 1e9 / elapsedNanos : 0.0;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Result{records=" + records + ", bytes=" + bytes + ", frames=" + frames
+                    + ", checksumErrors=" + checksumErrors + ", discarded=" + discardedBytes
+                    + ", capturedMs=" + capturedNanos / 1000000L + ", elapsedMs=" + elapsedNanos / 1000000L + "}";
+        }
+    }
+
+    private final File mFile;
+    private double mSpeed = 1.0;
+    private String mPortFilter;
+    private int mTypeFilter = -1;
+
+    public SerialReplayer(File file)
+    {
+        this.mFile = file;
+    }
+
+    /***
+     * 设置回放速度
+     * @param speed 1为原速, 2为两倍速, 0为不等待
+     */
+    public SerialReplayer setSpeed(double speed)
+    {
+        this.mSpeed = Math.max(0.0, speed);
+        return this;
+    }
+
+    /***
+     * 只回放名称包含 port 的串口, 为 null 时回放所有串口
+     */
+    public SerialReplayer setPort(String port)
+    {
+        this.mPortFilter = port;
+        return this;
+    }
+
+    /***
+     * 只回放一个方向
+     * @param type {@link SerialCapture#TYPE_RX}、{@link SerialCapture#TYPE_TX}, -1 为两个方向
+     */
+    public SerialReplayer setType(int type)
+    {
+        this.mTypeFilter = type;
+        return this;
+    }
+
+    /***
+     * 把收到的数据交给帧解码器, 用于检查解码结果及解码吞吐
+     * 只回放 {@link SerialCapture#TYPE_RX} 记录
+     */
+    public Result replay(final FrameDecoder decoder, final FrameDecoder.OnFrameListener listener) throws IOException
+    {
+        final long frames = decoder.getFrameCount();
+        final long errors = decoder.getChecksumErrorCount();
+        final long discarded = decoder.getDiscardedBytes();
+        Result result = replay(SerialCapture.TYPE_RX, new Sink()
+        {
+            @Override
+            public void onRecord(int type, String port, long timeNanos, byte[] data, int offset, int len)
+            {
+                decoder.decode(data, offset, len, listener);
+            }
+        });
+        result.frames = decoder.getFrameCount() - frames;
+        result.checksumErrors = decoder.getChecksumErrorCount() - errors;
+        result.discardedBytes = decoder.getDiscardedBytes() - discarded;
+        return result;
+    }
+
+    /***
+     * 把收到的数据写入数据流, 例如单元测试中 UartPipe 的设备端, 经过完整的读取及分发流程
+     * 只回放 {@link SerialCapture#TYPE_RX} 记录
+     */
+    public Result replay(final OutputStream out) throws IOException
+    {
+        return replay(SerialCapture.TYPE_RX, new Sink()
+        {
+            @Override
+            public void onRecord(int type, String port, long timeNanos, byte[] data, int offset, int len) throws IOException
+            {
+                out.write(data, offset, len);
+            }
+        });
+    }
+
+    public Result replay(Sink sink) throws IOException
+    {
+        return replay(mTypeFilter, sink);
+    }
+
+    private Result replay(int typeFilter, Sink sink) throws IOException
+    {
+        Result result = new Result();
+        HashMap<Integer, String> ports = new HashMap<>();
+        byte[] data = new byte[SerialCapture.MAX_RECORD_DATA];
+        long lastNanos = -1L;
+        /* 当前分段第一条记录的时间及回放开始的时间 */
+        long baseRecordNanos = -1L;
+        long baseReplayNanos = 0L;
+        final long start = System.nanoTime();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile))))
+        {
+            while (true)
+            {
+                int type;
+                try
+                {
+                    type = in.readUnsignedByte();
+                }
+                catch (EOFException e)
+                {
+                    break;
+                }
+                int port = in.readUnsignedByte();
+                int len = in.readUnsignedShort();
+                long timeNanos = in.readLong();
+                in.readFully(data, 0, len);
+
+                if (type == SerialCapture.TYPE_HEADER)
+                {
+                    checkHeader(data, len);
+                    // 新的分段可能来自另一次运行, 单调时间重新计算
+                    ports.clear();
+                    baseRecordNanos = -1L;
+                    lastNanos = -1L;
+                    continue;
+                }
+                if (type == SerialCapture.TYPE_PORT)
+                {
+                    ports.put(port, new String(data, 0, len, UTF_8));
+                    continue;
+                }
+                String name = ports.get(port);
+                if (typeFilter >= 0 && type != typeFilter)
+                {
+                    continue;
+                }
+                if (mPortFilter != null && (name == null || !name.contains(mPortFilter)))
+                {
+                    continue;
+                }
+                if (baseRecordNanos < 0L)
+                {
+                    baseRecordNanos = timeNanos;
+                    baseReplayNanos = System.nanoTime();
+                }
+                else if (mSpeed > 0.0)
+                {
+                    waitUntil(baseReplayNanos + (long) ((timeNanos - baseRecordNanos) / mSpeed));
+                }
+                if (lastNanos >= 0L)
+                {
+                    result.capturedNanos += Math.max(0L, timeNanos - lastNanos);
+                }
+                lastNanos = timeNanos;
+                result.records++;
+                result.bytes += len;
+                sink.onRecord(type, name, timeNanos, data, 0, len);
+            }
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    private static void checkHeader(byte[] data, int len) throws IOException
+    {
+        int magic = len >= 4
+                ? (data[0] & 0xFF) << 24 | (data[1] & 0xFF) << 16 | (data[2] & 0xFF) << 8 | (data[3] & 0xFF)
+                : 0;
+        if (magic != SerialCapture.MAGIC)
+        {
+            throw new IOException("not a serial capture");
+        }
+    }
+
+    private static void waitUntil(long deadlineNanos) throws IOException
+    {
+        long wait;
+        while ((wait = deadlineNanos - System.nanoTime()) > 0L)
+        {
+            try
+            {
+                Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+            }
+            catch (InterruptedException e)
+            {
+                throw new java.io.InterruptedIOException("replay interrupted");
+            }
+        }
+    }
+}
@@ -0,0 +1,725 @@
+package com.serial.opt;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * 串口会话监护, 负责打开、检查心跳间隔及重新打开串口
+ * <p>
+ * 计价板每秒发送心跳, 收到的每一帧都记为一次心跳. 看门狗线程按毫秒检查距上一帧的时间:
+ * 超过 stall 间隔进入 {@link State#STALLED}, 超过 reopen 间隔或读取出错时重新打开.
+ * 重新打开总是在看门狗线程中进行, 多个请求合并为一次: 先释放旧的 {@link UartWorker}
+ * (停止读写线程或 reactor 注册并关闭描述符), 再用新的描述符创建新的 UartWorker.
+ * 打开失败时按退避时间重试.
+ * </p>
+ * 释放和打开都不持有锁, 期间 {@link #getWorker()} 和写入立即返回, 不会等待打开的重试.
+ * 旧串口写入队列中还未发送的帧交给新的串口先发送.
+ * 状态变化: CLOSED -> OPENING -> LIVE <-> STALLED -> REOPENING -> OPENING -> LIVE
+ */
+public final class SerialSession
+{
+    private static final JLog LOG = new JLog("SerialSession", true, JLog.TYPE_INFO);
+
+    public static final long DEFAULT_STALL_GAP_MS = 2500L;
+    public static final long DEFAULT_REOPEN_GAP_MS = 5000L;
+    /** 打开失败后第一次重试的等待时间, 之后每次加倍 */
+    private static final long MIN_RETRY_MS = 200L;
+    private static final long MAX_RETRY_MS = 5000L;
+    /** 看门狗检查间隔的上限, 实际为 stall 间隔的四分之一 */
+    private static final long MAX_CHECK_INTERVAL_MS = 250L;
+    /** 重新打开时最多交给新串口的未发送帧数, 与写入队列的容量相同 */
+    private static final int MAX_UNSENT_FRAMES = UartWriteQueue.DEFAULT_CAPACITY;
+
+    public enum State
+    {
+        /** 未打开, 或已停止通信 */
+        CLOSED,
+        /** 已打开或正在打开, 等待第一帧 */
+        OPENING,
+        /** 心跳间隔正常 */
+        LIVE,
+        /** 超过 stall 间隔没有收到数据 */
+        STALLED,
+        /** 正在释放旧的串口并重新打开 */
+        REOPENING,
+    }
+
+    /**
+     * 打开串口, 每次调用都应返回使用新描述符的实例
+     */
+    public interface Opener
+    {
+        UartCommunication open() throws IOException;
+    }
+
+    public interface OnStateChangeListener
+    {
+        /***
+         * 在看门狗线程或读取线程中调用, 不能阻塞
+         * @param state
+         */
+        void onStateChanged(State state);
+    }
+
+    /**
+     * 会话的统计数据
+     */
+    public static final class Stats
+    {
+        public State state;
+        /** 成功重新打开的次数, 不含第一次打开 */
+        public long reconnectCount;
+        public long failedOpenCount;
+        public long stallCount;
+        /** 最近一次打开或重新打开到收到第一帧的时间, 还没有收到时为 -1 */
+        public long lastTimeToFirstFrameMs = -1L;
+        public long maxTimeToFirstFrameMs;
+        /** 距上一帧的时间, 还没有收到时为 -1 */
+        public long currentGapMs = -1L;
+        public long frameCount;
+        /** 已放入旧串口写入队列, 但没能交给新串口而被丢弃的帧数 */
+        public long droppedWriteCount;
+
+        @Override
+        public String toString()
+        {
+            return "Stats{state=" + state + ", reconnects=" + reconnectCount + ", failedOpens=" + failedOpenCount
+                    + ", stalls=" + stallCount + ", lastTtffMs=" + lastTimeToFirstFrameMs
+                    + ", maxTtffMs=" + maxTimeToFirstFrameMs + ", gapMs=" + currentGapMs + ", frames=" + frameCount
+                    + ", droppedWrites=" + droppedWriteCount + "}";
+        }
+    }
+
+    private final String mName;
+    private final Opener mOpener;
+    private final Object mLock = new Object();
+
+    private volatile long mStallGapNanos = DEFAULT_STALL_GAP_MS * 1000000L;
+    private volatile long mReopenGapNanos = DEFAULT_REOPEN_GAP_MS * 1000000L;
+
+    private volatile UartWorker.OnDistributeListener mListener;
+    private volatile OnStateChangeListener mStateListener;
+
+    /* 以下由 mLock 保护 */
+    private volatile State mState = State.CLOSED;
+    private UartWorker mWorker;
+    /** 每次打开加1, 旧 UartWorker 的回调据此忽略, 读取线程不加锁读取 */
+    private volatile int mGeneration;
+    private boolean mStarted;
+    /** 正在锁外释放旧串口或打开新串口, 期间不再开始新的打开 */
+    private boolean mOpening;
+    private boolean mReopenRequested;
+    private String mReopenReason;
+    /** 是否打开成功过, 之后的打开都算作重新连接 */
+    private boolean mOpened;
+    private long mNextRetryNanos;
+    private long mRetryMs = MIN_RETRY_MS;
+    private Thread mWatchdog;
+    /** 旧串口未发送的帧, 打开新串口后先发送 */
+    private final ArrayList<byte[]> mUnsentFrames = new ArrayList<>();
+
+    /** 本次打开的开始时间, 收到第一帧前有效 */
+    private long mOpenStartNanos;
+    private boolean mAwaitingFirstFrame;
+
+    private volatile long mLastFrameNanos;
+    private volatile long mFrameCount;
+    private volatile long mReconnectCount;
+    private volatile long mFailedOpenCount;
+    private volatile long mStallCount;
+    private volatile long mLastTimeToFirstFrameNanos = -1L;
+    private volatile long mMaxTimeToFirstFrameNanos;
+    private volatile long mDroppedWriteCount;
+
+    /***
+     * 按路径打开串口的会话
+     * @param uartFilePath
+     * @param rate
+     * @param flags
+     */
+    public SerialSession(final String uartFilePath, final int rate, final int flags)
+    {
+        this(uartFilePath, new Opener()
+        {
+            @Override
+            public UartCommunication open() throws IOException
+            {
+                return UartCommunication.open(uartFilePath, rate, flags);
+            }
+        });
+    }
+
+    public SerialSession(String name, Opener opener)
+    {
+        this.mName = name;
+        this.mOpener = opener;
+    }
+
+    /***
+     * 设置看门狗的间隔, 下一次检查时生效
+     * @param stallGapMs 超过此时间没有收到数据进入 {@link State#STALLED}
+     * @param reopenGapMs 超过此时间没有收到数据时重新打开, 不小于 stallGapMs
+     */
+    public void setWatchdog(long stallGapMs, long reopenGapMs)
+    {
+        long stall = Math.max(1L, stallGapMs);
+        this.mStallGapNanos = stall * 1000000L;
+        this.mReopenGapNanos = Math.max(stall, reopenGapMs) * 1000000L;
+        synchronized (mLock)
+        {
+            mLock.notifyAll();
+        }
+    }
+
+    public void setListener(UartWorker.OnDistributeListener listener)
+    {
+        this.mListener = listener;
+    }
+
+    public void setOnStateChangeListener(OnStateChangeListener listener)
+    {
+        this.mStateListener = listener;
+    }
+
+    /***
+     * 打开串口并开始通信, 已开始时不做任何事
+     * 第一次打开在调用线程中进行, 失败时由看门狗线程重试
+     * @return 串口是否已打开
+     */
+    public boolean start()
+    {
+        synchronized (mLock)
+        {
+            if (mStarted)
+            {
+                return mWorker != null;
+            }
+            mStarted = true;
+            mReopenRequested = false;
+            ensureWatchdog();
+            if (mWorker != null)
+            {
+                // 停止后再开始, 描述符仍然有效, 只恢复读取
+                beginOpening();
+                mWorker.startCommunicate();
+                return true;
+            }
+            if (mOpening)
+            {
+                // 看门狗正在打开, 完成后开始通信
+                return false;
+            }
+            mOpening = true;
+        }
+        return open("start");
+    }
+
+    /***
+     * 停止通信, 串口保持打开, 看门狗不再检查
+     */
+    public void stop()
+    {
+        synchronized (mLock)
+        {
+            if (!mStarted)
+            {
+                return;
+            }
+            mStarted = false;
+            mReopenRequested = false;
+            if (mWorker != null)
+            {
+                mWorker.stopCommunicate();
+            }
+            setState(State.CLOSED);
+            mLock.notifyAll();
+        }
+    }
+
+    /***
+     * 请求重新打开串口, 任意线程可调用, 由看门狗线程执行
+     * 已在等待、正在重新打开或刚打开还在等待第一帧时合并为一次,
+     * 刚打开的串口收不到数据时由看门狗在 reopen 间隔后再次打开
+     * @param reason 用于日志
+     */
+    public void requestReopen(String reason)
+    {
+        synchronized (mLock)
+        {
+            if (!mStarted || mReopenRequested || mOpening || mState == State.OPENING)
+            {
+                return;
+            }
+            mReopenRequested = true;
+            mReopenReason = reason;
+            mLock.notifyAll();
+        }
+    }
+
+    /***
+     * 停止看门狗并释放串口, 之后可再次 {@link #start()}
+     */
+    public void close()
+    {
+        Thread watchdog;
+        UartWorker worker;
+        synchronized (mLock)
+        {
+            mStarted = false;
+            mReopenRequested = false;
+            worker = detachWorkerLocked();
+            if (!mUnsentFrames.isEmpty())
+            {
+                mDroppedWriteCount += mUnsentFrames.size();
+                mUnsentFrames.clear();
+            }
+            setState(State.CLOSED);
+            watchdog = mWatchdog;
+            mWatchdog = null;
+            mLock.notifyAll();
+        }
+        if (watchdog != null)
+        {
+            watchdog.interrupt();
+        }
+        if (worker != null)
+        {
+            // 不再打开新的串口, 未发送的帧计入旧串口的丢弃数
+            worker.release();
+        }
+    }
+
+    public State getState()
+    {
+        return mState;
+    }
+
+    /***
+     * 当前的串口工作类, 重新打开后为新的实例, 未打开或正在重新打开时为 null
+     * @return
+     */
+    public UartWorker getWorker()
+    {
+        synchronized (mLock)
+        {
+            return mWorker;
+        }
+    }
+
+    /***
+     * 写入当前打开的串口
+     * @param data
+     * @return 未打开或写入队列已满时为 false
+     * @throws IOException
+     */
+    public boolean writeData(byte[] data) throws IOException
+    {
+        UartWorker worker = getWorker();
+        UartCommunication writer = worker != null ? worker.getWriter() : null;
+        return writer != null && writer.writeData(data);
+    }
+
+    public Stats getStats()
+    {
+        Stats stats = new Stats();
+        stats.state = mState;
+        stats.reconnectCount = mReconnectCount;
+        stats.failedOpenCount = mFailedOpenCount;
+        stats.stallCount = mStallCount;
+        long ttff = mLastTimeToFirstFrameNanos;
+        stats.lastTimeToFirstFrameMs = ttff < 0L ? -1L : ttff / 1000000L;
+        stats.maxTimeToFirstFrameMs = mMaxTimeToFirstFrameNanos / 1000000L;
+        long last = mLastFrameNanos;
+        stats.currentGapMs = last == 0L ? -1L : (System.nanoTime() - last) / 1000000L;
+        stats.frameCount = mFrameCount;
+        stats.droppedWriteCount = mDroppedWriteCount;
+        return stats;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "SerialSession[" + mName + ", " + mState + "]";
+    }
+
+    /***
+     * 收到一帧, 在读取线程或分发线程中调用
+     *
+     * @return 是否来自当前的 UartWorker, 旧 UartWorker 的帧不交给外部的监听
+     */
+    private boolean onFrame(int generation)
+    {
+        if (generation != mGeneration)
+        {
+            return false;
+        }
+        long now = System.nanoTime();
+        mLastFrameNanos = now;
+        mFrameCount++;
+        if (mState == State.LIVE)
+        {
+            return true;
+        }
+        synchronized (mLock)
+        {
+            if (generation != mGeneration || !mStarted)
+            {
+                return false;
+            }
+            if (mAwaitingFirstFrame)
+            {
+                mAwaitingFirstFrame = false;
+                long ttff = now - mOpenStartNanos;
+                mLastTimeToFirstFrameNanos = ttff;
+                if (ttff > mMaxTimeToFirstFrameNanos)
+                {
+                    mMaxTimeToFirstFrameNanos = ttff;
+                }
+                LOG.print(mName + " first frame after " + ttff / 1000000L + "ms");
+            }
+            if (mState == State.OPENING || mState == State.STALLED)
+            {
+                setState(State.LIVE);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return 是否来自当前的 UartWorker
+     */
+    private boolean onClosed(int generation, IOException e)
+    {
+        synchronized (mLock)
+        {
+            if (generation != mGeneration)
+            {
+                return false;
+            }
+        }
+        requestReopen("closed: " + e.getMessage());
+        return true;
+    }
+
+    private void ensureWatchdog()
+    {
+        if (mWatchdog != null)
+        {
+            return;
+        }
+        mWatchdog = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                watchdogLoop();
+            }
+        }, "SerialSession-" + mName);
+        mWatchdog.setDaemon(true);
+        mWatchdog.start();
+    }
+
+    private void watchdogLoop()
+    {
+        while (true)
+        {
+            String reason;
+            UartWorker released;
+            synchronized (mLock)
+            {
+                if (mWatchdog != Thread.currentThread())
+                {
+                    return;
+                }
+                try
+                {
+                    reason = check(System.nanoTime());
+                    if (reason == null)
+                    {
+                        mLock.wait(Math.max(1L, Math.min(MAX_CHECK_INTERVAL_MS, mStallGapNanos / 4000000L)));
+                        continue;
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                    // close() 已清除 mWatchdog, 循环条件会退出
+                    continue;
+                }
+                catch (Throwable e)
+                {
+                    LOG.print(mName + " watchdog error: " + e);
+                    e.printStackTrace();
+                    continue;
+                }
+                LOG.print(mName + " reopen: " + reason);
+                setState(State.REOPENING);
+                mOpening = true;
+                released = detachWorkerLocked();
+            }
+            try
+            {
+                releaseWorker(released);
+                open(reason);
+            }
+            catch (Throwable e)
+            {
+                LOG.print(mName + " reopen error: " + e);
+                e.printStackTrace();
+                synchronized (mLock)
+                {
+                    mOpening = false;
+                }
+            }
+        }
+    }
+
+    /***
+     * 看门狗的一次检查, 持有 mLock
+     * @return 需要重新打开时为原因, 由调用方在锁外释放旧串口并打开; 不需要时为 null
+     */
+    private String check(long now)
+    {
+        if (!mStarted || mOpening)
+        {
+            return null;
+        }
+        if (mReopenRequested)
+        {
+            mReopenRequested = false;
+            return mReopenReason;
+        }
+        if (mWorker == null)
+        {
+            // 上次打开失败, 等待退避时间后重试
+            return now - mNextRetryNanos >= 0L ? "retry" : null;
+        }
+        long last = mAwaitingFirstFrame ? mOpenStartNanos : mLastFrameNanos;
+        long gap = now - last;
+        if (gap >= mReopenGapNanos)
+        {
+            return "no frame for " + gap / 1000000L + "ms";
+        }
+        if (gap >= mStallGapNanos && mState == State.LIVE)
+        {
+            mStallCount++;
+            LOG.print(mName + " stalled, no frame for " + gap / 1000000L + "ms");
+            setState(State.STALLED);
+        }
+        return null;
+    }
+
+    /***
+     * 打开新的串口并开始通信, 不持有 mLock, 调用前已设置 mOpening
+     * 打开可能很慢, 期间写入和回调不会等待; 打开后在 mLock 中换上新的 UartWorker
+     * @return 是否打开成功, 失败时安排重试
+     */
+    private boolean open(String reason)
+    {
+        synchronized (mLock)
+        {
+            if (!mStarted)
+            {
+                mOpening = false;
+                return false;
+            }
+            beginOpening();
+        }
+        UartCommunication communication = null;
+        Exception error = null;
+        try
+        {
+            communication = mOpener.open();
+        }
+        catch (IOException | SecurityException e)
+        {
+            error = e;
+        }
+        synchronized (mLock)
+        {
+            mOpening = false;
+            if (communication == null)
+            {
+                mFailedOpenCount++;
+                mNextRetryNanos = System.nanoTime() + mRetryMs * 1000000L;
+                LOG.print(mName + " open failed (" + reason + "), retry in " + mRetryMs + "ms: "
+                        + (error != null ? error.getMessage() : "no port"));
+                mRetryMs = Math.min(MAX_RETRY_MS, mRetryMs * 2);
+                if (mStarted)
+                {
+                    setState(State.STALLED);
+                }
+                return false;
+            }
+            if (mStarted)
+            {
+                install(communication);
+                return true;
+            }
+        }
+        // 打开期间已停止或关闭
+        communication.release();
+        return false;
+    }
+
+    /***
+     * 换上新打开的串口并开始通信, 持有 mLock
+     */
+    private void install(UartCommunication communication)
+    {
+        mRetryMs = MIN_RETRY_MS;
+        if (mOpened)
+        {
+            mReconnectCount++;
+        }
+        mOpened = true;
+        final int generation = ++mGeneration;
+        UartWorker worker = new UartWorker(communication);
+        worker.setProtocalDistributeListener(new SessionListener(generation));
+        // 新串口的队列为空, 容量不小于 MAX_UNSENT_FRAMES, 放入时不会等待
+        for (int i = 0, n = mUnsentFrames.size(); i < n; i++)
+        {
+            try
+            {
+                if (!communication.writeData(mUnsentFrames.get(i)))
+                {
+                    mDroppedWriteCount++;
+                }
+            }
+            catch (IOException e)
+            {
+                mDroppedWriteCount++;
+            }
+        }
+        mUnsentFrames.clear();
+        mWorker = worker;
+        worker.startCommunicate();
+    }
+
+    private void beginOpening()
+    {
+        mOpenStartNanos = System.nanoTime();
+        mAwaitingFirstFrame = true;
+        setState(State.OPENING);
+    }
+
+    /***
+     * 取下当前的 UartWorker, 之后它的回调都被忽略, 持有 mLock
+     * @return 需要在锁外 {@link #releaseWorker} 的 UartWorker, 没有时为 null
+     */
+    private UartWorker detachWorkerLocked()
+    {
+        UartWorker worker = mWorker;
+        mWorker = null;
+        mGeneration++;
+        return worker;
+    }
+
+    /***
+     * 释放旧的 UartWorker, 不持有 mLock
+     * 写入队列中还未发送的帧留给下一个串口, writeData 已对调用方返回 true, 不能静默丢弃
+     */
+    private void releaseWorker(UartWorker worker)
+    {
+        if (worker == null)
+        {
+            return;
+        }
+        ArrayList<UartWriteQueue.Entry> unsent = new ArrayList<>();
+        UartCommunication writer = worker.getWriter();
+        if (writer != null)
+        {
+            // 关闭后仍持有旧 UartWorker 的写入返回 false
+            writer.getWriteQueue().close(unsent);
+        }
+        worker.release();
+        if (unsent.isEmpty())
+        {
+            return;
+        }
+        synchronized (mLock)
+        {
+            for (int i = 0, n = unsent.size(); i < n; i++)
+            {
+                // 释放期间已关闭时不会再打开新的串口
+                if (mStarted && mUnsentFrames.size() < MAX_UNSENT_FRAMES)
+                {
+                    mUnsentFrames.add(unsent.get(i).data);
+                }
+                else
+                {
+                    mDroppedWriteCount++;
+                }
+            }
+        }
+        LOG.print(mName + " " + unsent.size() + " unsent frames kept for the next port");
+    }
+
+    private void setState(State state)
+    {
+        if (mState == state)
+        {
+            return;
+        }
+        mState = state;
+        OnStateChangeListener listener = mStateListener;
+        if (listener != null)
+        {
+            listener.onStateChanged(state);
+        }
+    }
+
+    /**
+     * 记录收到的帧及串口关闭, 再交给外部的监听, 已释放的 UartWorker 的回调都被忽略
+     */
+    private final class SessionListener implements UartWorker.OnDistributeListener
+    {
+        private final int mListenerGeneration;
+
+        SessionListener(int generation)
+        {
+            this.mListenerGeneration = generation;
+        }
+
+        @Override
+        public void onDistribution(String data)
+        {
+            if (!SerialSession.this.onFrame(mListenerGeneration))
+            {
+                return;
+            }
+            UartWorker.OnDistributeListener listener = mListener;
+            if (listener != null)
+            {
+                listener.onDistribution(data);
+            }
+        }
+
+        @Override
+        public void onFrame(FrameDecoder.Frame frame)
+        {
+            if (!SerialSession.this.onFrame(mListenerGeneration))
+            {
+                return;
+            }
+            UartWorker.OnDistributeListener listener = mListener;
+            if (listener != null)
+            {
+                listener.onFrame(frame);
+            }
+        }
+
+        @Override
+        public void onClosed(IOException e)
+        {
+            if (!SerialSession.this.onClosed(mListenerGeneration, e))
+            {
+                return;
+            }
+            UartWorker.OnDistributeListener listener = mListener;
+            if (listener != null)
+            {
+                listener.onClosed(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package com.serial.opt;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 单生产者/单消费者的无锁字节环形缓冲区
+ * <p>
+ * 容量为2的幂, 读写位置为只增不减的 long, 每次批量拷贝完成后以 volatile 写发布一次,
+ * 不需要为每个字节加锁. volatile 写保证等待方登记后不会漏掉唤醒.
+ * 只允许一个线程调用 offer 系列方法, 一个线程调用 drain 系列方法.
+ * </p>
+ * await 系列方法为可选的阻塞等待策略: 等待方登记自己后 park, 对方发布位置后 unpark,
+ * 不使用 await 时不产生任何额外开销.
+ */
+public class SpscByteRing
+{
+    private final byte[] mBuffer;
+    private final int mMask;
+    private final int mCapacity;
+
+    /** 下一个写入位置, 只由生产者修改 */
+    private final AtomicLong mWriteIndex = new AtomicLong();
+    /** 下一个读取位置, 只由消费者修改 */
+    private final AtomicLong mReadIndex = new AtomicLong();
+
+    /** 生产者缓存的读取位置, 减少对 volatile 的读取 */
+    private long mCachedReadIndex;
+    /** 消费者缓存的写入位置 */
+    private long mCachedWriteIndex;
+
+    private volatile Thread mWaitingConsumer;
+    private volatile Thread mWaitingProducer;
+
+    /***
+     * @param capacity 容量, 会向上取整为2的幂
+     */
+    public SpscByteRing(int capacity)
+    {
+        if (capacity <= 0 || capacity > (1 << 30))
+        {
+            throw new IllegalArgumentException("capacity out of range: " + capacity);
+        }
+        this.mCapacity = roundUpToPowerOfTwo(capacity);
+        this.mMask = this.mCapacity - 1;
+        this.mBuffer = new byte[this.mCapacity];
+    }
+
+    private static int roundUpToPowerOfTwo(int value)
+    {
+        int highest = Integer.highestOneBit(value);
+        return highest == value ? value : highest << 1;
+    }
+
+    public int capacity()
+    {
+        return mCapacity;
+    }
+
+    /** 当前可读的字节数, 任意线程可调用, 结果为近似值 */
+    public int size()
+    {
+        long read = mReadIndex.get();
+        long write = mWriteIndex.get();
+        long size = write - read;
+        if (size < 0) return 0;
+        return size > mCapacity ? mCapacity : (int) size;
+    }
+
+    public boolean isEmpty()
+    {
+        return mWriteIndex.get() == mReadIndex.get();
+    }
+
+    /***
+     * 写入尽可能多的数据, 不阻塞
+     * @return 实际写入的字节数, 缓冲区满时为0
+     */
+    public int offer(byte[] src, int offset, int len)
+    {
+        long write = mWriteIndex.get();
+        int free = (int) (mCapacity - (write - mCachedReadIndex));
+        if (free < len)
+        {
+            mCachedReadIndex = mReadIndex.get();
+            free = (int) (mCapacity - (write - mCachedReadIndex));
+        }
+        int n = Math.min(free, len);
+        if (n <= 0)
+        {
+            return 0;
+        }
+        int start = (int) write & mMask;
+        int first = Math.min(n, mCapacity - start);
+        System.arraycopy(src, offset, mBuffer, start, first);
+        if (n > first)
+        {
+            System.arraycopy(src, offset + first, mBuffer, 0, n - first);
+        }
+        mWriteIndex.set(write + n);
+        Thread waiter = mWaitingConsumer;
+        if (waiter != null)
+        {
+            LockSupport.unpark(waiter);
+        }
+        return n;
+    }
+
+    /***
+     * 读取尽可能多的数据, 不阻塞
+     * @return 实际读取的字节数, 缓冲区空时为0
+     */
+    public int drain(byte[] dst, int offset, int len)
+    {
+        long read = mReadIndex.get();
+        int available = (int) (mCachedWriteIndex - read);
+        if (available < len)
+        {
+            mCachedWriteIndex = mWriteIndex.get();
+            available = (int) (mCachedWriteIndex - read);
+        }
+        int n = Math.min(available, len);
+        if (n <= 0)
+        {
+            return 0;
+        }
+        int start = (int) read & mMask;
+        int first = Math.min(n, mCapacity - start);
+        System.arraycopy(mBuffer, start, dst, offset, first);
+        if (n > first)
+        {
+            System.arraycopy(mBuffer, 0, dst, offset + first, n - first);
+        }
+        mReadIndex.set(read + n);
+        Thread waiter = mWaitingProducer;
+        if (waiter != null)
+        {
+            LockSupport.unpark(waiter);
+        }
+        return n;
+    }
+
+    /***
+     * 写入全部数据, 空间不足时阻塞等待消费者读取
+     * @return 实际写入的字节数, 超时或线程被中断时可能小于 len
+     */
+    public int offerFully(byte[] src, int offset, int len, long timeout, TimeUnit unit)
+    {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int written = 0;
+        while (written < len)
+        {
+            int n = offer(src, offset + written, len - written);
+            written += n;
+            if (written < len && !awaitWritable(deadline))
+            {
+                break;
+            }
+        }
+        return written;
+    }
+
+    /***
+     * 等待有数据可读
+     * @return 有数据时为 true, 超时或被中断时为 false
+     */
+    public boolean awaitReadable(long timeout, TimeUnit unit)
+    {
+        if (!isEmpty())
+        {
+            return true;
+        }
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        mWaitingConsumer = Thread.currentThread();
+        try
+        {
+            while (isEmpty())
+            {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || Thread.currentThread().isInterrupted())
+                {
+                    return false;
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+            return true;
+        }
+        finally
+        {
+            mWaitingConsumer = null;
+        }
+    }
+
+    private boolean awaitWritable(long deadline)
+    {
+        mWaitingProducer = Thread.currentThread();
+        try
+        {
+            while (mWriteIndex.get() - mReadIndex.get() >= mCapacity)
+            {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || Thread.currentThread().isInterrupted())
+                {
+                    return false;
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+            return true;
+        }
+        finally
+        {
+            mWaitingProducer = null;
+        }
+    }
+
+    /***
+     * 丢弃所有未读数据, 只能由消费者调用
+     */
+    public void clear()
+    {
+        long write = mWriteIndex.get();
+        mCachedWriteIndex = write;
+        mReadIndex.set(write);
+        Thread waiter = mWaitingProducer;
+        if (waiter != null)
+        {
+            LockSupport.unpark(waiter);
+        }
+    }
+}
@@ -1,8 +1,13 @@
 package com.serial.opt;
 
 
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
 import android.util.Log;
 
+import java.io.FileDescriptor;
 import java.io.IOException;
 
 import android_serialport_api.SerialPort;
@@ -17,37 +22,70 @@ public class UartCommunication
 
     private static java.util.WeakHashMap<String, UartCommunication> UartCommunicationMap = new java.util.WeakHashMap();
 
+    /** 读取为0时休眠 50ms 再读, 旧的读取方式 */
+    public static final int READ_MODE_SLEEP = 0;
+    /** 在串口描述符上 poll 等待可读, 有数据立即返回, 空闲时在内核中休眠 */
+    public static final int READ_MODE_POLL = 1;
+
+    /** 休眠模式下读取为0时的休眠时间 */
+    private static final long READ_SLEEP_MS = 50L;
+    /** poll 模式下单次等待的最长时间, 超时后返回让读取线程检查是否已停止 */
+    private static final int READ_POLL_TIMEOUT_MS = 500;
+
+    /** 写入队列满时 writeData 的最长等待时间 */
+    private static final long WRITE_OFFER_TIMEOUT_MS = 500L;
+    /** 写入线程空闲时单次等待的最长时间, 超时后检查是否已停止 */
+    private static final long WRITE_IDLE_TIMEOUT_MS = 500L;
+
+    /** 有描述符的串口是否由 {@link SerialReactor} 读取, 关闭后每个串口使用各自的读取线程 */
+    private static volatile boolean sReactorEnabled = true;
+
     private SerialPort mSerialPort;
 
     private java.io.InputStream mInputStream;
     private java.io.OutputStream mOutputStream;
-    private java.util.concurrent.BlockingQueue<byte[]> mWriteBlock;
-    private boolean mRunningFlag = true;
+    private UartWriteQueue mWriteQueue;
+    private volatile boolean mRunningFlag = true;
+    /** 写入线程, 开始通信前为 null */
+    private Thread mWritingThread;
+    /** 在 reactor 中的注册, 使用读取线程时为 null */
+    private SerialReactor.Key mReactorKey;
+    /** 合并发送时拼接各帧, 只由写入线程使用 */
+    private byte[] mBatchBuffer = new byte[UartWriteQueue.DEFAULT_MAX_BATCH_BYTES];
 
     private String keyPath = null;
+
+    private FileDescriptor mFd;
+    private StructPollfd[] mPollFds;
+    private int mReadMode = READ_MODE_POLL;
+    private final UartReadStats mReadStats = new UartReadStats();
+    /** 本次等待的开始时间, 用于计算读取延迟 */
+    private long mWaitStartNanos;
+    private final UartWriteStats mWriteStats = new UartWriteStats();
+    /** 收发数据记录到 {@link SerialCapture} 时的串口编号 */
+    private final int mCapturePort;
     /**写线程*/
     private Runnable mWritingRunnable = new Runnable()
     {
+        private final java.util.ArrayList<UartWriteQueue.Entry> mBatch = new java.util.ArrayList<>();
+
         public void run()
         {
             while (UartCommunication.this.mRunningFlag)
             {
                 try
                 {
-                    byte[] data = UartCommunication.this.mWriteBlock.take();
-                    if (UartCommunication.this.mOutputStream != null)
+                    int count = UartCommunication.this.mWriteQueue.awaitBatch(mBatch,
+                            WRITE_IDLE_TIMEOUT_MS, java.util.concurrent.TimeUnit.MILLISECONDS);
+                    if (count > 0)
                     {
-                        synchronized (this) {
-                            UartCommunication.this.mOutputStream.write(data, 0, data.length);
-                            System.out.println("写入 = " + new String(data));
-                            try { // 若串口反应没有这么快，则需要延时处理
-                                Thread.sleep(9);
-                            } catch (Exception e) {
-                                e.printStackTrace();
-                            }
-                        }
+                        writeBatch(mBatch);
                     }
                 }
+                catch (InterruptedException e)
+                {
+                    break;
+                }
                 catch (Exception e)
                 {
                     e.printStackTrace();
@@ -66,20 +104,125 @@ public class UartCommunication
             throws SecurityException, IOException
     {
         keyPath = uartFilePath;
+        this.mCapturePort = SerialCapture.getDefault().registerPort(uartFilePath);
         this.mSerialPort = new SerialPort(new java.io.File(uartFilePath), rate, flags);
         //this.mSerialPort = SerialPortManager.openPort(uartFilePath, rate);
         this.mInputStream = this.mSerialPort.getInputStream();
         this.mOutputStream = this.mSerialPort.getOutputStream();
+        this.mFd = this.mSerialPort.getFileDescriptor();
+        if (this.mFd != null)
+        {
+            StructPollfd pollFd = new StructPollfd();
+            pollFd.fd = this.mFd;
+            pollFd.events = (short) OsConstants.POLLIN;
+            this.mPollFds = new StructPollfd[] { pollFd };
+        }
 
         //this.mInputStream = SerialPortManager.getInputStream(this.mSerialPort);
         //this.mOutputStream = SerialPortManager.getOutputStream(this.mSerialPort);
 
+        // 写入线程在开始通信时启动
+        this.mWriteQueue = new UartWriteQueue(UartWriteQueue.DEFAULT_CAPACITY, this.mWriteStats);
+    }
 
-        this.mWriteBlock = new java.util.concurrent.ArrayBlockingQueue(10, true);
-        new Thread(this.mWritingRunnable).start();
+    private UartCommunication(String name, java.io.InputStream input, java.io.OutputStream output, FileDescriptor fd)
+    {
+        keyPath = name;
+        this.mCapturePort = SerialCapture.getDefault().registerPort(name);
+        this.mInputStream = input;
+        this.mOutputStream = output;
+        this.mFd = fd;
+        this.mWriteQueue = new UartWriteQueue(UartWriteQueue.DEFAULT_CAPACITY, this.mWriteStats);
+        startWriterThread();
+    }
+
+    /***
+     * 启动写入线程, 已启动时不做任何事
+     * 由 reactor 读取时写入也在本串口自己的线程中进行, 阻塞的 write 不会拖慢其他串口
+     */
+    synchronized void startWriterThread()
+    {
+        if (this.mWritingThread != null || !this.mRunningFlag)
+        {
+            return;
+        }
+        this.mWritingThread = new Thread(this.mWritingRunnable, "UartWriter-" + keyPath);
+        this.mWritingThread.start();
+    }
+
+    /***
+     * 设置有描述符的串口是否由 {@link SerialReactor} 读取, 只影响之后开始通信的串口
+     * @param enabled
+     */
+    public static void setReactorEnabled(boolean enabled)
+    {
+        sReactorEnabled = enabled;
     }
 
-    public static UartCommunication getInstance(String uartFilePath, int rate, int flags)
+    public static boolean isReactorEnabled()
+    {
+        return sReactorEnabled;
+    }
+
+    /***
+     * 交给 {@link SerialReactor} 读取, 读取通过 {@link #setReadHandler} 设置, 写入仍由写入线程进行
+     * @return 已由 reactor 读取时为 true; 没有串口描述符、reactor 已关闭、注册失败或 reactor 已因出错取消注册时为 false,
+     * 此时应使用读取线程, 由它报告读取错误
+     */
+    boolean attachToReactor()
+    {
+        return attachToReactor(SerialReactor.getDefault());
+    }
+
+    synchronized boolean attachToReactor(SerialReactor reactor)
+    {
+        if (this.mReactorKey != null)
+        {
+            return !this.mReactorKey.isCancelled();
+        }
+        if (!sReactorEnabled || this.mFd == null || !this.mRunningFlag)
+        {
+            return false;
+        }
+        try
+        {
+            this.mReactorKey = reactor.register(this, this.mFd);
+        }
+        catch (IOException e)
+        {
+            LOG.print("attach to reactor failed: " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    /***
+     * 设置 reactor 线程读到数据后的处理
+     * @param handler 为 null 时停止读取, 写入不受影响
+     */
+    synchronized void setReadHandler(SerialReactor.Handler handler)
+    {
+        if (this.mReactorKey != null)
+        {
+            this.mReactorKey.setHandler(handler);
+        }
+    }
+
+    synchronized boolean isReading(SerialReactor.Handler handler)
+    {
+        return this.mReactorKey != null && this.mReactorKey.getHandler() == handler;
+    }
+
+    /***
+     * 是否由 reactor 读取
+     * @return
+     */
+    public synchronized boolean isAttachedToReactor()
+    {
+        return this.mReactorKey != null && !this.mReactorKey.isCancelled();
+    }
+
+    public static synchronized UartCommunication getInstance(String uartFilePath, int rate, int flags)
             throws SecurityException, IOException
     {
         UartCommunication instance = (UartCommunication)UartCommunicationMap.get(uartFilePath);
@@ -91,8 +234,68 @@ public class UartCommunication
         return instance;
     }
 
+    /***
+     * 重新打开串口, 得到新的描述符, 用于读写出错或长时间收不到数据后恢复
+     * 按路径共享的实例会先释放, 之后 {@link #getInstance} 返回新的实例
+     * @param uartFilePath
+     * @param rate
+     * @param flags
+     * @return
+     * @throws SecurityException
+     * @throws IOException 打开失败, 此时没有共享的实例
+     */
+    public static UartCommunication open(String uartFilePath, int rate, int flags)
+            throws SecurityException, IOException
+    {
+        UartCommunication old;
+        synchronized (UartCommunication.class)
+        {
+            old = UartCommunicationMap.remove(uartFilePath);
+        }
+        if (old != null)
+        {
+            old.release();
+        }
+        UartCommunication instance = new UartCommunication(uartFilePath, rate, flags);
+        synchronized (UartCommunication.class)
+        {
+            UartCommunicationMap.put(uartFilePath, instance);
+        }
+        return instance;
+    }
+
+    /***
+     * 使用已打开的数据流创建实例, 例如单元测试中连接模拟器的 UartPipe
+     * 没有串口描述符, 读取总是使用休眠方式, 数据流的 read 应等待到有数据或超时后再返回
+     * @param name 名称, 只用于区分实例, 不加入按路径共享的实例表
+     * @param input
+     * @param output
+     * @return
+     */
+    public static UartCommunication create(String name, java.io.InputStream input, java.io.OutputStream output)
+    {
+        return new UartCommunication(name, input, output, null);
+    }
+
+    /***
+     * 使用已打开的数据流及其描述符创建实例, 用于单元测试中由 {@link SerialReactor} 读取
+     * @param fd 交给 reactor 等待可读, 读写仍使用数据流
+     */
+    static UartCommunication create(String name, java.io.InputStream input, java.io.OutputStream output, FileDescriptor fd)
+    {
+        return new UartCommunication(name, input, output, fd);
+    }
+
     public void release()
     {
+        synchronized (this)
+        {
+            if (this.mReactorKey != null)
+            {
+                this.mReactorKey.cancel();
+                this.mReactorKey = null;
+            }
+        }
         if (this.mInputStream != null)
         {
             try {
@@ -119,23 +322,48 @@ public class UartCommunication
             this.mSerialPort = null;
         }
         this.mRunningFlag = false;
+        // 之后的 writeData 返回 false, 未发送的帧计入丢弃数
+        int unsent = this.mWriteQueue.close(null);
+        if (unsent > 0)
+        {
+            LOG.print("release: " + unsent + " unsent frames dropped, " + keyPath, JLog.TYPE_WARN);
+        }
+        this.mFd = null;
+        this.mPollFds = null;
 
-        if ((UartCommunicationMap != null) && (UartCommunicationMap.containsValue(this)))
-            UartCommunicationMap.remove(keyPath);
+        synchronized (UartCommunication.class)
+        {
+            // 只移除自己, 重新打开后同一路径可能已是新的实例
+            if (keyPath != null && UartCommunicationMap.get(keyPath) == this)
+                UartCommunicationMap.remove(keyPath);
+        }
         keyPath = null;
     }
 
+    /***
+     * 将一帧放入发送队列, 队列已满时最多等待 {@link #WRITE_OFFER_TIMEOUT_MS}
+     * @return 放入队列为 true; 等待超时、线程被中断或已释放时丢弃该帧, 记录日志并计入 {@link UartWriteStats#getDroppedCount()}
+     */
     public boolean writeData(byte[] aData) throws IOException
     {
+        boolean queued;
         try
         {
-            this.mWriteBlock.put(aData);
-            return true;
+            // 超时时队列已计入丢弃数
+            queued = this.mWriteQueue.offer(aData, WRITE_OFFER_TIMEOUT_MS, java.util.concurrent.TimeUnit.MILLISECONDS);
         }
-        catch (InterruptedException e) {
-            e.printStackTrace();
-            return false;
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            this.mWriteStats.onDropped();
+            queued = false;
         }
+        if (!queued)
+        {
+            LOG.print("writeData: 发送队列已满或已关闭, 丢弃 " + aData.length + " 字节, " + keyPath
+                    + ", 累计丢弃 " + this.mWriteStats.getDroppedCount(), JLog.TYPE_WARN);
+        }
+        return queued;
     }
 
     /***
@@ -156,6 +384,194 @@ public class UartCommunication
         return 0;
     }
 
+    /***
+     * 设置读取方式, 串口描述符不可用时总是使用休眠方式
+     * @param mode {@link #READ_MODE_POLL} 或 {@link #READ_MODE_SLEEP}
+     */
+    public void setReadMode(int mode)
+    {
+        this.mReadMode = mode;
+    }
+
+    public int getReadMode()
+    {
+        return this.mReadMode;
+    }
+
+    /***
+     * 写入队列, 用于设置最小发送间隔及合并发送
+     * @return
+     */
+    public UartWriteQueue getWriteQueue()
+    {
+        return this.mWriteQueue;
+    }
+
+    public UartWriteStats getWriteStats()
+    {
+        return this.mWriteStats;
+    }
+
+    public UartReadStats getReadStats()
+    {
+        return this.mReadStats;
+    }
+
+    /***
+     * 等待数据到达后读取, 只能由读取线程调用
+     * poll 模式下阻塞在串口描述符上直到可读或超时, 休眠模式下没有数据时休眠 50ms
+     * @param aData
+     * @param aBeginPos
+     * @param aLength
+     * @return 读取到的字节数, 等待超时时为0
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    protected int awaitAndReadData(byte[] aData, int aBeginPos, int aLength)
+            throws IOException, InterruptedException
+    {
+        StructPollfd[] pollFds = this.mPollFds;
+        boolean usePoll = this.mReadMode == READ_MODE_POLL && pollFds != null;
+        if (this.mWaitStartNanos == 0L)
+        {
+            this.mWaitStartNanos = System.nanoTime();
+        }
+        if (usePoll)
+        {
+            if (!awaitReadable(pollFds, READ_POLL_TIMEOUT_MS))
+            {
+                this.mReadStats.onWakeup(false);
+                this.mWaitStartNanos = 0L;
+                return 0;
+            }
+            // 数据到达时 poll 立即返回, 延迟从此刻算起
+            this.mWaitStartNanos = System.nanoTime();
+        }
+        int size = readData(aData, aBeginPos, aLength);
+        if (size > 0)
+        {
+            SerialCapture.getDefault().record(SerialCapture.TYPE_RX, this.mCapturePort, aData, aBeginPos, size);
+            this.mReadStats.onWakeup(true);
+            this.mReadStats.onRead(size, System.nanoTime() - this.mWaitStartNanos);
+            this.mWaitStartNanos = 0L;
+            return size;
+        }
+        this.mReadStats.onWakeup(false);
+        if (!usePoll)
+        {
+            // 数据可能在休眠期间任意时刻到达, 延迟从休眠开始算起
+            this.mWaitStartNanos = System.nanoTime();
+            Thread.sleep(READ_SLEEP_MS);
+        }
+        else
+        {
+            this.mWaitStartNanos = 0L;
+        }
+        return 0;
+    }
+
+    /***
+     * 描述符可读后读取, 由 reactor 线程调用
+     * @param readyNanos poll 返回的时间, 用于计算读取延迟
+     * @return 读取到的字节数
+     * @throws IOException
+     */
+    int readReady(byte[] aData, int aBeginPos, int aLength, long readyNanos) throws IOException
+    {
+        int size = readData(aData, aBeginPos, aLength);
+        this.mReadStats.onWakeup(size > 0);
+        if (size > 0)
+        {
+            SerialCapture.getDefault().record(SerialCapture.TYPE_RX, this.mCapturePort, aData, aBeginPos, size);
+            this.mReadStats.onRead(size, System.nanoTime() - readyNanos);
+        }
+        return size;
+    }
+
+    /***
+     * 用一次 write 发出一批帧, 由写入线程调用
+     * @param batch 从写入队列取出的帧
+     * @throws IOException
+     */
+    void writeBatch(java.util.List<UartWriteQueue.Entry> batch) throws IOException
+    {
+        java.io.OutputStream out = this.mOutputStream;
+        if (out == null)
+        {
+            return;
+        }
+        int count = batch.size();
+        int bytes;
+        if (count == 1)
+        {
+            byte[] data = batch.get(0).data;
+            out.write(data, 0, data.length);
+            bytes = data.length;
+        }
+        else
+        {
+            bytes = 0;
+            for (int i = 0; i < count; i++)
+            {
+                bytes += batch.get(i).data.length;
+            }
+            if (mBatchBuffer.length < bytes)
+            {
+                mBatchBuffer = new byte[bytes];
+            }
+            int pos = 0;
+            for (int i = 0; i < count; i++)
+            {
+                byte[] data = batch.get(i).data;
+                System.arraycopy(data, 0, mBatchBuffer, pos, data.length);
+                pos += data.length;
+            }
+            out.write(mBatchBuffer, 0, bytes);
+        }
+        // 最小间隔从写入完成开始计时, 若串口反应没有这么快可调大间隔
+        this.mWriteQueue.onWritten(batch, bytes);
+        // 按帧记录, 回放时与合并前的发送顺序相同
+        SerialCapture capture = SerialCapture.getDefault();
+        for (int i = 0; i < count; i++)
+        {
+            byte[] data = batch.get(i).data;
+            capture.record(SerialCapture.TYPE_TX, this.mCapturePort, data, 0, data.length);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "UartCommunication[" + keyPath + "]";
+    }
+
+    private static boolean awaitReadable(StructPollfd[] pollFds, int timeoutMs) throws IOException
+    {
+        StructPollfd pollFd = pollFds[0];
+        pollFd.revents = 0;
+        try
+        {
+            if (Os.poll(pollFds, timeoutMs) <= 0)
+            {
+                return false;
+            }
+        }
+        catch (ErrnoException e)
+        {
+            if (e.errno == OsConstants.EINTR)
+            {
+                return false;
+            }
+            throw new IOException("poll failed", e);
+        }
+        if ((pollFd.revents & OsConstants.POLLNVAL) != 0)
+        {
+            throw new IOException("serial port descriptor is closed");
+        }
+        // POLLERR/POLLHUP 也按可读处理, 让 read 抛出实际的错误
+        return pollFd.revents != 0;
+    }
+
     protected synchronized byte[] readData()
     {
         byte[] byffer = null;
@@ -0,0 +1,102 @@
+package com.serial.opt;
+
+/**
+ * 串口读取线程的统计数据, 用于比较 poll 等待与休眠轮询两种读取方式
+ * <p>
+ * 只由读取线程写入, 其他线程读取的是近似值.
+ * 读取延迟为数据最早可能到达的时刻到读取完成的时间:
+ * poll 模式从 poll 返回开始计算, 休眠模式从休眠开始计算(数据可能在休眠期间任意时刻到达).
+ * </p>
+ */
+public class UartReadStats
+{
+    /** 读取线程被唤醒的次数, 包括 poll 超时与休眠结束 */
+    private volatile long mWakeupCount;
+    /** 唤醒后没有读到数据的次数 */
+    private volatile long mEmptyWakeupCount;
+    private volatile long mReadCount;
+    private volatile long mBytesRead;
+    private volatile long mLastLatencyNanos;
+    private volatile long mMaxLatencyNanos;
+    private volatile long mTotalLatencyNanos;
+
+    void onWakeup(boolean hasData)
+    {
+        mWakeupCount++;
+        if (!hasData)
+        {
+            mEmptyWakeupCount++;
+        }
+    }
+
+    void onRead(int size, long latencyNanos)
+    {
+        mReadCount++;
+        mBytesRead += size;
+        mLastLatencyNanos = latencyNanos;
+        mTotalLatencyNanos += latencyNanos;
+        if (latencyNanos > mMaxLatencyNanos)
+        {
+            mMaxLatencyNanos = latencyNanos;
+        }
+    }
+
+    public long getWakeupCount()
+    {
+        return mWakeupCount;
+    }
+
+    public long getEmptyWakeupCount()
+    {
+        return mEmptyWakeupCount;
+    }
+
+    public long getReadCount()
+    {
+        return mReadCount;
+    }
+
+    public long getBytesRead()
+    {
+        return mBytesRead;
+    }
+
+    public long getLastLatencyNanos()
+    {
+        return mLastLatencyNanos;
+    }
+
+    public long getMaxLatencyNanos()
+    {
+        return mMaxLatencyNanos;
+    }
+
+    public long getAverageLatencyNanos()
+    {
+        long count = mReadCount;
+        return count == 0 ? 0 : mTotalLatencyNanos / count;
+    }
+
+    public void reset()
+    {
+        mWakeupCount = 0;
+        mEmptyWakeupCount = 0;
+        mReadCount = 0;
+        mBytesRead = 0;
+        mLastLatencyNanos = 0;
+        mMaxLatencyNanos = 0;
+        mTotalLatencyNanos = 0;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "UartReadStats{wakeups=" + mWakeupCount
+                + ", emptyWakeups=" + mEmptyWakeupCount
+                + ", reads=" + mReadCount
+                + ", bytes=" + mBytesRead
+                + ", avgLatencyUs=" + getAverageLatencyNanos() / 1000
+                + ", maxLatencyUs=" + mMaxLatencyNanos / 1000
+                + "}";
+    }
+}
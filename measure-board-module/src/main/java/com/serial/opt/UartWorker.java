@@ -1,11 +1,8 @@
 package com.serial.opt;
 
 
-import com.serial.port.ByteUtils;
-
 import java.io.IOException;
-
-import android_serialport_api.Command;
+import java.util.concurrent.TimeUnit;
 
 /***
  * 通用串口工作类
@@ -14,83 +11,181 @@ public class UartWorker
 {
     private static final JLog LOG = new JLog("UartWorker", true, JLog.TYPE_DEBUG);
 
-    private int isRunningFlag;
+    /** 读取出错后再次读取前的等待时间, 避免同一错误反复出现时空转 */
+    private static final long READ_ERROR_BACKOFF_MS = 100L;
+    /** reactor 线程交给分发线程的字节缓存, 分发线程停顿时 115200bps 下可缓存1秒以上 */
+    private static final int DISPATCH_BUFFER_SIZE = 16 * 1024;
+    /** 分发线程单次等待的最长时间, 超时后检查是否已释放 */
+    private static final long DISPATCH_WAIT_MS = 1000L;
+
+    /** 每次停止通信时加1, 读取线程发现与启动时不同后退出 */
+    private volatile int isRunningFlag;
+
+    /** 当前的读取线程及其启动时的标志, 用于避免重复启动 */
+    private Thread mReadThread;
+    private int mReadThreadFlag;
 
     private UartCommunication mUartCommunication;
 
     private OnDistributeListener mDistributeListener;
 
 
-    /***
-     * 读取线程
-     */
-    private Runnable mReadRunnable = new Runnable()
+    /** 55AA 帧解码, 只在读取线程中使用 */
+    private final FrameDecoder mFrameDecoder = new FrameDecoder();
+
+    private final FrameDecoder.OnFrameListener mFrameListener = new FrameDecoder.OnFrameListener()
+    {
+        @Override
+        public void onFrame(FrameDecoder.Frame frame)
+        {
+            distributeFrame(frame);
+        }
+    };
+
+    /** reactor 线程写入, 分发线程解码并分发, reactor 线程不会因为监听阻塞 */
+    private final SpscByteRing mDispatchBuffer = new SpscByteRing(DISPATCH_BUFFER_SIZE);
+    /** reactor 报告的关闭, 分发线程分发完缓存中的数据后通知 */
+    private volatile IOException mPendingClose;
+    /** 下次解码缓存中的数据前重置解码器, 重新开始通信时设置 */
+    private volatile boolean mResetDecoder;
+    /** 缓存已满而丢弃的字节数 */
+    private volatile long mOverflowBytes;
+    private volatile boolean mReleased;
+    /** 分发线程, 第一次由 reactor 读取时启动, 释放后退出 */
+    private Thread mDispatchThread;
+
+    /** 由 {@link SerialReactor} 读取时的处理, 在 reactor 线程中只复制数据, 不能阻塞 */
+    private final SerialReactor.Handler mReactorHandler = new SerialReactor.Handler()
     {
-        StringBuffer strBuf = new StringBuffer();
         @Override
-        public void run()
+        public void onRead(byte[] data, int offset, int len)
         {
+            int n = mDispatchBuffer.offer(data, offset, len);
+            if (n < len)
+            {
+                // 分发线程跟不上, 丢弃的字节由解码器重新同步
+                mOverflowBytes += len - n;
+                LOG.print("dispatch buffer full, dropped " + (len - n) + " bytes, total " + mOverflowBytes);
+            }
+        }
+
+        @Override
+        public void onClosed(IOException e)
+        {
+            LOG.print("serial port closed: " + e.getMessage());
+            mPendingClose = e;
+        }
+    };
+
+    /***
+     * 读取线程, 标志与启动时不同后退出
+     * @param flag 启动时的 isRunningFlag
+     */
+    private void readLoop(int flag)
+    {
 //            byte[] data = new byte[2048];
-            byte[] data = new byte[1024];
-            int flag = isRunningFlag;
-            while (isRunningFlag == flag)
+        byte[] data = new byte[1024];
+        boolean closedNotified = false;
+        mFrameDecoder.reset();
+        while (isRunningFlag == flag)
+        {
+            UartCommunication communication = mUartCommunication;
+            if (communication != null)
             {
-                System.out.println("UartWorker.read0 = " + mUartCommunication);
-                if (mUartCommunication != null)
+                try
                 {
-                    try
+                    int size = communication.awaitAndReadData(data, 0, data.length);
+                    if (size > 0)
                     {
-                        int size = mUartCommunication.readData(data, 0, data.length);
-                        System.out.println("UartWorker.read1 = " + size);
-                        if (size > 0)
-                        {
-                            byte[] temp = new byte[size];
-                            System.arraycopy(data, 0, temp, 0, size);
-                            String item = ByteUtils.byteArrayToHexString(temp);
-                            strBuf.append(item);
-                            System.out.println("UartWorker.read2 = " + item);
-                            checkData(strBuf);
-
-                        }
-                        else
-                        {
-                            Thread.sleep(50L);
-                        }
-
+                        mFrameDecoder.decode(data, 0, size, mFrameListener);
                     }
-                    catch (Exception e)
+                }
+                catch (IOException e)
+                {
+                    // 描述符已失效时每次读取都会出错, 只通知一次, 由上层决定是否重新打开
+                    if (!closedNotified)
                     {
-                        e.printStackTrace();
+                        closedNotified = true;
+                        LOG.print("read failed: " + e.getMessage());
+                        distributeClosed(e);
                     }
+                    sleepQuietly(READ_ERROR_BACKOFF_MS);
+                }
+                catch (InterruptedException e)
+                {
+                    break;
+                }
+                catch (Exception e)
+                {
+                    e.printStackTrace();
                 }
             }
         }
-    };
+    }
 
-    // 验证收到数据的完整性，及分发
-    private void checkData(StringBuffer strBuf) {
-        int start = 0, end = 0;
-        if ((start = strBuf.indexOf(Command.FLAG)) >= 0){
-//            end = strBuf.indexOf(Command.FLAG, start + 2);
-            end = strBuf.lastIndexOf(Command.FLAG);
-            if (end > 0){
-                String itemData = strBuf.substring(start, end + 4);
-                distributeData(itemData, "normal");
-                strBuf.delete(start, end + 4); // 删除分发的数据
-                if (start > 0){ // 有无效数据
-                    System.err.println("UartWorker.errorData = " + strBuf.substring(0, start));
-                    distributeData(strBuf.substring(0, start), "errorData");
-                    strBuf.delete(0, start);
+    /***
+     * 分发线程, 解码 reactor 线程读到的数据并分发, 释放后退出
+     */
+    private void dispatchLoop()
+    {
+        byte[] data = new byte[1024];
+        while (!mReleased)
+        {
+            try
+            {
+                if (mDispatchBuffer.awaitReadable(DISPATCH_WAIT_MS, TimeUnit.MILLISECONDS))
+                {
+                    int size = mDispatchBuffer.drain(data, 0, data.length);
+                    if (size > 0)
+                    {
+                        if (mResetDecoder)
+                        {
+                            mResetDecoder = false;
+                            mFrameDecoder.reset();
+                        }
+                        mFrameDecoder.decode(data, 0, size, mFrameListener);
+                    }
                 }
+                IOException closed = mPendingClose;
+                if (closed != null && mDispatchBuffer.isEmpty())
+                {
+                    mPendingClose = null;
+                    distributeClosed(closed);
+                }
+            }
+            catch (Exception e)
+            {
+                e.printStackTrace();
             }
         }
     }
 
+    private static void sleepQuietly(long ms)
+    {
+        try
+        {
+            Thread.sleep(ms);
+        }
+        catch (InterruptedException ignored)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     // 分发
-    private void distributeData(String data, String where) {
+    private void distributeFrame(FrameDecoder.Frame frame) {
         if (mDistributeListener != null)
         {
-            mDistributeListener.onDistribution(data);
+            mDistributeListener.onFrame(frame);
+        }
+    }
+
+    private void distributeClosed(IOException e)
+    {
+        OnDistributeListener listener = mDistributeListener;
+        if (listener != null)
+        {
+            listener.onClosed(e);
         }
     }
 
@@ -107,6 +202,15 @@ public class UartWorker
         this.mUartCommunication = UartCommunication.getInstance(uartFilePath, rate, flags);
     }
 
+    /***
+     * 使用已创建的串口通信, 例如连接模拟器的 {@link UartCommunication#create}
+     * @param communication
+     */
+    public UartWorker(UartCommunication communication)
+    {
+        this.mUartCommunication = communication;
+    }
+
     public void setProtocalDistributeListener(OnDistributeListener listener)
     {
         this.mDistributeListener = listener;
@@ -117,23 +221,72 @@ public class UartWorker
         return this.mUartCommunication;
     }
 
+    /***
+     * 帧解码器, 用于查看收到的帧数、丢弃的字节数及校验失败次数
+     * @return
+     */
+    public FrameDecoder getFrameDecoder()
+    {
+        return this.mFrameDecoder;
+    }
+
+    /***
+     * 开始通信, 有串口描述符时交给 {@link SerialReactor} 读取并由分发线程解码, 否则启动读取线程
+     * 写入总是在串口自己的写入线程中进行
+     */
     public void startCommunicate()
     {
+        UartCommunication communication = this.mUartCommunication;
+        if (communication != null)
+        {
+            communication.startWriterThread();
+        }
+        if (communication != null && communication.attachToReactor())
+        {
+            if (!communication.isReading(this.mReactorHandler))
+            {
+                this.mResetDecoder = true;
+                startDispatchThread();
+                communication.setReadHandler(this.mReactorHandler);
+            }
+            return;
+        }
         initWrokingThread();
     }
 
+    /***
+     * 缓存已满而丢弃的字节数, 分发线程跟不上 reactor 读取时增加
+     * @return
+     */
+    public long getOverflowBytes()
+    {
+        return this.mOverflowBytes;
+    }
+
     public void stopCommunicate()
     {
         LOG.print("stop communicaate");
         this.isRunningFlag += 1;
+        if (this.mUartCommunication != null)
+        {
+            this.mUartCommunication.setReadHandler(null);
+        }
     }
 
     public void release()
     {
         LOG.print("=====.release()");
         stopCommunicate();
-
-        this.mReadRunnable = null;
+        Thread dispatchThread;
+        synchronized (this)
+        {
+            this.mReleased = true;
+            dispatchThread = this.mDispatchThread;
+        }
+        if (dispatchThread != null)
+        {
+            dispatchThread.interrupt();
+        }
 
         if (this.mUartCommunication != null)
         {
@@ -143,11 +296,46 @@ public class UartWorker
     }
 
     /***
-     * 初始化好读写分以线程
+     * 启动分发线程, 已启动或已释放时不做任何事
+     * 分发线程不随停止通信退出, 同一缓存始终只有一个线程读取
+     */
+    private synchronized void startDispatchThread()
+    {
+        if (this.mDispatchThread != null || this.mReleased)
+        {
+            return;
+        }
+        this.mDispatchThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                dispatchLoop();
+            }
+        }, "UartDispatch-" + this.mUartCommunication);
+        this.mDispatchThread.start();
+    }
+
+    /***
+     * 初始化好读写分以线程, 上一个读取线程仍在运行且未停止时不再启动
      */
-    private void initWrokingThread()
+    private synchronized void initWrokingThread()
     {
-        new Thread(this.mReadRunnable).start();
+        final int flag = this.isRunningFlag;
+        if (this.mReadThread != null && this.mReadThread.isAlive() && this.mReadThreadFlag == flag)
+        {
+            return;
+        }
+        this.mReadThreadFlag = flag;
+        this.mReadThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                readLoop(flag);
+            }
+        }, "UartReader-" + this.mUartCommunication);
+        this.mReadThread.start();
 //        new Thread(this.mAnalyseRunnable).start();
     }
 
@@ -158,5 +346,23 @@ public class UartWorker
          * @param data
          */
         void onDistribution(String data);
+
+        /***
+         * 处理一个完整的二进制数据包, frame 只在回调期间有效.
+         * 默认转为16进制字符串交给 {@link #onDistribution(String)}, 需要原始字节时覆盖此方法
+         * @param frame
+         */
+        default void onFrame(FrameDecoder.Frame frame)
+        {
+            onDistribution(frame.toHexString());
+        }
+
+        /***
+         * 串口已关闭或读取出错, 在读取线程或分发线程中调用
+         * @param e
+         */
+        default void onClosed(IOException e)
+        {
+        }
     }
 }
@@ -5,9 +5,9 @@ import android.util.Log;
 import com.serial.port.ByteUtils;
 
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
 import android_serialport_api.Command;
-import android_serialport_api.StringUtils;
 
 /***
  * 扩展串口工作类
@@ -18,14 +18,21 @@ public class UartWorkerCH
     final String TAG = getClass().getSimpleName();
     private String mName, mTag;
 
-    private CircleBuff mReadingCache;
+    /** 读取线程或 reactor 线程与分发线程之间的字节缓存, 读取方写入, 分发线程读取, 释放后为 null */
+    private volatile SpscByteRing mReadingCache;
 
     private static final int MCU_BUFFER_SIZE = 1024 * 4;
 
-    private java.util.concurrent.BlockingQueue<byte[]> mBlockQueue = new java.util.concurrent.ArrayBlockingQueue(10);// 最多可放入10个包
+    /** 读写缓存时的最长等待时间, 超时后检查是否已停止 */
+    private static final long CACHE_WAIT_MS = 200L;
 
     private int isRunningFlag;
 
+    /** 由 reactor 读取时的分发线程, 不随停止通信退出, 释放后退出 */
+    private Thread mReactorDistributionThread;
+    /** 由 reactor 读取时缓存已满而丢弃的字节数 */
+    private volatile long mOverflowBytes;
+
     private UartCommunication mUartCommunication;
 
     private OnReceiveListener mReceiveListener;
@@ -49,20 +56,15 @@ public class UartWorkerCH
                 {
                     try
                     {
-                        int size = mUartCommunication.readData(data, 0, data.length);
-                        System.out.println(getTag() + ".read = " + size);
+                        int size = mUartCommunication.awaitAndReadData(data, 0, data.length);
                         if (size > 0)
                         {
-                            byte[] temp = new byte[size];
-                            System.arraycopy(data, 0, temp, 0, size);
-//                            String result = ByteUtils.byteArrayToHexString(temp);
-                            String result = StringUtils.bytesToHexString(temp);
-//                            System.out.println( getTag() + ".read2 = " + result);
-                            mBlockQueue.put(temp); // 一次性读完一条数据时
-                        }
-                        else
-                        {
-                            Thread.sleep(50L);
+                            SpscByteRing cache = mReadingCache;
+                            int offset = 0;
+                            while (cache != null && offset < size && isRunningFlag == flag)
+                            {
+                                offset += cache.offerFully(data, offset, size - offset, CACHE_WAIT_MS, TimeUnit.MILLISECONDS);
+                            }
                         }
                     }
                     catch (Exception e)
@@ -74,6 +76,29 @@ public class UartWorkerCH
         }
     };
 
+    /** 由 {@link SerialReactor} 读取时的处理, 在 reactor 线程中只放入缓存, 由分发线程分发 */
+    private final SerialReactor.Handler mReactorHandler = new SerialReactor.Handler()
+    {
+        @Override
+        public void onRead(byte[] data, int offset, int len)
+        {
+            SpscByteRing cache = mReadingCache;
+            int n = cache != null ? cache.offer(data, offset, len) : 0;
+            if (n < len)
+            {
+                // reactor 线程不能等待分发线程
+                mOverflowBytes += len - n;
+                Log.e(getTag(), "reading cache full, dropped " + (len - n) + " bytes, total " + mOverflowBytes);
+            }
+        }
+
+        @Override
+        public void onClosed(IOException e)
+        {
+            Log.e(getTag(), "serial port closed: " + e.getMessage());
+        }
+    };
+
     private void checkData(StringBuffer strBuf) {
         int start = 0, end = 0;
         if ((start = strBuf.indexOf(Command.FLAG)) >= 0){
@@ -90,23 +115,23 @@ public class UartWorkerCH
         @Override
         public void run()
         {
+            byte[] data = new byte[2048];
             int flag = isRunningFlag;
             while (isRunningFlag == flag)
             {
                 try
                 {
-                    byte[] data = (byte[]) mBlockQueue.take();
-                    String disResult = "";
-                    if (mResultIsHex){
-                        disResult = ByteUtils.byteArrayToHexString(data);
-                    }else {
-                        disResult = new String(data);
+                    SpscByteRing cache = mReadingCache;
+                    if (cache == null || !cache.awaitReadable(CACHE_WAIT_MS, TimeUnit.MILLISECONDS))
+                    {
+                        continue;
                     }
-                    System.out.println(getTag() + " 分发 Date = " + disResult);
-                    if (mReceiveListener != null)
+                    int size = cache.drain(data, 0, data.length);
+                    if (size <= 0)
                     {
-                        mReceiveListener.onReceive(disResult);
+                        continue;
                     }
+                    distribute(data, 0, size);
                 }
                 catch (Exception e)
                 {
@@ -116,6 +141,48 @@ public class UartWorkerCH
         }
     };
 
+    /***
+     * 由 reactor 读取时的分发线程, 释放后退出
+     */
+    private void reactorDistributionLoop()
+    {
+        byte[] data = new byte[2048];
+        SpscByteRing cache;
+        while ((cache = mReadingCache) != null)
+        {
+            try
+            {
+                if (!cache.awaitReadable(CACHE_WAIT_MS, TimeUnit.MILLISECONDS))
+                {
+                    continue;
+                }
+                int size = cache.drain(data, 0, data.length);
+                if (size > 0)
+                {
+                    distribute(data, 0, size);
+                }
+            }
+            catch (Exception e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void distribute(byte[] data, int offset, int size)
+    {
+        String disResult = "";
+        if (mResultIsHex){
+            disResult = ByteUtils.byteArrayToHexString(data, offset, size);
+        }else {
+            disResult = new String(data, offset, size);
+        }
+        if (mReceiveListener != null)
+        {
+            mReceiveListener.onReceive(disResult);
+        }
+    }
+
     /***
      * 串口路径
      * @param uartFilePath 串口路径
@@ -126,10 +193,22 @@ public class UartWorkerCH
             throws SecurityException, IOException
     {
         this.mName = name;
-        this.mReadingCache = new CircleBuff(MCU_BUFFER_SIZE);
+        this.mReadingCache = new SpscByteRing(MCU_BUFFER_SIZE);
         this.mUartCommunication = UartCommunication.getInstance(uartFilePath, rate, flags);
     }
 
+    /***
+     * 使用已创建的串口通信, 例如连接模拟器的 {@link UartCommunication#create}
+     * @param communication
+     * @param name
+     */
+    public UartWorkerCH(UartCommunication communication, String name)
+    {
+        this.mName = name;
+        this.mReadingCache = new SpscByteRing(MCU_BUFFER_SIZE);
+        this.mUartCommunication = communication;
+    }
+
     public void setOnReceiveListener(OnReceiveListener listener)
     {
         this.mReceiveListener = listener;
@@ -144,15 +223,50 @@ public class UartWorkerCH
         return this.mUartCommunication;
     }
 
+    /***
+     * 开始通信, 有串口描述符时交给 {@link SerialReactor} 读取, 否则启动读取线程, 分发和写入总在各自的线程中
+     */
     public void startCommunicate()
     {
+        UartCommunication communication = this.mUartCommunication;
+        if (communication != null)
+        {
+            communication.startWriterThread();
+        }
+        if (communication != null && communication.attachToReactor())
+        {
+            startReactorDistributionThread();
+            communication.setReadHandler(this.mReactorHandler);
+            return;
+        }
         initWrokingThread();
     }
 
+    private synchronized void startReactorDistributionThread()
+    {
+        if (this.mReactorDistributionThread != null || this.mReadingCache == null)
+        {
+            return;
+        }
+        this.mReactorDistributionThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                reactorDistributionLoop();
+            }
+        }, "UartDispatch-" + getTag());
+        this.mReactorDistributionThread.start();
+    }
+
     public void stopCommunicate()
     {
         Log.e(getTag(), "stopCommunicate: ");
         this.isRunningFlag += 1;
+        if (this.mUartCommunication != null)
+        {
+            this.mUartCommunication.setReadHandler(null);
+        }
     }
 
     private String getTag() {
@@ -164,18 +278,9 @@ public class UartWorkerCH
     public void release()
     {
         stopCommunicate();
-        if (this.mReadingCache != null)
-        {
-            this.mReadingCache.release();
-            this.mReadingCache = null;
-        }
+        this.mReadingCache = null;
         this.mReadRunnable = null;
 
-        if (this.mBlockQueue != null)
-        {
-            this.mBlockQueue.clear();
-            this.mBlockQueue = null;
-        }
         this.mDistributionRunnable = null;
         if (this.mUartCommunication != null)
         {
@@ -197,7 +302,7 @@ public class UartWorkerCH
     public static interface OnReceiveListener
     {
         /***
-         * 处理一个完整的数据包
+         * 处理一个完整的数据包, 在分发线程中调用
          * @param data
          */
         void onReceive(String data);
@@ -0,0 +1,285 @@
+package com.serial.opt;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 按最小间隔发送的串口写入队列
+ * <p>
+ * 两次写入之间至少间隔 minGap, 间隔以上次写入完成的时刻为起点计时, 空闲后到达的帧可以立即发送,
+ * 不再每帧固定休眠. 等待间隔期间到达的帧在允许合并时与队首帧一起用一次 write 发出.
+ * </p>
+ * 任意线程可调用 {@link #offer}, 只允许一个写入线程调用 {@link #awaitBatch} 和 {@link #onWritten}.
+ */
+public class UartWriteQueue
+{
+    public static final int DEFAULT_CAPACITY = 64;
+    /** 与原来每帧写入后休眠 9ms 相同 */
+    public static final long DEFAULT_MIN_GAP_MS = 9L;
+    public static final int DEFAULT_MAX_BATCH_BYTES = 256;
+
+    /**
+     * 队列中的一帧
+     */
+    public static final class Entry
+    {
+        public final byte[] data;
+        /** 进入队列的时间, 用于计算发送延迟 */
+        public final long enqueueNanos;
+
+        Entry(byte[] data, long enqueueNanos)
+        {
+            this.data = data;
+            this.enqueueNanos = enqueueNanos;
+        }
+    }
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mNotEmpty = mLock.newCondition();
+    private final Condition mNotFull = mLock.newCondition();
+    private final ArrayDeque<Entry> mFrames;
+    private final int mCapacity;
+    private final UartWriteStats mStats;
+
+    private volatile long mMinGapNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MIN_GAP_MS);
+    private volatile boolean mCoalescing = false;
+    private volatile int mMaxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+
+    /** 关闭后不再接受新帧, 由 mLock 保护 */
+    private boolean mClosed = false;
+
+    /** 上次写入完成的时间, 只由写入线程访问 */
+    private long mLastWriteNanos;
+    private boolean mHasWritten = false;
+
+    public UartWriteQueue(int capacity, UartWriteStats stats)
+    {
+        if (capacity <= 0)
+        {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.mCapacity = capacity;
+        this.mFrames = new ArrayDeque<>(capacity);
+        this.mStats = stats;
+    }
+
+    /***
+     * 设置两次写入之间的最小间隔
+     * @param gap 间隔, 0 表示不限制
+     * @param unit
+     */
+    public void setMinGap(long gap, TimeUnit unit)
+    {
+        this.mMinGapNanos = Math.max(0L, unit.toNanos(gap));
+    }
+
+    public long getMinGapNanos()
+    {
+        return this.mMinGapNanos;
+    }
+
+    /***
+     * 设置是否合并发送, 只有 MCU 能在一次接收中处理多个连续帧时才可开启
+     * @param coalescing 是否合并
+     * @param maxBatchBytes 一次 write 的最大字节数
+     */
+    public void setCoalescing(boolean coalescing, int maxBatchBytes)
+    {
+        this.mMaxBatchBytes = Math.max(1, maxBatchBytes);
+        this.mCoalescing = coalescing;
+    }
+
+    public boolean isCoalescing()
+    {
+        return this.mCoalescing;
+    }
+
+    public int getMaxBatchBytes()
+    {
+        return this.mMaxBatchBytes;
+    }
+
+    public int size()
+    {
+        mLock.lock();
+        try
+        {
+            return mFrames.size();
+        }
+        finally
+        {
+            mLock.unlock();
+        }
+    }
+
+    /***
+     * 加入一帧, 队列已满时最多等待 timeout
+     * @return 加入成功为 true, 超时、被中断或队列已关闭时为 false
+     */
+    public boolean offer(byte[] data, long timeout, TimeUnit unit) throws InterruptedException
+    {
+        long nanos = unit.toNanos(timeout);
+        mLock.lockInterruptibly();
+        try
+        {
+            while (mFrames.size() >= mCapacity || mClosed)
+            {
+                if (nanos <= 0L || mClosed)
+                {
+                    mStats.onDropped();
+                    return false;
+                }
+                nanos = mNotFull.awaitNanos(nanos);
+            }
+            mFrames.addLast(new Entry(data, System.nanoTime()));
+            mStats.onQueueDepth(mFrames.size());
+            mNotEmpty.signal();
+        }
+        finally
+        {
+            mLock.unlock();
+        }
+        return true;
+    }
+
+    /***
+     * 等待下一批可以发送的帧
+     * 先等待队列非空, 再等到距上次写入满足最小间隔, 然后取出队首帧,
+     * 开启合并时继续取出已在队列中且总长度不超过 maxBatchBytes 的帧
+     * @param out 接收取出的帧, 调用前会被清空
+     * @param timeout 队列为空时的最长等待时间
+     * @return 取出的帧数, 超时为0
+     */
+    public int awaitBatch(List<Entry> out, long timeout, TimeUnit unit) throws InterruptedException
+    {
+        out.clear();
+        long nanos = unit.toNanos(timeout);
+        mLock.lockInterruptibly();
+        try
+        {
+            while (mFrames.isEmpty())
+            {
+                if (nanos <= 0L || mClosed)
+                {
+                    return 0;
+                }
+                nanos = mNotEmpty.awaitNanos(nanos);
+            }
+            if (mHasWritten)
+            {
+                // 定时等待而不是休眠, 期间新到的帧会唤醒本线程并在合并时一起发出
+                final long readyAt = mLastWriteNanos + mMinGapNanos;
+                long wait;
+                while ((wait = readyAt - System.nanoTime()) > 0L && !mClosed)
+                {
+                    mNotEmpty.awaitNanos(wait);
+                }
+                if (mFrames.isEmpty())
+                {
+                    // 等待期间已关闭或清空
+                    return 0;
+                }
+            }
+            return takeBatch(out);
+        }
+        finally
+        {
+            mLock.unlock();
+        }
+    }
+
+    /***
+     * 取出队首帧, 开启合并时继续取出总长度不超过 maxBatchBytes 的帧, 调用时已持有锁且队列非空
+     */
+    private int takeBatch(List<Entry> out)
+    {
+        Entry first = mFrames.pollFirst();
+        out.add(first);
+        if (mCoalescing)
+        {
+            int total = first.data.length;
+            final int maxBytes = mMaxBatchBytes;
+            Entry next;
+            while ((next = mFrames.peekFirst()) != null && total + next.data.length <= maxBytes)
+            {
+                mFrames.pollFirst();
+                out.add(next);
+                total += next.data.length;
+            }
+        }
+        mNotFull.signalAll();
+        return out.size();
+    }
+
+    /***
+     * 写入完成后由写入线程调用, 开始计算下一次写入的间隔
+     * @param batch 本次写入的帧
+     * @param bytes 本次写入的字节数
+     */
+    public void onWritten(List<Entry> batch, int bytes)
+    {
+        final long now = System.nanoTime();
+        mLastWriteNanos = now;
+        mHasWritten = true;
+        mStats.onWrite(bytes);
+        for (int i = 0, n = batch.size(); i < n; i++)
+        {
+            mStats.onFrameWritten(now - batch.get(i).enqueueNanos);
+        }
+    }
+
+    /***
+     * 关闭队列, 之后 offer 总是返回 false, 已在队列中的帧不再发送
+     * @param unsent 接收未发送的帧, 例如交给重新打开的串口; 为 null 时丢弃并计入丢弃数
+     * @return 未发送的帧数, 已关闭时为0
+     */
+    public int close(List<Entry> unsent)
+    {
+        mLock.lock();
+        try
+        {
+            if (mClosed)
+            {
+                return 0;
+            }
+            mClosed = true;
+            int count = mFrames.size();
+            if (unsent != null)
+            {
+                unsent.addAll(mFrames);
+            }
+            else if (count > 0)
+            {
+                mStats.onDropped(count);
+            }
+            mFrames.clear();
+            mNotEmpty.signalAll();
+            mNotFull.signalAll();
+            return count;
+        }
+        finally
+        {
+            mLock.unlock();
+        }
+    }
+
+    /***
+     * 丢弃所有未发送的帧
+     */
+    public void clear()
+    {
+        mLock.lock();
+        try
+        {
+            mFrames.clear();
+            mNotFull.signalAll();
+        }
+        finally
+        {
+            mLock.unlock();
+        }
+    }
+}
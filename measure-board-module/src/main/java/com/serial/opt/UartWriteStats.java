@@ -0,0 +1,126 @@
+package com.serial.opt;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 串口写入线程的统计数据
+ * <p>
+ * 延迟为帧进入发送队列到写入串口完成的时间. 除丢弃数外, 计数只由写入线程更新, 其他线程读取的是近似值.
+ * 丢弃发生在调用 writeData 的线程和释放串口的线程中, 因此使用原子计数.
+ * </p>
+ */
+public class UartWriteStats
+{
+    /** 写入串口的帧数 */
+    private volatile long mFrameCount;
+    /** write 调用次数, 合并发送时小于帧数 */
+    private volatile long mWriteCount;
+    private volatile long mBytesWritten;
+    /** 队列已满且等待超时, 或关闭时仍未发送而被丢弃的帧数 */
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private volatile int mMaxQueueDepth;
+    private volatile long mLastLatencyNanos;
+    private volatile long mMaxLatencyNanos;
+    private volatile long mTotalLatencyNanos;
+
+    void onWrite(int bytes)
+    {
+        mWriteCount++;
+        mBytesWritten += bytes;
+    }
+
+    void onFrameWritten(long latencyNanos)
+    {
+        mFrameCount++;
+        mLastLatencyNanos = latencyNanos;
+        mTotalLatencyNanos += latencyNanos;
+        if (latencyNanos > mMaxLatencyNanos)
+        {
+            mMaxLatencyNanos = latencyNanos;
+        }
+    }
+
+    void onQueueDepth(int depth)
+    {
+        if (depth > mMaxQueueDepth)
+        {
+            mMaxQueueDepth = depth;
+        }
+    }
+
+    void onDropped()
+    {
+        mDroppedCount.incrementAndGet();
+    }
+
+    void onDropped(int frames)
+    {
+        mDroppedCount.addAndGet(frames);
+    }
+
+    public long getFrameCount()
+    {
+        return mFrameCount;
+    }
+
+    public long getWriteCount()
+    {
+        return mWriteCount;
+    }
+
+    public long getBytesWritten()
+    {
+        return mBytesWritten;
+    }
+
+    public long getDroppedCount()
+    {
+        return mDroppedCount.get();
+    }
+
+    public int getMaxQueueDepth()
+    {
+        return mMaxQueueDepth;
+    }
+
+    public long getLastLatencyNanos()
+    {
+        return mLastLatencyNanos;
+    }
+
+    public long getMaxLatencyNanos()
+    {
+        return mMaxLatencyNanos;
+    }
+
+    public long getAverageLatencyNanos()
+    {
+        long count = mFrameCount;
+        return count == 0 ? 0 : mTotalLatencyNanos / count;
+    }
+
+    public void reset()
+    {
+        mFrameCount = 0;
+        mWriteCount = 0;
+        mBytesWritten = 0;
+        mDroppedCount.set(0);
+        mMaxQueueDepth = 0;
+        mLastLatencyNanos = 0;
+        mMaxLatencyNanos = 0;
+        mTotalLatencyNanos = 0;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "UartWriteStats{frames=" + mFrameCount
+                + ", writes=" + mWriteCount
+                + ", bytes=" + mBytesWritten
+                + ", dropped=" + mDroppedCount.get()
+                + ", maxDepth=" + mMaxQueueDepth
+                + ", avgLatencyUs=" + getAverageLatencyNanos() / 1000
+                + ", maxLatencyUs=" + mMaxLatencyNanos / 1000
+                + "}";
+    }
+}
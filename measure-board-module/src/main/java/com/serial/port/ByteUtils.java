@@ -58,6 +58,32 @@ public class ByteUtils {
 		return buffer.toString();
 	}
 
+	/**
+	 * byte[]的一部分转十六进制字符串
+	 *
+	 * @param array
+	 *            byte[]
+	 * @param offset
+	 *            起始位置
+	 * @param len
+	 *            长度
+	 * @return 十六进制字符串
+	 */
+	public static String byteArrayToHexString(byte[] array, int offset, int len) {
+		if (array == null) {
+			return "";
+		}
+		char[] out = new char[len * 2];
+		for (int i = 0; i < len; i++) {
+			int v = array[offset + i] & 0xFF;
+			out[i * 2] = HEX_CHARS[v >>> 4];
+			out[i * 2 + 1] = HEX_CHARS[v & 0x0F];
+		}
+		return new String(out);
+	}
+
+	private static final char[] HEX_CHARS = "0123456789ABCDEF".toCharArray();
+
 	/**
 	 * byte转十六进制字符
 	 * 
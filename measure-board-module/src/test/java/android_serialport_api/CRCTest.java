@@ -0,0 +1,66 @@
+package android_serialport_api;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class CRCTest {
+
+    /** CRC16/Modbus 标准校验值, "123456789" 的校验码为 0x4B37 */
+    @Test
+    public void matchesModbusCheckValue() {
+        byte[] data = "123456789".getBytes();
+        assertEquals(0x4B37, CRC.crc16(data, 0, data.length));
+        assertEquals("374B", CRC.getCRC(data));
+    }
+
+    /** CRC.main 中注释的报文, 最后两个字节是校验码 */
+    @Test
+    public void matchesSampleFrames() {
+        assertEquals("440C", CRC.getCRC("01 03 00 00 00 08"));
+        assertEquals("8C45", CRC.getCRC("01 03 20 7F FF 7F FF 7F FF 7F FF 7F FF 7F FF 7F FF 7F FF 7F FF 7F FF 7F FF 7F FF 7F FF 7F FF 7F FF 7F FF"));
+        assertEquals("40D8", CRC.getCRC("01 03 10 00 8F 02 4E 00 91 02 44 00 92 02 5A 00 8B 02 47"));
+    }
+
+    @Test
+    public void oddLengthStringReturnsZero() {
+        assertEquals("0000", CRC.getCRC("01 03 0"));
+    }
+
+    /** 查表实现与原来的逐位实现结果一致 */
+    @Test
+    public void tableMatchesBitwiseCrc() {
+        Random random = new Random(7);
+        for (int n = 0; n < 200; n++) {
+            byte[] data = new byte[random.nextInt(64) + 1];
+            random.nextBytes(data);
+            assertEquals(bitwiseCrc(data), CRC.getCRC(data));
+        }
+    }
+
+    @Test
+    public void crc16UsesOffsetAndLength() {
+        byte[] data = {0x00, 0x01, 0x03, 0x00, 0x00, 0x00, 0x08, 0x7F};
+        assertEquals(0x0C44, CRC.crc16(data, 1, 6));
+    }
+
+    /** 原来的逐位 CRC16/Modbus 实现, 低字节在前 */
+    private static String bitwiseCrc(byte[] bytes) {
+        int crc = 0x0000ffff;
+        for (byte b : bytes) {
+            crc ^= (b & 0x000000ff);
+            for (int j = 0; j < 8; j++) {
+                if ((crc & 0x00000001) != 0) {
+                    crc >>= 1;
+                    crc ^= 0x0000a001;
+                } else {
+                    crc >>= 1;
+                }
+            }
+        }
+        String result = String.format("%04X", crc);
+        return result.substring(2, 4) + result.substring(0, 2);
+    }
+}
@@ -0,0 +1,207 @@
+package com.serial.opt;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class FrameDecoderTest
+{
+    /** 计价板上报的 E4 行程结束帧 */
+    private static final String TRIP_END_FRAME =
+            "55AA0031020100E4415830303031202020200002202302252047202302252119000000020000000000162500130000000000130001A355AA";
+
+    private final FrameDecoder mDecoder = new FrameDecoder();
+    private final List<byte[]> mFrames = new ArrayList<>();
+    private final FrameDecoder.OnFrameListener mListener = frame -> mFrames.add(frame.copy());
+
+    @Test
+    public void decodesCapturedFrame()
+    {
+        byte[] frame = hex(TRIP_END_FRAME);
+        mDecoder.decode(frame, 0, frame.length, mListener);
+
+        assertEquals(1, mFrames.size());
+        assertArrayEquals(frame, mFrames.get(0));
+        assertEquals(0, mDecoder.getDiscardedBytes());
+    }
+
+    @Test
+    public void resyncsAfterGarbage()
+    {
+        byte[] frame = hex(TRIP_END_FRAME);
+        // 55 后面不是 AA, 以及长度非法的假帧头
+        byte[] garbage = hex("0102550355AA0000FF");
+        byte[] data = concat(garbage, frame, garbage, frame);
+        mDecoder.decode(data, 0, data.length, mListener);
+
+        assertEquals(2, mFrames.size());
+        assertArrayEquals(frame, mFrames.get(0));
+        assertArrayEquals(frame, mFrames.get(1));
+        assertEquals(2L * garbage.length, mDecoder.getDiscardedBytes());
+    }
+
+    @Test
+    public void fakeHeaderWithPlausibleLengthDoesNotHideFrames()
+    {
+        byte[] frame = hex(TRIP_END_FRAME);
+        // 长度 0x40 合法, 假帧会一直吞到第二帧中间才发现帧尾不匹配
+        byte[] noise = hex("55AA0040");
+        byte[] data = concat(noise, frame, frame, frame);
+        mDecoder.decode(data, 0, data.length, mListener);
+
+        assertEquals(3, mFrames.size());
+        for (byte[] decoded : mFrames)
+        {
+            assertArrayEquals(frame, decoded);
+        }
+        assertEquals(noise.length, mDecoder.getDiscardedBytes());
+    }
+
+    @Test
+    public void fakeHeaderSplitAcrossReads()
+    {
+        byte[] frame = hex(TRIP_END_FRAME);
+        byte[] data = concat(hex("0155AA0040"), frame, frame, frame);
+        for (int split = 1; split < data.length; split++)
+        {
+            mFrames.clear();
+            mDecoder.reset();
+            mDecoder.decode(data, 0, split, mListener);
+            mDecoder.decode(data, split, data.length - split, mListener);
+            assertEquals("split at " + split, 3, mFrames.size());
+            assertArrayEquals(frame, mFrames.get(2));
+        }
+    }
+
+    @Test
+    public void frameInsideBadChecksumCandidateIsFound()
+    {
+        byte[] frame = hex(TRIP_END_FRAME);
+        // 假帧的长度正好覆盖到真实帧的帧尾, 结构完整, 只有校验不对
+        int bodyLength = 2 + frame.length - 3;
+        byte[] header = {0x55, (byte) 0xAA, (byte) (bodyLength >> 8), (byte) bodyLength, 0x00, 0x00};
+        byte[] data = concat(header, frame);
+        mDecoder.decode(data, 0, data.length, mListener);
+
+        assertEquals(1, mDecoder.getChecksumErrorCount());
+        assertEquals(1, mFrames.size());
+        assertArrayEquals(frame, mFrames.get(0));
+    }
+
+    @Test
+    public void joinsFrameSplitAcrossReads()
+    {
+        byte[] frame = hex(TRIP_END_FRAME);
+        byte[] data = concat(frame, frame);
+        for (int split = 1; split < data.length; split++)
+        {
+            mFrames.clear();
+            mDecoder.reset();
+            mDecoder.decode(data, 0, split, mListener);
+            mDecoder.decode(data, split, data.length - split, mListener);
+            assertEquals("split at " + split, 2, mFrames.size());
+            assertArrayEquals(frame, mFrames.get(1));
+        }
+    }
+
+    @Test
+    public void decodesByteByByte()
+    {
+        byte[] frame = hex(TRIP_END_FRAME);
+        for (byte b : frame)
+        {
+            mDecoder.decode(new byte[]{b}, 0, 1, mListener);
+        }
+        assertEquals(1, mFrames.size());
+        assertArrayEquals(frame, mFrames.get(0));
+    }
+
+    @Test
+    public void dropsFrameWithBadChecksum()
+    {
+        byte[] bad = hex(TRIP_END_FRAME);
+        bad[20] ^= 0x01;
+        byte[] good = hex(TRIP_END_FRAME);
+        byte[] data = concat(bad, good);
+        mDecoder.decode(data, 0, data.length, mListener);
+
+        assertEquals(1, mFrames.size());
+        assertArrayEquals(good, mFrames.get(0));
+        assertEquals(1, mDecoder.getChecksumErrorCount());
+        assertEquals(bad.length, mDecoder.getDiscardedBytes());
+    }
+
+    @Test
+    public void deliversBadChecksumWhenVerificationIsOff()
+    {
+        byte[] bad = hex(TRIP_END_FRAME);
+        bad[20] ^= 0x01;
+        final List<Boolean> valid = new ArrayList<>();
+        mDecoder.setVerifyChecksum(false);
+        mDecoder.decode(bad, 0, bad.length, frame -> valid.add(frame.isChecksumValid()));
+
+        assertEquals(1, valid.size());
+        assertFalse(valid.get(0));
+    }
+
+    @Test
+    public void resyncsOnBadTail()
+    {
+        byte[] broken = hex(TRIP_END_FRAME);
+        broken[broken.length - 1] = 0x00;
+        byte[] frame = hex(TRIP_END_FRAME);
+        byte[] data = concat(broken, frame);
+        mDecoder.decode(data, 0, data.length, mListener);
+
+        assertEquals(1, mFrames.size());
+        assertArrayEquals(frame, mFrames.get(0));
+    }
+
+    @Test
+    public void exposesFrameFields()
+    {
+        byte[] frame = hex(TRIP_END_FRAME);
+        final List<Integer> commands = new ArrayList<>();
+        final List<Integer> bodyLengths = new ArrayList<>();
+        mDecoder.decode(frame, 0, frame.length, f -> {
+            commands.add(f.command());
+            bodyLengths.add(f.bodyLength());
+            assertEquals(TRIP_END_FRAME, f.toHexString());
+        });
+
+        assertEquals(Integer.valueOf(0xE4), commands.get(0));
+        assertEquals(Integer.valueOf(0x31), bodyLengths.get(0));
+    }
+
+    static byte[] hex(String s)
+    {
+        byte[] out = new byte[s.length() / 2];
+        for (int i = 0; i < out.length; i++)
+        {
+            out[i] = (byte) Integer.parseInt(s.substring(i * 2, i * 2 + 2), 16);
+        }
+        return out;
+    }
+
+    static byte[] concat(byte[]... parts)
+    {
+        int length = 0;
+        for (byte[] part : parts)
+        {
+            length += part.length;
+        }
+        byte[] out = new byte[length];
+        int pos = 0;
+        for (byte[] part : parts)
+        {
+            System.arraycopy(part, 0, out, pos, part.length);
+            pos += part.length;
+        }
+        return out;
+    }
+}
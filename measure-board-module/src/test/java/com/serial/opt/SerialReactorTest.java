@@ -0,0 +1,446 @@
+package com.serial.opt;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SerialReactorTest
+{
+    private static final long TIMEOUT_MS = 2000L;
+    /** 确认没有发生某件事时的等待时间 */
+    private static final long QUIET_MS = 150L;
+
+    private final PipePoller mPoller = new PipePoller();
+    private final SerialReactor mReactor = new SerialReactor(mPoller);
+    private final List<UartPipe> mPipes = new ArrayList<>();
+    private final List<UartCommunication> mPorts = new ArrayList<>();
+
+    @After
+    public void tearDown()
+    {
+        for (UartCommunication port : mPorts)
+        {
+            port.release();
+        }
+        for (UartPipe pipe : mPipes)
+        {
+            pipe.close();
+        }
+        mReactor.shutdown();
+    }
+
+    @Test
+    public void readsUntilCancelled() throws Exception
+    {
+        Port port = openPort();
+        SerialReactor.Key key = mReactor.register(port.communication, port.fd);
+        RecordingHandler handler = new RecordingHandler();
+        key.setHandler(handler);
+
+        port.pipe.getDeviceOutputStream().write(new byte[] { 1, 2, 3 });
+        assertTrue(handler.await(3));
+        assertArrayEquals(new byte[] { 1, 2, 3 }, handler.bytes());
+
+        key.cancel();
+        port.pipe.getDeviceOutputStream().write(new byte[] { 4 });
+        Thread.sleep(QUIET_MS);
+        assertEquals(3, handler.bytes().length);
+        assertNull(handler.closed);
+    }
+
+    @Test
+    public void clearedHandlerLeavesDataForTheNextHandler() throws Exception
+    {
+        Port port = openPort();
+        SerialReactor.Key key = mReactor.register(port.communication, port.fd);
+        RecordingHandler first = new RecordingHandler();
+        key.setHandler(first);
+        port.pipe.getDeviceOutputStream().write(new byte[] { 1 });
+        assertTrue(first.await(1));
+
+        key.setHandler(null);
+        port.pipe.getDeviceOutputStream().write(new byte[] { 2, 3 });
+        Thread.sleep(QUIET_MS);
+        assertEquals(1, first.bytes().length);
+
+        RecordingHandler second = new RecordingHandler();
+        key.setHandler(second);
+        assertTrue(second.await(2));
+        assertArrayEquals(new byte[] { 2, 3 }, second.bytes());
+        assertEquals(1, first.bytes().length);
+    }
+
+    @Test
+    public void hangUpWithoutHandlerCancelsTheKey() throws Exception
+    {
+        Port port = openPort();
+        SerialReactor.Key key = mReactor.register(port.communication, port.fd);
+        key.setHandler(new RecordingHandler());
+        // 停止通信后 events 为0, 只有挂断会让 poll 返回
+        key.setHandler(null);
+        mPoller.hangUp(port.fd);
+
+        assertTrue(awaitCancelled(key));
+        // 已取消的描述符不再参与 poll, reactor 线程不会空转
+        long readyPolls = mPoller.readyPollCount();
+        Thread.sleep(QUIET_MS);
+        assertTrue(mPoller.readyPollCount() - readyPolls <= 1);
+    }
+
+    @Test
+    public void hangUpDeliversRemainingDataThenCloses() throws Exception
+    {
+        Port port = openPort();
+        SerialReactor.Key key = mReactor.register(port.communication, port.fd);
+        RecordingHandler handler = new RecordingHandler();
+        port.pipe.getDeviceOutputStream().write(new byte[] { 7, 8 });
+        port.pipe.close();
+        mPoller.hangUp(port.fd);
+        key.setHandler(handler);
+
+        assertTrue(handler.awaitClosed());
+        assertArrayEquals(new byte[] { 7, 8 }, handler.bytes());
+        assertTrue(key.isCancelled());
+        assertEquals(1, handler.closedCount);
+    }
+
+    @Test
+    public void invalidDescriptorClosesTheKey() throws Exception
+    {
+        Port port = openPort();
+        SerialReactor.Key key = mReactor.register(port.communication, port.fd);
+        RecordingHandler handler = new RecordingHandler();
+        key.setHandler(handler);
+        mPoller.invalidate(port.fd);
+
+        assertTrue(handler.awaitClosed());
+        assertTrue(key.isCancelled());
+        assertEquals(0, handler.bytes().length);
+    }
+
+    @Test
+    public void blockedListenerDoesNotDelayOtherPorts() throws Exception
+    {
+        byte[] frame = FrameDecoderTest.hex("55AA0031020100E4415830303031202020200002202302252047"
+                + "202302252119000000020000000000162500130000000000130001A355AA");
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch slowEntered = new CountDownLatch(1);
+        Port slow = openPort();
+        assertTrue(slow.communication.attachToReactor(mReactor));
+        UartWorker slowWorker = new UartWorker(slow.communication);
+        slowWorker.setProtocalDistributeListener(new FrameListener()
+        {
+            @Override
+            public void onFrame(FrameDecoder.Frame f)
+            {
+                slowEntered.countDown();
+                try
+                {
+                    release.await();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        slowWorker.startCommunicate();
+
+        final CountDownLatch fastFrames = new CountDownLatch(2);
+        Port fast = openPort();
+        assertTrue(fast.communication.attachToReactor(mReactor));
+        UartWorker fastWorker = new UartWorker(fast.communication);
+        fastWorker.setProtocalDistributeListener(new FrameListener()
+        {
+            @Override
+            public void onFrame(FrameDecoder.Frame f)
+            {
+                fastFrames.countDown();
+            }
+        });
+        fastWorker.startCommunicate();
+
+        try
+        {
+            slow.pipe.getDeviceOutputStream().write(frame);
+            assertTrue(slowEntered.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            // 慢的监听阻塞期间, 同一 reactor 上的其他串口照常读取和分发
+            slow.pipe.getDeviceOutputStream().write(frame);
+            fast.pipe.getDeviceOutputStream().write(frame);
+            fast.pipe.getDeviceOutputStream().write(frame);
+            assertTrue(fastFrames.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        }
+        finally
+        {
+            release.countDown();
+            slowWorker.release();
+            fastWorker.release();
+        }
+    }
+
+    @Test
+    public void blockedWriteDoesNotDelayReads() throws Exception
+    {
+        // 设备端不读取, 写满后写入线程阻塞在 write 上
+        UartPipe stuckPipe = new UartPipe(16, 10L, TimeUnit.MILLISECONDS);
+        mPipes.add(stuckPipe);
+        UartCommunication stuck = UartCommunication.create("reactor-test-stuck",
+                stuckPipe.getHostInputStream(), stuckPipe.getHostOutputStream(), new FileDescriptor());
+        mPorts.add(stuck);
+        assertTrue(stuck.attachToReactor(mReactor));
+        for (int i = 0; i < 4; i++)
+        {
+            assertTrue(stuck.writeData(new byte[16]));
+        }
+
+        Port port = openPort();
+        SerialReactor.Key key = mReactor.register(port.communication, port.fd);
+        RecordingHandler handler = new RecordingHandler();
+        key.setHandler(handler);
+        long start = System.nanoTime();
+        port.pipe.getDeviceOutputStream().write(new byte[] { 1 });
+
+        assertTrue(handler.await(1));
+        // UartPipe 的写入最多阻塞1秒
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+        assertTrue(stuck.getWriteStats().getFrameCount() <= 1);
+    }
+
+    private Port openPort()
+    {
+        UartPipe pipe = new UartPipe(UartPipe.DEFAULT_CAPACITY, 10L, TimeUnit.MILLISECONDS);
+        FileDescriptor fd = new FileDescriptor();
+        UartCommunication communication = UartCommunication.create("reactor-test-" + mPorts.size(),
+                pipe.getHostInputStream(), pipe.getHostOutputStream(), fd);
+        mPoller.addPort(fd, pipe);
+        mPipes.add(pipe);
+        mPorts.add(communication);
+        return new Port(pipe, fd, communication);
+    }
+
+    private static boolean awaitCancelled(SerialReactor.Key key) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!key.isCancelled())
+        {
+            if (System.currentTimeMillis() > deadline)
+            {
+                return false;
+            }
+            Thread.sleep(5);
+        }
+        return true;
+    }
+
+    private static final class Port
+    {
+        final UartPipe pipe;
+        final FileDescriptor fd;
+        final UartCommunication communication;
+
+        Port(UartPipe pipe, FileDescriptor fd, UartCommunication communication)
+        {
+            this.pipe = pipe;
+            this.fd = fd;
+            this.communication = communication;
+        }
+    }
+
+    private abstract static class FrameListener implements UartWorker.OnDistributeListener
+    {
+        @Override
+        public void onDistribution(String data)
+        {
+        }
+    }
+
+    /**
+     * 记录 reactor 线程交来的数据, 测试线程等待
+     */
+    private static final class RecordingHandler implements SerialReactor.Handler
+    {
+        private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+        volatile IOException closed;
+        volatile int closedCount;
+
+        @Override
+        public synchronized void onRead(byte[] data, int offset, int len)
+        {
+            mBytes.write(data, offset, len);
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onClosed(IOException e)
+        {
+            closed = e;
+            closedCount++;
+            notifyAll();
+        }
+
+        synchronized byte[] bytes()
+        {
+            return mBytes.toByteArray();
+        }
+
+        synchronized boolean await(int bytes) throws InterruptedException
+        {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            long remaining;
+            while (mBytes.size() < bytes && (remaining = deadline - System.currentTimeMillis()) > 0)
+            {
+                wait(remaining);
+            }
+            return mBytes.size() >= bytes;
+        }
+
+        synchronized boolean awaitClosed() throws InterruptedException
+        {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            long remaining;
+            while (closed == null && (remaining = deadline - System.currentTimeMillis()) > 0)
+            {
+                wait(remaining);
+            }
+            return closed != null;
+        }
+    }
+
+    /**
+     * 用 UartPipe 模拟描述符的 poll, 不需要真实的串口和 pipe
+     * <p>
+     * 串口描述符在 UartPipe 有数据时可读, 挂断和失效由测试设置. 串口数据的到达不会通知本类,
+     * poll 每毫秒检查一次, 唤醒 pipe 的写入会立即唤醒 poll.
+     * </p>
+     */
+    private static final class PipePoller implements SerialPoller
+    {
+        private final IdentityHashMap<FileDescriptor, UartPipe> mPorts = new IdentityHashMap<>();
+        private final IdentityHashMap<FileDescriptor, Integer> mForced = new IdentityHashMap<>();
+        private FileDescriptor mWakeupRead;
+        private FileDescriptor mWakeupWrite;
+        private int mWakeupBytes;
+        private long mReadyPolls;
+
+        synchronized void addPort(FileDescriptor fd, UartPipe pipe)
+        {
+            mPorts.put(fd, pipe);
+        }
+
+        synchronized void hangUp(FileDescriptor fd)
+        {
+            mForced.put(fd, SerialPoller.HANGUP);
+            notifyAll();
+        }
+
+        synchronized void invalidate(FileDescriptor fd)
+        {
+            mForced.put(fd, SerialPoller.INVALID);
+            notifyAll();
+        }
+
+        synchronized long readyPollCount()
+        {
+            return mReadyPolls;
+        }
+
+        @Override
+        public synchronized FileDescriptor[] pipe()
+        {
+            mWakeupRead = new FileDescriptor();
+            mWakeupWrite = new FileDescriptor();
+            return new FileDescriptor[] { mWakeupRead, mWakeupWrite };
+        }
+
+        @Override
+        public synchronized int poll(FileDescriptor[] fds, int[] events, int[] revents, int count, int timeoutMs)
+                throws IOException
+        {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            while (true)
+            {
+                int ready = 0;
+                for (int i = 0; i < count; i++)
+                {
+                    revents[i] = state(fds[i], events[i]);
+                    if (revents[i] != 0)
+                    {
+                        ready++;
+                    }
+                }
+                if (ready > 0)
+                {
+                    mReadyPolls++;
+                    return ready;
+                }
+                if (timeoutMs >= 0 && System.currentTimeMillis() >= deadline)
+                {
+                    return 0;
+                }
+                try
+                {
+                    wait(1L);
+                }
+                catch (InterruptedException e)
+                {
+                    throw new IOException(e);
+                }
+            }
+        }
+
+        private int state(FileDescriptor fd, int events) throws IOException
+        {
+            if (fd == mWakeupRead)
+            {
+                return mWakeupBytes > 0 ? SerialPoller.READABLE : 0;
+            }
+            int state = 0;
+            Integer forced = mForced.get(fd);
+            if (forced != null)
+            {
+                state |= forced;
+            }
+            UartPipe pipe = mPorts.get(fd);
+            if ((events & SerialPoller.READABLE) != 0 && pipe != null
+                    && pipe.getHostInputStream().available() > 0)
+            {
+                state |= SerialPoller.READABLE;
+            }
+            return state;
+        }
+
+        @Override
+        public synchronized int read(FileDescriptor fd, byte[] buffer, int offset, int len)
+        {
+            int n = Math.min(len, mWakeupBytes);
+            mWakeupBytes -= n;
+            return n;
+        }
+
+        @Override
+        public synchronized int write(FileDescriptor fd, byte[] buffer, int offset, int len)
+        {
+            mWakeupBytes += len;
+            notifyAll();
+            return len;
+        }
+
+        @Override
+        public void close(FileDescriptor fd)
+        {
+        }
+    }
+}
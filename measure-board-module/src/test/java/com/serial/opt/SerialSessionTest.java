@@ -0,0 +1,338 @@
+package com.serial.opt;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SerialSessionTest
+{
+    private static final long TIMEOUT_MS = 3000L;
+    /** 确认没有发生某件事时的等待时间 */
+    private static final long QUIET_MS = 200L;
+    private static final byte[] FRAME = FrameDecoderTest.hex(
+            "55AA0031020100E4415830303031202020200002202302252047202302252119000000020000000000162500130000000000130001A355AA");
+
+    private final List<UartPipe> mPipes = new ArrayList<>();
+    private final AtomicInteger mDistributed = new AtomicInteger();
+    private SerialSession mSession;
+
+    @After
+    public void tearDown()
+    {
+        if (mSession != null)
+        {
+            mSession.close();
+        }
+        synchronized (mPipes)
+        {
+            for (UartPipe pipe : mPipes)
+            {
+                pipe.close();
+            }
+        }
+    }
+
+    @Test
+    public void stalledPortIsReopened() throws Exception
+    {
+        mSession = newSession(new PipeOpener(100L));
+        mSession.setWatchdog(100L, 300L);
+        assertTrue(mSession.start());
+
+        pipe(0).getDeviceOutputStream().write(FRAME);
+        awaitState(SerialSession.State.LIVE);
+        assertEquals(1, mDistributed.get());
+
+        // 不再发送心跳
+        awaitState(SerialSession.State.STALLED);
+        awaitPipes(2);
+        pipe(1).getDeviceOutputStream().write(FRAME);
+        awaitState(SerialSession.State.LIVE);
+
+        SerialSession.Stats stats = mSession.getStats();
+        assertEquals(1, stats.reconnectCount);
+        assertTrue(stats.stallCount >= 1);
+        assertEquals(0, stats.failedOpenCount);
+        assertEquals(2, mDistributed.get());
+    }
+
+    @Test
+    public void failedOpenBacksOff() throws Exception
+    {
+        final List<Long> attempts = new ArrayList<>();
+        mSession = newSession(new SerialSession.Opener()
+        {
+            @Override
+            public UartCommunication open() throws IOException
+            {
+                synchronized (attempts)
+                {
+                    attempts.add(System.nanoTime());
+                    attempts.notifyAll();
+                }
+                throw new IOException("no such port");
+            }
+        });
+        mSession.setWatchdog(100L, 300L);
+        assertFalse(mSession.start());
+
+        synchronized (attempts)
+        {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (attempts.size() < 4 && System.currentTimeMillis() < deadline)
+            {
+                attempts.wait(deadline - System.currentTimeMillis());
+            }
+            assertTrue("attempts " + attempts.size(), attempts.size() >= 4);
+            // 第一次重试等待 200ms, 之后每次加倍
+            long first = gapMs(attempts, 1);
+            long second = gapMs(attempts, 2);
+            long third = gapMs(attempts, 3);
+            assertTrue("first retry after " + first + "ms", first >= 200L);
+            assertTrue("second retry after " + second + "ms", second >= 400L);
+            assertTrue("third retry after " + third + "ms", third >= 800L);
+        }
+        // 最后一次尝试可能还没有记录失败
+        assertTrue(mSession.getStats().failedOpenCount >= 3);
+        assertNull(mSession.getWorker());
+    }
+
+    @Test
+    public void oldWorkerIsIgnoredWhileReopening() throws Exception
+    {
+        final CountDownLatch reopening = new CountDownLatch(1);
+        final CountDownLatch allowReopen = new CountDownLatch(1);
+        // 读取超时较长, 旧串口取下后读取线程仍在等待数据
+        final PipeOpener pipes = new PipeOpener(TIMEOUT_MS);
+        mSession = newSession(new SerialSession.Opener()
+        {
+            @Override
+            public UartCommunication open() throws IOException
+            {
+                if (pipes.count() > 0)
+                {
+                    reopening.countDown();
+                    try
+                    {
+                        allowReopen.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        throw new IOException(e);
+                    }
+                }
+                return pipes.open();
+            }
+        });
+        mSession.setWatchdog(1000L, 5000L);
+        assertTrue(mSession.start());
+        pipe(0).getDeviceOutputStream().write(FRAME);
+        awaitState(SerialSession.State.LIVE);
+        UartWorker oldWorker = mSession.getWorker();
+
+        mSession.requestReopen("test");
+        awaitDetached();
+        // 旧串口正在释放, 打开在锁外进行, 期间不会等待
+        long begin = System.nanoTime();
+        assertNull(mSession.getWorker());
+        assertFalse(mSession.writeData(new byte[] { 1 }));
+        assertTrue(System.nanoTime() - begin < TimeUnit.MILLISECONDS.toNanos(QUIET_MS));
+
+        // 旧的读取线程读到并解码了这一帧, 但不再交给外部, 也不改变状态
+        pipe(0).getDeviceOutputStream().write(FRAME);
+        awaitDecodedFrames(oldWorker, 2L);
+        Thread.sleep(QUIET_MS);
+        assertEquals(1, mDistributed.get());
+        assertEquals(1L, mSession.getStats().frameCount);
+        assertTrue(reopening.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(SerialSession.State.OPENING, mSession.getState());
+
+        allowReopen.countDown();
+        awaitPipes(2);
+        pipe(1).getDeviceOutputStream().write(FRAME);
+        awaitState(SerialSession.State.LIVE);
+        assertEquals(2, mDistributed.get());
+        assertEquals(2L, mSession.getStats().frameCount);
+    }
+
+    @Test
+    public void unsentFramesMoveToTheReopenedPort() throws Exception
+    {
+        mSession = newSession(new PipeOpener(100L));
+        mSession.setWatchdog(1000L, 5000L);
+        assertTrue(mSession.start());
+        // 等待第一帧时的重新打开请求会被忽略
+        pipe(0).getDeviceOutputStream().write(FRAME);
+        awaitState(SerialSession.State.LIVE);
+        // 第一帧立即发送, 之后的帧等待发送间隔
+        mSession.getWorker().getWriter().getWriteQueue().setMinGap(1, TimeUnit.MINUTES);
+        assertTrue(mSession.writeData(new byte[] { 1 }));
+        assertArrayEquals(new byte[] { 1 }, readFromHost(pipe(0), 1));
+        assertTrue(mSession.writeData(new byte[] { 2 }));
+        assertTrue(mSession.writeData(new byte[] { 3 }));
+
+        mSession.requestReopen("test");
+        awaitPipes(2);
+        assertArrayEquals(new byte[] { 2, 3 }, readFromHost(pipe(1), 2));
+        assertEquals(0L, mSession.getStats().droppedWriteCount);
+    }
+
+    private SerialSession newSession(SerialSession.Opener opener)
+    {
+        SerialSession session = new SerialSession("test", opener);
+        session.setListener(new UartWorker.OnDistributeListener()
+        {
+            @Override
+            public void onDistribution(String data)
+            {
+                mDistributed.incrementAndGet();
+            }
+        });
+        return session;
+    }
+
+    private UartPipe pipe(int index)
+    {
+        synchronized (mPipes)
+        {
+            return mPipes.get(index);
+        }
+    }
+
+    private void awaitPipes(int count) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        synchronized (mPipes)
+        {
+            while (mPipes.size() < count && System.currentTimeMillis() < deadline)
+            {
+                mPipes.wait(Math.max(1L, deadline - System.currentTimeMillis()));
+            }
+            assertTrue("opened " + mPipes.size() + " of " + count, mPipes.size() >= count);
+        }
+    }
+
+    private void awaitDetached() throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (mSession.getWorker() != null && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(5L);
+        }
+        assertNull(mSession.getWorker());
+    }
+
+    private void awaitState(SerialSession.State state) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (mSession.getState() != state && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(5L);
+        }
+        assertEquals(state, mSession.getState());
+    }
+
+    private static void awaitDecodedFrames(UartWorker worker, long frames) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (worker.getFrameDecoder().getFrameCount() < frames && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(5L);
+        }
+        assertEquals(frames, worker.getFrameDecoder().getFrameCount());
+    }
+
+    private static byte[] readFromHost(UartPipe pipe, int len)
+    {
+        byte[] data = new byte[len];
+        int read = 0;
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (read < len && System.currentTimeMillis() < deadline)
+        {
+            int n = pipe.readFromHost(data, read, len - read, 50L, TimeUnit.MILLISECONDS);
+            if (n < 0)
+            {
+                break;
+            }
+            read += n;
+        }
+        return Arrays.copyOf(data, read);
+    }
+
+    private static long gapMs(List<Long> attempts, int index)
+    {
+        return TimeUnit.NANOSECONDS.toMillis(attempts.get(index) - attempts.get(index - 1));
+    }
+
+    /**
+     * 每次打开一个新的 UartPipe, 读取线程使用主机端
+     */
+    private final class PipeOpener implements SerialSession.Opener
+    {
+        private final long mReadTimeoutMs;
+
+        PipeOpener(long readTimeoutMs)
+        {
+            this.mReadTimeoutMs = readTimeoutMs;
+        }
+
+        int count()
+        {
+            synchronized (mPipes)
+            {
+                return mPipes.size();
+            }
+        }
+
+        @Override
+        public UartCommunication open()
+        {
+            UartPipe pipe = new UartPipe(UartPipe.DEFAULT_CAPACITY, mReadTimeoutMs, TimeUnit.MILLISECONDS);
+            // 释放串口时不关闭 pipe, 让测试仍能向旧串口发送数据
+            InputStream input = new FilterInputStream(pipe.getHostInputStream())
+            {
+                @Override
+                public void close()
+                {
+                }
+            };
+            final OutputStream hostOutput = pipe.getHostOutputStream();
+            OutputStream output = new OutputStream()
+            {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException
+                {
+                    hostOutput.write(b, off, len);
+                }
+
+                @Override
+                public void write(int b) throws IOException
+                {
+                    hostOutput.write(b);
+                }
+            };
+            synchronized (mPipes)
+            {
+                mPipes.add(pipe);
+                mPipes.notifyAll();
+            }
+            return UartCommunication.create("pipe" + count(), input, output);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.serial.opt;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SpscByteRingTest
+{
+    @Test
+    public void roundsCapacityUpToPowerOfTwo()
+    {
+        assertEquals(16, new SpscByteRing(10).capacity());
+        assertEquals(16, new SpscByteRing(16).capacity());
+    }
+
+    @Test
+    public void wrapsAroundTheEnd()
+    {
+        SpscByteRing ring = new SpscByteRing(16);
+        byte[] out = new byte[16];
+        // 每轮写入 11 字节, 读写位置在不同轮次跨过缓冲区末尾
+        for (int round = 0; round < 50; round++)
+        {
+            byte[] in = sequence(round * 11, 11);
+            assertEquals(11, ring.offer(in, 0, in.length));
+            assertEquals(11, ring.size());
+            assertEquals(11, ring.drain(out, 0, out.length));
+            for (int i = 0; i < 11; i++)
+            {
+                assertEquals("round " + round + " byte " + i, in[i], out[i]);
+            }
+            assertTrue(ring.isEmpty());
+        }
+    }
+
+    @Test
+    public void offerStopsWhenFull()
+    {
+        SpscByteRing ring = new SpscByteRing(8);
+        byte[] in = sequence(0, 12);
+        assertEquals(8, ring.offer(in, 0, in.length));
+        assertEquals(0, ring.offer(in, 8, 4));
+
+        byte[] out = new byte[3];
+        assertEquals(3, ring.drain(out, 0, 3));
+        assertEquals(3, ring.offer(in, 8, 4));
+
+        byte[] rest = new byte[8];
+        assertEquals(8, ring.drain(rest, 0, rest.length));
+        byte[] expected = {3, 4, 5, 6, 7, 8, 9, 10};
+        assertArrayEquals(expected, rest);
+        assertEquals(0, ring.drain(rest, 0, rest.length));
+    }
+
+    @Test
+    public void partialDrainAcrossTheEnd()
+    {
+        SpscByteRing ring = new SpscByteRing(8);
+        byte[] out = new byte[8];
+        ring.offer(sequence(0, 6), 0, 6);
+        ring.drain(out, 0, 6);
+        // 写入位置为 6, 接下来的 5 字节分为 [6, 8) 和 [0, 3) 两段
+        ring.offer(sequence(100, 5), 0, 5);
+        assertEquals(2, ring.drain(out, 0, 2));
+        assertEquals(3, ring.drain(out, 2, 6));
+        assertArrayEquals(sequence(100, 5), Arrays.copyOf(out, 5));
+    }
+
+    @Test
+    public void clearDropsUnreadBytes()
+    {
+        SpscByteRing ring = new SpscByteRing(8);
+        ring.offer(sequence(0, 5), 0, 5);
+        ring.clear();
+        assertTrue(ring.isEmpty());
+        assertEquals(8, ring.offer(sequence(0, 8), 0, 8));
+    }
+
+    @Test
+    public void producerAndConsumerThreadsKeepOrder() throws Exception
+    {
+        final SpscByteRing ring = new SpscByteRing(64);
+        final int total = 1 << 20;
+        Thread producer = new Thread(() -> {
+            byte[] chunk = new byte[37];
+            int next = 0;
+            while (next < total)
+            {
+                int n = Math.min(chunk.length, total - next);
+                for (int i = 0; i < n; i++)
+                {
+                    chunk[i] = (byte) (next + i);
+                }
+                next += ring.offerFully(chunk, 0, n, 5, TimeUnit.SECONDS);
+            }
+        });
+        producer.start();
+
+        byte[] out = new byte[29];
+        int received = 0;
+        boolean inOrder = true;
+        while (received < total)
+        {
+            if (!ring.awaitReadable(5, TimeUnit.SECONDS))
+            {
+                break;
+            }
+            int n = ring.drain(out, 0, out.length);
+            for (int i = 0; i < n; i++)
+            {
+                inOrder &= out[i] == (byte) (received + i);
+            }
+            received += n;
+        }
+        producer.join(5000);
+
+        assertEquals(total, received);
+        assertTrue(inOrder);
+        assertFalse(producer.isAlive());
+    }
+
+    private static byte[] sequence(int start, int length)
+    {
+        byte[] out = new byte[length];
+        for (int i = 0; i < length; i++)
+        {
+            out[i] = (byte) (start + i);
+        }
+        return out;
+    }
+}
@@ -0,0 +1,175 @@
+package com.serial.opt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 内存中的全双工串口, 用于在没有计价板时连接 {@link UartCommunication} 与模拟器
+ * <p>
+ * 每个方向是一个 {@link SpscByteRing}, 因此每一端只允许一个线程写入, 一个线程读取.
+ * 设备端通过 {@link #readFromHost} 按时限读取, 通过 {@link #getDeviceOutputStream()} 写入.
+ * 主机端由 UartCommunication 的写入线程和 UartWorker 的读取线程使用, 设备端由模拟器线程使用.
+ * </p>
+ * 读取时最多等待 readTimeout, 超时返回0而不是一直阻塞, 与串口读取超时的行为相同,
+ * 让读取线程有机会检查是否已停止. 关闭后读完剩余数据返回-1.
+ */
+public class UartPipe
+{
+    public static final int DEFAULT_CAPACITY = 16 * 1024;
+    public static final long DEFAULT_READ_TIMEOUT_MS = 500L;
+    /** 对端长时间不读取时写入的最长等待时间 */
+    private static final long WRITE_TIMEOUT_MS = 1000L;
+
+    private final SpscByteRing mHostToDevice;
+    private final SpscByteRing mDeviceToHost;
+    private final long mReadTimeoutNanos;
+    private volatile boolean mClosed = false;
+
+    private final InputStream mHostInput;
+    private final OutputStream mHostOutput;
+    private final OutputStream mDeviceOutput;
+
+    public UartPipe()
+    {
+        this(DEFAULT_CAPACITY, DEFAULT_READ_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public UartPipe(int capacity, long readTimeout, TimeUnit unit)
+    {
+        this.mHostToDevice = new SpscByteRing(capacity);
+        this.mDeviceToHost = new SpscByteRing(capacity);
+        this.mReadTimeoutNanos = unit.toNanos(readTimeout);
+        this.mHostInput = new RingInputStream(mDeviceToHost);
+        this.mHostOutput = new RingOutputStream(mHostToDevice);
+        this.mDeviceOutput = new RingOutputStream(mDeviceToHost);
+    }
+
+    /** 主机读取设备发出的数据 */
+    public InputStream getHostInputStream()
+    {
+        return mHostInput;
+    }
+
+    /** 主机发给设备的数据 */
+    public OutputStream getHostOutputStream()
+    {
+        return mHostOutput;
+    }
+
+    public OutputStream getDeviceOutputStream()
+    {
+        return mDeviceOutput;
+    }
+
+    /***
+     * 设备端读取主机发来的数据, 最多等待 timeout, 用于需要按时发送心跳的模拟器
+     * @return 读取的字节数, 超时为0, 已关闭且没有数据时为-1
+     */
+    public int readFromHost(byte[] b, int off, int len, long timeout, TimeUnit unit)
+    {
+        if (!mHostToDevice.awaitReadable(timeout, unit))
+        {
+            return mClosed ? -1 : 0;
+        }
+        return mHostToDevice.drain(b, off, len);
+    }
+
+    public boolean isClosed()
+    {
+        return mClosed;
+    }
+
+    /***
+     * 关闭两个方向, 正在等待的读取在超时后返回
+     */
+    public void close()
+    {
+        mClosed = true;
+    }
+
+    private final class RingInputStream extends InputStream
+    {
+        private final SpscByteRing mRing;
+        private final byte[] mSingle = new byte[1];
+
+        RingInputStream(SpscByteRing ring)
+        {
+            this.mRing = ring;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0)
+            {
+                return 0;
+            }
+            if (!mRing.awaitReadable(mReadTimeoutNanos, TimeUnit.NANOSECONDS))
+            {
+                return mClosed ? -1 : 0;
+            }
+            return mRing.drain(b, off, len);
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            int n;
+            while ((n = read(mSingle, 0, 1)) == 0)
+            {
+                // 单字节读取按 InputStream 的约定一直等到有数据
+            }
+            return n < 0 ? -1 : mSingle[0] & 0xFF;
+        }
+
+        @Override
+        public int available()
+        {
+            return mRing.size();
+        }
+
+        @Override
+        public void close()
+        {
+            UartPipe.this.close();
+        }
+    }
+
+    private final class RingOutputStream extends OutputStream
+    {
+        private final SpscByteRing mRing;
+
+        RingOutputStream(SpscByteRing ring)
+        {
+            this.mRing = ring;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            if (mClosed)
+            {
+                throw new IOException("pipe closed");
+            }
+            int written = mRing.offerFully(b, off, len, WRITE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            if (written < len)
+            {
+                throw new IOException("pipe full, wrote " + written + " of " + len + " bytes");
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void close()
+        {
+            UartPipe.this.close();
+        }
+    }
+}
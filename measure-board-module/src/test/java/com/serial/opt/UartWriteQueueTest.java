@@ -0,0 +1,154 @@
+package com.serial.opt;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UartWriteQueueTest
+{
+    private static final long GAP_MS = 200L;
+
+    private final UartWriteStats mStats = new UartWriteStats();
+    private final UartWriteQueue mQueue = new UartWriteQueue(4, mStats);
+    private final List<UartWriteQueue.Entry> mBatch = new ArrayList<>();
+
+    @Test
+    public void waitsForTheMinimumGapAfterAWrite() throws Exception
+    {
+        mQueue.setMinGap(GAP_MS, TimeUnit.MILLISECONDS);
+        assertTrue(mQueue.offer(new byte[] { 1 }, 0, TimeUnit.MILLISECONDS));
+        assertEquals(1, mQueue.awaitBatch(mBatch, 1, TimeUnit.SECONDS));
+        mQueue.onWritten(mBatch, 1);
+        long written = System.nanoTime();
+
+        assertTrue(mQueue.offer(new byte[] { 2 }, 0, TimeUnit.MILLISECONDS));
+        assertEquals(1, mQueue.awaitBatch(mBatch, 1, TimeUnit.SECONDS));
+        long waitedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - written);
+        assertTrue("sent after " + waitedMs + "ms", waitedMs >= GAP_MS);
+        assertArrayEquals(new byte[] { 2 }, mBatch.get(0).data);
+    }
+
+    @Test
+    public void sendsImmediatelyWhenIdle() throws Exception
+    {
+        mQueue.setMinGap(GAP_MS, TimeUnit.MILLISECONDS);
+        // 第一帧没有上一次写入, 不等待
+        long begin = System.nanoTime();
+        assertTrue(mQueue.offer(new byte[] { 1 }, 0, TimeUnit.MILLISECONDS));
+        assertEquals(1, mQueue.awaitBatch(mBatch, 1, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - begin < TimeUnit.MILLISECONDS.toNanos(GAP_MS / 2));
+        mQueue.onWritten(mBatch, 1);
+
+        // 空闲超过间隔后到达的帧也不等待
+        Thread.sleep(GAP_MS + 20L);
+        begin = System.nanoTime();
+        assertTrue(mQueue.offer(new byte[] { 2 }, 0, TimeUnit.MILLISECONDS));
+        assertEquals(1, mQueue.awaitBatch(mBatch, 1, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - begin < TimeUnit.MILLISECONDS.toNanos(GAP_MS / 2));
+    }
+
+    @Test
+    public void coalescesUpToMaxBatchBytes() throws Exception
+    {
+        mQueue.setMinGap(0, TimeUnit.MILLISECONDS);
+        mQueue.setCoalescing(true, 5);
+        for (int i = 1; i <= 3; i++)
+        {
+            assertTrue(mQueue.offer(new byte[] { (byte) i, (byte) i }, 0, TimeUnit.MILLISECONDS));
+        }
+
+        // 前两帧共4字节, 再加第三帧超过5字节
+        assertEquals(2, mQueue.awaitBatch(mBatch, 1, TimeUnit.SECONDS));
+        assertArrayEquals(new byte[] { 1, 1 }, mBatch.get(0).data);
+        assertArrayEquals(new byte[] { 2, 2 }, mBatch.get(1).data);
+        mQueue.onWritten(mBatch, 4);
+        assertEquals(1, mQueue.awaitBatch(mBatch, 1, TimeUnit.SECONDS));
+        assertArrayEquals(new byte[] { 3, 3 }, mBatch.get(0).data);
+        mQueue.onWritten(mBatch, 2);
+
+        assertEquals(3, mStats.getFrameCount());
+        assertEquals(2, mStats.getWriteCount());
+    }
+
+    @Test
+    public void sendsOneFrameAtATimeWithoutCoalescing() throws Exception
+    {
+        mQueue.setMinGap(0, TimeUnit.MILLISECONDS);
+        assertTrue(mQueue.offer(new byte[] { 1 }, 0, TimeUnit.MILLISECONDS));
+        assertTrue(mQueue.offer(new byte[] { 2 }, 0, TimeUnit.MILLISECONDS));
+
+        assertEquals(1, mQueue.awaitBatch(mBatch, 1, TimeUnit.SECONDS));
+        assertEquals(1, mQueue.awaitBatch(mBatch, 1, TimeUnit.SECONDS));
+        assertArrayEquals(new byte[] { 2 }, mBatch.get(0).data);
+    }
+
+    @Test
+    public void dropsWhenTheOfferTimesOut() throws Exception
+    {
+        for (int i = 0; i < 4; i++)
+        {
+            assertTrue(mQueue.offer(new byte[] { (byte) i }, 0, TimeUnit.MILLISECONDS));
+        }
+        long begin = System.nanoTime();
+        assertFalse(mQueue.offer(new byte[] { 4 }, 50, TimeUnit.MILLISECONDS));
+        assertTrue(System.nanoTime() - begin >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(1, mStats.getDroppedCount());
+        assertEquals(4, mQueue.size());
+        assertEquals(4, mStats.getMaxQueueDepth());
+
+        // 关闭时未发送的帧也计入丢弃数
+        assertEquals(4, mQueue.close(null));
+        assertFalse(mQueue.offer(new byte[] { 5 }, 0, TimeUnit.MILLISECONDS));
+        assertEquals(6, mStats.getDroppedCount());
+    }
+
+    @Test
+    public void countsDropsFromConcurrentOffers() throws Exception
+    {
+        for (int i = 0; i < 4; i++)
+        {
+            assertTrue(mQueue.offer(new byte[] { (byte) i }, 0, TimeUnit.MILLISECONDS));
+        }
+        final int threads = 4;
+        final int offers = 1000;
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> offerThreads = new ArrayList<>();
+        for (int t = 0; t < threads; t++)
+        {
+            Thread thread = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        for (int i = 0; i < offers; i++)
+                        {
+                            mQueue.offer(new byte[] { 0 }, 0, TimeUnit.MILLISECONDS);
+                        }
+                    }
+                    catch (InterruptedException ignored)
+                    {
+                    }
+                }
+            });
+            thread.start();
+            offerThreads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : offerThreads)
+        {
+            thread.join();
+        }
+        assertEquals(threads * offers, mStats.getDroppedCount());
+    }
+}
@@ -0,0 +1,732 @@
+package com.serial.sim;
+
+import com.serial.opt.FrameDecoder;
+import com.serial.opt.UartPipe;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Calendar;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 计价板模拟器, 在 {@link UartPipe} 的设备端按实际的 55AA 协议收发数据
+ * <p>
+ * 处理开始/暂停/继续/结束行程、附加费、参数查询、计价板信息、K值及价格设置、Android 固件版本和计价板固件升级,
+ * 空闲时按间隔发送 E2 心跳, 行程中发送 E3 心跳, 结束行程后重复发送 E4 直到收到 00E4 应答.
+ * 计费只是近似: 起步距离内为起步价, 之后每 200 米或每停车 60 秒跳一次表.
+ * </p>
+ * 可注入发送延迟、丢帧和字节损坏, 用于在没有计价板时压测 串口 -> 帧解码 -> 业务处理 的整条链路:
+ * <pre>
+ * UartPipe pipe = new UartPipe();
+ * McuSimulator simulator = new McuSimulator(pipe);
+ * simulator.start();
+ * UartCommunication uart = UartCommunication.create("simulator", pipe.getHostInputStream(), pipe.getHostOutputStream());
+ * BusModel.getInstance(ctx).init(new UartWorker(uart));
+ * </pre>
+ * 所有协议处理都在模拟器线程中进行, 配置方法可以在任意线程调用.
+ */
+public class McuSimulator implements Runnable
+{
+    public static final long DEFAULT_IDLE_HEARTBEAT_MS = 1000L;
+    public static final long DEFAULT_ONGOING_HEARTBEAT_MS = 1000L;
+
+    private static final int CMD_START_TRIP = 0x10A0;
+    private static final int CMD_PAUSE_RESUME = 0x10A1;
+    private static final int CMD_EXTRAS = 0x10A2;
+    private static final int CMD_END_TRIP = 0x10A3;
+    private static final int CMD_PARAMETERS_ENQUIRY = 0x10A4;
+    private static final int CMD_UPDATE_TIME_PARAMS = 0x10A5;
+    private static final int CMD_PRICE_PARAMS = 0x10A6;
+    private static final int CMD_REQUEST_FIRMWARE = 0x10A8;
+    private static final int CMD_UNLOCK = 0x10AA;
+    private static final int CMD_BEEP = 0x10AB;
+    private static final int CMD_READ_WRITE_DATA = 0x10AC;
+    private static final int CMD_METERING_BOARD_INFO = 0x10B0;
+    private static final int CMD_SHUTDOWN = 0x10B1;
+    private static final int CMD_ANDROID_FIRMWARE_VERSION = 0x10B2;
+    private static final int RESPONSE_FIRMWARE_CHUNK = 0x00E1;
+    private static final int RESPONSE_TRIP_END = 0x00E4;
+
+    public static final int IDLE_HEARTBEAT = 0xE2;
+    public static final int ONGOING_HEARTBEAT = 0xE3;
+    public static final int TRIP_END_SUMMARY = 0xE4;
+    public static final int PARAMETERS = 0xA4;
+    public static final int FIRMWARE_REQUEST = 0xA8;
+    public static final int FIRMWARE_CHUNK_REQUEST = 0xE1;
+    public static final int BOARD_INFO = 0xB0;
+    public static final int ANDROID_FIRMWARE_VERSION = 0xB2;
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_HIRED = 1;
+    private static final int STATE_STOPPED = 2;
+    /** 已发送 E4, 等待 00E4 应答 */
+    private static final int STATE_ENDING = 3;
+
+    private static final byte RESULT_OK = (byte) 0x90;
+    private static final int FIRMWARE_CHUNK_SIZE = 2048;
+    /** 固件数据帧中包号的位置 */
+    private static final int FIRMWARE_CHUNK_NO = 13;
+    private static final int TRIP_ID_LENGTH = 32;
+    private static final int LICENSE_PLATE_LENGTH = 8;
+    private static final double STEP_METERS = 200.0;
+    private static final long STEP_WAIT_SECONDS = 60L;
+
+    private final UartPipe mPipe;
+    private final OutputStream mOutput;
+    private final FrameDecoder mDecoder = new FrameDecoder();
+    private final byte[] mReadBuf = new byte[4096];
+    private final byte[] mOut = new byte[256];
+    /** 注入延迟时等待发送的帧, 按到期时间排列, 与串口一样保持发送顺序 */
+    private final ArrayDeque<Delayed> mDelayed = new ArrayDeque<>();
+    private final Random mRandom;
+    private final McuSimulatorStats mStats = new McuSimulatorStats();
+
+    private volatile long mIdleHeartbeatNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_IDLE_HEARTBEAT_MS);
+    private volatile long mOngoingHeartbeatNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_ONGOING_HEARTBEAT_MS);
+    private volatile long mMinLatencyNanos;
+    private volatile long mMaxLatencyNanos;
+    private volatile double mCorruptionRate;
+    private volatile double mDropRate;
+    private volatile double mSpeedMetersPerSecond = 10.0;
+    private volatile boolean mRunning;
+    private Thread mThread;
+
+    // 以下状态只在模拟器线程中访问
+    private int mState = STATE_IDLE;
+    private final byte[] mTripId = new byte[TRIP_ID_LENGTH];
+    private double mPaidMeters;
+    private long mWaitNanos;
+    private int mExtrasCents;
+    private int mFareCents;
+    private long mLastTickNanos;
+    private long mNextHeartbeatNanos;
+    private long mLastDueNanos;
+
+    private final byte[] mDeviceId = { 0x12, 0x34, 0x56, 0x78, (byte) 0x90 };
+    private final byte[] mLicensePlate = new byte[LICENSE_PLATE_LENGTH];
+    private final byte[] mFirmwareVersion = { 0x24, 0x01, 0x01, 0x01 };
+    private final byte[] mParametersVersion = { 0x24, 0x07, 0x14, (byte) 0xA1 };
+    private final byte[] mAndroidVersion = new byte[3];
+    private int mKValue = 650;
+    private int mPowerOffMins = 15;
+    /** 起步距离, 单位10米 */
+    private int mStartDistance = 200;
+    private int mStartPrice = 2700;
+    private int mStepPrice = 100;
+    private int mChangedPriceAt = 8300;
+    private int mChangedStepPrice = 70;
+
+    /** 固件升级: 下一个请求的包号, -1 表示没有进行中的升级 */
+    private int mFirmwareChunk = -1;
+    private final byte[] mUpgradeVersion = new byte[4];
+
+    private final FrameDecoder.OnFrameListener mFrameListener = new FrameDecoder.OnFrameListener()
+    {
+        @Override
+        public void onFrame(FrameDecoder.Frame frame)
+        {
+            handleCommand(frame);
+        }
+    };
+
+    public McuSimulator(UartPipe pipe)
+    {
+        this(pipe, new Random());
+    }
+
+    /***
+     * @param random 用于延迟、丢帧与损坏, 传入固定种子可重现一次压测
+     */
+    public McuSimulator(UartPipe pipe, Random random)
+    {
+        this.mPipe = pipe;
+        this.mOutput = pipe.getDeviceOutputStream();
+        this.mRandom = random;
+        java.util.Arrays.fill(mLicensePlate, (byte) 0xFF);
+    }
+
+    /***
+     * 设置心跳间隔, 0 表示不发送该类心跳
+     */
+    public void setHeartbeatIntervals(long idle, long ongoing, TimeUnit unit)
+    {
+        this.mIdleHeartbeatNanos = Math.max(0L, unit.toNanos(idle));
+        this.mOngoingHeartbeatNanos = Math.max(0L, unit.toNanos(ongoing));
+    }
+
+    /***
+     * 设置每帧的发送延迟, 在 [min, max] 内均匀分布, 帧之间保持发送顺序
+     */
+    public void setLatency(long min, long max, TimeUnit unit)
+    {
+        long minNanos = Math.max(0L, unit.toNanos(min));
+        this.mMinLatencyNanos = minNanos;
+        this.mMaxLatencyNanos = Math.max(minNanos, unit.toNanos(max));
+    }
+
+    /***
+     * @param corruptionRate 发出的帧中随机改写一个字节的概率
+     * @param dropRate 发出的帧被丢弃的概率
+     */
+    public void setFaults(double corruptionRate, double dropRate)
+    {
+        this.mCorruptionRate = corruptionRate;
+        this.mDropRate = dropRate;
+    }
+
+    /** 行程中的车速, 用于累计里程 */
+    public void setSpeed(double metersPerSecond)
+    {
+        this.mSpeedMetersPerSecond = Math.max(0.0, metersPerSecond);
+    }
+
+    public McuSimulatorStats getStats()
+    {
+        return mStats;
+    }
+
+    /** 主机发来的帧中校验失败的次数 */
+    public long getChecksumErrorCount()
+    {
+        return mDecoder.getChecksumErrorCount();
+    }
+
+    public synchronized void start()
+    {
+        if (mThread != null)
+        {
+            return;
+        }
+        mRunning = true;
+        mThread = new Thread(this, "McuSimulator");
+        mThread.start();
+    }
+
+    public synchronized void stop()
+    {
+        mRunning = false;
+        if (mThread != null)
+        {
+            mThread.interrupt();
+            mThread = null;
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        long now = System.nanoTime();
+        mLastTickNanos = now;
+        mNextHeartbeatNanos = now;
+        mDecoder.reset();
+        while (mRunning)
+        {
+            try
+            {
+                now = System.nanoTime();
+                long deadline = mNextHeartbeatNanos;
+                Delayed next = mDelayed.peekFirst();
+                if (next != null && next.dueNanos < deadline)
+                {
+                    deadline = next.dueNanos;
+                }
+                int size = mPipe.readFromHost(mReadBuf, 0, mReadBuf.length,
+                        Math.max(0L, deadline - now), TimeUnit.NANOSECONDS);
+                if (size < 0)
+                {
+                    break;
+                }
+                if (size > 0)
+                {
+                    mDecoder.decode(mReadBuf, 0, size, mFrameListener);
+                }
+                now = System.nanoTime();
+                if (now - mNextHeartbeatNanos >= 0L)
+                {
+                    onHeartbeat(now);
+                }
+                flushDelayed(now);
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+                break;
+            }
+        }
+        mRunning = false;
+    }
+
+    private void handleCommand(FrameDecoder.Frame frame)
+    {
+        final byte[] in = frame.array();
+        final int command = ((in[6] & 0xFF) << 8) | (in[7] & 0xFF);
+        mStats.onReceived(command);
+        try
+        {
+            switch (command)
+            {
+                case CMD_START_TRIP:
+                    startTrip(in, frame.length());
+                    break;
+                case CMD_PAUSE_RESUME:
+                    if (mState == STATE_HIRED || mState == STATE_STOPPED)
+                    {
+                        mState = in[8] == 0x01 ? STATE_STOPPED : STATE_HIRED;
+                    }
+                    break;
+                case CMD_EXTRAS:
+                    mExtrasCents = bcd(in, 8, 2) * 100;
+                    break;
+                case CMD_END_TRIP:
+                    if (mState == STATE_HIRED || mState == STATE_STOPPED)
+                    {
+                        mState = STATE_ENDING;
+                        sendTripEndSummary();
+                    }
+                    break;
+                case RESPONSE_TRIP_END:
+                    if (mState == STATE_ENDING)
+                    {
+                        mState = STATE_IDLE;
+                    }
+                    break;
+                case CMD_PARAMETERS_ENQUIRY:
+                    sendParameters();
+                    break;
+                case CMD_UPDATE_TIME_PARAMS:
+                    updateTimeParams(in);
+                    break;
+                case CMD_PRICE_PARAMS:
+                    System.arraycopy(in, 8, mParametersVersion, 0, 4);
+                    mStartDistance = bcd(in, 12, 2);
+                    mStartPrice = bcd(in, 14, 2);
+                    mStepPrice = bcd(in, 18, 2);
+                    mChangedPriceAt = bcd(in, 30, 2);
+                    mChangedStepPrice = bcd(in, 32, 2);
+                    break;
+                case CMD_READ_WRITE_DATA:
+                    if (in[8] == (byte) 0xAA)
+                    {
+                        // 用户数据共32字节, 车牌在最后8字节
+                        System.arraycopy(in, 9 + 32 - LICENSE_PLATE_LENGTH, mLicensePlate, 0, LICENSE_PLATE_LENGTH);
+                    }
+                    break;
+                case CMD_METERING_BOARD_INFO:
+                    sendBoardInfo();
+                    break;
+                case CMD_ANDROID_FIRMWARE_VERSION:
+                    System.arraycopy(in, 9, mAndroidVersion, 0, 3);
+                    sendAndroidFirmwareVersion();
+                    break;
+                case CMD_REQUEST_FIRMWARE:
+                    requestFirmware(in);
+                    break;
+                case RESPONSE_FIRMWARE_CHUNK:
+                    onFirmwareChunk(in, frame.length());
+                    break;
+                case CMD_UNLOCK:
+                case CMD_BEEP:
+                case CMD_SHUTDOWN:
+                    break;
+                default:
+                    mStats.onUnknownCommand();
+                    break;
+            }
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    private void startTrip(byte[] in, int length)
+    {
+        mState = in[8] == 0x01 ? STATE_STOPPED : STATE_HIRED;
+        java.util.Arrays.fill(mTripId, (byte) 0xFF);
+        // 行程号之后是校验和帧尾
+        int idLength = Math.min(TRIP_ID_LENGTH, length - 9 - 3);
+        for (int i = 0; i < idLength && in[9 + i] != 0; i++)
+        {
+            mTripId[i] = in[9 + i];
+        }
+        mPaidMeters = 0.0;
+        mWaitNanos = 0L;
+        mExtrasCents = 0;
+        mFareCents = mStartPrice;
+        // 行程开始后马上发出第一个 E3
+        mNextHeartbeatNanos = System.nanoTime();
+    }
+
+    private void updateTimeParams(byte[] in)
+    {
+        int type = in[8];
+        if ((type & 0x02) != 0)
+        {
+            mKValue = bcd(in, 16, 2);
+        }
+        if ((type & 0x04) != 0)
+        {
+            mPowerOffMins = bcd(in, 18, 2);
+        }
+        // 0x01 只设置时间, 模拟器使用系统时间
+    }
+
+    private void requestFirmware(byte[] in) throws IOException
+    {
+        System.arraycopy(in, 8, mUpgradeVersion, 0, 4);
+        int chunks = ((in[12] & 0xFF) << 8) | (in[13] & 0xFF);
+        int p = begin(FIRMWARE_REQUEST);
+        mOut[p++] = 0x00;
+        mOut[p++] = chunks > 0 ? RESULT_OK : (byte) 0xFF;
+        System.arraycopy(mUpgradeVersion, 0, mOut, p, 4);
+        p += 4;
+        mOut[p++] = in[12];
+        mOut[p++] = in[13];
+        send(finish(p));
+        if (chunks > 0)
+        {
+            // 应用按 (总包数 - 包号) / 总包数 计算进度, 因此从最后一包倒序请求到第0包
+            mFirmwareChunk = chunks - 1;
+            requestFirmwareChunk();
+        }
+    }
+
+    private void onFirmwareChunk(byte[] in, int length) throws IOException
+    {
+        int chunk = ((in[FIRMWARE_CHUNK_NO] & 0xFF) << 8) | (in[FIRMWARE_CHUNK_NO + 1] & 0xFF);
+        if (mFirmwareChunk < 0 || chunk != mFirmwareChunk
+                || length < FIRMWARE_CHUNK_NO + 2 + FIRMWARE_CHUNK_SIZE + 3)
+        {
+            mStats.onFirmwareChunkRejected();
+            // 重新请求当前包
+            if (mFirmwareChunk >= 0)
+            {
+                requestFirmwareChunk();
+            }
+            return;
+        }
+        mStats.onFirmwareChunk();
+        mFirmwareChunk--;
+        if (mFirmwareChunk >= 0)
+        {
+            requestFirmwareChunk();
+        }
+        else
+        {
+            mStats.onFirmwareComplete();
+        }
+    }
+
+    private void requestFirmwareChunk() throws IOException
+    {
+        int p = begin(FIRMWARE_CHUNK_REQUEST);
+        System.arraycopy(mUpgradeVersion, 0, mOut, p, 4);
+        p += 4;
+        mOut[p++] = (byte) (mFirmwareChunk >> 8);
+        mOut[p++] = (byte) mFirmwareChunk;
+        send(finish(p));
+    }
+
+    private void onHeartbeat(long now) throws IOException
+    {
+        advanceTrip(now);
+        long interval;
+        switch (mState)
+        {
+            case STATE_HIRED:
+            case STATE_STOPPED:
+                interval = mOngoingHeartbeatNanos;
+                if (interval > 0L)
+                {
+                    sendOngoingHeartbeat();
+                }
+                break;
+            case STATE_ENDING:
+                // 没有收到应答时重复发送结束汇总
+                interval = mOngoingHeartbeatNanos;
+                if (interval > 0L)
+                {
+                    sendTripEndSummary();
+                }
+                break;
+            default:
+                interval = mIdleHeartbeatNanos;
+                if (interval > 0L)
+                {
+                    sendIdleHeartbeat();
+                }
+                break;
+        }
+        // 关闭心跳时仍定期醒来累计行程
+        mNextHeartbeatNanos = now + (interval > 0L ? interval : TimeUnit.SECONDS.toNanos(1));
+    }
+
+    private void advanceTrip(long now)
+    {
+        long elapsed = now - mLastTickNanos;
+        mLastTickNanos = now;
+        if (mState == STATE_HIRED)
+        {
+            mPaidMeters += mSpeedMetersPerSecond * elapsed / 1e9;
+        }
+        else if (mState == STATE_STOPPED)
+        {
+            mWaitNanos += elapsed;
+        }
+        else
+        {
+            return;
+        }
+        double charged = Math.max(0.0, mPaidMeters - mStartDistance * 10.0);
+        long steps = (long) (charged / STEP_METERS) + TimeUnit.NANOSECONDS.toSeconds(mWaitNanos) / STEP_WAIT_SECONDS;
+        long fare = mStartPrice;
+        for (long i = 0; i < steps; i++)
+        {
+            fare += fare < mChangedPriceAt ? mStepPrice : mChangedStepPrice;
+        }
+        mFareCents = (int) Math.min(fare, 999999L);
+    }
+
+    private void sendIdleHeartbeat() throws IOException
+    {
+        int p = begin(IDLE_HEARTBEAT);
+        p = fill(p, 20, (byte) 0x00);
+        p = putTime(p, false);
+        System.arraycopy(mDeviceId, 0, mOut, p, mDeviceId.length);
+        p += mDeviceId.length;
+        p = fill(p, 55, (byte) 0xFF);
+        System.arraycopy(mLicensePlate, 0, mOut, p, LICENSE_PLATE_LENGTH);
+        p += LICENSE_PLATE_LENGTH;
+        send(finish(p));
+    }
+
+    private void sendOngoingHeartbeat() throws IOException
+    {
+        int p = begin(ONGOING_HEARTBEAT);
+        mOut[p++] = (byte) (mState == STATE_STOPPED ? 1 : 0);
+        // 锁定时长
+        mOut[p++] = 0;
+        mOut[p++] = 0;
+        p = putBcd(p, (int) (mPaidMeters / 10), 3);
+        p = putDuration(p, TimeUnit.NANOSECONDS.toSeconds(mWaitNanos));
+        p = fill(p, 19, (byte) 0x00);
+        p = putBcd(p, mExtrasCents, 3);
+        p = putBcd(p, mFareCents, 3);
+        p = putBcd(p, mFareCents + mExtrasCents, 3);
+        p = putTime(p, false);
+        // 异常脉冲与超速计数
+        mOut[p++] = 0;
+        mOut[p++] = 0;
+        p = putBcd(p, 0, 3);
+        send(finish(p));
+    }
+
+    private void sendTripEndSummary() throws IOException
+    {
+        int p = begin(TRIP_END_SUMMARY);
+        p = fill(p, 59, (byte) 0x00);
+        p = putBcd(p, (int) (mPaidMeters / 10), 3);
+        p = putDuration(p, TimeUnit.NANOSECONDS.toSeconds(mWaitNanos));
+        p = putBcd(p, mFareCents, 3);
+        p = putBcd(p, mExtrasCents, 3);
+        p = putBcd(p, mFareCents + mExtrasCents, 3);
+        send(finish(p));
+    }
+
+    private void sendParameters() throws IOException
+    {
+        int p = begin(PARAMETERS);
+        mOut[p++] = 0x00;
+        System.arraycopy(mFirmwareVersion, 0, mOut, p, 4);
+        p += 4;
+        System.arraycopy(mParametersVersion, 0, mOut, p, 4);
+        p += 4;
+        p = putBcd(p, mKValue, 2);
+        p = putBcd(p, mStartDistance, 2);
+        p = putBcd(p, mStartPrice, 2);
+        p = putBcd(p, mStartPrice, 2);
+        p = putBcd(p, mStepPrice, 2);
+        p = fill(p, 37, (byte) 0x00);
+        p = putBcd(p, mChangedPriceAt, 2);
+        p = putBcd(p, mChangedStepPrice, 2);
+        p = fill(p, 47, (byte) 0x00);
+        // 超速阈值
+        p = putBcd(p, 0, 2);
+        send(finish(p));
+    }
+
+    private void sendBoardInfo() throws IOException
+    {
+        int p = begin(BOARD_INFO);
+        mOut[p++] = (byte) (mState == STATE_IDLE ? 0 : 1);
+        p = putTime(p, true);
+        p = putBcd(p, mKValue, 2);
+        System.arraycopy(mDeviceId, 0, mOut, p, mDeviceId.length);
+        p += mDeviceId.length;
+        p = fill(p, 55, (byte) 0x00);
+        System.arraycopy(mTripId, 0, mOut, p, TRIP_ID_LENGTH);
+        p += TRIP_ID_LENGTH;
+        p = putBcd(p, mPowerOffMins, 2);
+        send(finish(p));
+    }
+
+    private void sendAndroidFirmwareVersion() throws IOException
+    {
+        int p = begin(ANDROID_FIRMWARE_VERSION);
+        mOut[p++] = RESULT_OK;
+        System.arraycopy(mAndroidVersion, 0, mOut, p, 3);
+        p += 3;
+        send(finish(p));
+    }
+
+    /***
+     * 写入帧头, 返回负载的起始位置
+     */
+    private int begin(int command)
+    {
+        mOut[0] = FrameDecoder.FLAG_1;
+        mOut[1] = FrameDecoder.FLAG_2;
+        mOut[4] = 0x00;
+        mOut[5] = 0x00;
+        mOut[6] = 0x00;
+        mOut[7] = (byte) command;
+        return FrameDecoder.INDEX_COMMAND + 1;
+    }
+
+    /***
+     * 写入长度、异或校验和帧尾, 返回整帧长度
+     */
+    private int finish(int end)
+    {
+        int length = end - 4;
+        mOut[2] = (byte) (length >> 8);
+        mOut[3] = (byte) length;
+        int checksum = 0;
+        for (int i = 2; i < end; i++)
+        {
+            checksum ^= mOut[i];
+        }
+        mOut[end] = (byte) checksum;
+        mOut[end + 1] = FrameDecoder.FLAG_1;
+        mOut[end + 2] = FrameDecoder.FLAG_2;
+        return end + 3;
+    }
+
+    private void send(int length) throws IOException
+    {
+        if (mDropRate > 0.0 && mRandom.nextDouble() < mDropRate)
+        {
+            mStats.onDropped();
+            return;
+        }
+        if (mCorruptionRate > 0.0 && mRandom.nextDouble() < mCorruptionRate)
+        {
+            int index = mRandom.nextInt(length);
+            mOut[index] ^= (byte) (1 + mRandom.nextInt(255));
+            mStats.onCorrupted();
+        }
+        long maxLatency = mMaxLatencyNanos;
+        if (maxLatency <= 0L && mDelayed.isEmpty())
+        {
+            write(mOut, length);
+            return;
+        }
+        long minLatency = mMinLatencyNanos;
+        long latency = minLatency + (maxLatency > minLatency ? (long) (mRandom.nextDouble() * (maxLatency - minLatency)) : 0L);
+        // 串口不会乱序, 延迟较短的帧排在前一帧之后
+        long due = Math.max(System.nanoTime() + latency, mLastDueNanos);
+        mLastDueNanos = due;
+        byte[] data = new byte[length];
+        System.arraycopy(mOut, 0, data, 0, length);
+        mDelayed.addLast(new Delayed(data, due));
+    }
+
+    private void flushDelayed(long now) throws IOException
+    {
+        Delayed next;
+        while ((next = mDelayed.peekFirst()) != null && now - next.dueNanos >= 0L)
+        {
+            mDelayed.pollFirst();
+            write(next.data, next.data.length);
+        }
+    }
+
+    private void write(byte[] data, int length) throws IOException
+    {
+        mOutput.write(data, 0, length);
+        mStats.onSent(data[FrameDecoder.INDEX_COMMAND] & 0xFF, length);
+    }
+
+    private int fill(int p, int until, byte value)
+    {
+        while (p < until)
+        {
+            mOut[p++] = value;
+        }
+        return p;
+    }
+
+    /***
+     * 压缩 BCD, 取 value 的最低 bytes*2 位十进制数
+     */
+    private int putBcd(int p, int value, int bytes)
+    {
+        for (int i = bytes - 1; i >= 0; i--)
+        {
+            int pair = value % 100;
+            value /= 100;
+            mOut[p + i] = (byte) (((pair / 10) << 4) | (pair % 10));
+        }
+        return p + bytes;
+    }
+
+    /** HHMMSS */
+    private int putDuration(int p, long seconds)
+    {
+        long hours = Math.min(99L, seconds / 3600);
+        p = putBcd(p, (int) hours, 1);
+        p = putBcd(p, (int) (seconds / 60 % 60), 1);
+        return putBcd(p, (int) (seconds % 60), 1);
+    }
+
+    /** yyyyMMddHHmm[ss] */
+    private int putTime(int p, boolean withSeconds)
+    {
+        Calendar now = Calendar.getInstance();
+        p = putBcd(p, now.get(Calendar.YEAR), 2);
+        p = putBcd(p, now.get(Calendar.MONTH) + 1, 1);
+        p = putBcd(p, now.get(Calendar.DAY_OF_MONTH), 1);
+        p = putBcd(p, now.get(Calendar.HOUR_OF_DAY), 1);
+        p = putBcd(p, now.get(Calendar.MINUTE), 1);
+        if (withSeconds)
+        {
+            p = putBcd(p, now.get(Calendar.SECOND), 1);
+        }
+        return p;
+    }
+
+    private static int bcd(byte[] data, int offset, int bytes)
+    {
+        int value = 0;
+        for (int i = offset; i < offset + bytes; i++)
+        {
+            int v = data[i] & 0xFF;
+            value = value * 100 + (v >> 4) * 10 + (v & 0x0F);
+        }
+        return value;
+    }
+
+    private static final class Delayed
+    {
+        final byte[] data;
+        final long dueNanos;
+
+        Delayed(byte[] data, long dueNanos)
+        {
+            this.data = data;
+            this.dueNanos = dueNanos;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.serial.sim;
+
+/**
+ * 计价板模拟器的统计数据
+ * <p>
+ * 只由模拟器线程更新, 其他线程读取的是近似值.
+ * </p>
+ */
+public class McuSimulatorStats
+{
+    /** 收到的主机命令数 */
+    private volatile long mReceivedCount;
+    private volatile long mUnknownCount;
+    /** 实际写入管道的帧数 */
+    private volatile long mSentCount;
+    private volatile long mBytesSent;
+    private volatile long mHeartbeatCount;
+    private volatile long mDroppedCount;
+    private volatile long mCorruptedCount;
+    private volatile long mFirmwareChunkCount;
+    private volatile long mFirmwareChunkRejectedCount;
+    private volatile long mFirmwareCompleteCount;
+    /** 按命令字低字节统计收到的命令 */
+    private final long[] mReceivedByCommand = new long[256];
+
+    void onReceived(int command)
+    {
+        mReceivedCount++;
+        mReceivedByCommand[command & 0xFF]++;
+    }
+
+    void onUnknownCommand()
+    {
+        mUnknownCount++;
+    }
+
+    void onSent(int command, int bytes)
+    {
+        mSentCount++;
+        mBytesSent += bytes;
+        if (command == McuSimulator.IDLE_HEARTBEAT || command == McuSimulator.ONGOING_HEARTBEAT)
+        {
+            mHeartbeatCount++;
+        }
+    }
+
+    void onDropped()
+    {
+        mDroppedCount++;
+    }
+
+    void onCorrupted()
+    {
+        mCorruptedCount++;
+    }
+
+    void onFirmwareChunk()
+    {
+        mFirmwareChunkCount++;
+    }
+
+    void onFirmwareChunkRejected()
+    {
+        mFirmwareChunkRejectedCount++;
+    }
+
+    void onFirmwareComplete()
+    {
+        mFirmwareCompleteCount++;
+    }
+
+    public long getReceivedCount()
+    {
+        return mReceivedCount;
+    }
+
+    /***
+     * @param command 命令字低字节, 例如 0xA4
+     */
+    public long getReceivedCount(int command)
+    {
+        return mReceivedByCommand[command & 0xFF];
+    }
+
+    public long getUnknownCount()
+    {
+        return mUnknownCount;
+    }
+
+    public long getSentCount()
+    {
+        return mSentCount;
+    }
+
+    public long getBytesSent()
+    {
+        return mBytesSent;
+    }
+
+    public long getHeartbeatCount()
+    {
+        return mHeartbeatCount;
+    }
+
+    public long getDroppedCount()
+    {
+        return mDroppedCount;
+    }
+
+    public long getCorruptedCount()
+    {
+        return mCorruptedCount;
+    }
+
+    public long getFirmwareChunkCount()
+    {
+        return mFirmwareChunkCount;
+    }
+
+    public long getFirmwareChunkRejectedCount()
+    {
+        return mFirmwareChunkRejectedCount;
+    }
+
+    public long getFirmwareCompleteCount()
+    {
+        return mFirmwareCompleteCount;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "McuSimulatorStats{received=" + mReceivedCount
+                + ", unknown=" + mUnknownCount
+                + ", sent=" + mSentCount
+                + ", bytes=" + mBytesSent
+                + ", heartbeats=" + mHeartbeatCount
+                + ", dropped=" + mDroppedCount
+                + ", corrupted=" + mCorruptedCount
+                + ", firmwareChunks=" + mFirmwareChunkCount
+                + "}";
+    }
+}
@@ -0,0 +1,161 @@
+package com.serial.sim;
+
+import com.ilin.atelec.BusModel;
+import com.serial.opt.FrameDecoder;
+import com.serial.opt.UartCommunication;
+import com.serial.opt.UartPipe;
+import com.serial.opt.UartWorker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 通过 {@link BusModel} 与模拟器完成一次行程: 开始, 行程中心跳, 结束, 应答 E4 后回到空闲
+ */
+public class McuSimulatorTripTest
+{
+    private static final long WAIT_MS = 3000L;
+    private static final String TRIP_ID = "0123456789abcdef0123456789abcdef";
+
+    private final LinkedBlockingQueue<byte[]> mFrames = new LinkedBlockingQueue<>();
+    private UartPipe mPipe;
+    private McuSimulator mSimulator;
+    private BusModel mBusModel;
+
+    @Before
+    public void setUp()
+    {
+        mPipe = new UartPipe(UartPipe.DEFAULT_CAPACITY, 50L, TimeUnit.MILLISECONDS);
+        mSimulator = new McuSimulator(mPipe, new Random(1));
+        mSimulator.setHeartbeatIntervals(20L, 20L, TimeUnit.MILLISECONDS);
+        mSimulator.setSpeed(100.0);
+        mSimulator.start();
+
+        mBusModel = BusModel.getInstance(null);
+        mBusModel.setListener(new UartWorker.OnDistributeListener()
+        {
+            @Override
+            public void onDistribution(String data)
+            {
+            }
+
+            @Override
+            public void onFrame(FrameDecoder.Frame frame)
+            {
+                mFrames.add(frame.copy());
+            }
+        });
+        UartCommunication uart = UartCommunication.create("simulator",
+                mPipe.getHostInputStream(), mPipe.getHostOutputStream());
+        mBusModel.init(new UartWorker(uart));
+    }
+
+    @After
+    public void tearDown()
+    {
+        mBusModel.stop();
+        mSimulator.stop();
+        mPipe.close();
+    }
+
+    @Test
+    public void startHeartbeatsAndEnd() throws Exception
+    {
+        awaitFrame(McuSimulator.IDLE_HEARTBEAT);
+
+        byte[] start = new byte[1 + TRIP_ID.length() + 3];
+        System.arraycopy(TRIP_ID.getBytes("US-ASCII"), 0, start, 1, TRIP_ID.length());
+        start[start.length - 3] = 0x0A;
+        start[start.length - 1] = 0x01;
+        assertTrue(mBusModel.sendCmd(command(0x10A0, start)));
+
+        // 行程中的心跳, 已付里程只增不减
+        int lastDistance = -1;
+        for (int i = 0; i < 5; i++)
+        {
+            byte[] heartbeat = awaitFrame(McuSimulator.ONGOING_HEARTBEAT);
+            assertEquals("hired", 0, heartbeat[8] & 0x0F);
+            int distance = bcd(heartbeat, 11, 3);
+            assertTrue(distance >= lastDistance);
+            lastDistance = distance;
+        }
+
+        assertTrue(mBusModel.sendCmd(command(0x10A3, new byte[] { 0x01, 0x0A, 0x00, 0x11 })));
+        byte[] summary = awaitFrame(McuSimulator.TRIP_END_SUMMARY);
+        assertTrue(bcd(summary, 71, 3) >= 2700);
+
+        // 应答 E4 后停止重发汇总, 回到空闲心跳
+        assertTrue(mBusModel.sendCmd(command(0x00E4, new byte[] { (byte) 0x90 })));
+        awaitFrame(McuSimulator.IDLE_HEARTBEAT);
+        mFrames.clear();
+        awaitFrame(McuSimulator.IDLE_HEARTBEAT);
+
+        McuSimulatorStats stats = mSimulator.getStats();
+        assertEquals(1, stats.getReceivedCount(0x10A0));
+        assertEquals(1, stats.getReceivedCount(0x10A3));
+        assertEquals(1, stats.getReceivedCount(0x00E4));
+        assertEquals(0, mSimulator.getChecksumErrorCount());
+    }
+
+    /***
+     * 等待下一个命令字为 command 的帧, 跳过其他帧
+     */
+    private byte[] awaitFrame(int command) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WAIT_MS);
+        while (true)
+        {
+            long left = deadline - System.nanoTime();
+            byte[] frame = left > 0 ? mFrames.poll(left, TimeUnit.NANOSECONDS) : null;
+            assertNotNull("no frame " + Integer.toHexString(command), frame);
+            if ((frame[7] & 0xFF) == command)
+            {
+                return frame;
+            }
+        }
+    }
+
+    /***
+     * 55AA | 长度 | 00 00 | 命令字 | 数据 | 异或校验 | 55AA
+     */
+    private static byte[] command(int command, byte[] payload)
+    {
+        byte[] out = new byte[payload.length + 11];
+        int length = payload.length + 4;
+        out[0] = 0x55;
+        out[1] = (byte) 0xAA;
+        out[2] = (byte) (length >> 8);
+        out[3] = (byte) length;
+        out[6] = (byte) (command >> 8);
+        out[7] = (byte) command;
+        System.arraycopy(payload, 0, out, 8, payload.length);
+        int checksum = 0;
+        for (int i = 2; i < 8 + payload.length; i++)
+        {
+            checksum ^= out[i];
+        }
+        out[out.length - 3] = (byte) checksum;
+        out[out.length - 2] = 0x55;
+        out[out.length - 1] = (byte) 0xAA;
+        return out;
+    }
+
+    private static int bcd(byte[] frame, int offset, int bytes)
+    {
+        int value = 0;
+        for (int i = offset; i < offset + bytes; i++)
+        {
+            value = value * 100 + ((frame[i] >> 4) & 0x0F) * 10 + (frame[i] & 0x0F);
+        }
+        return value;
+    }
+}
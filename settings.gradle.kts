@@ -23,3 +23,4 @@ rootProject.name = "CableMeter"
 include(":app")
 include(":measure-board-module")
 include(":NxGnFirebaseModule")
+include(":benchmark")